@@ -17,60 +17,317 @@
 #include "agq.h"
 #include <jni.h>
 #include <android/log.h>
+#include <pthread.h>
 #include <time.h>
 
 #define LOGD(...) ((void)__android_log_print(ANDROID_LOG_DEBUG, "AndroidGameQualification", __VA_ARGS__))
 
+// Set by JNI_OnLoad if the app uses JNI.
 static JavaVM* sJavaVm = nullptr;
-static JNIEnv* sJniEnv = nullptr;
-
-// Initialize sJavaVm if the app uses JNI.
-JNIEXPORT jint JNI_OnLoad(JavaVM* vm, void*) {
-    sJavaVm = vm;
-    sJavaVm->GetEnv(reinterpret_cast<void**>(&sJniEnv), JNI_VERSION_1_6);
-    return sJniEnv->GetVersion();
-}
 
 namespace android {
 
 static const char* const INTENT_START = "com.android.game.qualification.START";
 
-static JNIEnv* getJniEnv() {
-    if (sJniEnv == nullptr) {
-        sJavaVm->AttachCurrentThread(&sJniEnv, nullptr);
+// Values of the "event" extra, the names of the event types of the result proto.
+enum Event {
+    EVENT_START_LOOP,
+    EVENT_END_LOOP,
+    EVENT_SCENE_BEGIN,
+    EVENT_SCENE_END,
+    EVENT_MARKER,
+    EVENT_COUNT,
+};
+static const char* const EVENT_NAMES[EVENT_COUNT] = {
+    "START_LOOP",
+    "END_LOOP",
+    "SCENE_BEGIN",
+    "SCENE_END",
+    "MARKER",
+};
+
+// Local references created for an event: the intent, the name of a scene, and the intents
+// returned by its setters.
+static const jint LOCAL_FRAME_CAPACITY = 16;
+
+// Classes, methods and constant strings used to send the events.  They are resolved once, and the
+// references are global so that they are valid on every thread.
+struct JniCache {
+    jclass intentClass;
+    jmethodID intentConstructor;
+    jmethodID setType;
+    jmethodID putLongExtra;
+    jmethodID putStringExtra;
+    jmethodID putIntExtra;
+    jmethodID sendBroadcast;
+    jstring action;
+    jstring mimeType;
+    jstring timestampNsKey;
+    jstring timestampMsKey;
+    jstring eventKey;
+    jstring nameKey;
+    jstring markerIdKey;
+    jstring eventNames[EVENT_COUNT];
+};
+
+static JniCache sJni;
+static bool sJniInitialized = false;
+static pthread_mutex_t sJniMutex = PTHREAD_MUTEX_INITIALIZER;
+
+// Threads attached to the VM by this library, which are detached when they exit.
+static pthread_key_t sAttachedEnvKey;
+static pthread_once_t sAttachedEnvKeyOnce = PTHREAD_ONCE_INIT;
+
+static void detachThread(void* value) {
+    JNIEnv* env = static_cast<JNIEnv*>(value);
+    JavaVM* vm = nullptr;
+    if (env->GetJavaVM(&vm) == JNI_OK) {
+        vm->DetachCurrentThread();
     }
-    return sJniEnv;
 }
 
-// Convert timespec to milliseconds.
-jlong timespecToMs(timespec spec) {
-    return jlong(spec.tv_sec) * 1000 + spec.tv_nsec / 1000000;
+static void createAttachedEnvKey() {
+    pthread_key_create(&sAttachedEnvKey, detachThread);
 }
 
-// Create an Intent jobject in Java.
-static jobject createIntent() {
-    struct timespec spec;
-    clock_gettime(CLOCK_MONOTONIC, &spec);
-    JNIEnv* env = getJniEnv();
-    jclass intentClass = env->FindClass("android/content/Intent");
-    jmethodID constructor = env->GetMethodID(intentClass, "<init>", "(Ljava/lang/String;)V");
-    jobject intent = env->NewObject(intentClass, constructor, env->NewStringUTF(INTENT_START));
-    jmethodID set_type =
-            env->GetMethodID(
+// Get the JNIEnv of the calling thread, attaching it to the VM if it is not a Java thread.  A
+// JNIEnv is only valid on the thread it belongs to, so it is never shared between threads.
+static JNIEnv* getJniEnv(JavaVM* vm) {
+    pthread_once(&sAttachedEnvKeyOnce, createAttachedEnvKey);
+    JNIEnv* env = static_cast<JNIEnv*>(pthread_getspecific(sAttachedEnvKey));
+    if (env != nullptr) {
+        return env;
+    }
+    if (vm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) == JNI_OK) {
+        return env;
+    }
+    if (vm->AttachCurrentThread(&env, nullptr) != JNI_OK) {
+        LOGD("Unable to attach thread to the VM");
+        return nullptr;
+    }
+    pthread_setspecific(sAttachedEnvKey, env);
+    return env;
+}
+
+// Whether the last JNI call threw, in which case the exception is cleared, as no other JNI call
+// may be made while it is pending.
+static bool clearException(JNIEnv* env) {
+    if (env->ExceptionCheck()) {
+        env->ExceptionClear();
+        return true;
+    }
+    return false;
+}
+
+// Returns nullptr if the string cannot be created.
+static jstring newGlobalString(JNIEnv* env, const char* value) {
+    jstring local = env->NewStringUTF(value);
+    if (clearException(env) || local == nullptr) {
+        return nullptr;
+    }
+    jstring global = static_cast<jstring>(env->NewGlobalRef(local));
+    env->DeleteLocalRef(local);
+    return global;
+}
+
+static jmethodID getMethodId(
+        JNIEnv* env, jclass clazz, const char* name, const char* signature) {
+    jmethodID method = env->GetMethodID(clazz, name, signature);
+    return clearException(env) ? nullptr : method;
+}
+
+static void deleteGlobalRef(JNIEnv* env, jobject* ref) {
+    if (*ref != nullptr) {
+        env->DeleteGlobalRef(*ref);
+        *ref = nullptr;
+    }
+}
+
+// Delete the global references of a partially resolved cache, so that a retry does not leak them.
+static void releaseJniCache(JNIEnv* env) {
+    deleteGlobalRef(env, reinterpret_cast<jobject*>(&sJni.intentClass));
+    deleteGlobalRef(env, reinterpret_cast<jobject*>(&sJni.action));
+    deleteGlobalRef(env, reinterpret_cast<jobject*>(&sJni.mimeType));
+    deleteGlobalRef(env, reinterpret_cast<jobject*>(&sJni.timestampNsKey));
+    deleteGlobalRef(env, reinterpret_cast<jobject*>(&sJni.timestampMsKey));
+    deleteGlobalRef(env, reinterpret_cast<jobject*>(&sJni.eventKey));
+    deleteGlobalRef(env, reinterpret_cast<jobject*>(&sJni.nameKey));
+    deleteGlobalRef(env, reinterpret_cast<jobject*>(&sJni.markerIdKey));
+    for (int i = 0; i < EVENT_COUNT; i++) {
+        deleteGlobalRef(env, reinterpret_cast<jobject*>(&sJni.eventNames[i]));
+    }
+}
+
+// Each lookup is checked before the next one, so that no JNI call is made with an exception
+// pending.
+static bool resolveMethods(JNIEnv* env, jclass intentClass, jclass contextClass) {
+    sJni.intentConstructor = getMethodId(env, intentClass, "<init>", "(Ljava/lang/String;)V");
+    if (sJni.intentConstructor == nullptr) {
+        return false;
+    }
+    sJni.setType =
+            getMethodId(
+                env,
                 intentClass,
                 "setType",
                 "(Ljava/lang/String;)Landroid/content/Intent;");
-    env->CallObjectMethod(intent, set_type, env->NewStringUTF("text/plain"));
-    jmethodID put_extra =
-            env->GetMethodID(
+    if (sJni.setType == nullptr) {
+        return false;
+    }
+    sJni.putLongExtra =
+            getMethodId(
+                env,
                 intentClass,
                 "putExtra",
                 "(Ljava/lang/String;J)Landroid/content/Intent;");
+    if (sJni.putLongExtra == nullptr) {
+        return false;
+    }
+    sJni.putStringExtra =
+            getMethodId(
+                env,
+                intentClass,
+                "putExtra",
+                "(Ljava/lang/String;Ljava/lang/String;)Landroid/content/Intent;");
+    if (sJni.putStringExtra == nullptr) {
+        return false;
+    }
+    sJni.putIntExtra =
+            getMethodId(
+                env,
+                intentClass,
+                "putExtra",
+                "(Ljava/lang/String;I)Landroid/content/Intent;");
+    if (sJni.putIntExtra == nullptr) {
+        return false;
+    }
+    sJni.sendBroadcast =
+            getMethodId(
+                env,
+                contextClass,
+                "sendBroadcast",
+                "(Landroid/content/Intent;)V");
+    return sJni.sendBroadcast != nullptr;
+}
+
+static bool resolveGlobalRefs(JNIEnv* env, jclass intentClass) {
+    sJni.intentClass = static_cast<jclass>(env->NewGlobalRef(intentClass));
+    sJni.action = newGlobalString(env, INTENT_START);
+    sJni.mimeType = newGlobalString(env, "text/plain");
+    sJni.timestampNsKey = newGlobalString(env, "timestamp_ns");
+    sJni.timestampMsKey = newGlobalString(env, "timestamp");
+    sJni.eventKey = newGlobalString(env, "event");
+    sJni.nameKey = newGlobalString(env, "name");
+    sJni.markerIdKey = newGlobalString(env, "marker_id");
+    bool resolved = sJni.intentClass != nullptr
+            && sJni.action != nullptr
+            && sJni.mimeType != nullptr
+            && sJni.timestampNsKey != nullptr
+            && sJni.timestampMsKey != nullptr
+            && sJni.eventKey != nullptr
+            && sJni.nameKey != nullptr
+            && sJni.markerIdKey != nullptr;
+    for (int i = 0; i < EVENT_COUNT; i++) {
+        sJni.eventNames[i] = newGlobalString(env, EVENT_NAMES[i]);
+        resolved = resolved && sJni.eventNames[i] != nullptr;
+    }
+    return resolved;
+}
+
+// Returns false, without leaving an exception pending or global references behind, if the cache
+// cannot be resolved.
+static bool resolveJniCache(JNIEnv* env) {
+    jclass intentClass = env->FindClass("android/content/Intent");
+    if (clearException(env) || intentClass == nullptr) {
+        return false;
+    }
+    jclass contextClass = env->FindClass("android/content/Context");
+    if (clearException(env) || contextClass == nullptr) {
+        env->DeleteLocalRef(intentClass);
+        return false;
+    }
+    bool resolved =
+            resolveMethods(env, intentClass, contextClass) && resolveGlobalRefs(env, intentClass);
+    env->DeleteLocalRef(intentClass);
+    env->DeleteLocalRef(contextClass);
+    if (!resolved) {
+        releaseJniCache(env);
+    }
+    return resolved;
+}
+
+// Resolve the JNI cache, in JNI_OnLoad or, for a pure native app, when the first event is sent.
+static bool initializeJni(JNIEnv* env) {
+    if (__atomic_load_n(&sJniInitialized, __ATOMIC_ACQUIRE)) {
+        return true;
+    }
+    pthread_mutex_lock(&sJniMutex);
+    bool initialized = sJniInitialized;
+    if (!initialized) {
+        initialized = resolveJniCache(env);
+        if (!initialized) {
+            LOGD("Unable to resolve android.content.Intent and android.content.Context");
+        }
+        __atomic_store_n(&sJniInitialized, initialized, __ATOMIC_RELEASE);
+    }
+    pthread_mutex_unlock(&sJniMutex);
+    return initialized;
+}
 
-    jlong timestamp = timespecToMs(spec);
-    env->CallObjectMethod(intent, put_extra, env->NewStringUTF("timestamp"), timestamp);
+// Convert timespec to nanoseconds.
+jlong timespecToNs(timespec spec) {
+    return jlong(spec.tv_sec) * 1000000000 + spec.tv_nsec;
+}
 
-    LOGD("Created intent %s at %lld", INTENT_START, (long long)timestamp);
+// Create an Intent jobject in Java for an event.  name is only set for scenes, and markerId for
+// markers.  The references it creates are local to the frame of the caller.  Returns nullptr, with
+// the exception cleared, if a call to Java failed.
+static jobject createIntent(JNIEnv* env, Event event, const char* name, jint markerId) {
+    struct timespec spec;
+    clock_gettime(CLOCK_MONOTONIC, &spec);
+    jobject intent = env->NewObject(sJni.intentClass, sJni.intentConstructor, sJni.action);
+    if (clearException(env) || intent == nullptr) {
+        return nullptr;
+    }
+    env->CallObjectMethod(intent, sJni.setType, sJni.mimeType);
+    if (clearException(env)) {
+        return nullptr;
+    }
+
+    // CLOCK_MONOTONIC is the clock of the present times reported by SurfaceFlinger.  The time is
+    // also sent in milliseconds for older versions of the test.
+    jlong timestampNs = timespecToNs(spec);
+    env->CallObjectMethod(intent, sJni.putLongExtra, sJni.timestampNsKey, timestampNs);
+    if (clearException(env)) {
+        return nullptr;
+    }
+    env->CallObjectMethod(intent, sJni.putLongExtra, sJni.timestampMsKey, timestampNs / 1000000);
+    if (clearException(env)) {
+        return nullptr;
+    }
+    env->CallObjectMethod(intent, sJni.putStringExtra, sJni.eventKey, sJni.eventNames[event]);
+    if (clearException(env)) {
+        return nullptr;
+    }
+    if (name != nullptr) {
+        jstring jname = env->NewStringUTF(name);
+        if (clearException(env) || jname == nullptr) {
+            return nullptr;
+        }
+        env->CallObjectMethod(intent, sJni.putStringExtra, sJni.nameKey, jname);
+        if (clearException(env)) {
+            return nullptr;
+        }
+    }
+    if (event == EVENT_MARKER) {
+        env->CallObjectMethod(intent, sJni.putIntExtra, sJni.markerIdKey, markerId);
+        if (clearException(env)) {
+            return nullptr;
+        }
+    }
+
+    LOGD("Created intent %s for %s at %lld ns",
+            INTENT_START, EVENT_NAMES[event], (long long)timestampNs);
     return intent;
 }
 
@@ -78,25 +335,51 @@ static jobject createIntent() {
 
 class GameQualification::Impl {
 public:
-    void startLoop(jobject context);
-    void startLoop(ANativeActivity* activity);
+    void sendEvent(jobject context, Event event, const char* name, jint markerId);
+    void sendEvent(ANativeActivity* activity, Event event, const char* name, jint markerId);
+private:
+    void sendEvent(
+            JavaVM* vm, jobject context, Event event, const char* name, jint markerId);
 };
 
 
-void GameQualification::Impl::startLoop(jobject context) {
-    JNIEnv* env = getJniEnv();
-    jclass contextClass = env->FindClass("android/content/Context");
-    jmethodID method =
-            env->GetMethodID(
-                contextClass,
-                "sendBroadcast",
-                "(Landroid/content/Intent;)V");
-    env->CallVoidMethod(context, method, createIntent());
+void GameQualification::Impl::sendEvent(
+        jobject context, Event event, const char* name, jint markerId) {
+    if (sJavaVm == nullptr) {
+        LOGD("JNI_OnLoad was not called, unable to send %s", EVENT_NAMES[event]);
+        return;
+    }
+    sendEvent(sJavaVm, context, event, name, markerId);
 }
 
-void GameQualification::Impl::startLoop(ANativeActivity* activity) {
-    sJavaVm = activity->vm;
-    startLoop(activity->clazz);
+void GameQualification::Impl::sendEvent(
+        ANativeActivity* activity, Event event, const char* name, jint markerId) {
+    sendEvent(activity->vm, activity->clazz, event, name, markerId);
+}
+
+void GameQualification::Impl::sendEvent(
+        JavaVM* vm, jobject context, Event event, const char* name, jint markerId) {
+    JNIEnv* env = getJniEnv(vm);
+    if (env == nullptr || !initializeJni(env)) {
+        return;
+    }
+    // The local references are released when the frame is popped, which matters on native
+    // threads that stay attached to the VM and never return to Java.
+    if (env->PushLocalFrame(LOCAL_FRAME_CAPACITY) != JNI_OK) {
+        env->ExceptionClear();
+        return;
+    }
+    jobject intent = createIntent(env, event, name, markerId);
+    if (intent == nullptr) {
+        LOGD("Unable to create the intent for %s", EVENT_NAMES[event]);
+    } else {
+        env->CallVoidMethod(context, sJni.sendBroadcast, intent);
+        if (env->ExceptionCheck()) {
+            LOGD("Unable to send %s", EVENT_NAMES[event]);
+            env->ExceptionClear();
+        }
+    }
+    env->PopLocalFrame(nullptr);
 }
 
 /* Implementation of GameQualification */
@@ -110,11 +393,70 @@ GameQualification::~GameQualification() {
 }
 
 void GameQualification::startLoop(jobject context) {
-    mImpl->startLoop(context);
+    mImpl->sendEvent(context, EVENT_START_LOOP, nullptr, 0);
 }
 
 void GameQualification::startLoop(ANativeActivity* activity) {
-    mImpl->startLoop(activity);
+    mImpl->sendEvent(activity, EVENT_START_LOOP, nullptr, 0);
+}
+
+void GameQualification::endLoop(jobject context) {
+    mImpl->sendEvent(context, EVENT_END_LOOP, nullptr, 0);
+}
+
+void GameQualification::endLoop(ANativeActivity* activity) {
+    mImpl->sendEvent(activity, EVENT_END_LOOP, nullptr, 0);
+}
+
+void GameQualification::beginScene(jobject context, const char* name) {
+    if (name == nullptr) {
+        LOGD("beginScene called without a name");
+        return;
+    }
+    mImpl->sendEvent(context, EVENT_SCENE_BEGIN, name, 0);
+}
+
+void GameQualification::beginScene(ANativeActivity* activity, const char* name) {
+    if (name == nullptr) {
+        LOGD("beginScene called without a name");
+        return;
+    }
+    mImpl->sendEvent(activity, EVENT_SCENE_BEGIN, name, 0);
+}
+
+void GameQualification::endScene(jobject context, const char* name) {
+    if (name == nullptr) {
+        LOGD("endScene called without a name");
+        return;
+    }
+    mImpl->sendEvent(context, EVENT_SCENE_END, name, 0);
+}
+
+void GameQualification::endScene(ANativeActivity* activity, const char* name) {
+    if (name == nullptr) {
+        LOGD("endScene called without a name");
+        return;
+    }
+    mImpl->sendEvent(activity, EVENT_SCENE_END, name, 0);
+}
+
+void GameQualification::marker(jobject context, int32_t markerId) {
+    mImpl->sendEvent(context, EVENT_MARKER, nullptr, markerId);
+}
+
+void GameQualification::marker(ANativeActivity* activity, int32_t markerId) {
+    mImpl->sendEvent(activity, EVENT_MARKER, nullptr, markerId);
 }
 
 } // end of namespace android
+
+// Resolve the classes and methods used by the library while the app loads it.
+JNIEXPORT jint JNI_OnLoad(JavaVM* vm, void*) {
+    JNIEnv* env = nullptr;
+    if (vm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) != JNI_OK) {
+        return JNI_ERR;
+    }
+    sJavaVm = vm;
+    android::initializeJni(env);
+    return env->GetVersion();
+}
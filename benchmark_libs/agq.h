@@ -18,10 +18,17 @@
 #define AGQ_H
 
 #include <jni.h>
+#include <stdint.h>
 #include <android/native_activity.h>
 
 namespace android {
 
+/*
+ * Reports the events of a game to the Android Game Qualification test.
+ *
+ * The methods may be called from any thread, including native threads that are not attached to
+ * the VM.
+ */
 class GameQualification {
 private:
     class Impl;
@@ -35,7 +42,10 @@ public:
     /*
      * Signal Android Game Qualification library the start of a loop.
      *
-     * For use with app with JNI.  context should be a jobject of type android.content.Context.
+     * For use with app with JNI.  context should be a jobject of type android.content.Context.  It
+     * must be a global reference, see NewGlobalRef, as a local reference is only valid on the
+     * thread and in the JNI call it was created in.  The same applies to the context passed to
+     * the other functions below.
      */
     void startLoop(jobject context);
 
@@ -45,6 +55,28 @@ public:
      * For use with pure native app using ANativeActivity.
      */
     void startLoop(ANativeActivity* activity);
+
+    /*
+     * Signal the end of the loop started by the last startLoop.  Frames presented until the next
+     * loop, e.g. in a menu, are not measured.
+     */
+    void endLoop(jobject context);
+    void endLoop(ANativeActivity* activity);
+
+    /*
+     * Signal the beginning and the end of a scene, e.g. one of the scenes of a benchmark.  The
+     * frames of each scene are summarized separately, under its name, which must not be null.
+     */
+    void beginScene(jobject context, const char* name);
+    void beginScene(ANativeActivity* activity, const char* name);
+    void endScene(jobject context, const char* name);
+    void endScene(ANativeActivity* activity, const char* name);
+
+    /*
+     * Signal a point of interest, identified by a number defined by the app.
+     */
+    void marker(jobject context, int32_t markerId);
+    void marker(ANativeActivity* activity, int32_t markerId);
 };
 
 } // end of namespace android
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.device;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.game.qualification.ApkInfo;
+
+import java.io.IOException;
+
+/**
+ * Launches an APK and reports its events until it has run for long enough.
+ *
+ * Everything runs on the thread of the handler, including the intents sent by the app.  A
+ * launcher runs a single APK.
+ */
+public class AppLauncher {
+    public static final String INTENT_ACTION = "com.android.game.qualification.START";
+
+    private static final String TAG = "GameQualificationTest";
+    // CLOCK_MONOTONIC time at which the loop started, in nanoseconds and in milliseconds.
+    private static final String TIMESTAMP_NS_EXTRA = "timestamp_ns";
+    private static final String TIMESTAMP_MS_EXTRA = "timestamp";
+    // Type of the event.  Intents without it are the start of a loop.
+    private static final String EVENT_EXTRA = "event";
+    private static final String NAME_EXTRA = "name";
+    private static final String MARKER_ID_EXTRA = "marker_id";
+    private static final String EVENT_START_LOOP = "START_LOOP";
+    private static final String EVENT_END_LOOP = "END_LOOP";
+    private static final String EVENT_SCENE_BEGIN = "SCENE_BEGIN";
+    private static final String EVENT_SCENE_END = "SCENE_END";
+    private static final String EVENT_MARKER = "MARKER";
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final MetricsReporter mReport;
+    private ApkInfo mApk;
+    private Runnable mOnDone;
+    private BroadcastReceiver mReceiver;
+    private boolean mGotIntent = false;
+    private boolean mDone = false;
+
+    public AppLauncher(Context context, Handler handler, MetricsReporter report) {
+        mContext = context;
+        mHandler = handler;
+        mReport = report;
+    }
+
+    /**
+     * Launch the APK.  Must be called on the thread of the handler.
+     *
+     * @param onDone called on the thread of the handler once the result file is complete.
+     */
+    public void launch(ApkInfo apk, Runnable onDone)
+            throws IntentFilter.MalformedMimeTypeException, IOException {
+        mApk = apk;
+        mOnDone = onDone;
+        Intent intent =
+                mContext.getPackageManager().getLaunchIntentForPackage(apk.getPackageName());
+        if (intent == null) {
+            throw new IOException("Unable to find launch intent for " + apk.getPackageName());
+        }
+        if (apk.getActivityName() != null) {
+            intent.setClassName(apk.getPackageName(), apk.getActivityName());
+        }
+
+        for (ApkInfo.Argument argument : apk.getArgs()) {
+            switch(argument.getType()) {
+                case STRING:
+                    intent.putExtra(argument.getKey(), argument.getValue());
+                    break;
+                case BOOLEAN: {
+                    boolean value = Boolean.valueOf(argument.getValue());
+                    intent.putExtra(argument.getKey(), value);
+                    break;
+                }
+                case BYTE: {
+                    byte value = Byte.valueOf(argument.getValue());
+                    intent.putExtra(argument.getKey(), value);
+                    break;
+                }
+                case INT: {
+                    int value = Integer.valueOf(argument.getValue());
+                    intent.putExtra(argument.getKey(), value);
+                    break;
+                }
+                case LONG: {
+                    long value = Long.valueOf(argument.getValue());
+                    intent.putExtra(argument.getKey(), value);
+                    break;
+                }
+                case FLOAT: {
+                    float value = Float.valueOf(argument.getValue());
+                    intent.putExtra(argument.getKey(), value);
+                    break;
+                }
+                case DOUBLE: {
+                    double value = Double.valueOf(argument.getValue());
+                    intent.putExtra(argument.getKey(), value);
+                    break;
+                }
+            }
+        }
+
+        mReport.begin(apk.getName());
+        registerReceiver();
+        Log.d(TAG, "Launching " + apk.getPackageName());
+
+        mReport.appLaunched(System.nanoTime());
+        try {
+            mContext.startActivity(intent);
+        } catch (RuntimeException e) {
+            finish();
+            throw e;
+        }
+        postDelayed(() -> {
+            if (mApk.getExpectIntents()) {
+                if (!mGotIntent) {
+                    // app integrates via intents, but we've not received one yet.
+                    // we assume that the app is stuck or dead and terminate the test.
+                    done();
+                }
+            } else {
+                // the app doesn't integrate properly. We assume that loading has completed
+                // by now, so produce a synthetic event here for the current timestamp, and
+                // then allow an additional mApk.getRunTime() milliseconds for the actual
+                // workload to run.
+                mReport.startLoop(System.nanoTime());
+                postDelayed(this::done, mApk.getRunTime());
+            }
+        }, mApk.getLoadTime());
+    }
+
+    // Posted with this launcher as the token, so that they are all removed when it is done.
+    private void postDelayed(Runnable r, long delayMs) {
+        mHandler.postAtTime(r, this, SystemClock.uptimeMillis() + delayMs);
+    }
+
+    /**
+     * End the run before the APK has run for long enough, e.g. because the host timed out.  Must
+     * be called on the thread of the handler.
+     */
+    public void cancel() {
+        done();
+    }
+
+    private void done() {
+        if (mDone) {
+            return;
+        }
+        finish();
+        mOnDone.run();
+    }
+
+    private void finish() {
+        mDone = true;
+        mHandler.removeCallbacksAndMessages(this);
+        mContext.unregisterReceiver(mReceiver);
+        try {
+            mReport.end();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close the result file", e);
+        }
+    }
+
+    private void registerReceiver() throws IntentFilter.MalformedMimeTypeException {
+        mReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (mDone) {
+                    return;
+                }
+                long timestampNs;
+                if (intent.hasExtra(TIMESTAMP_NS_EXTRA)) {
+                    timestampNs = intent.getLongExtra(TIMESTAMP_NS_EXTRA, 0);
+                } else {
+                    // Sent by an older version of libagq, in milliseconds.
+                    timestampNs = intent.getLongExtra(TIMESTAMP_MS_EXTRA, 0) * 1000000;
+                }
+                String event = intent.getStringExtra(EVENT_EXTRA);
+                Log.d(TAG, "Received " + (event == null ? "intent" : event) + " at " + timestampNs);
+                if (event != null && !event.equals(EVENT_START_LOOP)) {
+                    reportEvent(event, intent, timestampNs);
+                    return;
+                }
+                mReport.startLoop(timestampNs);
+                if (!mGotIntent) {
+                    postDelayed(AppLauncher.this::done, mApk.getRunTime());
+                    mGotIntent = true;
+                }
+            }
+        };
+        IntentFilter intentFilter = new IntentFilter(INTENT_ACTION, "text/plain");
+        mContext.registerReceiver(mReceiver, intentFilter, null, mHandler);
+    }
+
+    // Events other than the start of a loop do not affect how long the app runs.
+    private void reportEvent(String event, Intent intent, long timestampNs) {
+        switch (event) {
+            case EVENT_END_LOOP:
+                mReport.endLoop(timestampNs);
+                break;
+            case EVENT_SCENE_BEGIN:
+                mReport.beginScene(getSceneName(event, intent), timestampNs);
+                break;
+            case EVENT_SCENE_END:
+                mReport.endScene(getSceneName(event, intent), timestampNs);
+                break;
+            case EVENT_MARKER:
+                mReport.marker(intent.getIntExtra(MARKER_ID_EXTRA, 0), timestampNs);
+                break;
+            default:
+                Log.w(TAG, "Unknown event " + event);
+        }
+    }
+
+    // A scene without a name is reported under the empty name rather than crashing the test.
+    private static String getSceneName(String event, Intent intent) {
+        String name = intent.getStringExtra(NAME_EXTRA);
+        if (name == null) {
+            Log.w(TAG, event + " without a name");
+            return "";
+        }
+        return name;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.device;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+
+import com.android.game.qualification.ApkInfo;
+import com.android.game.qualification.GameCoreConfigurationXmlParser;
+import com.android.game.qualification.SessionProtocol;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.xml.sax.SAXException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Instrumentation that runs for the whole invocation and launches the APKs the host sends it, see
+ * {@link SessionProtocol}.
+ *
+ * apk-info.xml is parsed once, and the events of each run are reported the same way as by
+ * {@link GameQualificationTest}.  A single APK runs at a time.
+ */
+@RunWith(JUnit4.class)
+public class GameQualificationSession {
+    private static final String TAG = "GameQualificationSession";
+
+    private final Map<String, ApkInfo> mApks = new HashMap<>();
+    private final MetricsReporter mReport = new MetricsReporter();
+    private Handler mHandler;
+    private Context mContext;
+    private AppLauncher mLauncher;
+
+    @Test public void serve() throws ParserConfigurationException, SAXException, IOException {
+        GameCoreConfigurationXmlParser parser = new GameCoreConfigurationXmlParser();
+        for (ApkInfo apk : parser.parse(new File(ApkInfo.APK_LIST_LOCATION)).getApkInfo()) {
+            mApks.put(apk.getName(), apk);
+        }
+
+        Looper.prepare();
+        mHandler = new Handler();
+        mContext = InstrumentationRegistry.getContext();
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onCommand(intent.getStringExtra(SessionProtocol.COMMAND_EXTRA), intent, this);
+            }
+        };
+        mContext.registerReceiver(
+                receiver, new IntentFilter(SessionProtocol.ACTION), null, mHandler);
+        Log.i(TAG, "Waiting for commands");
+        try {
+            Looper.loop();
+        } finally {
+            mContext.unregisterReceiver(receiver);
+        }
+    }
+
+    private void onCommand(String command, Intent intent, BroadcastReceiver receiver) {
+        if (SessionProtocol.COMMAND_STOP.equals(command)) {
+            if (mLauncher != null) {
+                mLauncher.cancel();
+            }
+            receiver.setResultCode(SessionProtocol.RESULT_ACCEPTED);
+            mHandler.getLooper().quit();
+            return;
+        }
+        if (SessionProtocol.COMMAND_STATUS.equals(command)) {
+            String status = mLauncher != null
+                    ? SessionProtocol.STATUS_RUNNING
+                    : SessionProtocol.STATUS_IDLE;
+            receiver.setResult(SessionProtocol.RESULT_ACCEPTED, status, null);
+            return;
+        }
+        if (SessionProtocol.COMMAND_CANCEL.equals(command)) {
+            if (mLauncher != null) {
+                Log.w(TAG, "Cancelling the current run");
+                mLauncher.cancel();
+            }
+            receiver.setResultCode(SessionProtocol.RESULT_ACCEPTED);
+            return;
+        }
+        if (!SessionProtocol.COMMAND_LAUNCH.equals(command)) {
+            reject(receiver, "Unknown command " + command);
+            return;
+        }
+        if (mLauncher != null) {
+            reject(receiver, "Another APK is running");
+            return;
+        }
+        ApkInfo apk = mApks.get(intent.getStringExtra(SessionProtocol.APK_EXTRA));
+        if (apk == null) {
+            reject(receiver, "Unknown APK " + intent.getStringExtra(SessionProtocol.APK_EXTRA));
+            return;
+        }
+        mLauncher = new AppLauncher(mContext, mHandler, mReport);
+        try {
+            mLauncher.launch(apk, () -> mLauncher = null);
+        } catch (IntentFilter.MalformedMimeTypeException | IOException | RuntimeException e) {
+            mLauncher = null;
+            reject(receiver, "Unable to launch " + apk.getName() + ": " + e.getMessage());
+            return;
+        }
+        receiver.setResultCode(SessionProtocol.RESULT_ACCEPTED);
+    }
+
+    private static void reject(BroadcastReceiver receiver, String reason) {
+        Log.w(TAG, reason);
+        receiver.setResult(SessionProtocol.RESULT_REJECTED, reason, null);
+    }
+}
@@ -16,14 +16,9 @@
 
 package com.android.game.qualification.device;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.SystemClock;
-import android.util.Log;
 
 import androidx.test.InstrumentationRegistry;
 
@@ -44,11 +39,14 @@ import java.util.List;
 
 import javax.xml.parsers.ParserConfigurationException;
 
+/**
+ * Runs a single APK in its own instrumentation.
+ *
+ * Used when the host does not run the APKs through a {@link GameQualificationSession}.
+ */
 @RunWith(Parameterized.class)
 public class GameQualificationTest {
-    public static final String INTENT_ACTION = "com.android.game.qualification.START";
-
-    private static final String TAG = "GameQualificationTest";
+    public static final String INTENT_ACTION = AppLauncher.INTENT_ACTION;
 
     @Parameters(name = "{0}")
     public static Iterable<Object[]> data()
@@ -69,104 +67,14 @@ public class GameQualificationTest {
     @Parameter(value = 1)
     public ApkInfo mApk;
 
-    private Handler mHandler;
     private MetricsReporter mReport = new MetricsReporter();
-    private boolean mGotIntent = false;
 
     @Test public void run() throws IntentFilter.MalformedMimeTypeException, IOException {
-        startApp(mApk);
-    }
-
-    private void startApp(ApkInfo apk) throws IntentFilter.MalformedMimeTypeException, IOException {
         Looper.prepare();
-        mHandler = new Handler();
-
-        registerReceiver();
-        mReport.begin(apk.getName());
-        Log.d(TAG, "Launching " + apk.getPackageName());
-
-        Intent intent =
-                InstrumentationRegistry.getContext().getPackageManager()
-                    .getLaunchIntentForPackage(apk.getPackageName());
-        if (apk.getActivityName() != null) {
-            intent.setClassName(apk.getPackageName(), apk.getActivityName());
-        }
-
-        for (ApkInfo.Argument argument : mApk.getArgs()) {
-            switch(argument.getType()) {
-                case STRING:
-                    intent.putExtra(argument.getKey(), argument.getValue());
-                    break;
-                case BOOLEAN: {
-                    boolean value = Boolean.valueOf(argument.getValue());
-                    intent.putExtra(argument.getKey(), value);
-                    break;
-                }
-                case BYTE: {
-                    byte value = Byte.valueOf(argument.getValue());
-                    intent.putExtra(argument.getKey(), value);
-                    break;
-                }
-                case INT: {
-                    int value = Integer.valueOf(argument.getValue());
-                    intent.putExtra(argument.getKey(), value);
-                    break;
-                }
-                case LONG: {
-                    long value = Long.valueOf(argument.getValue());
-                    intent.putExtra(argument.getKey(), value);
-                    break;
-                }
-                case FLOAT: {
-                    float value = Float.valueOf(argument.getValue());
-                    intent.putExtra(argument.getKey(), value);
-                    break;
-                }
-                case DOUBLE: {
-                    double value = Double.valueOf(argument.getValue());
-                    intent.putExtra(argument.getKey(), value);
-                    break;
-                }
-            }
-        }
-
-        mReport.appLaunched(SystemClock.uptimeMillis());
-        InstrumentationRegistry.getContext().startActivity(intent);
-        mHandler.postDelayed(() -> {
-            if (mApk.getExpectIntents()) {
-                if (!mGotIntent) {
-                    // app integrates via intents, but we've not received one yet.
-                    // we assume that the app is stuck or dead and terminate the test.
-                    mHandler.getLooper().quit();
-                }
-            } else {
-                // the app doesn't integrate properly. We assume that loading has completed
-                // by now, so produce a synthetic event here for the current timestamp, and
-                // then allow an additional mApk.getRunTime() milliseconds for the actual
-                // workload to run.
-                mReport.startLoop(SystemClock.uptimeMillis());
-                mHandler.postDelayed(() -> { mHandler.getLooper().quit(); },
-                    mApk.getRunTime());
-            }
-        }, mApk.getLoadTime());
+        Handler handler = new Handler();
+        AppLauncher launcher =
+                new AppLauncher(InstrumentationRegistry.getContext(), handler, mReport);
+        launcher.launch(mApk, () -> handler.getLooper().quit());
         Looper.loop();
-        mReport.end();
-    }
-
-    private void registerReceiver() throws IntentFilter.MalformedMimeTypeException {
-        BroadcastReceiver br = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                long timestamp = intent.getLongExtra("timestamp", 0);
-                Log.d(TAG, "Received intent at " + timestamp);
-                mReport.startLoop(timestamp);
-                if (!mGotIntent) {
-                    mHandler.postDelayed(() -> mHandler.getLooper().quit(), mApk.getRunTime());
-                    mGotIntent = true;
-                }
-            }
-        };
-        IntentFilter intentFilter = new IntentFilter(INTENT_ACTION, "text/plain");
-        InstrumentationRegistry.getContext().registerReceiver(br, intentFilter);
     }
 }
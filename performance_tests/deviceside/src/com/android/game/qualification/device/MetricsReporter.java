@@ -15,41 +15,114 @@
  */
 package com.android.game.qualification.device;
 
+import android.os.SystemClock;
+import android.util.Log;
+
 import java.io.File;
-import java.io.OutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 
 import com.android.game.qualification.proto.ResultDataProto;
 import com.android.game.qualification.ResultData;
 
+/**
+ * Reports the events of the test to the host.
+ *
+ * Each event is appended to the result file as soon as it happens, see {@link ResultData}, so that
+ * the events are not lost if the test dies before {@link #end()}.
+ */
 public class MetricsReporter {
+    private static final String TAG = "MetricsReporter";
+    // The clock of the present times reported by SurfaceFlinger.  System.nanoTime() is
+    // CLOCK_MONOTONIC on Android.
+    private static final ResultDataProto.Result.Clock CLOCK =
+            ResultDataProto.Result.Clock.MONOTONIC;
+
     private String appName;
-    private ResultDataProto.Result.Builder builder = ResultDataProto.Result.newBuilder();
+    private OutputStream outputStream;
 
-    public void begin(String appName) {
+    public synchronized void begin(String appName) throws IOException {
         this.appName = appName;
+        File file = new File("/sdcard/" + ResultData.RESULT_FILE_LOCATION);
+        Files.deleteIfExists(file.toPath());
+        // Not buffered, each record is written to the file as soon as it is added.
+        outputStream = new FileOutputStream(file);
+
+        long boottimeOffsetNs = SystemClock.elapsedRealtimeNanos() - System.nanoTime();
+        appendRecord(ResultDataProto.Result.newBuilder()
+                .setClock(CLOCK)
+                .setBoottimeOffsetNs(boottimeOffsetNs).build());
+        Log.i(ResultData.EVENT_LOG_TAG, ResultData.formatBegin(CLOCK, boottimeOffsetNs));
     }
 
-    public void appLaunched(long timestampMsecs) {
-        builder.addEvents(ResultDataProto.Event.newBuilder()
+    /** @param timestampNs CLOCK_MONOTONIC time, e.g. from {@link System#nanoTime()}. */
+    public void appLaunched(long timestampNs) {
+        addEvent(ResultDataProto.Event.newBuilder()
                 .setType(ResultDataProto.Event.Type.APP_LAUNCH)
-                .setTimestamp(timestampMsecs).build());
+                .setTimestampNs(timestampNs).build());
     }
 
-    public void startLoop(long timestampMsecs) {
-        builder.addEvents(ResultDataProto.Event.newBuilder()
+    /** @param timestampNs CLOCK_MONOTONIC time, e.g. from {@link System#nanoTime()}. */
+    public void startLoop(long timestampNs) {
+        addEvent(ResultDataProto.Event.newBuilder()
                 .setType(ResultDataProto.Event.Type.START_LOOP)
-                .setTimestamp(timestampMsecs).build());
+                .setTimestampNs(timestampNs).build());
     }
 
-    public void end() throws IOException {
-        File file = new File("/sdcard/" + ResultData.RESULT_FILE_LOCATION);
-        Files.deleteIfExists(file.toPath());
+    /** @param timestampNs CLOCK_MONOTONIC time, e.g. from {@link System#nanoTime()}. */
+    public void endLoop(long timestampNs) {
+        addEvent(ResultDataProto.Event.newBuilder()
+                .setType(ResultDataProto.Event.Type.END_LOOP)
+                .setTimestampNs(timestampNs).build());
+    }
+
+    /** @param timestampNs CLOCK_MONOTONIC time, e.g. from {@link System#nanoTime()}. */
+    public void beginScene(String name, long timestampNs) {
+        addEvent(ResultDataProto.Event.newBuilder()
+                .setType(ResultDataProto.Event.Type.SCENE_BEGIN)
+                .setName(name)
+                .setTimestampNs(timestampNs).build());
+    }
+
+    /** @param timestampNs CLOCK_MONOTONIC time, e.g. from {@link System#nanoTime()}. */
+    public void endScene(String name, long timestampNs) {
+        addEvent(ResultDataProto.Event.newBuilder()
+                .setType(ResultDataProto.Event.Type.SCENE_END)
+                .setName(name)
+                .setTimestampNs(timestampNs).build());
+    }
+
+    /** @param timestampNs CLOCK_MONOTONIC time, e.g. from {@link System#nanoTime()}. */
+    public void marker(int markerId, long timestampNs) {
+        addEvent(ResultDataProto.Event.newBuilder()
+                .setType(ResultDataProto.Event.Type.MARKER)
+                .setMarkerId(markerId)
+                .setTimestampNs(timestampNs).build());
+    }
+
+    // The event is also logged so that the host receives it while the test runs, and still has it
+    // if it cannot be written to the file.
+    private synchronized void addEvent(ResultDataProto.Event event) {
+        try {
+            appendRecord(ResultDataProto.Result.newBuilder().addEvents(event).build());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write event to the result file", e);
+        }
+        Log.i(ResultData.EVENT_LOG_TAG, ResultData.formatEvent(event));
+    }
+
+    private void appendRecord(ResultDataProto.Result record) throws IOException {
+        record.writeDelimitedTo(outputStream);
+        outputStream.flush();
+    }
 
-        try (OutputStream outputStream = new FileOutputStream(file)) {
-            builder.build().writeTo(outputStream);
+    public synchronized void end() throws IOException {
+        try {
+            outputStream.close();
+        } finally {
+            Log.i(ResultData.EVENT_LOG_TAG, ResultData.formatEnd());
         }
     }
 }
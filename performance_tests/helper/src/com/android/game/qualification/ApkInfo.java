@@ -64,6 +64,7 @@ public class ApkInfo {
     private String mActivityName;
     private String mLayerName;
     private String mScript;
+    private long mScriptTimeout;
     private List<Argument> mArgs;
     private int mLoadTime;
     private int mRunTime;
@@ -80,6 +81,23 @@ public class ApkInfo {
             int loadTime,
             int runTime,
             boolean expectIntents) {
+        this(name, fileName, packageName, activityName, layerName, script,
+                Long.parseLong(Field.SCRIPT_TIMEOUT.getDefaultValue()), args, loadTime, runTime,
+                expectIntents);
+    }
+
+    public ApkInfo(
+            String name,
+            String fileName,
+            String packageName,
+            String activityName,
+            String layerName,
+            String script,
+            long scriptTimeout,
+            List<Argument> args,
+            int loadTime,
+            int runTime,
+            boolean expectIntents) {
         mActivityName = activityName;
         checkNotNull(name, Field.NAME.getTag());
         checkNotNull(fileName, Field.FILE_NAME.getTag());
@@ -91,6 +109,7 @@ public class ApkInfo {
         this.mPackageName = packageName;
         this.mLayerName = layerName;
         this.mScript = script;
+        this.mScriptTimeout = scriptTimeout;
         this.mArgs = args;
         this.mLoadTime = loadTime;
         this.mRunTime = runTime;
@@ -127,6 +146,14 @@ public class ApkInfo {
         return mScript;
     }
 
+    /**
+     * (Optional) Duration (in milliseconds) after which the script is terminated and the setup
+     * fails. [default: 1800000]
+     */
+    public long getScriptTimeout() {
+        return mScriptTimeout;
+    }
+
     /** (Optional) Arguments supplied to the Intent used to start the app */
     public List<Argument> getArgs() {
         return mArgs;
@@ -54,6 +54,7 @@ public class GameCoreConfigurationXmlParser {
         ACTIVITY_NAME("activityName", null),
         LAYER_NAME("layerName", null),
         SCRIPT("script", null),
+        SCRIPT_TIMEOUT("scriptTimeout", "1800000"),
         ARGS("args", null),
         LOAD_TIME("loadTime", "10000"),
         RUN_TIME("runTime", "10000"),
@@ -155,6 +156,7 @@ public class GameCoreConfigurationXmlParser {
                 getElement(element, Field.ACTIVITY_NAME),
                 getElement(element, Field.LAYER_NAME),
                 getElement(element, Field.SCRIPT),
+                Long.parseLong(getElement(element, Field.SCRIPT_TIMEOUT)),
                 args,
                 Integer.parseInt(getElement(element, Field.LOAD_TIME)),
                 Integer.parseInt(getElement(element, Field.RUN_TIME)),
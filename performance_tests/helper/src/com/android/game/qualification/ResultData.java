@@ -16,9 +16,130 @@
 
 package com.android.game.qualification;
 
+import com.android.game.qualification.proto.ResultDataProto;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Location and format of the events reported by the device.
+ *
+ * The result file is a sequence of length-delimited {@link ResultDataProto.Result} records, each
+ * holding part of the result, e.g. a single event.  The device appends a record as soon as it has
+ * an event, so the file is valid up to the last complete record even if the test dies.
+ */
 public class ResultData {
     public static final String RESULT_FILE_LOCATION =
         "Android/data/com.android.game.qualification.device/result.protobuf";
 
+    /**
+     * Logcat tag of the events sent while the test runs, so that the host does not have to wait
+     * for the result file.  Each message is either {@link #BEGIN_EVENT} followed by the clock and
+     * the boottime offset in nanoseconds, the type of an event followed by its timestamp, or
+     * {@link #END_EVENT} once the result file is complete.
+     */
+    public static final String EVENT_LOG_TAG = "GameQualificationEvent";
+    public static final String BEGIN_EVENT = "BEGIN";
+    public static final String END_EVENT = "END";
+
     private ResultData() {}
+
+    /**
+     * Read a result file, merging its records into a single result.
+     *
+     * A truncated record at the end of the file, e.g. because the test died while writing it, is
+     * ignored.
+     */
+    public static ResultDataProto.Result readResult(InputStream input) throws IOException {
+        ResultDataProto.Result.Builder builder = ResultDataProto.Result.newBuilder();
+        try {
+            ResultDataProto.Result record;
+            while ((record = ResultDataProto.Result.parseDelimitedFrom(input)) != null) {
+                builder.mergeFrom(record);
+            }
+        } catch (InvalidProtocolBufferException e) {
+            // Only the last record can be incomplete, everything before it was read.
+        }
+        return builder.build();
+    }
+
+    /** Message sent when the test begins, before any event. */
+    public static String formatBegin(ResultDataProto.Result.Clock clock, long boottimeOffsetNs) {
+        return BEGIN_EVENT + " " + clock.name() + " " + boottimeOffsetNs;
+    }
+
+    /**
+     * Parse a message produced by {@link #formatBegin(ResultDataProto.Result.Clock, long)}.
+     *
+     * @return a result with the clock and the boottime offset, or null if the message is not the
+     *         beginning of a test.
+     */
+    public static ResultDataProto.Result parseBegin(String message) {
+        String[] fields = message.trim().split(" ");
+        if (fields.length != 3 || !fields[0].equals(BEGIN_EVENT)) {
+            return null;
+        }
+        try {
+            return ResultDataProto.Result.newBuilder()
+                    .setClock(ResultDataProto.Result.Clock.valueOf(fields[1]))
+                    .setBoottimeOffsetNs(Long.parseLong(fields[2]))
+                    .build();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /** Message sent when the test ends, after the result file is closed. */
+    public static String formatEnd() {
+        return END_EVENT;
+    }
+
+    /** Whether a message was produced by {@link #formatEnd()}. */
+    public static boolean isEnd(String message) {
+        return message.trim().equals(END_EVENT);
+    }
+
+    /**
+     * Message of an event: its type and timestamp, followed by the name of a scene or the
+     * identifier of a marker.
+     */
+    public static String formatEvent(ResultDataProto.Event event) {
+        String message = event.getType().name() + " " + event.getTimestampNs();
+        if (event.hasMarkerId()) {
+            message += " " + event.getMarkerId();
+        } else if (event.hasName()) {
+            message += " " + event.getName();
+        }
+        return message;
+    }
+
+    /**
+     * Parse a message produced by {@link #formatEvent(ResultDataProto.Event)}.
+     *
+     * @return null if the message is not an event.
+     */
+    public static ResultDataProto.Event parseEvent(String message) {
+        String[] fields = message.trim().split(" ", 3);
+        if (fields.length < 2) {
+            return null;
+        }
+        try {
+            ResultDataProto.Event.Type type = ResultDataProto.Event.Type.valueOf(fields[0]);
+            ResultDataProto.Event.Builder builder = ResultDataProto.Event.newBuilder()
+                    .setType(type)
+                    .setTimestampNs(Long.parseLong(fields[1]));
+            if (fields.length == 3) {
+                if (type == ResultDataProto.Event.Type.MARKER) {
+                    builder.setMarkerId(Integer.parseInt(fields[2]));
+                } else {
+                    builder.setName(fields[2]);
+                }
+            }
+            return builder.build();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
 }
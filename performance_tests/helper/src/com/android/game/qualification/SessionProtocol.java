@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification;
+
+/**
+ * Commands sent by the host to the instrumentation session running on the device.
+ *
+ * The session is started once per invocation and launches the APKs it is told to, so that an APK
+ * does not need its own instrumentation.  Commands are ordered broadcasts of {@link #ACTION}, and
+ * the result code of the broadcast tells whether the session accepted the command.  The host polls
+ * {@link #COMMAND_STATUS} to know when a run has ended, which the device also logs with the events,
+ * see {@link ResultData#END_EVENT}, but the log may be missed.
+ */
+public class SessionProtocol {
+    public static final String ACTION = "com.android.game.qualification.COMMAND";
+    public static final String COMMAND_EXTRA = "command";
+    // Name of the APK in apk-info.xml.
+    public static final String APK_EXTRA = "apk";
+
+    public static final String COMMAND_LAUNCH = "launch";
+    public static final String COMMAND_STOP = "stop";
+    // Ends the current run, if any, as if the APK had run for long enough.
+    public static final String COMMAND_CANCEL = "cancel";
+    // The result data is STATUS_RUNNING until the result file of the last run is complete.
+    public static final String COMMAND_STATUS = "status";
+
+    public static final String STATUS_IDLE = "idle";
+    public static final String STATUS_RUNNING = "running";
+
+    // Result code of a broadcast that no session received, e.g. because it is not started yet.
+    public static final int RESULT_NONE = 0;
+    public static final int RESULT_ACCEPTED = 1;
+    // The result data of a rejected command is the reason.
+    public static final int RESULT_REJECTED = 2;
+
+    private SessionProtocol() {}
+}
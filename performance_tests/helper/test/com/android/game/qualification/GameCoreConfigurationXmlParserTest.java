@@ -70,6 +70,7 @@ public class GameCoreConfigurationXmlParserTest {
             assertEquals("com.foo.test", apk.getPackageName());
             assertEquals(null, apk.getActivityName());
             assertEquals(null, apk.getScript());
+            assertEquals(30 * 60 * 1000, apk.getScriptTimeout());
             assertEquals(10000, apk.getLoadTime());
             assertEquals(10000, apk.getRunTime());
         }
@@ -89,6 +90,7 @@ public class GameCoreConfigurationXmlParserTest {
                         + "            <activityName>com.foo.test.MyActivity</activityName>\n"
                         + "            <layerName>com.foo.test</layerName>\n"
                         + "            <script>script.sh</script>\n"
+                        + "            <scriptTimeout>60000</scriptTimeout>\n"
                         + "            <loadTime>21</loadTime>\n"
                         + "        <runTime>42</runTime>\n"
                         + "    </apk>\n"
@@ -102,6 +104,7 @@ public class GameCoreConfigurationXmlParserTest {
             assertEquals("com.foo.test", apk.getPackageName());
             assertEquals("com.foo.test.MyActivity", apk.getActivityName());
             assertEquals("script.sh", apk.getScript());
+            assertEquals(60000, apk.getScriptTimeout());
             assertEquals(21, apk.getLoadTime());
             assertEquals(42, apk.getRunTime());
         }
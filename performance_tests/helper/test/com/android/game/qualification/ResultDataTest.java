@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import com.android.game.qualification.proto.ResultDataProto;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+@RunWith(JUnit4.class)
+public class ResultDataTest {
+    private static byte[] writeRecords() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ResultDataProto.Result.newBuilder().setBoottimeOffsetNs(42).build()
+                .writeDelimitedTo(output);
+        for (long timestamp : new long[] { 100, 200, 300 }) {
+            ResultDataProto.Result.newBuilder()
+                    .addEvents(ResultDataProto.Event.newBuilder()
+                            .setType(ResultDataProto.Event.Type.START_LOOP)
+                            .setTimestampNs(timestamp))
+                    .build()
+                    .writeDelimitedTo(output);
+        }
+        return output.toByteArray();
+    }
+
+    @Test
+    public void testReadResult() throws IOException {
+        ResultDataProto.Result result =
+                ResultData.readResult(new ByteArrayInputStream(writeRecords()));
+        assertEquals(42, result.getBoottimeOffsetNs());
+        assertEquals(3, result.getEventsCount());
+        assertEquals(300, result.getEvents(2).getTimestampNs());
+    }
+
+    @Test
+    public void testReadTruncatedResult() throws IOException {
+        byte[] data = writeRecords();
+        // The last event is incomplete.
+        ResultDataProto.Result result = ResultData.readResult(
+                new ByteArrayInputStream(Arrays.copyOf(data, data.length - 3)));
+        assertEquals(42, result.getBoottimeOffsetNs());
+        assertEquals(2, result.getEventsCount());
+        assertEquals(200, result.getEvents(1).getTimestampNs());
+    }
+
+    @Test
+    public void testReadEmptyResult() throws IOException {
+        ResultDataProto.Result result =
+                ResultData.readResult(new ByteArrayInputStream(new byte[0]));
+        assertFalse(result.hasBoottimeOffsetNs());
+        assertEquals(0, result.getEventsCount());
+    }
+
+    @Test
+    public void testParseEvent() {
+        ResultDataProto.Event event = ResultDataProto.Event.newBuilder()
+                .setType(ResultDataProto.Event.Type.APP_LAUNCH)
+                .setTimestampNs(1234)
+                .build();
+        ResultDataProto.Event parsed = ResultData.parseEvent(ResultData.formatEvent(event));
+        assertEquals(ResultDataProto.Event.Type.APP_LAUNCH, parsed.getType());
+        assertEquals(1234, parsed.getTimestampNs());
+        assertNull(ResultData.parseEvent("UNKNOWN 1234"));
+        assertNull(ResultData.parseEvent("START_LOOP"));
+    }
+
+    @Test
+    public void testParseSceneAndMarker() {
+        ResultDataProto.Event scene = ResultDataProto.Event.newBuilder()
+                .setType(ResultDataProto.Event.Type.SCENE_BEGIN)
+                .setTimestampNs(1234)
+                .setName("level 1 boss")
+                .build();
+        ResultDataProto.Event parsed = ResultData.parseEvent(ResultData.formatEvent(scene));
+        assertEquals(ResultDataProto.Event.Type.SCENE_BEGIN, parsed.getType());
+        assertEquals("level 1 boss", parsed.getName());
+
+        ResultDataProto.Event marker = ResultDataProto.Event.newBuilder()
+                .setType(ResultDataProto.Event.Type.MARKER)
+                .setTimestampNs(5678)
+                .setMarkerId(7)
+                .build();
+        parsed = ResultData.parseEvent(ResultData.formatEvent(marker));
+        assertEquals(ResultDataProto.Event.Type.MARKER, parsed.getType());
+        assertEquals(5678, parsed.getTimestampNs());
+        assertEquals(7, parsed.getMarkerId());
+        assertNull(ResultData.parseEvent("MARKER 5678 seven"));
+    }
+
+    @Test
+    public void testParseBegin() {
+        ResultDataProto.Result begin = ResultData.parseBegin(
+                ResultData.formatBegin(ResultDataProto.Result.Clock.MONOTONIC, 5678));
+        assertEquals(ResultDataProto.Result.Clock.MONOTONIC, begin.getClock());
+        assertEquals(5678, begin.getBoottimeOffsetNs());
+        assertNull(ResultData.parseBegin("BEGIN 5678"));
+        assertNull(ResultData.parseBegin("START_LOOP 5678"));
+    }
+}
@@ -20,16 +20,42 @@ import com.android.annotations.Nullable;
 import com.android.game.qualification.ApkInfo;
 import com.android.game.qualification.CertificationRequirements;
 import com.android.game.qualification.proto.ResultDataProto;
+import com.android.tradefed.config.OptionCopier;
+import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.metric.BaseDeviceMetricCollector;
 import com.android.tradefed.device.metric.DeviceMetricData;
 import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.metrics.proto.MetricMeasurement;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.result.TestDescription;
 
+import com.google.common.base.Utf8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * Base class for metric collectors used by
+ * {@link com.android.game.qualification.testtype.GameQualificationHostsideController}.
+ *
+ * A collector instance holds the state of a single device.  When an invocation has more than one
+ * device, the controller uses {@link #createSession(ITestDevice)} to create an isolated collector
+ * for each device.
+ */
 public abstract class BaseGameQualificationMetricCollector extends BaseDeviceMetricCollector {
+    // Largest distance between an event and the samples of the run for the two to be considered
+    // on the same clock.  Mismatched clocks or units differ by far more.
+    private static final long MAX_CLOCK_SKEW_NS = 60 * 1000000000L;
+
     @Nullable
     private ApkInfo mTestApk;
     @Nullable
@@ -39,11 +65,35 @@ public abstract class BaseGameQualificationMetricCollector extends BaseDeviceMet
     private boolean mEnabled;
     private boolean mHasError;
     private String mErrorMessage = "";
+    private final CollectorOverhead mOverhead = new CollectorOverhead();
+    private List<BaseGameQualificationMetricCollector> mPeers = Collections.emptyList();
+    @Nullable
+    private EventTimeline mEventTimeline;
 
     public void setDevice(ITestDevice device) {
         mDevice = device;
     }
 
+    /**
+     * Create a new collector with the same options as this collector to collect metrics from
+     * another device.
+     *
+     * The new collector does not share any state with this collector, so the two can be used
+     * concurrently.  Subclasses without a public no-arg constructor must override this method.
+     */
+    public BaseGameQualificationMetricCollector createSession(ITestDevice device) {
+        BaseGameQualificationMetricCollector session;
+        try {
+            session = getClass().getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(
+                    "Unable to create a new instance of " + getClass().getName(), e);
+        }
+        OptionCopier.copyOptionsNoThrow(this, session);
+        session.setDevice(device);
+        return session;
+    }
+
     @Nullable
     protected ApkInfo getApkInfo() {
         return mTestApk;
@@ -61,6 +111,195 @@ public abstract class BaseGameQualificationMetricCollector extends BaseDeviceMet
         mDeviceResultData = resultData;
     }
 
+    /** Set the timeline of the events reported by the device while the app runs. */
+    public void setEventTimeline(@Nullable EventTimeline timeline) {
+        mEventTimeline = timeline;
+    }
+
+    /**
+     * Timeline of the events of the current run, which can be read or subscribed to while the
+     * app runs.
+     *
+     * @return null if the controller does not follow the events of the device.
+     */
+    @Nullable
+    protected EventTimeline getEventTimeline() {
+        return mEventTimeline;
+    }
+
+    /**
+     * Events of the current run.  Before the device result data is set at the end of the run,
+     * these are the events received so far.
+     */
+    @Nullable
+    private ResultDataProto.Result getEvents() {
+        if (mDeviceResultData == null && mEventTimeline != null) {
+            return mEventTimeline.toResult();
+        }
+        return mDeviceResultData;
+    }
+
+    /**
+     * CLOCK_MONOTONIC time in nanoseconds at which each loop started, as reported by the device.
+     */
+    protected List<Long> getLoopStartTimesNs() {
+        List<Long> loopStartNs = new ArrayList<>();
+        ResultDataProto.Result events = getEvents();
+        if (events != null) {
+            for (ResultDataProto.Event e : events.getEventsList()) {
+                if (e.getType() == ResultDataProto.Event.Type.START_LOOP) {
+                    loopStartNs.add(e.getTimestampNs());
+                }
+            }
+        }
+        return loopStartNs;
+    }
+
+    /**
+     * Index of the loop containing a timestamp.
+     *
+     * @param loopStartNs time at which each loop started, in increasing order.
+     * @return -1 if the timestamp is before the first loop.
+     */
+    static int findLoop(List<Long> loopStartNs, long timestampNs) {
+        int loop = -1;
+        while (loop + 1 < loopStartNs.size() && loopStartNs.get(loop + 1) <= timestampNs) {
+            loop++;
+        }
+        return loop;
+    }
+
+    /**
+     * Check that the events of the device are on the clock of samples taken on CLOCK_MONOTONIC,
+     * such as the present times of SurfaceFlinger.
+     *
+     * Events on another clock, or in another unit, would slice the samples at the wrong times
+     * without any other visible error.
+     *
+     * @param firstSampleNs time of the first sample of the run.
+     * @param lastSampleNs time of the last sample of the run.
+     * @return a description of the mismatch, or null if the events are consistent with the samples.
+     */
+    @Nullable
+    protected String checkEventClock(long firstSampleNs, long lastSampleNs) {
+        ResultDataProto.Result events = getEvents();
+        if (events == null || events.getEventsCount() == 0) {
+            return null;
+        }
+        if (!events.hasClock()) {
+            return "Device did not declare the clock of its events.";
+        }
+        if (events.getClock() != ResultDataProto.Result.Clock.MONOTONIC) {
+            return "Device reported events on CLOCK_" + events.getClock()
+                    + ", expected CLOCK_MONOTONIC.";
+        }
+        // The events are sorted by timestamp, so an event on another clock may come before the
+        // launch of the app.
+        long appLaunchNs = Long.MIN_VALUE;
+        for (ResultDataProto.Event e : events.getEventsList()) {
+            if (e.getType() == ResultDataProto.Event.Type.APP_LAUNCH) {
+                appLaunchNs = e.getTimestampNs();
+                break;
+            }
+        }
+        for (ResultDataProto.Event e : events.getEventsList()) {
+            long timestampNs = e.getTimestampNs();
+            if (e.getType() == ResultDataProto.Event.Type.APP_LAUNCH) {
+                continue;
+            }
+            if (timestampNs < appLaunchNs) {
+                return String.format(
+                        "%s at %d ns is before the app was launched at %d ns, the app and the test "
+                                + "do not use the same clock.",
+                        e.getType(), timestampNs, appLaunchNs);
+            }
+            if (timestampNs < firstSampleNs - MAX_CLOCK_SKEW_NS
+                    || timestampNs > lastSampleNs + MAX_CLOCK_SKEW_NS) {
+                return String.format(
+                        "%s at %d ns is outside of the samples from %d ns to %d ns, the events "
+                                + "and the samples do not use the same clock.",
+                        e.getType(), timestampNs, firstSampleNs, lastSampleNs);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Difference between CLOCK_BOOTTIME and CLOCK_MONOTONIC in nanoseconds on the device.
+     *
+     * Used to align samples timestamped with /proc/uptime to the loop events.  Returns 0 if the
+     * device did not report it.
+     */
+    protected long getBoottimeOffsetNs() {
+        ResultDataProto.Result events = getEvents();
+        if (events == null || !events.hasBoottimeOffsetNs()) {
+            CLog.w("Device did not report the boottime offset, samples may be attributed to the "
+                    + "wrong loop.");
+            return 0;
+        }
+        return events.getBoottimeOffsetNs();
+    }
+
+    /** Set the collectors collecting metrics from the same device as this collector. */
+    public void setPeers(List<BaseGameQualificationMetricCollector> collectors) {
+        mPeers = collectors;
+    }
+
+    /**
+     * Find a collector of the given type collecting metrics from the same device.
+     *
+     * @return null if there is no such collector.
+     */
+    @Nullable
+    protected <T extends BaseGameQualificationMetricCollector> T findPeer(Class<T> type) {
+        for (BaseGameQualificationMetricCollector collector : mPeers) {
+            if (type.isInstance(collector) && collector != this) {
+                return type.cast(collector);
+            }
+        }
+        return null;
+    }
+
+    /** Overhead of this collector for the current test. */
+    protected CollectorOverhead getOverhead() {
+        return mOverhead;
+    }
+
+    /**
+     * Execute a shell command on the device and record the round-trip time and the number of bytes
+     * transferred in the collector overhead.
+     */
+    protected String executeShellCommand(String cmd) throws DeviceNotAvailableException {
+        long start = System.nanoTime();
+        String output = mDevice.executeShellCommand(cmd);
+        mOverhead.recordAdbCommand(
+                System.nanoTime() - start,
+                Utf8.encodedLength(cmd) + (output == null ? 0 : Utf8.encodedLength(output)));
+        return output;
+    }
+
+    /** Push a string to a file on the device and record it in the collector overhead. */
+    protected boolean pushString(String contents, String remotePath)
+            throws DeviceNotAvailableException {
+        long start = System.nanoTime();
+        boolean pushed = mDevice.pushString(contents, remotePath);
+        mOverhead.recordAdbCommand(System.nanoTime() - start, Utf8.encodedLength(contents));
+        return pushed;
+    }
+
+    /**
+     * Pull a file from the device and record it in the collector overhead.
+     *
+     * @return null if the file could not be pulled.
+     */
+    @Nullable
+    protected File pullFile(String remotePath) throws DeviceNotAvailableException {
+        long start = System.nanoTime();
+        File file = mDevice.pullFile(remotePath);
+        mOverhead.recordAdbCommand(System.nanoTime() - start, file == null ? 0 : file.length());
+        return file;
+    }
+
     public boolean hasError() {
         return mHasError;
     }
@@ -97,6 +336,7 @@ public abstract class BaseGameQualificationMetricCollector extends BaseDeviceMet
     @Override
     public final void onTestStart(DeviceMetricData testData) {
         super.onTestStart(testData);
+        mOverhead.clear();
         try {
             onStart(testData);
         } catch (Exception e) {
@@ -122,6 +362,28 @@ public abstract class BaseGameQualificationMetricCollector extends BaseDeviceMet
             }
             throw e;
         }
+        reportOverhead(testData);
+    }
+
+    /** Add the collector overhead to the metrics and save the histograms for the current APK. */
+    private void reportOverhead(DeviceMetricData testData) {
+        if (!isEnabled() || getApkInfo() == null || mOverhead.isEmpty()) {
+            return;
+        }
+        String name = getClass().getSimpleName();
+        mOverhead.addToMetricData(testData, mDevice, name);
+        try (ByteArrayOutputStream output = new ByteArrayOutputStream()) {
+            mOverhead.plotAscii(output, 50);
+            try (InputStreamSource source =
+                         new ByteArrayInputStreamSource(output.toByteArray())) {
+                testLog(
+                        "GameQualification-overhead-" + name + "-" + getApkInfo().getName(),
+                        LogDataType.TEXT,
+                        source);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     protected void onStart(DeviceMetricData testData) {
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import com.android.annotations.Nullable;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.metrics.proto.MetricMeasurement.DataType;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Directionality;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Overhead of a metric collector on the host and on the device.
+ *
+ * Samples are recorded for each adb command and for each tick of a scheduled collector, so that
+ * the poll rate can be tuned with data.
+ */
+public class CollectorOverhead {
+    public enum Type {
+        ADB_LATENCY("adb_latency", "ns"),
+        BYTES_TRANSFERRED("bytes_transferred", "bytes"),
+        PARSE_TIME("parse_time", "ns"),
+        ALLOCATION("allocation", "bytes"),
+        QUEUE_DEPTH("queue_depth", "ticks");
+
+        private String mName;
+        private String mUnit;
+
+        Type(String name, String unit) {
+            mName = name;
+            mUnit = unit;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public String getUnit() {
+            return mUnit;
+        }
+    }
+
+    public static final String METRIC_PREFIX = "collector_overhead";
+
+    private final Map<Type, List<Long>> mSamples = new EnumMap<>(Type.class);
+    private long mTickStartNs = -1;
+    private long mTickAllocatedBytes;
+    private long mTickAdbLatencyNs;
+
+    public CollectorOverhead() {
+        for (Type type : Type.values()) {
+            mSamples.put(type, new ArrayList<>());
+        }
+    }
+
+    public synchronized void clear() {
+        for (List<Long> samples : mSamples.values()) {
+            samples.clear();
+        }
+        mTickStartNs = -1;
+    }
+
+    public synchronized boolean isEmpty() {
+        for (List<Long> samples : mSamples.values()) {
+            if (!samples.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized void record(Type type, long value) {
+        mSamples.get(type).add(value);
+    }
+
+    /**
+     * Record an adb command.
+     *
+     * @param latencyNs round-trip time of the command.
+     * @param bytes number of bytes sent and received.
+     */
+    public synchronized void recordAdbCommand(long latencyNs, long bytes) {
+        record(Type.ADB_LATENCY, latencyNs);
+        record(Type.BYTES_TRANSFERRED, bytes);
+        mTickAdbLatencyNs += latencyNs;
+    }
+
+    /**
+     * Mark the beginning of a tick of a scheduled collector.
+     *
+     * Must be called on the thread executing the tick.
+     */
+    public synchronized void beginTick() {
+        mTickStartNs = System.nanoTime();
+        mTickAllocatedBytes = getCurrentThreadAllocatedBytes();
+        mTickAdbLatencyNs = 0;
+    }
+
+    /**
+     * Mark the end of a tick of a scheduled collector.
+     *
+     * The time spent in the tick outside of adb commands is recorded as parse time.
+     */
+    public synchronized void endTick() {
+        if (mTickStartNs < 0) {
+            return;
+        }
+        long elapsed = System.nanoTime() - mTickStartNs;
+        record(Type.PARSE_TIME, Math.max(0, elapsed - mTickAdbLatencyNs));
+        long allocated = getCurrentThreadAllocatedBytes();
+        if (allocated >= 0 && mTickAllocatedBytes >= 0) {
+            record(Type.ALLOCATION, allocated - mTickAllocatedBytes);
+        }
+        mTickStartNs = -1;
+    }
+
+    public synchronized List<Long> getSamples(Type type) {
+        return new ArrayList<>(mSamples.get(type));
+    }
+
+    /**
+     * Add the average, maximum, 90th percentile and total of each type of sample to runData.
+     *
+     * Metric keys have the form "collector_overhead.[name].[type]_[statistic]".
+     */
+    public void addToMetricData(
+            DeviceMetricData runData, @Nullable ITestDevice device, String name) {
+        for (Type type : Type.values()) {
+            List<Long> samples = getSamples(type);
+            if (samples.isEmpty()) {
+                continue;
+            }
+            Collections.sort(samples);
+            long total = 0;
+            for (long sample : samples) {
+                total += sample;
+            }
+            String key = METRIC_PREFIX + "." + name + "." + type.getName();
+            MetricSummary.addMetric(
+                    runData,
+                    device,
+                    key + "_avg",
+                    getMetric(type, (double) total / samples.size()));
+            MetricSummary.addMetric(
+                    runData,
+                    device,
+                    key + "_max",
+                    getMetric(type, samples.get(samples.size() - 1)));
+            MetricSummary.addMetric(
+                    runData,
+                    device,
+                    key + "_90th_percentile",
+                    getMetric(type, samples.get((int) Math.ceil(samples.size() * 0.90) - 1)));
+            MetricSummary.addMetric(runData, device, key + "_total", getMetric(type, total));
+        }
+    }
+
+    /**
+     * Plot a histogram of each type of sample.
+     */
+    public void plotAscii(OutputStream output, int maxBarLength) throws IOException {
+        for (Type type : Type.values()) {
+            List<Long> samples = getSamples(type);
+            if (samples.isEmpty()) {
+                continue;
+            }
+            long max = Collections.max(samples);
+            output.write(
+                    String.format("%s (%s, %d samples):\n", type.getName(), type.getUnit(),
+                            samples.size())
+                            .getBytes(StandardCharsets.UTF_8));
+            Histogram histogram = new Histogram(samples, Math.max(1L, max / 20), null, null);
+            histogram.plotAscii(output, maxBarLength);
+            output.write("\n".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static Metric.Builder getMetric(Type type, long value) {
+        return Metric.newBuilder()
+                .setUnit(type.getUnit())
+                .setDirection(Directionality.DOWN_BETTER)
+                .setType(DataType.PROCESSED)
+                .setMeasurements(Measurements.newBuilder().setSingleInt(value));
+    }
+
+    private static Metric.Builder getMetric(Type type, double value) {
+        return Metric.newBuilder()
+                .setUnit(type.getUnit())
+                .setDirection(Directionality.DOWN_BETTER)
+                .setType(DataType.PROCESSED)
+                .setMeasurements(Measurements.newBuilder().setSingleDouble(value));
+    }
+
+    /** Returns the number of bytes allocated by the current thread, or -1 if unsupported. */
+    private static long getCurrentThreadAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported()
+                    && sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
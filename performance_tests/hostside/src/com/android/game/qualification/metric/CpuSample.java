@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import java.util.Arrays;
+
+/**
+ * A sample of the current frequency and of the cumulative busy time of each CPU.
+ *
+ * Samples are parsed from the output of {@link #PROBE_COMMAND}.  Parsing walks the output once
+ * and does not create intermediate strings.
+ */
+class CpuSample {
+    /**
+     * Shell command printing /proc/uptime, the per-CPU lines of /proc/stat and the current
+     * frequency of each CPU in a single adb round trip.
+     */
+    static final String PROBE_COMMAND =
+            "cat /proc/uptime; "
+                    + "grep '^cpu[0-9]' /proc/stat; "
+                    + "grep -sH . /sys/devices/system/cpu/cpu[0-9]*/cpufreq/scaling_cur_freq";
+
+    private static final String CPUFREQ_PREFIX = "/sys/devices/system/cpu/cpu";
+    private static final int INITIAL_CPU_CAPACITY = 16;
+
+    private final long mUptimeNs;
+    private final long[] mFrequencyKhz;
+    private final long[] mBusyTicks;
+    private final long[] mTotalTicks;
+
+    CpuSample(long uptimeNs, long[] frequencyKhz, long[] busyTicks, long[] totalTicks) {
+        mUptimeNs = uptimeNs;
+        mFrequencyKhz = frequencyKhz;
+        mBusyTicks = busyTicks;
+        mTotalTicks = totalTicks;
+    }
+
+    /** Time of the sample in CLOCK_BOOTTIME nanoseconds. */
+    long getUptimeNs() {
+        return mUptimeNs;
+    }
+
+    int getCpuCount() {
+        return mFrequencyKhz.length;
+    }
+
+    /** Current frequency of the CPU in kHz, or -1 if the CPU is offline. */
+    long getFrequencyKhz(int cpu) {
+        return cpu < mFrequencyKhz.length ? mFrequencyKhz[cpu] : -1;
+    }
+
+    /** Cumulative time the CPU was busy in USER_HZ ticks, or -1 if the CPU is offline. */
+    long getBusyTicks(int cpu) {
+        return cpu < mBusyTicks.length ? mBusyTicks[cpu] : -1;
+    }
+
+    /** Cumulative time since boot accounted for the CPU in USER_HZ ticks. */
+    long getTotalTicks(int cpu) {
+        return cpu < mTotalTicks.length ? mTotalTicks[cpu] : -1;
+    }
+
+    /**
+     * Parse the output of {@link #PROBE_COMMAND}.
+     *
+     * @throws IllegalArgumentException if the output does not start with /proc/uptime.
+     */
+    static CpuSample parse(String text) {
+        Parser parser = new Parser(text);
+        return parser.parse();
+    }
+
+    private static class Parser {
+        private final String mText;
+        private int mPos = 0;
+        private long[] mFrequencyKhz = new long[INITIAL_CPU_CAPACITY];
+        private long[] mBusyTicks = new long[INITIAL_CPU_CAPACITY];
+        private long[] mTotalTicks = new long[INITIAL_CPU_CAPACITY];
+        private int mCpuCount = 0;
+
+        Parser(String text) {
+            mText = text;
+            Arrays.fill(mFrequencyKhz, -1);
+            Arrays.fill(mBusyTicks, -1);
+            Arrays.fill(mTotalTicks, -1);
+        }
+
+        CpuSample parse() {
+            long uptimeNs = parseUptime();
+            skipLine();
+            while (mPos < mText.length()) {
+                if (mText.startsWith("cpu", mPos)) {
+                    parseStat();
+                } else if (mText.startsWith(CPUFREQ_PREFIX, mPos)) {
+                    parseFrequency();
+                }
+                skipLine();
+            }
+            return new CpuSample(
+                    uptimeNs,
+                    Arrays.copyOf(mFrequencyKhz, mCpuCount),
+                    Arrays.copyOf(mBusyTicks, mCpuCount),
+                    Arrays.copyOf(mTotalTicks, mCpuCount));
+        }
+
+        // /proc/uptime has the form "12345.67 54321.00", the first value being the uptime in
+        // seconds.
+        private long parseUptime() {
+            skipWhitespace();
+            if (mPos >= mText.length() || !Character.isDigit(mText.charAt(mPos))) {
+                throw new IllegalArgumentException("Unable to parse /proc/uptime: " + mText);
+            }
+            long seconds = parseLong();
+            long fractionNs = 0;
+            if (mPos < mText.length() && mText.charAt(mPos) == '.') {
+                mPos++;
+                long scale = 100_000_000L;
+                while (mPos < mText.length() && Character.isDigit(mText.charAt(mPos))) {
+                    fractionNs += (mText.charAt(mPos++) - '0') * scale;
+                    scale /= 10;
+                }
+            }
+            return seconds * 1_000_000_000L + fractionNs;
+        }
+
+        // Lines of /proc/stat have the form
+        // "cpuN user nice system idle iowait irq softirq steal guest guest_nice".
+        private void parseStat() {
+            mPos += "cpu".length();
+            int cpu = (int) parseLong();
+            long total = 0;
+            long idle = 0;
+            for (int field = 0; field < 8; field++) {
+                skipWhitespace();
+                if (mPos >= mText.length() || !Character.isDigit(mText.charAt(mPos))) {
+                    break;
+                }
+                long value = parseLong();
+                total += value;
+                // idle and iowait
+                if (field == 3 || field == 4) {
+                    idle += value;
+                }
+            }
+            ensureCapacity(cpu);
+            mBusyTicks[cpu] = total - idle;
+            mTotalTicks[cpu] = total;
+        }
+
+        // Lines of grep have the form
+        // "/sys/devices/system/cpu/cpuN/cpufreq/scaling_cur_freq:1804800".
+        private void parseFrequency() {
+            mPos += CPUFREQ_PREFIX.length();
+            int cpu = (int) parseLong();
+            int separator = mText.indexOf(':', mPos);
+            int end = lineEnd();
+            if (separator < 0 || separator > end) {
+                return;
+            }
+            mPos = separator + 1;
+            ensureCapacity(cpu);
+            mFrequencyKhz[cpu] = parseLong();
+        }
+
+        private void ensureCapacity(int cpu) {
+            if (cpu >= mFrequencyKhz.length) {
+                int capacity = Math.max(cpu + 1, mFrequencyKhz.length * 2);
+                mFrequencyKhz = grow(mFrequencyKhz, capacity);
+                mBusyTicks = grow(mBusyTicks, capacity);
+                mTotalTicks = grow(mTotalTicks, capacity);
+            }
+            mCpuCount = Math.max(mCpuCount, cpu + 1);
+        }
+
+        private static long[] grow(long[] array, int capacity) {
+            int length = array.length;
+            long[] result = Arrays.copyOf(array, capacity);
+            Arrays.fill(result, length, capacity, -1);
+            return result;
+        }
+
+        private long parseLong() {
+            long value = 0;
+            while (mPos < mText.length() && Character.isDigit(mText.charAt(mPos))) {
+                value = value * 10 + (mText.charAt(mPos++) - '0');
+            }
+            return value;
+        }
+
+        private void skipWhitespace() {
+            while (mPos < mText.length() && (mText.charAt(mPos) == ' '
+                    || mText.charAt(mPos) == '\t')) {
+                mPos++;
+            }
+        }
+
+        private int lineEnd() {
+            int end = mText.indexOf('\n', mPos);
+            return end < 0 ? mText.length() : end;
+        }
+
+        private void skipLine() {
+            mPos = lineEnd() + 1;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import static com.android.game.qualification.metric.BaseGameQualificationMetricCollector.findLoop;
+
+import com.android.annotations.Nullable;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.metrics.proto.MetricMeasurement.DataType;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Summary of CPU frequency and utilization for each loop.
+ *
+ * Loops are delimited the same way as in {@link MetricSummary}, so the summary of loop i can be
+ * compared with the frame time statistics of loop i.
+ */
+public class CpuSummary {
+    private static final String LOOP_COUNT_KEY = "cpu_loop_count";
+    private static final Pattern KEY_PATTERN =
+            Pattern.compile("run_(\\d+)\\.cpu(\\d+)_(frequency|utilization|residency_(\\d+))");
+
+    /** Statistics of a single CPU in a loop. */
+    public static class CoreSummary {
+        private double mAvgFrequencyKhz;
+        private double mUtilization;
+        private SortedMap<Long, Double> mResidency;
+
+        CoreSummary(double avgFrequencyKhz, double utilization, SortedMap<Long, Double> residency) {
+            mAvgFrequencyKhz = avgFrequencyKhz;
+            mUtilization = utilization;
+            mResidency = residency;
+        }
+
+        /** Time-weighted average frequency in kHz. */
+        public double getAvgFrequencyKhz() {
+            return mAvgFrequencyKhz;
+        }
+
+        /** Ratio of time the CPU was not idle. */
+        public double getUtilization() {
+            return mUtilization;
+        }
+
+        /** Ratio of time spent at each frequency in kHz. */
+        public SortedMap<Long, Double> getResidency() {
+            return mResidency;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            CoreSummary that = (CoreSummary) o;
+            return Double.compare(that.mAvgFrequencyKhz, mAvgFrequencyKhz) == 0 &&
+                    Double.compare(that.mUtilization, mUtilization) == 0 &&
+                    Objects.equals(mResidency, that.mResidency);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mAvgFrequencyKhz, mUtilization, mResidency);
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("avg frequency: %8.1f MHz\tutilization: %5.1f%%\tresidency:",
+                    mAvgFrequencyKhz / 1000, mUtilization * 100));
+            for (Map.Entry<Long, Double> entry : mResidency.entrySet()) {
+                sb.append(String.format(" %d MHz = %.1f%%",
+                        entry.getKey() / 1000, entry.getValue() * 100));
+            }
+            return sb.toString();
+        }
+    }
+
+    private List<SortedMap<Integer, CoreSummary>> mLoops;
+
+    private CpuSummary(List<SortedMap<Integer, CoreSummary>> loops) {
+        mLoops = loops;
+    }
+
+    public int getLoopCount() {
+        return mLoops.size();
+    }
+
+    /** Statistics of each CPU in the loop, keyed by CPU number. */
+    public SortedMap<Integer, CoreSummary> getLoop(int index) {
+        return mLoops.get(index);
+    }
+
+    public void addToMetricData(DeviceMetricData runData, @Nullable ITestDevice device) {
+        MetricSummary.addMetric(
+                runData,
+                device,
+                LOOP_COUNT_KEY,
+                Metric.newBuilder()
+                        .setType(DataType.PROCESSED)
+                        .setMeasurements(Measurements.newBuilder().setSingleInt(mLoops.size())));
+        for (int i = 0; i < mLoops.size(); i++) {
+            for (Map.Entry<Integer, CoreSummary> entry : mLoops.get(i).entrySet()) {
+                String prefix = "run_" + i + ".cpu" + entry.getKey() + "_";
+                CoreSummary core = entry.getValue();
+                MetricSummary.addMetric(
+                        runData,
+                        device,
+                        prefix + "frequency",
+                        getMetric(core.getAvgFrequencyKhz()).setUnit("kHz"));
+                MetricSummary.addMetric(
+                        runData, device, prefix + "utilization", getMetric(core.getUtilization()));
+                for (Map.Entry<Long, Double> residency : core.getResidency().entrySet()) {
+                    MetricSummary.addMetric(
+                            runData,
+                            device,
+                            prefix + "residency_" + residency.getKey(),
+                            getMetric(residency.getValue()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse the metrics produced by {@link #addToMetricData(DeviceMetricData, ITestDevice)}.
+     *
+     * @param metrics metrics with the device prefix removed.
+     * @return null if there are no CPU metrics.
+     */
+    @Nullable
+    public static CpuSummary parseRunMetrics(Map<String, Metric> metrics) {
+        Metric loopCount = metrics.get(LOOP_COUNT_KEY);
+        if (loopCount == null) {
+            return null;
+        }
+        List<SortedMap<Integer, CoreSummary>> loops = new ArrayList<>();
+        List<Map<Integer, double[]>> values = new ArrayList<>();
+        List<Map<Integer, SortedMap<Long, Double>>> residencies = new ArrayList<>();
+        for (int i = 0; i < loopCount.getMeasurements().getSingleInt(); i++) {
+            loops.add(new TreeMap<>());
+            values.add(new TreeMap<>());
+            residencies.add(new TreeMap<>());
+        }
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            Matcher m = KEY_PATTERN.matcher(entry.getKey());
+            if (!m.matches()) {
+                continue;
+            }
+            int loop = Integer.parseInt(m.group(1));
+            int cpu = Integer.parseInt(m.group(2));
+            double value = entry.getValue().getMeasurements().getSingleDouble();
+            double[] coreValues = values.get(loop).computeIfAbsent(cpu, k -> new double[2]);
+            residencies.get(loop).computeIfAbsent(cpu, k -> new TreeMap<>());
+            if (m.group(3).equals("frequency")) {
+                coreValues[0] = value;
+            } else if (m.group(3).equals("utilization")) {
+                coreValues[1] = value;
+            } else {
+                residencies.get(loop).get(cpu).put(Long.parseLong(m.group(4)), value);
+            }
+        }
+        for (int i = 0; i < loops.size(); i++) {
+            for (Map.Entry<Integer, double[]> entry : values.get(i).entrySet()) {
+                loops.get(i).put(
+                        entry.getKey(),
+                        new CoreSummary(
+                                entry.getValue()[0],
+                                entry.getValue()[1],
+                                residencies.get(i).get(entry.getKey())));
+            }
+        }
+        return new CpuSummary(loops);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CpuSummary that = (CpuSummary) o;
+        return Objects.equals(mLoops, that.mLoops);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mLoops);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mLoops.size(); i++) {
+            if (mLoops.get(i).isEmpty()) {
+                continue;
+            }
+            sb.append("Loop ");
+            sb.append(i);
+            sb.append('\n');
+            for (Map.Entry<Integer, CoreSummary> entry : mLoops.get(i).entrySet()) {
+                sb.append(String.format("cpu%-3d %s\n", entry.getKey(), entry.getValue()));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static Metric.Builder getMetric(double value) {
+        return Metric.newBuilder()
+                .setType(DataType.PROCESSED)
+                .setMeasurements(Measurements.newBuilder().setSingleDouble(value));
+    }
+
+    /**
+     * Builds a {@link CpuSummary} from {@link CpuSample}s.
+     *
+     * The interval between two consecutive samples is attributed to the loop containing the end of
+     * the interval.  The frequency read at the end of the interval is assumed to hold for the whole
+     * interval.
+     */
+    static class Builder {
+        private final List<Long> mLoopStartNs;
+        private final long mBoottimeOffsetNs;
+        private final List<CpuSample> mSamples = new ArrayList<>();
+
+        /**
+         * @param loopStartNs CLOCK_MONOTONIC time at which each loop starts.  If empty, all samples
+         *                    belong to a single loop.
+         * @param boottimeOffsetNs difference between CLOCK_BOOTTIME and CLOCK_MONOTONIC.
+         */
+        Builder(List<Long> loopStartNs, long boottimeOffsetNs) {
+            mLoopStartNs = loopStartNs.isEmpty() ? Collections.singletonList(0L) : loopStartNs;
+            mBoottimeOffsetNs = boottimeOffsetNs;
+        }
+
+        void addSample(CpuSample sample) {
+            mSamples.add(sample);
+        }
+
+        CpuSummary build() {
+            int loopCount = mLoopStartNs.size();
+            List<Map<Integer, Accumulator>> accumulators = new ArrayList<>();
+            for (int i = 0; i < loopCount; i++) {
+                accumulators.add(new TreeMap<>());
+            }
+            for (int i = 1; i < mSamples.size(); i++) {
+                CpuSample prev = mSamples.get(i - 1);
+                CpuSample sample = mSamples.get(i);
+                int loop = findLoop(mLoopStartNs, sample.getUptimeNs() - mBoottimeOffsetNs);
+                if (loop < 0) {
+                    continue;
+                }
+                long duration = sample.getUptimeNs() - prev.getUptimeNs();
+                for (int cpu = 0; cpu < sample.getCpuCount(); cpu++) {
+                    Accumulator acc =
+                            accumulators.get(loop).computeIfAbsent(cpu, k -> new Accumulator());
+                    acc.add(prev, sample, cpu, duration);
+                }
+            }
+
+            List<SortedMap<Integer, CoreSummary>> loops = new ArrayList<>();
+            for (Map<Integer, Accumulator> loop : accumulators) {
+                SortedMap<Integer, CoreSummary> cores = new TreeMap<>();
+                for (Map.Entry<Integer, Accumulator> entry : loop.entrySet()) {
+                    if (entry.getValue().mTimeNs > 0) {
+                        cores.put(entry.getKey(), entry.getValue().build());
+                    }
+                }
+                loops.add(cores);
+            }
+            return new CpuSummary(loops);
+        }
+    }
+
+    private static class Accumulator {
+        private long mTimeNs;
+        private double mFrequencyTimeProduct;
+        private long mBusyTicks;
+        private long mTotalTicks;
+        private SortedMap<Long, Long> mResidencyNs = new TreeMap<>();
+
+        void add(CpuSample prev, CpuSample sample, int cpu, long duration) {
+            long frequency = sample.getFrequencyKhz(cpu);
+            if (frequency >= 0) {
+                mTimeNs += duration;
+                mFrequencyTimeProduct += (double) frequency * duration;
+                mResidencyNs.merge(frequency, duration, Long::sum);
+            }
+            if (prev.getBusyTicks(cpu) >= 0 && sample.getBusyTicks(cpu) >= 0) {
+                mBusyTicks += sample.getBusyTicks(cpu) - prev.getBusyTicks(cpu);
+                mTotalTicks += sample.getTotalTicks(cpu) - prev.getTotalTicks(cpu);
+            }
+        }
+
+        CoreSummary build() {
+            SortedMap<Long, Double> residency = new TreeMap<>();
+            for (Map.Entry<Long, Long> entry : mResidencyNs.entrySet()) {
+                residency.put(entry.getKey(), (double) entry.getValue() / mTimeNs);
+            }
+            return new CoreSummary(
+                    mFrequencyTimeProduct / mTimeNs,
+                    mTotalTicks > 0 ? (double) mBusyTicks / mTotalTicks : 0.0,
+                    residency);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.metric;
+
+import com.android.annotations.Nullable;
+import com.android.game.qualification.proto.ResultDataProto;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Events reported by the device during the current run.
+ *
+ * Events are added as they are received while the app runs, and reconciled with the result file
+ * pulled at the end of the run.  An event received twice is only kept once.  The timeline is
+ * shared by the collectors of a device, which may read it from {@code collect()} or subscribe to
+ * be notified of each new event.
+ */
+public class EventTimeline {
+    /** Notified of each new event. */
+    public interface Listener {
+        /** Called on the thread that received the event, which must not be blocked. */
+        void onEvent(ResultDataProto.Event event);
+    }
+
+    private final List<ResultDataProto.Event> mEvents = new ArrayList<>();
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    @Nullable
+    private ResultDataProto.Result.Clock mClock = null;
+    @Nullable
+    private Long mBoottimeOffsetNs = null;
+
+    public void subscribe(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void unsubscribe(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /** Remove the events of the previous run.  Listeners stay subscribed. */
+    public synchronized void clear() {
+        mEvents.clear();
+        mClock = null;
+        mBoottimeOffsetNs = null;
+    }
+
+    /**
+     * Set the clock and the boottime offset declared by the device.
+     *
+     * @param begin the fields of a result other than the events.
+     */
+    public synchronized void begin(ResultDataProto.Result begin) {
+        if (begin.hasClock()) {
+            mClock = begin.getClock();
+        }
+        if (begin.hasBoottimeOffsetNs()) {
+            mBoottimeOffsetNs = begin.getBoottimeOffsetNs();
+        }
+    }
+
+    /**
+     * Add an event and notify the listeners.
+     *
+     * @return false if the timeline already had the event.
+     */
+    public boolean add(ResultDataProto.Event event) {
+        synchronized (this) {
+            if (contains(event)) {
+                return false;
+            }
+            mEvents.add(event);
+        }
+        for (Listener listener : mListeners) {
+            listener.onEvent(event);
+        }
+        return true;
+    }
+
+    /**
+     * Add the events of the result file that were not received while the app ran.
+     *
+     * @param resultData the result file, or null if the device did not write it, e.g. because the
+     *                   test crashed.
+     * @return the events of the run, combining the result file and the events received.
+     */
+    public ResultDataProto.Result reconcile(@Nullable ResultDataProto.Result resultData) {
+        if (resultData != null) {
+            begin(resultData);
+            for (ResultDataProto.Event event : resultData.getEventsList()) {
+                add(event);
+            }
+        }
+        return toResult();
+    }
+
+    /** Events received so far, ordered by timestamp. */
+    public synchronized List<ResultDataProto.Event> getEvents() {
+        List<ResultDataProto.Event> events = new ArrayList<>(mEvents);
+        events.sort(Comparator.comparingLong(ResultDataProto.Event::getTimestampNs));
+        return events;
+    }
+
+    public synchronized ResultDataProto.Result toResult() {
+        ResultDataProto.Result.Builder builder = ResultDataProto.Result.newBuilder();
+        if (mClock != null) {
+            builder.setClock(mClock);
+        }
+        if (mBoottimeOffsetNs != null) {
+            builder.setBoottimeOffsetNs(mBoottimeOffsetNs);
+        }
+        return builder.addAllEvents(getEvents()).build();
+    }
+
+    private boolean contains(ResultDataProto.Event event) {
+        for (ResultDataProto.Event e : mEvents) {
+            if (e.getType() == event.getType()
+                    && e.getTimestampNs() == event.getTimestampNs()
+                    && e.getName().equals(event.getName())
+                    && e.getMarkerId() == event.getMarkerId()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
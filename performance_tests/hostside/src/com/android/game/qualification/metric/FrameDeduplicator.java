@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+/**
+ * Drops frames that were already seen in a previous poll.
+ *
+ * Dumps such as `dumpsys SurfaceFlinger --latency` and `dumpsys gfxinfo framestats` return the
+ * most recent frames, so consecutive polls overlap.  Frames are identified by a key that increases
+ * with each frame, such as a present time or a vsync id.
+ */
+class FrameDeduplicator {
+    private long mLatestSeen = 0;
+    private boolean mOverlap;
+
+    void reset() {
+        mLatestSeen = 0;
+        mOverlap = false;
+    }
+
+    /** Key of the latest frame seen. */
+    long getLatestSeen() {
+        return mLatestSeen;
+    }
+
+    void beginPoll() {
+        mOverlap = false;
+    }
+
+    /**
+     * Add the key of a frame from the current poll.
+     *
+     * @return true if the frame has not been seen before.
+     */
+    boolean add(long key) {
+        if (key < mLatestSeen) {
+            return false;
+        } else if (key == mLatestSeen) {
+            mOverlap = true;
+            return false;
+        } else {
+            mLatestSeen = key;
+            return true;
+        }
+    }
+
+    /**
+     * Whether the current poll contained the latest frame of the previous poll.
+     *
+     * If not, some frames were dropped by the device before they could be polled.
+     */
+    boolean hasOverlap() {
+        return mOverlap;
+    }
+}
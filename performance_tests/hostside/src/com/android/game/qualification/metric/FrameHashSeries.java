@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.metric;
+
+import com.android.game.qualification.test.RawScreenshot;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Time series of perceptual hashes of the screen, used to find periods during which the screen did
+ * not change.
+ *
+ * Each screenshot is reduced to a difference hash: the screen is divided into a grid of 9 by 8
+ * cells, the luma of each cell is estimated from a few pixels, and each bit of the hash tells
+ * whether a cell is brighter than its right neighbour.  The mean luma is kept alongside, as the
+ * hash of a uniform screen does not depend on its color.  Hashing only reads the screenshot buffer
+ * and a preallocated grid, so that it does not disturb the other collectors.
+ *
+ * A raw screenshot is width * height * 4 bytes, e.g. 8 MB at 1080x1920, while the hash only reads
+ * 64 of its rows.  The first probe pulls a full screenshot to learn the geometry of the screen;
+ * the following probes save the screenshot on the device and only pull its header and the sampled
+ * rows, e.g. 270 KB at 1080x1920.
+ */
+class FrameHashSeries {
+    /**
+     * Shell command printing /proc/uptime followed by a raw screenshot, see {@link RawScreenshot}.
+     */
+    static final String PROBE_COMMAND = "cat /proc/uptime; " + RawScreenshot.COMMAND;
+
+    private static final String SCREENSHOT_PATH = "/data/local/tmp/gq_frame.raw";
+    // Width, height and pixel format at the start of a raw screenshot.
+    private static final int GEOMETRY_SIZE = 12;
+
+    private static final int GRID_WIDTH = 9;
+    private static final int GRID_HEIGHT = 8;
+    // Pixels sampled along each side of a cell.
+    private static final int SAMPLES_PER_CELL = 8;
+    private static final int SAMPLED_ROWS = GRID_HEIGHT * SAMPLES_PER_CELL;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Geometry of the last full screenshot, or 0 if the next probe must pull a full screenshot.
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private int mFormat = 0;
+    private long mSampledSize = 0;
+    private String mSampledProbeCommand = null;
+
+    private final int[] mLuma = new int[GRID_WIDTH * GRID_HEIGHT];
+    private int mSize = 0;
+    private long[] mUptimeNs = new long[INITIAL_CAPACITY];
+    private long[] mHashes = new long[INITIAL_CAPACITY];
+    private int[] mMeanLuma = new int[INITIAL_CAPACITY];
+
+    void clear() {
+        mSize = 0;
+        resetGeometry();
+    }
+
+    private void resetGeometry() {
+        mWidth = 0;
+        mHeight = 0;
+        mFormat = 0;
+        mSampledSize = 0;
+        mSampledProbeCommand = null;
+    }
+
+    /**
+     * Shell command for the next sample.  This is {@link #PROBE_COMMAND} until a full screenshot
+     * has been added, then a command printing /proc/uptime, the geometry of the screenshot and only
+     * the rows read by the hash.
+     */
+    String getProbeCommand() {
+        return mSampledProbeCommand != null ? mSampledProbeCommand : PROBE_COMMAND;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /** Time of the sample in CLOCK_BOOTTIME nanoseconds. */
+    long getUptimeNs(int index) {
+        return mUptimeNs[index];
+    }
+
+    long getHash(int index) {
+        return mHashes[index];
+    }
+
+    /** Mean luma of the screen between 0 and 255. */
+    int getMeanLuma(int index) {
+        return mMeanLuma[index];
+    }
+
+    /**
+     * Whether two samples show the same frame.
+     *
+     * @param maxHashDistance number of bits by which the hashes of the same frame may differ.
+     * @param maxLumaDifference difference between the mean luma of the same frame.
+     */
+    boolean isSameFrame(int first, int second, int maxHashDistance, int maxLumaDifference) {
+        return Math.abs(mMeanLuma[first] - mMeanLuma[second]) <= maxLumaDifference
+                && Long.bitCount(mHashes[first] ^ mHashes[second]) <= maxHashDistance;
+    }
+
+    /**
+     * Parse and add the output of {@link #getProbeCommand()}, which may also be a full screenshot.
+     * If the geometry of the screen changed since the last full screenshot, the sample is dropped
+     * and the next probe pulls a full screenshot again.
+     *
+     * @throws IllegalArgumentException if the output does not start with /proc/uptime or is not
+     *     followed by a screenshot.
+     */
+    void add(ByteBuffer output) {
+        ByteBuffer data = output.duplicate();
+        int start = data.position();
+        int newline = start;
+        while (newline < data.limit() && data.get(newline) != '\n') {
+            newline++;
+        }
+        if (newline == data.limit()) {
+            throw new IllegalArgumentException("Missing /proc/uptime in screenshot output.");
+        }
+        String uptime = new String(
+                data.array(), data.arrayOffset() + start, newline - start, StandardCharsets.UTF_8);
+        long uptimeNs;
+        try {
+            uptimeNs = Math.round(Double.parseDouble(uptime.trim().split(" ")[0]) * 1e9);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unable to parse /proc/uptime: " + uptime, e);
+        }
+        data.position(newline + 1);
+        if (mSampledProbeCommand != null && data.remaining() == mSampledSize) {
+            addSampledRows(uptimeNs, data);
+            return;
+        }
+        RawScreenshot screenshot = RawScreenshot.parse(data);
+        if (screenshot == null) {
+            throw new IllegalArgumentException("Unable to parse raw screenshot.");
+        }
+        add(uptimeNs, screenshot);
+        setGeometry(screenshot);
+    }
+
+    private void addSampledRows(long uptimeNs, ByteBuffer data) {
+        data = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (data.getInt(0) != mWidth || data.getInt(4) != mHeight || data.getInt(8) != mFormat) {
+            // E.g. the screen was rotated.
+            resetGeometry();
+            return;
+        }
+        data.position(GEOMETRY_SIZE);
+        RawScreenshot rows = RawScreenshot.fromPixels(mWidth, SAMPLED_ROWS, mFormat, data);
+        if (rows == null) {
+            throw new IllegalArgumentException("Unable to parse sampled screenshot.");
+        }
+        // The rows are those that the hash reads from the full screenshot.
+        add(uptimeNs, rows);
+    }
+
+    // Build the command pulling the rows of the screenshot that computeHash reads.
+    private void setGeometry(RawScreenshot screenshot) {
+        if (screenshot.getHeight() < SAMPLED_ROWS) {
+            return;
+        }
+        mWidth = screenshot.getWidth();
+        mHeight = screenshot.getHeight();
+        mFormat = screenshot.getFormat();
+        long rowSize = (long) mWidth * screenshot.getBytesPerPixel();
+        // dd only skips whole blocks, and the header is not a multiple of the row size.
+        long blockSize = gcd(screenshot.getHeaderSize(), rowSize);
+        mSampledSize = GEOMETRY_SIZE + SAMPLED_ROWS * rowSize;
+        StringBuilder skips = new StringBuilder();
+        for (int sy = 0; sy < SAMPLED_ROWS; sy++) {
+            long y = getSampledRow(sy, mHeight);
+            skips.append(' ').append((screenshot.getHeaderSize() + y * rowSize) / blockSize);
+        }
+        mSampledProbeCommand = String.format(
+                "cat /proc/uptime && %1$s > %2$s && dd if=%2$s bs=%3$d count=1 2>/dev/null"
+                        + " && for s in%4$s; do"
+                        + " dd if=%2$s bs=%5$d skip=$s count=%6$d 2>/dev/null; done;"
+                        + " r=$?; rm -f %2$s; exit $r",
+                RawScreenshot.COMMAND,
+                SCREENSHOT_PATH,
+                GEOMETRY_SIZE,
+                skips,
+                blockSize,
+                rowSize / blockSize);
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    // Row of the screenshot sampled by the hash, at the center of the sample.
+    private static long getSampledRow(int sy, long height) {
+        return (2 * sy + 1) * height / (2 * SAMPLED_ROWS);
+    }
+
+    void add(long uptimeNs, RawScreenshot screenshot) {
+        ensureCapacity(mSize + 1);
+        mUptimeNs[mSize] = uptimeNs;
+        mHashes[mSize] = computeHash(screenshot);
+        mMeanLuma[mSize] = computeMeanLuma();
+        mSize++;
+    }
+
+    /** Difference hash of a screenshot, leaving the luma of each cell in the grid. */
+    private long computeHash(RawScreenshot screenshot) {
+        long width = screenshot.getWidth();
+        long height = screenshot.getHeight();
+        int samplesX = GRID_WIDTH * SAMPLES_PER_CELL;
+        Arrays.fill(mLuma, 0);
+        for (int sy = 0; sy < SAMPLED_ROWS; sy++) {
+            // Center of the sample.
+            int y = (int) getSampledRow(sy, height);
+            int row = sy / SAMPLES_PER_CELL * GRID_WIDTH;
+            for (int sx = 0; sx < samplesX; sx++) {
+                int x = (int) ((2 * sx + 1) * width / (2 * samplesX));
+                mLuma[row + sx / SAMPLES_PER_CELL] += getLuma(screenshot.getArgb(x, y));
+            }
+        }
+        long hash = 0;
+        for (int y = 0; y < GRID_HEIGHT; y++) {
+            for (int x = 0; x < GRID_WIDTH - 1; x++) {
+                int cell = y * GRID_WIDTH + x;
+                hash = hash << 1 | (mLuma[cell] > mLuma[cell + 1] ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    private int computeMeanLuma() {
+        long sum = 0;
+        for (int luma : mLuma) {
+            sum += luma;
+        }
+        return (int) (sum / (mLuma.length * SAMPLES_PER_CELL * SAMPLES_PER_CELL));
+    }
+
+    // Rec. 601 luma of a pixel, ignoring the alpha channel.
+    private static int getLuma(int argb) {
+        int r = argb >> 16 & 0xff;
+        int g = argb >> 8 & 0xff;
+        int b = argb & 0xff;
+        return (r * 299 + g * 587 + b * 114) / 1000;
+    }
+
+    void write(Writer writer) throws IOException {
+        writer.write("uptime_ns\thash\tmean_luma\n");
+        for (int i = 0; i < mSize; i++) {
+            writer.write(String.format("%d\t%016x\t%d\n", mUptimeNs[i], mHashes[i], mMeanLuma[i]));
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mUptimeNs.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mUptimeNs.length * 2);
+        mUptimeNs = Arrays.copyOf(mUptimeNs, newCapacity);
+        mHashes = Arrays.copyOf(mHashes, newCapacity);
+        mMeanLuma = Arrays.copyOf(mMeanLuma, newCapacity);
+    }
+}
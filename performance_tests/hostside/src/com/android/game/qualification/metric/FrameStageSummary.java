@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import com.android.annotations.Nullable;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.metrics.proto.MetricMeasurement.DataType;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Directionality;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Summary of the duration of each rendering stage for each loop.
+ *
+ * Loops are delimited the same way as in {@link MetricSummary}.  A frame belongs to the loop
+ * containing its intended vsync.
+ */
+public class FrameStageSummary {
+    private static final String LOOP_COUNT_KEY = "gfxinfo_loop_count";
+    private static final String TOTAL = "total";
+
+    /** Statistics of a stage in a loop. */
+    public static class StageSummary {
+        private double mAvgNs;
+        private long mPercentile90Ns;
+
+        StageSummary(double avgNs, long percentile90Ns) {
+            mAvgNs = avgNs;
+            mPercentile90Ns = percentile90Ns;
+        }
+
+        public double getAvgNs() {
+            return mAvgNs;
+        }
+
+        public long get90thPercentileNs() {
+            return mPercentile90Ns;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            StageSummary that = (StageSummary) o;
+            return Double.compare(that.mAvgNs, mAvgNs) == 0 &&
+                    mPercentile90Ns == that.mPercentile90Ns;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mAvgNs, mPercentile90Ns);
+        }
+
+        public String toString() {
+            return String.format("avg: %7.3f ms\t90th percentile: %7.3f ms",
+                    mAvgNs / 1e6, mPercentile90Ns / 1e6);
+        }
+    }
+
+    private List<Long> mFrameCounts;
+    // Stage name to summary for each loop, "total" being the whole frame.
+    private List<Map<String, StageSummary>> mLoops;
+
+    private FrameStageSummary(List<Long> frameCounts, List<Map<String, StageSummary>> loops) {
+        mFrameCounts = frameCounts;
+        mLoops = loops;
+    }
+
+    public int getLoopCount() {
+        return mLoops.size();
+    }
+
+    public long getFrameCount(int loop) {
+        return mFrameCounts.get(loop);
+    }
+
+    /**
+     * Statistics of a stage in a loop.
+     *
+     * @param stage name of the stage, or "total" for the whole frame.
+     * @return null if the loop has no frames.
+     */
+    @Nullable
+    public StageSummary getStage(int loop, String stage) {
+        return mLoops.get(loop).get(stage);
+    }
+
+    public void addToMetricData(DeviceMetricData runData, @Nullable ITestDevice device) {
+        MetricSummary.addMetric(runData, device, LOOP_COUNT_KEY, getIntMetric(mLoops.size()));
+        for (int i = 0; i < mLoops.size(); i++) {
+            String prefix = "run_" + i + ".gfxinfo_";
+            MetricSummary.addMetric(
+                    runData, device, prefix + "frame_count", getIntMetric(mFrameCounts.get(i)));
+            for (Map.Entry<String, StageSummary> entry : mLoops.get(i).entrySet()) {
+                MetricSummary.addMetric(
+                        runData,
+                        device,
+                        prefix + entry.getKey() + "_avg",
+                        getNsMetric(Measurements.newBuilder()
+                                .setSingleDouble(entry.getValue().getAvgNs())));
+                MetricSummary.addMetric(
+                        runData,
+                        device,
+                        prefix + entry.getKey() + "_90th_percentile",
+                        getNsMetric(Measurements.newBuilder()
+                                .setSingleInt(entry.getValue().get90thPercentileNs())));
+            }
+        }
+    }
+
+    /**
+     * Parse the metrics produced by {@link #addToMetricData(DeviceMetricData, ITestDevice)}.
+     *
+     * @param metrics metrics with the device prefix removed.
+     * @return null if there are no gfxinfo metrics.
+     */
+    @Nullable
+    public static FrameStageSummary parseRunMetrics(Map<String, Metric> metrics) {
+        Metric loopCount = metrics.get(LOOP_COUNT_KEY);
+        if (loopCount == null) {
+            return null;
+        }
+        List<Long> frameCounts = new ArrayList<>();
+        List<Map<String, StageSummary>> loops = new ArrayList<>();
+        for (int i = 0; i < loopCount.getMeasurements().getSingleInt(); i++) {
+            String prefix = "run_" + i + ".gfxinfo_";
+            frameCounts.add(metrics.get(prefix + "frame_count").getMeasurements().getSingleInt());
+            Map<String, StageSummary> stages = new LinkedHashMap<>();
+            for (String stage : getStageNames()) {
+                Metric avg = metrics.get(prefix + stage + "_avg");
+                if (avg == null) {
+                    continue;
+                }
+                stages.put(stage, new StageSummary(
+                        avg.getMeasurements().getSingleDouble(),
+                        metrics.get(prefix + stage + "_90th_percentile")
+                                .getMeasurements().getSingleInt()));
+            }
+            loops.add(stages);
+        }
+        return new FrameStageSummary(frameCounts, loops);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        FrameStageSummary that = (FrameStageSummary) o;
+        return Objects.equals(mFrameCounts, that.mFrameCounts) &&
+                Objects.equals(mLoops, that.mLoops);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mFrameCounts, mLoops);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mLoops.size(); i++) {
+            sb.append(String.format("Loop %d: %d frames\n", i, mFrameCounts.get(i)));
+            for (Map.Entry<String, StageSummary> entry : mLoops.get(i).entrySet()) {
+                sb.append(String.format("  %-14s %s\n", entry.getKey(), entry.getValue()));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static List<String> getStageNames() {
+        List<String> names = new ArrayList<>();
+        for (FrameStats.Stage stage : FrameStats.Stage.values()) {
+            names.add(stage.getName());
+        }
+        names.add(TOTAL);
+        return names;
+    }
+
+    private static Metric.Builder getIntMetric(long value) {
+        return Metric.newBuilder()
+                .setType(DataType.PROCESSED)
+                .setMeasurements(Measurements.newBuilder().setSingleInt(value));
+    }
+
+    private static Metric.Builder getNsMetric(Measurements.Builder measurements) {
+        return Metric.newBuilder()
+                .setUnit("ns")
+                .setDirection(Directionality.DOWN_BETTER)
+                .setType(DataType.PROCESSED)
+                .setMeasurements(measurements);
+    }
+
+    /** Builds a {@link FrameStageSummary} from {@link FrameStats}. */
+    static class Builder {
+        private final List<Long> mLoopStartNs;
+        private final List<List<FrameStats>> mLoops = new ArrayList<>();
+
+        /**
+         * @param loopStartNs CLOCK_MONOTONIC time at which each loop starts.  If empty, all frames
+         *                    belong to a single loop.
+         */
+        Builder(List<Long> loopStartNs) {
+            mLoopStartNs = loopStartNs.isEmpty() ? Collections.singletonList(0L) : loopStartNs;
+            for (int i = 0; i < mLoopStartNs.size(); i++) {
+                mLoops.add(new ArrayList<>());
+            }
+        }
+
+        void addFrame(FrameStats frame) {
+            int loop = -1;
+            while (loop + 1 < mLoopStartNs.size()
+                    && mLoopStartNs.get(loop + 1) <= frame.getIntendedVsyncNs()) {
+                loop++;
+            }
+            if (loop >= 0) {
+                mLoops.get(loop).add(frame);
+            }
+        }
+
+        FrameStageSummary build() {
+            List<Long> frameCounts = new ArrayList<>();
+            List<Map<String, StageSummary>> loops = new ArrayList<>();
+            for (List<FrameStats> frames : mLoops) {
+                frameCounts.add((long) frames.size());
+                Map<String, StageSummary> stages = new LinkedHashMap<>();
+                if (!frames.isEmpty()) {
+                    for (FrameStats.Stage stage : FrameStats.Stage.values()) {
+                        stages.put(stage.getName(), summarize(frames, stage));
+                    }
+                    stages.put(TOTAL, summarize(frames, null));
+                }
+                loops.add(stages);
+            }
+            return new FrameStageSummary(frameCounts, loops);
+        }
+
+        private static StageSummary summarize(
+                List<FrameStats> frames, @Nullable FrameStats.Stage stage) {
+            List<Long> durations = new ArrayList<>(frames.size());
+            long total = 0;
+            for (FrameStats frame : frames) {
+                long duration = stage == null ? frame.getTotalNs() : frame.getStageNs(stage);
+                durations.add(duration);
+                total += duration;
+            }
+            Collections.sort(durations);
+            return new StageSummary(
+                    (double) total / durations.size(),
+                    durations.get((int) Math.ceil(durations.size() * 0.90) - 1));
+        }
+    }
+}
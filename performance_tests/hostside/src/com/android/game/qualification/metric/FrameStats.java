@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Timing of the rendering stages of a frame, as reported by `dumpsys gfxinfo [package]
+ * framestats`.
+ */
+class FrameStats {
+    static final String PROFILE_DATA_DELIMITER = "---PROFILEDATA---";
+
+    /** Rendering stages of a frame, in order. */
+    enum Stage {
+        INPUT("input", "HandleInputStart", "AnimationStart"),
+        ANIMATION("animation", "AnimationStart", "PerformTraversalsStart"),
+        TRAVERSAL("traversal", "PerformTraversalsStart", "DrawStart"),
+        DRAW("draw", "DrawStart", "SyncQueued"),
+        SYNC("sync", "SyncStart", "IssueDrawCommandsStart"),
+        COMMAND_ISSUE("command_issue", "IssueDrawCommandsStart", "FrameCompleted"),
+        GPU("gpu", "FrameCompleted", "GpuCompleted");
+
+        private String mName;
+        private String mStartColumn;
+        private String mEndColumn;
+
+        Stage(String name, String startColumn, String endColumn) {
+            mName = name;
+            mStartColumn = startColumn;
+            mEndColumn = endColumn;
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+
+    private final long mVsyncId;
+    private final long mIntendedVsyncNs;
+    private final long mTotalNs;
+    private final long[] mStageNs;
+
+    FrameStats(long vsyncId, long intendedVsyncNs, long totalNs, long[] stageNs) {
+        mVsyncId = vsyncId;
+        mIntendedVsyncNs = intendedVsyncNs;
+        mTotalNs = totalNs;
+        mStageNs = stageNs;
+    }
+
+    /** Id of the frame, increasing with each frame. */
+    long getVsyncId() {
+        return mVsyncId;
+    }
+
+    /** CLOCK_MONOTONIC time at which the frame was supposed to start. */
+    long getIntendedVsyncNs() {
+        return mIntendedVsyncNs;
+    }
+
+    /** Time from the intended vsync until both the CPU and GPU completed the frame. */
+    long getTotalNs() {
+        return mTotalNs;
+    }
+
+    /** Duration of a stage, or 0 if the stage is not reported by the device. */
+    long getStageNs(Stage stage) {
+        return mStageNs[stage.ordinal()];
+    }
+
+    /**
+     * Parse the profile data of `dumpsys gfxinfo [package] framestats`.
+     *
+     * Columns are located by name, so older and newer formats are both supported.  When the
+     * FrameTimelineVsyncId column is missing, IntendedVsync is used as the id.  Frames with
+     * non-zero flags are outliers and are skipped.
+     */
+    static void parse(String text, Consumer<FrameStats> consumer) {
+        int pos = 0;
+        boolean inProfileData = false;
+        Map<String, Integer> columns = null;
+        while (pos < text.length()) {
+            int end = text.indexOf('\n', pos);
+            if (end < 0) {
+                end = text.length();
+            }
+            String line = text.substring(pos, end).trim();
+            pos = end + 1;
+
+            if (line.equals(PROFILE_DATA_DELIMITER)) {
+                inProfileData = !inProfileData;
+                columns = null;
+                continue;
+            }
+            if (!inProfileData || line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split(",");
+            if (columns == null) {
+                columns = new HashMap<>();
+                for (int i = 0; i < fields.length; i++) {
+                    columns.put(fields[i].trim(), i);
+                }
+                continue;
+            }
+            FrameStats frame = parseRow(fields, columns);
+            if (frame != null) {
+                consumer.accept(frame);
+            }
+        }
+    }
+
+    private static FrameStats parseRow(String[] fields, Map<String, Integer> columns) {
+        try {
+            if (get(fields, columns, "Flags") != 0) {
+                return null;
+            }
+            long intendedVsync = get(fields, columns, "IntendedVsync");
+            long vsyncId = columns.containsKey("FrameTimelineVsyncId")
+                    ? get(fields, columns, "FrameTimelineVsyncId")
+                    : intendedVsync;
+            long[] stageNs = new long[Stage.values().length];
+            for (Stage stage : Stage.values()) {
+                if (columns.containsKey(stage.mStartColumn)
+                        && columns.containsKey(stage.mEndColumn)) {
+                    long start = get(fields, columns, stage.mStartColumn);
+                    long stageEnd = get(fields, columns, stage.mEndColumn);
+                    // The GPU may complete before the CPU, and unused stages have a start time of 0.
+                    stageNs[stage.ordinal()] = start > 0 ? Math.max(0, stageEnd - start) : 0;
+                }
+            }
+            long completed = get(fields, columns, "FrameCompleted");
+            if (columns.containsKey("GpuCompleted")) {
+                completed = Math.max(completed, get(fields, columns, "GpuCompleted"));
+            }
+            return new FrameStats(vsyncId, intendedVsync, completed - intendedVsync, stageNs);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            // Partial or malformed row.
+            return null;
+        }
+    }
+
+    private static long get(String[] fields, Map<String, Integer> columns, String name) {
+        Integer index = columns.get(name);
+        if (index == null) {
+            throw new NumberFormatException("Missing column " + name);
+        }
+        return Long.parseLong(fields[index].trim());
+    }
+}
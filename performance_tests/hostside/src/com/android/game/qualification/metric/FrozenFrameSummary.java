@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.metric;
+
+import com.android.annotations.Nullable;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.metrics.proto.MetricMeasurement.DataType;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Periods of the run during which the screen did not change.
+ *
+ * A frozen period where frames were still presented usually means the game is stuck on a frame
+ * that SurfaceFlinger keeps presenting, while a period without any presented frame means the game
+ * stopped rendering altogether.
+ */
+public class FrozenFrameSummary {
+    private static final String SAMPLE_COUNT_KEY = "frozen_sample_count";
+    private static final String PERIOD_COUNT_KEY = "frozen_period_count";
+
+    /** A period during which all the screenshots showed the same frame. */
+    public static class FrozenPeriod {
+        private long mStartTimeNs;
+        private long mDurationNs;
+        private long mPresentedFrameCount;
+
+        FrozenPeriod(long startTimeNs, long durationNs, long presentedFrameCount) {
+            mStartTimeNs = startTimeNs;
+            mDurationNs = durationNs;
+            mPresentedFrameCount = presentedFrameCount;
+        }
+
+        /** CLOCK_MONOTONIC time of the first screenshot of the period. */
+        public long getStartTimeNs() {
+            return mStartTimeNs;
+        }
+
+        /** Time between the first and the last screenshot of the period. */
+        public long getDurationNs() {
+            return mDurationNs;
+        }
+
+        /** Number of frames presented during the period, or -1 if frames were not collected. */
+        public long getPresentedFrameCount() {
+            return mPresentedFrameCount;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            FrozenPeriod that = (FrozenPeriod) o;
+            return mStartTimeNs == that.mStartTimeNs &&
+                    mDurationNs == that.mDurationNs &&
+                    mPresentedFrameCount == that.mPresentedFrameCount;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mStartTimeNs, mDurationNs, mPresentedFrameCount);
+        }
+
+        public String toString() {
+            String result = String.format(
+                    "start: %d ns\tduration: %.1f s", mStartTimeNs, mDurationNs / 1e9);
+            if (mPresentedFrameCount >= 0) {
+                result += String.format("\tpresented frames: %d%s",
+                        mPresentedFrameCount, mPresentedFrameCount == 0 ? " (hang)" : "");
+            }
+            return result;
+        }
+    }
+
+    private int mSampleCount;
+    private List<FrozenPeriod> mPeriods;
+
+    private FrozenFrameSummary(int sampleCount, List<FrozenPeriod> periods) {
+        mSampleCount = sampleCount;
+        mPeriods = periods;
+    }
+
+    /** Number of screenshots taken during the run. */
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    public int getPeriodCount() {
+        return mPeriods.size();
+    }
+
+    public FrozenPeriod getPeriod(int index) {
+        return mPeriods.get(index);
+    }
+
+    public void addToMetricData(DeviceMetricData runData, @Nullable ITestDevice device) {
+        MetricSummary.addMetric(runData, device, SAMPLE_COUNT_KEY, getMetric(mSampleCount));
+        MetricSummary.addMetric(runData, device, PERIOD_COUNT_KEY, getMetric(mPeriods.size()));
+        for (int i = 0; i < mPeriods.size(); i++) {
+            FrozenPeriod period = mPeriods.get(i);
+            String prefix = "frozen_" + i + ".";
+            MetricSummary.addMetric(
+                    runData, device, prefix + "start_time", getMetric(period.getStartTimeNs()));
+            MetricSummary.addMetric(
+                    runData,
+                    device,
+                    prefix + "duration",
+                    getMetric(period.getDurationNs()).setUnit("ns"));
+            if (period.getPresentedFrameCount() >= 0) {
+                MetricSummary.addMetric(
+                        runData,
+                        device,
+                        prefix + "presented_frame_count",
+                        getMetric(period.getPresentedFrameCount()));
+            }
+        }
+    }
+
+    /**
+     * Parse the metrics produced by {@link #addToMetricData(DeviceMetricData, ITestDevice)}.
+     *
+     * @param metrics metrics with the device prefix removed.
+     * @return null if there are no frozen frame metrics.
+     */
+    @Nullable
+    public static FrozenFrameSummary parseRunMetrics(Map<String, Metric> metrics) {
+        Metric sampleCount = metrics.get(SAMPLE_COUNT_KEY);
+        Metric periodCount = metrics.get(PERIOD_COUNT_KEY);
+        if (sampleCount == null || periodCount == null) {
+            return null;
+        }
+        List<FrozenPeriod> periods = new ArrayList<>();
+        for (int i = 0; i < periodCount.getMeasurements().getSingleInt(); i++) {
+            String prefix = "frozen_" + i + ".";
+            Metric presentedFrameCount = metrics.get(prefix + "presented_frame_count");
+            periods.add(new FrozenPeriod(
+                    metrics.get(prefix + "start_time").getMeasurements().getSingleInt(),
+                    metrics.get(prefix + "duration").getMeasurements().getSingleInt(),
+                    presentedFrameCount == null
+                            ? -1 : presentedFrameCount.getMeasurements().getSingleInt()));
+        }
+        return new FrozenFrameSummary((int) sampleCount.getMeasurements().getSingleInt(), periods);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        FrozenFrameSummary that = (FrozenFrameSummary) o;
+        return mSampleCount == that.mSampleCount && Objects.equals(mPeriods, that.mPeriods);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mSampleCount, mPeriods);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Screenshots: %d\n", mSampleCount));
+        for (int i = 0; i < mPeriods.size(); i++) {
+            sb.append(String.format("Frozen %d: %s\n", i, mPeriods.get(i)));
+        }
+        return sb.toString();
+    }
+
+    private static Metric.Builder getMetric(long value) {
+        return Metric.newBuilder()
+                .setType(DataType.PROCESSED)
+                .setMeasurements(Measurements.newBuilder().setSingleInt(value));
+    }
+
+    /**
+     * Builds a {@link FrozenFrameSummary} from a {@link FrameHashSeries} and the frames presented
+     * during the test.
+     *
+     * Consecutive screenshots showing the same frame as the first screenshot of a period belong to
+     * that period.  A period is frozen if its screenshots span at least the minimum duration.
+     */
+    static class Builder {
+        private final FrameHashSeries mSeries;
+        private final long mBoottimeOffsetNs;
+        private final long mMinDurationNs;
+        private final int mMaxHashDistance;
+        private final int mMaxLumaDifference;
+        private boolean mHasFrames = false;
+        private long[] mPresentTimesNs = new long[0];
+        private int mFrameCount = 0;
+
+        /**
+         * @param boottimeOffsetNs difference between CLOCK_BOOTTIME and CLOCK_MONOTONIC.
+         * @param minDurationNs shortest period reported as frozen.
+         * @param maxHashDistance number of bits by which the hashes of the same frame may differ.
+         * @param maxLumaDifference difference between the mean luma of the same frame.
+         */
+        Builder(
+                FrameHashSeries series,
+                long boottimeOffsetNs,
+                long minDurationNs,
+                int maxHashDistance,
+                int maxLumaDifference) {
+            mSeries = series;
+            mBoottimeOffsetNs = boottimeOffsetNs;
+            mMinDurationNs = minDurationNs;
+            mMaxHashDistance = maxHashDistance;
+            mMaxLumaDifference = maxLumaDifference;
+        }
+
+        /**
+         * Add a frame.
+         *
+         * @param presentTimeNs CLOCK_MONOTONIC time at which the frame was presented.
+         */
+        void addFrame(long presentTimeNs) {
+            mHasFrames = true;
+            if (mFrameCount == mPresentTimesNs.length) {
+                mPresentTimesNs = Arrays.copyOf(mPresentTimesNs, Math.max(64, mFrameCount * 2));
+            }
+            mPresentTimesNs[mFrameCount++] = presentTimeNs;
+        }
+
+        FrozenFrameSummary build() {
+            Arrays.sort(mPresentTimesNs, 0, mFrameCount);
+            List<FrozenPeriod> periods = new ArrayList<>();
+            int start = 0;
+            for (int i = 1; i <= mSeries.size(); i++) {
+                if (i < mSeries.size() && mSeries.isSameFrame(
+                        start, i, mMaxHashDistance, mMaxLumaDifference)) {
+                    continue;
+                }
+                long startNs = mSeries.getUptimeNs(start) - mBoottimeOffsetNs;
+                long endNs = mSeries.getUptimeNs(i - 1) - mBoottimeOffsetNs;
+                if (i - 1 > start && endNs - startNs >= mMinDurationNs) {
+                    periods.add(new FrozenPeriod(
+                            startNs,
+                            endNs - startNs,
+                            mHasFrames ? countFrames(startNs, endNs) : -1));
+                }
+                start = i;
+            }
+            return new FrozenFrameSummary(mSeries.size(), periods);
+        }
+
+        // Number of frames presented after the first screenshot and up to the last one.
+        private int countFrames(long startNs, long endNs) {
+            return findFirstAfter(endNs) - findFirstAfter(startNs);
+        }
+
+        private int findFirstAfter(long timeNs) {
+            int index = Arrays.binarySearch(mPresentTimesNs, 0, mFrameCount, timeNs);
+            if (index < 0) {
+                return -index - 1;
+            }
+            while (index < mFrameCount && mPresentTimesNs[index] <= timeNs) {
+                index++;
+            }
+            return index;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link com.android.tradefed.device.metric.IMetricCollector} to collect the frequency and
+ * utilization of each CPU.
+ *
+ * Samples are taken with /proc/uptime, which uses CLOCK_BOOTTIME.  They are converted to the
+ * CLOCK_MONOTONIC timestamps of the loop events using the offset reported by the device, so that
+ * the statistics of each loop can be compared with the frame times of the same loop.
+ */
+public class GameQualificationCpuCollector extends GameQualificationScheduledMetricCollector {
+    private List<CpuSample> mSamples = new ArrayList<>();
+
+    public GameQualificationCpuCollector() {
+        mIntervalMs = 1000L;
+    }
+
+    @VisibleForTesting
+    List<CpuSample> getSamples() {
+        return mSamples;
+    }
+
+    @Override
+    protected void doStart(DeviceMetricData runData) {
+        mSamples.clear();
+    }
+
+    @Override
+    protected void collect() {
+        try {
+            processRawData(executeShellCommand(CpuSample.PROBE_COMMAND));
+        } catch (DeviceNotAvailableException e) {
+            setErrorMessage(
+                    "Device not available during CPU data collection: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    @VisibleForTesting
+    void processRawData(String raw) {
+        mSamples.add(CpuSample.parse(raw));
+    }
+
+    @Override
+    protected void doEnd(DeviceMetricData runData) {
+        if (mSamples.size() < 2) {
+            return;
+        }
+        CpuSummary summary = createSummary();
+        summary.addToMetricData(runData, mDevice);
+        try (InputStreamSource source = new ByteArrayInputStreamSource(
+                summary.toString().getBytes(StandardCharsets.UTF_8))) {
+            testLog("GameQualification-cpu-" + getApkInfo().getName(), LogDataType.TEXT, source);
+        }
+    }
+
+    @VisibleForTesting
+    CpuSummary createSummary() {
+        CpuSummary.Builder builder =
+                new CpuSummary.Builder(getLoopStartTimesNs(), getBoottimeOffsetNs());
+        for (CpuSample sample : mSamples) {
+            builder.addSample(sample);
+        }
+        return builder.build();
+    }
+}
@@ -18,8 +18,10 @@ package com.android.game.qualification.metric;
 import static com.android.game.qualification.metric.MetricSummary.TimeType.PRESENT;
 import static com.android.game.qualification.metric.MetricSummary.TimeType.READY;
 
+import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.game.qualification.proto.ResultDataProto;
+import com.android.tradefed.config.Option;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.metric.DeviceMetricData;
 import com.android.tradefed.log.LogUtil.CLog;
@@ -33,10 +35,13 @@ import com.google.common.base.Preconditions;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -44,25 +49,67 @@ import java.util.regex.PatternSyntaxException;
 
 /**
  * A {@link com.android.tradefed.device.metric.IMetricCollector} to collect FPS data.
+ *
+ * By default, SurfaceFlinger latency data is polled during the test.  With --use-perfetto, a
+ * Perfetto trace of the frame timeline and of the scheduler is recorded on the device instead and
+ * parsed when the test ends, which does not lose frames when a poll is late.
  */
 public class GameQualificationFpsCollector extends GameQualificationScheduledMetricCollector {
-    private long mLatestSeen = 0;
+    private static final String PERFETTO_CONFIG_PATH = "/data/local/tmp/gq_perfetto.cfg";
+    private static final String PERFETTO_TRACE_PATH =
+            "/data/misc/perfetto-traces/gq_trace.perfetto-trace";
+    // Time allowed for the trace to outlive the test before Perfetto stops it by itself.
+    private static final long PERFETTO_DURATION_MARGIN_MS = 60 * 1000L;
+
+    @Option(
+            name = "use-perfetto",
+            description = "Record frame timings with a Perfetto trace instead of polling "
+                    + "SurfaceFlinger.  Requires Android S or above."
+    )
+    private boolean mUsePerfetto = false;
+
+    @Option(
+            name = "perfetto-buffer-size-kb",
+            description = "Size of the Perfetto buffer.  The buffer is written to the trace file "
+                    + "every second, so it only needs to hold a second of events."
+    )
+    private int mPerfettoBufferSizeKb = 32 * 1024;
+
+    private FrameDeduplicator mDeduplicator = new FrameDeduplicator();
     private long mVSyncPeriod = 0;
     private List<GameQualificationMetric> mElapsedTimes = new ArrayList<>();
-    private File mRawFile;
+    private RawDataFile mRawFile;
     private Pattern mLayerPattern;
     private String mTestLayer;
     private boolean mAppStarted;
+    private String mPerfettoPid;
+    @Nullable
+    private MetricSummary mSummary;
 
     public GameQualificationFpsCollector() {
         mIntervalMs = 1000L;
     }
 
-    @VisibleForTesting
+    /**
+     * Frames presented so far.  Callers on other threads must synchronize on this collector.
+     */
     List<GameQualificationMetric> getElapsedTimes() {
         return mElapsedTimes;
     }
 
+    long getVSyncPeriod() {
+        return mVSyncPeriod;
+    }
+
+    /**
+     * Frame time summary of the last test, or null if no frame was presented.  Callers on other
+     * threads must synchronize on this collector.
+     */
+    @Nullable
+    public MetricSummary getSummary() {
+        return mSummary;
+    }
+
     @Override
     protected void doStart(DeviceMetricData runData) {
         if (!isEnabled()) {
@@ -72,15 +119,17 @@ public class GameQualificationFpsCollector extends GameQualificationScheduledMet
         CLog.v("Test run started on device %s.", mDevice);
 
         try {
-            mRawFile = File.createTempFile("GameQualification_RAW_TIMES", ".txt");
+            mRawFile = new RawDataFile("GameQualification_RAW_TIMES");
         } catch (IOException e) {
             setErrorMessage("Failed creating file to store raw FPS data.");
             throw new RuntimeException(e);
         }
 
         mElapsedTimes.clear();
-        mLatestSeen = 0;
+        mSummary = null;
+        mDeduplicator.reset();
         mAppStarted = false;
+        mPerfettoPid = null;
         setErrorMessage(
                 "Unable to retrieve any metrics.  App might not have started or the target "
                         + "layer name did not exists.");
@@ -91,12 +140,77 @@ public class GameQualificationFpsCollector extends GameQualificationScheduledMet
         } catch (PatternSyntaxException e) {
             throw new RuntimeException(e);
         }
+
+        if (mUsePerfetto) {
+            try {
+                startPerfetto();
+            } catch (DeviceNotAvailableException e) {
+                setErrorMessage("Device not available while starting Perfetto: " + e.getMessage());
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    String getPerfettoConfig() {
+        long durationMs = getApkInfo().getLoadTime() + getApkInfo().getRunTime()
+                + PERFETTO_DURATION_MARGIN_MS;
+        return "buffers: {\n"
+                + "    size_kb: " + mPerfettoBufferSizeKb + "\n"
+                + "    fill_policy: RING_BUFFER\n"
+                + "}\n"
+                + "data_sources: {\n"
+                + "    config {\n"
+                + "        name: \"android.surfaceflinger.frametimeline\"\n"
+                + "    }\n"
+                + "}\n"
+                + "data_sources: {\n"
+                + "    config {\n"
+                + "        name: \"linux.ftrace\"\n"
+                + "        ftrace_config {\n"
+                + "            ftrace_events: \"sched/sched_switch\"\n"
+                + "        }\n"
+                + "    }\n"
+                + "}\n"
+                + "write_into_file: true\n"
+                + "file_write_period_ms: 1000\n"
+                + "duration_ms: " + durationMs + "\n";
+    }
+
+    private void startPerfetto() throws DeviceNotAvailableException {
+        // The latency dump without a layer only contains the refresh period.
+        String refreshPeriod = executeShellCommand("dumpsys SurfaceFlinger --latency").trim();
+        try {
+            mVSyncPeriod = Long.parseLong(refreshPeriod.split("\n")[0].trim());
+        } catch (NumberFormatException e) {
+            setErrorMessage("Unable to read the refresh period: " + refreshPeriod);
+            throw new RuntimeException(e);
+        }
+
+        mDevice.deleteFile(PERFETTO_TRACE_PATH);
+        if (!pushString(getPerfettoConfig(), PERFETTO_CONFIG_PATH)) {
+            setErrorMessage("Failed to push the Perfetto config.");
+            throw new RuntimeException("Failed to push " + PERFETTO_CONFIG_PATH);
+        }
+        // Perfetto cannot read files in /data/local/tmp on every release, so the config is piped.
+        String output = executeShellCommand(
+                "cat " + PERFETTO_CONFIG_PATH + " | perfetto --background --txt -c - -o "
+                        + PERFETTO_TRACE_PATH).trim();
+        if (!output.matches("\\d+")) {
+            setErrorMessage("Failed to start Perfetto: " + output);
+            throw new RuntimeException("Failed to start Perfetto: " + output);
+        }
+        mPerfettoPid = output;
     }
 
     /**
      * Task periodically & asynchronously run during the test running.
      */
     protected void collect() {
+        if (mUsePerfetto) {
+            // The trace is parsed when the test ends.
+            return;
+        }
         try {
             String[] raw = getRawData();
             processRawData(raw);
@@ -110,7 +224,7 @@ public class GameQualificationFpsCollector extends GameQualificationScheduledMet
     private String[] getRawData() throws DeviceNotAvailableException {
         if (!mAppStarted) {
             String listCmd = "dumpsys SurfaceFlinger --list";
-            String[] layerList = mDevice.executeShellCommand(listCmd).split("\n");
+            String[] layerList = executeShellCommand(listCmd).split("\n");
 
             for (String layer : layerList) {
                 Matcher m = mLayerPattern.matcher(layer);
@@ -124,7 +238,7 @@ public class GameQualificationFpsCollector extends GameQualificationScheduledMet
 
 
         String cmd = "dumpsys SurfaceFlinger --latency \"" + mTestLayer+ "\"";
-        return mDevice.executeShellCommand(cmd).split("\n");
+        return executeShellCommand(cmd).split("\n");
     }
 
     @VisibleForTesting
@@ -144,22 +258,20 @@ public class GameQualificationFpsCollector extends GameQualificationScheduledMet
             setErrorMessage("");
         }
 
-        try (BufferedWriter outputFile = new BufferedWriter(new FileWriter(mRawFile, true))) {
+        try (BufferedWriter outputFile = mRawFile.append()) {
             outputFile.write("Vsync: " + raw[0] + "\n");
-            outputFile.write("Latest Seen: " + mLatestSeen + "\n");
+            outputFile.write("Latest Seen: " + mDeduplicator.getLatestSeen() + "\n");
 
             outputFile.write(String.format("%20s", "Desired Present Time") + "\t");
             outputFile.write(String.format("%20s", "Actual Present Time") + "\t");
             outputFile.write(String.format("%20s", "Frame Ready Time") + "\n");
 
-            boolean overlap = false;
+            mDeduplicator.beginPoll();
             for (int i = 1; i < raw.length; i++) {
                 String[] parts = raw[i].split("\t");
 
                 if (parts.length == 3) {
-                    if (sample(Long.parseLong(parts[2]), Long.parseLong(parts[1]))) {
-                        overlap = true;
-                    }
+                    sample(Long.parseLong(parts[2]), Long.parseLong(parts[1]));
                 }
 
                 outputFile.write(String.format("%20d", Long.parseLong(parts[0])) + "\t");
@@ -167,7 +279,7 @@ public class GameQualificationFpsCollector extends GameQualificationScheduledMet
                 outputFile.write(String.format("%20d", Long.parseLong(parts[2])) + "\n");
             }
 
-            if (!overlap) {
+            if (!mDeduplicator.hasOverlap()) {
                 CLog.e("No overlap with previous poll, we missed some frames!"); // FIND SOMETHING BETTER
             }
 
@@ -178,20 +290,93 @@ public class GameQualificationFpsCollector extends GameQualificationScheduledMet
     }
 
 
-    private boolean sample(long readyTimeStamp, long presentTimeStamp) {
-        if (presentTimeStamp == Long.MAX_VALUE || readyTimeStamp == Long.MAX_VALUE) {
-            return false;
+    /**
+     * Stop the trace and read the frames presented by the test layer and the CPU utilization from
+     * it.
+     */
+    private void stopPerfetto(DeviceMetricData runData) {
+        if (mPerfettoPid == null) {
+            return;
         }
-        else if (presentTimeStamp < mLatestSeen) {
-            return false;
+        File trace = null;
+        try {
+            // Perfetto flushes the buffer to the file when it is terminated.
+            executeShellCommand("kill -TERM " + mPerfettoPid);
+            executeShellCommand("for i in $(seq 100); do kill -0 " + mPerfettoPid
+                    + " 2>/dev/null || break; sleep 0.1; done");
+            mPerfettoPid = null;
+            trace = pullFile(PERFETTO_TRACE_PATH);
+            mDevice.deleteFile(PERFETTO_TRACE_PATH);
+            mDevice.deleteFile(PERFETTO_CONFIG_PATH);
+            if (trace == null) {
+                setErrorMessage("Failed to pull the Perfetto trace.");
+                return;
+            }
+            try (InputStream input = new FileInputStream(trace)) {
+                processTrace(input, runData);
+            }
+            try (InputStreamSource source = new FileInputStreamSource(trace)) {
+                testLog("PERFETTO-" + getApkInfo().getName(), LogDataType.PERFETTO, source);
+            }
+        } catch (DeviceNotAvailableException e) {
+            setErrorMessage("Device not available while stopping Perfetto: " + e.getMessage());
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (trace != null) {
+                trace.delete();
+            }
         }
-        else if (presentTimeStamp == mLatestSeen) {
-            return true;
+    }
+
+    @VisibleForTesting
+    void processTrace(InputStream trace, DeviceMetricData runData) throws IOException {
+        SchedUtilization utilization = new SchedUtilization(getLoopStartTimesNs());
+        new PerfettoTraceParser(getBoottimeOffsetNs()).parse(
+                trace,
+                new PerfettoTraceParser.Listener() {
+                    @Override
+                    public void onFrame(String layerName, long presentTimeNs, long readyTimeNs) {
+                        if (mLayerPattern.matcher(layerName).matches()) {
+                            mElapsedTimes.add(
+                                    new GameQualificationMetric(presentTimeNs, readyTimeNs));
+                        }
+                    }
+
+                    @Override
+                    public void onSchedSwitch(
+                            int cpu, long timestampNs, int prevPid, int nextPid) {
+                        utilization.onSchedSwitch(cpu, timestampNs, prevPid);
+                    }
+                });
+        // Frames end in the order the layers finished rendering, not in the order the display
+        // frames were presented.
+        mElapsedTimes.sort(Comparator.comparingLong(GameQualificationMetric::getActualPresentTime));
+        utilization.addToMetricData(runData, mDevice);
+
+        try (BufferedWriter outputFile = mRawFile.append()) {
+            outputFile.write("Vsync: " + mVSyncPeriod + "\n");
+            outputFile.write(String.format("%20s", "Actual Present Time") + "\t");
+            outputFile.write(String.format("%20s", "Frame Ready Time") + "\n");
+            for (GameQualificationMetric metric : mElapsedTimes) {
+                outputFile.write(String.format("%20d", metric.getActualPresentTime()) + "\t");
+                outputFile.write(String.format("%20d", metric.getFrameReadyTime()) + "\n");
+            }
+        }
+
+        if (!mElapsedTimes.isEmpty()) {
+            setHasError(false);
+            setErrorMessage("");
         }
-        else {
+    }
+
+    private void sample(long readyTimeStamp, long presentTimeStamp) {
+        if (presentTimeStamp == Long.MAX_VALUE || readyTimeStamp == Long.MAX_VALUE) {
+            return;
+        }
+        if (mDeduplicator.add(presentTimeStamp)) {
             mElapsedTimes.add(new GameQualificationMetric(presentTimeStamp, readyTimeStamp));
-            mLatestSeen = presentTimeStamp;
-            return false;
         }
     }
 
@@ -249,13 +434,71 @@ public class GameQualificationFpsCollector extends GameQualificationScheduledMet
         printHistogram(frameTimes, runIndex);
     }
 
+    /**
+     * Summarize the frames of each scene reported by the app.  A scene without SCENE_END lasts
+     * until the end of the run.
+     */
+    private void processScenes(
+            MetricSummary.Builder summary,
+            long lastPresentTime,
+            BufferedWriter outputFile) throws IOException {
+        List<ResultDataProto.Event> events = mDeviceResultData.getEventsList();
+        for (int i = 0; i < events.size(); i++) {
+            ResultDataProto.Event begin = events.get(i);
+            if (begin.getType() != ResultDataProto.Event.Type.SCENE_BEGIN) {
+                continue;
+            }
+            long endTimestamp = lastPresentTime;
+            for (int j = i + 1; j < events.size(); j++) {
+                ResultDataProto.Event end = events.get(j);
+                if (end.getType() == ResultDataProto.Event.Type.SCENE_END
+                        && end.getName().equals(begin.getName())) {
+                    endTimestamp = end.getTimestampNs();
+                    break;
+                }
+            }
+            processSceneSlice(
+                    summary, begin.getName(), begin.getTimestampNs(), endTimestamp, outputFile);
+        }
+    }
+
+    private void processSceneSlice(
+            MetricSummary.Builder summary,
+            String name,
+            long startTimestamp,
+            long endTimestamp,
+            BufferedWriter outputFile) throws IOException {
+        outputFile.write("Scene " + name + " timestamp: " + startTimestamp + " ns\n");
+        summary.beginScene(name);
+        GameQualificationMetric prev = null;
+        for (GameQualificationMetric metric : mElapsedTimes) {
+            if (metric.getActualPresentTime() < startTimestamp) {
+                continue;
+            }
+            if (metric.getActualPresentTime() > endTimestamp) {
+                break;
+            }
+            if (prev != null) {
+                summary.addSceneFrameTime(
+                        PRESENT, metric.getActualPresentTime() - prev.getActualPresentTime());
+                summary.addSceneFrameTime(
+                        READY, metric.getFrameReadyTime() - prev.getFrameReadyTime());
+            }
+            prev = metric;
+        }
+        summary.endScene();
+    }
+
     @Override
     protected void doEnd(DeviceMetricData runData) {
+        if (mUsePerfetto) {
+            stopPerfetto(runData);
+        }
         if (mElapsedTimes.isEmpty()) {
             return;
         }
         try {
-            try(InputStreamSource rawData = new FileInputStreamSource(mRawFile, true)) {
+            try(InputStreamSource rawData = mRawFile.createInputStreamSource()) {
                 testLog("RAW-" + getApkInfo().getName(), LogDataType.TEXT, rawData);
             }
 
@@ -269,42 +512,71 @@ public class GameQualificationFpsCollector extends GameQualificationScheduledMet
                 long startTime = 0L;
                 int runIndex = 0;
 
+                String clockError = checkEventClock(
+                        mElapsedTimes.get(0).getActualPresentTime(),
+                        mElapsedTimes.get(mElapsedTimes.size() - 1).getActualPresentTime());
+                if (clockError != null) {
+                    CLog.e(clockError);
+                    setHasError(true);
+                    setErrorMessage(clockError);
+                }
+
                 // Calculate load time.
                 long appLaunchedTime = 0;
                 for (ResultDataProto.Event e : mDeviceResultData.getEventsList()) {
                     if (e.getType() == ResultDataProto.Event.Type.APP_LAUNCH) {
-                        appLaunchedTime = e.getTimestamp();
+                        appLaunchedTime = e.getTimestampNs();
                         continue;
                     }
                     // Get the first START_LOOP.  Assume START_LOOP is in chronological order
                     // and comes after APP_LAUNCH.
                     if (e.getType() == ResultDataProto.Event.Type.START_LOOP) {
-                        summaryBuilder.setLoadTimeMs(e.getTimestamp() - appLaunchedTime);
+                        summaryBuilder.setLoadTimeMs(
+                                (e.getTimestampNs() - appLaunchedTime) / 1000000);
                         break;
                     }
                 }
+                // A loop lasts until END_LOOP, or until the next START_LOOP if the app does not
+                // report the end of its loops.  Frames between END_LOOP and the next START_LOOP,
+                // e.g. in a menu, are not part of any loop.
+                long lastPresentTime =
+                        mElapsedTimes.get(mElapsedTimes.size() - 1).getActualPresentTime();
+                boolean loopEnded = false;
                 for (ResultDataProto.Event e : mDeviceResultData.getEventsList()) {
-                    if (e.getType() != ResultDataProto.Event.Type.START_LOOP) {
-                        continue;
+                    long endTime = e.getTimestampNs();
+                    switch (e.getType()) {
+                        case START_LOOP:
+                            if (startTime != 0 && !loopEnded) {
+                                processTimestampsSlice(
+                                        summaryBuilder, runIndex++, startTime, endTime, outputFile);
+                            }
+                            startTime = endTime;
+                            loopEnded = false;
+                            break;
+                        case END_LOOP:
+                            if (startTime != 0 && !loopEnded) {
+                                processTimestampsSlice(
+                                        summaryBuilder, runIndex++, startTime, endTime, outputFile);
+                                loopEnded = true;
+                            }
+                            break;
+                        case MARKER:
+                            outputFile.write(String.format("Marker %d timestamp: %d ns\n",
+                                    e.getMarkerId(), e.getTimestampNs()));
+                            break;
+                        default:
+                            break;
                     }
-
-                    long endTime = e.getTimestamp() * 1000000;  /* ms to ns */
-
-                    if (startTime != 0) {
-                        processTimestampsSlice(summaryBuilder, runIndex++, startTime, endTime, outputFile);
-                    }
-                    startTime = endTime;
                 }
 
-                processTimestampsSlice(
-                        summaryBuilder,
-                        runIndex,
-                        startTime,
-                        mElapsedTimes.get(mElapsedTimes.size() - 1).getActualPresentTime(),
-                        outputFile);
+                if (!loopEnded) {
+                    processTimestampsSlice(
+                            summaryBuilder, runIndex, startTime, lastPresentTime, outputFile);
+                }
+                processScenes(summaryBuilder, lastPresentTime, outputFile);
 
-                MetricSummary summary = summaryBuilder.build();
-                summary.addToMetricData(runData);
+                mSummary = summaryBuilder.build();
+                mSummary.addToMetricData(runData, mDevice);
                 outputFile.flush();
                 try(InputStreamSource source = new FileInputStreamSource(tmpFile, true)) {
                     testLog("GameQualification-frametimes-" + getApkInfo().getName(), LogDataType.TEXT, source);
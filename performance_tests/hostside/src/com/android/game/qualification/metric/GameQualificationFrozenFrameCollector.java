@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.metric;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.game.qualification.test.RawScreenshot;
+import com.android.tradefed.config.Option;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.FileInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link com.android.tradefed.device.metric.IMetricCollector} to detect periods of the run
+ * during which the screen did not change, e.g. because the game hung on a frame.
+ *
+ * A raw screenshot is taken at every interval and reduced to a perceptual hash, see
+ * {@link FrameHashSeries}.  If a {@link GameQualificationFpsCollector} runs on the same device,
+ * the frames presented during each frozen period are counted.
+ *
+ * Each screenshot reads back the whole screen on the device, and only the rows read by the hash
+ * are pulled, except for the first screenshot of each test which is pulled whole.
+ */
+public class GameQualificationFrozenFrameCollector
+        extends GameQualificationScheduledMetricCollector {
+    @Option(
+            name = "frozen-min-duration",
+            description = "Shortest time during which the screen must not change to be reported "
+                    + "as frozen.  Screenshots are taken at every --interval, 5s by default.  "
+                    + "Each one captures the whole screen on the device and pulls 64 rows of "
+                    + "pixels, e.g. 270 KB at 1080x1920, and the first one of each test pulls "
+                    + "the whole screenshot, e.g. 8 MB.",
+            isTimeVal = true
+    )
+    private long mMinDurationMs = 10 * 1000L;
+
+    @Option(
+            name = "frozen-max-hash-distance",
+            description = "Number of bits by which the hashes of two screenshots may differ for "
+                    + "them to show the same frame."
+    )
+    private int mMaxHashDistance = 0;
+
+    @Option(
+            name = "frozen-max-luma-difference",
+            description = "Difference between the mean luma, from 0 to 255, of two screenshots "
+                    + "showing the same frame."
+    )
+    private int mMaxLumaDifference = 2;
+
+    @Option(
+            name = "fail-on-frozen",
+            description = "Fail the run if a frozen period is found."
+    )
+    private boolean mFailOnFrozen = false;
+
+    private FrameHashSeries mSeries = new FrameHashSeries();
+    // Reused by every tick so that a screenshot does not allocate a new buffer.
+    private RawScreenshot.Buffer mBuffer = new RawScreenshot.Buffer();
+
+    public GameQualificationFrozenFrameCollector() {
+        mIntervalMs = 5000L;
+    }
+
+    @VisibleForTesting
+    FrameHashSeries getSeries() {
+        return mSeries;
+    }
+
+    @Override
+    protected void doStart(DeviceMetricData runData) {
+        mSeries.clear();
+    }
+
+    @Override
+    protected void collect() {
+        mBuffer.reset();
+        long start = System.nanoTime();
+        CommandResult result;
+        try {
+            result = mDevice.executeShellV2Command(mSeries.getProbeCommand(), mBuffer);
+        } catch (DeviceNotAvailableException e) {
+            setErrorMessage(
+                    "Device not available during frozen frame detection: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+        getOverhead().recordAdbCommand(System.nanoTime() - start, mBuffer.size());
+        if (result.getStatus() != CommandStatus.SUCCESS) {
+            setErrorMessage("Unable to take a screenshot: " + result.getStderr());
+            throw new RuntimeException(result.getStderr());
+        }
+        processRawData(mBuffer.asByteBuffer());
+    }
+
+    @VisibleForTesting
+    void processRawData(ByteBuffer raw) {
+        mSeries.add(raw);
+    }
+
+    @Override
+    protected void doEnd(DeviceMetricData runData) {
+        if (mSeries.size() == 0) {
+            return;
+        }
+        FrozenFrameSummary summary = createSummary();
+        summary.addToMetricData(runData, mDevice);
+        if (summary.getPeriodCount() > 0) {
+            String message = String.format("Screen of %s did not change during %d period(s):\n%s",
+                    getApkInfo().getName(), summary.getPeriodCount(), summary);
+            CLog.w("%s", message);
+            if (mFailOnFrozen) {
+                setHasError(true);
+                setErrorMessage(message);
+            }
+        }
+        try {
+            File tmpFile = File.createTempFile("GameQualification-frozen", ".txt");
+            try (BufferedWriter outputFile = new BufferedWriter(new FileWriter(tmpFile))) {
+                outputFile.write(summary.toString());
+                outputFile.write("\n");
+                mSeries.write(outputFile);
+            }
+            try (InputStreamSource source = new FileInputStreamSource(tmpFile, true)) {
+                testLog(
+                        "GameQualification-frozen-" + getApkInfo().getName(),
+                        LogDataType.TEXT,
+                        source);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @VisibleForTesting
+    FrozenFrameSummary createSummary() {
+        FrozenFrameSummary.Builder builder = new FrozenFrameSummary.Builder(
+                mSeries,
+                getBoottimeOffsetNs(),
+                mMinDurationMs * 1000000,
+                mMaxHashDistance,
+                mMaxLumaDifference);
+
+        GameQualificationFpsCollector fpsCollector =
+                findPeer(GameQualificationFpsCollector.class);
+        if (fpsCollector != null) {
+            List<GameQualificationMetric> frames;
+            synchronized (fpsCollector) {
+                frames = new ArrayList<>(fpsCollector.getElapsedTimes());
+            }
+            for (GameQualificationMetric frame : frames) {
+                builder.addFrame(frame.getActualPresentTime());
+            }
+        }
+        return builder.build();
+    }
+}
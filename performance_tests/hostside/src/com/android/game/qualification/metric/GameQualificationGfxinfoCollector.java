@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link com.android.tradefed.device.metric.IMetricCollector} to collect the duration of each
+ * rendering stage with `dumpsys gfxinfo [package] framestats`.
+ *
+ * Unlike SurfaceFlinger latency, framestats separate the CPU stages from the GPU completion, so
+ * CPU-bound and GPU-bound frames can be told apart.  Only frames rendered through the Android UI
+ * toolkit are reported.  The device keeps the latest 120 frames, so the interval must be short
+ * enough for consecutive polls to overlap.
+ */
+public class GameQualificationGfxinfoCollector extends GameQualificationScheduledMetricCollector {
+    private FrameDeduplicator mDeduplicator = new FrameDeduplicator();
+    private List<FrameStats> mFrames = new ArrayList<>();
+    private RawDataFile mRawFile;
+    private boolean mFirstPoll;
+
+    public GameQualificationGfxinfoCollector() {
+        mIntervalMs = 1000L;
+    }
+
+    @VisibleForTesting
+    List<FrameStats> getFrames() {
+        return mFrames;
+    }
+
+    @Override
+    protected void doStart(DeviceMetricData runData) {
+        Preconditions.checkState(getApkInfo() != null);
+        try {
+            mRawFile = new RawDataFile("GameQualification_RAW_FRAMESTATS");
+        } catch (IOException e) {
+            setErrorMessage("Failed creating file to store raw framestats data.");
+            throw new RuntimeException(e);
+        }
+        mFrames.clear();
+        mDeduplicator.reset();
+        mFirstPoll = true;
+    }
+
+    @Override
+    protected void collect() {
+        try {
+            processRawData(executeShellCommand(
+                    "dumpsys gfxinfo " + getApkInfo().getPackageName() + " framestats"));
+        } catch (DeviceNotAvailableException e) {
+            setErrorMessage(
+                    "Device not available during framestats collection: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    @VisibleForTesting
+    void processRawData(String raw) {
+        List<FrameStats> newFrames = new ArrayList<>();
+        mDeduplicator.beginPoll();
+        FrameStats.parse(raw, frame -> {
+            if (mDeduplicator.add(frame.getVsyncId())) {
+                newFrames.add(frame);
+            }
+        });
+        if (!mFirstPoll && !newFrames.isEmpty() && !mDeduplicator.hasOverlap()) {
+            CLog.w("No overlap with previous framestats poll, some frames were missed.");
+        }
+        if (!newFrames.isEmpty()) {
+            mFirstPoll = false;
+        }
+        mFrames.addAll(newFrames);
+
+        try (BufferedWriter outputFile = mRawFile.append()) {
+            for (FrameStats frame : newFrames) {
+                outputFile.write(Long.toString(frame.getVsyncId()));
+                outputFile.write("\t");
+                outputFile.write(Long.toString(frame.getIntendedVsyncNs()));
+                outputFile.write("\t");
+                outputFile.write(Long.toString(frame.getTotalNs()));
+                for (FrameStats.Stage stage : FrameStats.Stage.values()) {
+                    outputFile.write("\t");
+                    outputFile.write(Long.toString(frame.getStageNs(stage)));
+                }
+                outputFile.write("\n");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    protected void doEnd(DeviceMetricData runData) {
+        if (mFrames.isEmpty()) {
+            mRawFile.delete();
+            return;
+        }
+        try (InputStreamSource rawData = mRawFile.createInputStreamSource()) {
+            testLog("RAW-framestats-" + getApkInfo().getName(), LogDataType.TEXT, rawData);
+        }
+        mRawFile.delete();
+
+        FrameStageSummary summary = createSummary();
+        summary.addToMetricData(runData, mDevice);
+        try (InputStreamSource source = new ByteArrayInputStreamSource(
+                summary.toString().getBytes(StandardCharsets.UTF_8))) {
+            testLog(
+                    "GameQualification-framestats-" + getApkInfo().getName(),
+                    LogDataType.TEXT,
+                    source);
+        }
+    }
+
+    @VisibleForTesting
+    FrameStageSummary createSummary() {
+        FrameStageSummary.Builder builder = new FrameStageSummary.Builder(getLoopStartTimesNs());
+        for (FrameStats frame : mFrames) {
+            builder.addFrame(frame);
+        }
+        return builder.build();
+    }
+}
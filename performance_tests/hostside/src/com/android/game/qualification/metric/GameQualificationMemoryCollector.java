@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.tradefed.config.Option;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link com.android.tradefed.device.metric.IMetricCollector} to collect the memory footprint of
+ * the app under test.
+ *
+ * PSS and RSS are read from /proc/[pid]/smaps_rollup on every tick.  Graphics memory requires
+ * `dumpsys meminfo`, which is much more expensive, so it is only sampled periodically.  If
+ * smaps_rollup is not readable, `dumpsys meminfo` is used on every tick instead.
+ */
+public class GameQualificationMemoryCollector extends GameQualificationScheduledMetricCollector {
+    @Option(
+            name = "graphics-sample-period",
+            description = "Number of ticks between two samples of graphics memory when "
+                    + "/proc/<pid>/smaps_rollup is readable."
+    )
+    private int mGraphicsSamplePeriod = 10;
+
+    private List<MemorySample> mSamples = new ArrayList<>();
+    private boolean mSmapsReadable;
+    private int mTickCount;
+
+    public GameQualificationMemoryCollector() {
+        mIntervalMs = 1000L;
+    }
+
+    @VisibleForTesting
+    List<MemorySample> getSamples() {
+        return mSamples;
+    }
+
+    @Override
+    protected void doStart(DeviceMetricData runData) {
+        mSamples.clear();
+        mSmapsReadable = true;
+        mTickCount = 0;
+    }
+
+    @Override
+    protected void collect() {
+        boolean useMeminfo =
+                !mSmapsReadable || mTickCount % Math.max(1, mGraphicsSamplePeriod) == 0;
+        mTickCount++;
+        try {
+            processRawData(
+                    executeShellCommand(MemorySample.getProbeCommand(
+                            getApkInfo().getPackageName(), mSmapsReadable, useMeminfo)),
+                    useMeminfo);
+        } catch (DeviceNotAvailableException e) {
+            setErrorMessage(
+                    "Device not available during memory data collection: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    @VisibleForTesting
+    void processRawData(String raw, boolean usedMeminfo) {
+        MemorySample sample = MemorySample.parse(raw);
+        if (sample == null) {
+            // App is not running yet.
+            return;
+        }
+        if (mSmapsReadable && !usedMeminfo && sample.getPssKb() == MemorySample.UNKNOWN) {
+            CLog.w("Unable to read /proc/%d/smaps_rollup, falling back to dumpsys meminfo.",
+                    sample.getPid());
+            mSmapsReadable = false;
+            return;
+        }
+        mSamples.add(sample);
+    }
+
+    @Override
+    protected void doEnd(DeviceMetricData runData) {
+        if (mSamples.isEmpty()) {
+            return;
+        }
+        MemorySummary summary = createSummary();
+        summary.addToMetricData(runData, mDevice);
+
+        StringBuilder sb = new StringBuilder(summary.toString());
+        sb.append("\nUptime (ms)\tPid\tPSS (kB)\tRSS (kB)\tGraphics (kB)\n");
+        for (MemorySample sample : mSamples) {
+            sb.append(String.format("%d\t%d\t%d\t%d\t%d\n",
+                    sample.getUptimeNs() / 1000000,
+                    sample.getPid(),
+                    sample.getPssKb(),
+                    sample.getRssKb(),
+                    sample.getGraphicsKb()));
+        }
+        try (InputStreamSource source = new ByteArrayInputStreamSource(
+                sb.toString().getBytes(StandardCharsets.UTF_8))) {
+            testLog("GameQualification-memory-" + getApkInfo().getName(), LogDataType.TEXT, source);
+        }
+    }
+
+    @VisibleForTesting
+    MemorySummary createSummary() {
+        MemorySummary.Builder builder =
+                new MemorySummary.Builder(getLoopStartTimesNs(), getBoottimeOffsetNs());
+        for (MemorySample sample : mSamples) {
+            builder.addSample(sample);
+        }
+        return builder.build();
+    }
+}
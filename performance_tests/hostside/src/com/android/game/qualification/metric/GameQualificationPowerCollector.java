@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.tradefed.config.Option;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link com.android.tradefed.device.metric.IMetricCollector} to collect the power drawn by the
+ * device and the energy used for each loop.
+ *
+ * By default, power is computed from the battery current and voltage, which only reflects the
+ * power drawn by the device when it is not charging.  A power rail reporting microwatts can be
+ * used instead with --power-rail-path.  If a {@link GameQualificationFpsCollector} runs on the
+ * same device, the energy used per frame is also reported.
+ */
+public class GameQualificationPowerCollector extends GameQualificationScheduledMetricCollector {
+    @Option(
+            name = "power-supply-path",
+            description = "Path of the power supply providing current_now in uA and voltage_now "
+                    + "in uV."
+    )
+    private String mPowerSupplyPath = "/sys/class/power_supply/battery";
+
+    @Option(
+            name = "power-rail-path",
+            description = "Path of a file containing the power drawn in uW.  Overrides "
+                    + "--power-supply-path."
+    )
+    private String mPowerRailPath = null;
+
+    private List<PowerSample> mSamples = new ArrayList<>();
+
+    public GameQualificationPowerCollector() {
+        mIntervalMs = 1000L;
+    }
+
+    @VisibleForTesting
+    List<PowerSample> getSamples() {
+        return mSamples;
+    }
+
+    @VisibleForTesting
+    String getProbeCommand() {
+        return mPowerRailPath != null
+                ? PowerSample.getRailProbeCommand(mPowerRailPath)
+                : PowerSample.getBatteryProbeCommand(mPowerSupplyPath);
+    }
+
+    @Override
+    protected void doStart(DeviceMetricData runData) {
+        mSamples.clear();
+    }
+
+    @Override
+    protected void collect() {
+        try {
+            processRawData(executeShellCommand(getProbeCommand()));
+        } catch (DeviceNotAvailableException e) {
+            setErrorMessage(
+                    "Device not available during power data collection: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    @VisibleForTesting
+    void processRawData(String raw) {
+        mSamples.add(mPowerRailPath != null
+                ? PowerSample.parseRail(raw)
+                : PowerSample.parseBattery(raw));
+    }
+
+    @Override
+    protected void doEnd(DeviceMetricData runData) {
+        if (mSamples.isEmpty()) {
+            return;
+        }
+        PowerSummary summary = createSummary();
+        summary.addToMetricData(runData, mDevice);
+
+        StringBuilder sb = new StringBuilder(summary.toString());
+        sb.append("\nUptime (ms)\tPower (W)\n");
+        for (PowerSample sample : mSamples) {
+            sb.append(String.format(
+                    "%d\t%.3f\n", sample.getUptimeNs() / 1000000, sample.getPowerW()));
+        }
+        try (InputStreamSource source = new ByteArrayInputStreamSource(
+                sb.toString().getBytes(StandardCharsets.UTF_8))) {
+            testLog("GameQualification-power-" + getApkInfo().getName(), LogDataType.TEXT, source);
+        }
+    }
+
+    @VisibleForTesting
+    PowerSummary createSummary() {
+        GameQualificationFpsCollector fpsCollector =
+                findPeer(GameQualificationFpsCollector.class);
+        PowerSummary.Builder builder = new PowerSummary.Builder(
+                getLoopStartTimesNs(), getBoottimeOffsetNs(), fpsCollector != null);
+        for (PowerSample sample : mSamples) {
+            builder.addSample(sample);
+        }
+        if (fpsCollector != null) {
+            List<GameQualificationMetric> frames;
+            synchronized (fpsCollector) {
+                frames = new ArrayList<>(fpsCollector.getElapsedTimes());
+            }
+            for (GameQualificationMetric frame : frames) {
+                builder.addFrame(frame.getActualPresentTime());
+            }
+        }
+        return builder.build();
+    }
+}
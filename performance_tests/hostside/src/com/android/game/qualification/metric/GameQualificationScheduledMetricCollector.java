@@ -63,8 +63,16 @@ public abstract class GameQualificationScheduledMetricCollector
                     @Override
                     public void run() {
                         synchronized (GameQualificationScheduledMetricCollector.this) {
+                            // Number of ticks that are overdue because previous ticks took longer
+                            // than the interval.
+                            long lagMs = System.currentTimeMillis() - scheduledExecutionTime();
+                            getOverhead().record(
+                                    CollectorOverhead.Type.QUEUE_DEPTH,
+                                    Math.max(0, lagMs / Math.max(1, mIntervalMs)));
+                            getOverhead().beginTick();
                             try {
                                 collect();
+                                getOverhead().endTick();
                             } catch (Exception e) {
                                 mTimer.cancel();
                                 Thread.currentThread().interrupt();
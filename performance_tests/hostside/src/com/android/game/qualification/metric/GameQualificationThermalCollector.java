@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.tradefed.config.Option;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.result.FileInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link com.android.tradefed.device.metric.IMetricCollector} to collect the temperature of each
+ * thermal zone and the thermal throttling status.
+ *
+ * If a {@link GameQualificationFpsCollector} runs on the same device, janky frames are attributed
+ * to the thermal status of the device at the time they were presented.
+ */
+public class GameQualificationThermalCollector extends GameQualificationScheduledMetricCollector {
+    @Option(
+            name = "throttled-status",
+            description = "Lowest thermal status considered as throttled.  1 is "
+                    + "THERMAL_STATUS_LIGHT and 2 is THERMAL_STATUS_MODERATE."
+    )
+    private int mThrottledStatus = 1;
+
+    private ThermalSeries mSeries = new ThermalSeries();
+    private Map<Integer, String> mZoneTypes = Collections.emptyMap();
+
+    public GameQualificationThermalCollector() {
+        mIntervalMs = 1000L;
+    }
+
+    @VisibleForTesting
+    ThermalSeries getSeries() {
+        return mSeries;
+    }
+
+    @Override
+    protected void doStart(DeviceMetricData runData) {
+        mSeries.clear();
+        try {
+            mZoneTypes = ThermalSeries.parseZoneTypes(
+                    executeShellCommand(ThermalSeries.ZONE_TYPE_COMMAND));
+        } catch (DeviceNotAvailableException e) {
+            setErrorMessage(
+                    "Device not available during thermal data collection: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    protected void collect() {
+        try {
+            processRawData(executeShellCommand(ThermalSeries.PROBE_COMMAND));
+        } catch (DeviceNotAvailableException e) {
+            setErrorMessage(
+                    "Device not available during thermal data collection: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    @VisibleForTesting
+    void processRawData(String raw) {
+        mSeries.add(raw);
+    }
+
+    @Override
+    protected void doEnd(DeviceMetricData runData) {
+        if (mSeries.size() == 0) {
+            return;
+        }
+        ThermalSummary summary = createSummary();
+        summary.addToMetricData(runData, mDevice);
+        try {
+            File tmpFile = File.createTempFile("GameQualification-thermal", ".txt");
+            try (BufferedWriter outputFile = new BufferedWriter(new FileWriter(tmpFile))) {
+                outputFile.write(summary.toString());
+                outputFile.write("\n");
+                mSeries.write(outputFile, mZoneTypes);
+            }
+            try (InputStreamSource source = new FileInputStreamSource(tmpFile, true)) {
+                testLog(
+                        "GameQualification-thermal-" + getApkInfo().getName(),
+                        LogDataType.TEXT,
+                        source);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @VisibleForTesting
+    ThermalSummary createSummary() {
+        ThermalSummary.Builder builder = new ThermalSummary.Builder(
+                mSeries, getLoopStartTimesNs(), getBoottimeOffsetNs(), mThrottledStatus);
+
+        GameQualificationFpsCollector fpsCollector =
+                findPeer(GameQualificationFpsCollector.class);
+        if (fpsCollector != null) {
+            List<GameQualificationMetric> frames;
+            long vSyncPeriod;
+            synchronized (fpsCollector) {
+                frames = new ArrayList<>(fpsCollector.getElapsedTimes());
+                vSyncPeriod = fpsCollector.getVSyncPeriod();
+            }
+            for (int i = 1; i < frames.size(); i++) {
+                long presentTime = frames.get(i).getActualPresentTime();
+                long frameTime = presentTime - frames.get(i - 1).getActualPresentTime();
+                builder.addFrame(
+                        presentTime,
+                        LoopSummary.isJanky(frameTime, vSyncPeriod, mCertificationRequirements));
+            }
+        }
+        return builder.build();
+    }
+}
@@ -2,8 +2,8 @@ package com.android.game.qualification.metric;
 
 import com.android.annotations.Nullable;
 import com.android.game.qualification.CertificationRequirements;
+import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.metric.DeviceMetricData;
-import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.metrics.proto.MetricMeasurement;
 import com.android.tradefed.metrics.proto.MetricMeasurement.DataType;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Directionality;
@@ -13,9 +13,9 @@ import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -34,59 +34,116 @@ public class LoopSummary {
     private double targetPercentile;
 
     public static LoopSummary parseRunMetrics(
-            IInvocationContext context,
             MetricSummary.TimeType type,
             int runIndex,
-            HashMap<String, Metric> runMetrics) {
+            Map<String, Metric> runMetrics) {
+        return parseRunMetrics(type, getLoopPrefix(runIndex), runMetrics);
+    }
+
+    /**
+     * Parse the metrics added with the given key prefix, e.g. the prefix of a scene.
+     *
+     * @see #addToMetricData(DeviceMetricData, ITestDevice, String, MetricSummary.TimeType)
+     */
+    static LoopSummary parseRunMetrics(
+            MetricSummary.TimeType type,
+            String prefix,
+            Map<String, Metric> runMetrics) {
         return new LoopSummary(
-                getMetricLongValue(context, type, runIndex, "frame_count", runMetrics),
-                getMetricLongValue(context, type, runIndex, "duration", runMetrics),
-                getMetricDoubleValue(context, type, runIndex, "jank_rate", runMetrics),
-                getMetricLongValue(context, type, runIndex, "min_frametime", runMetrics),
-                getMetricLongValue(context, type, runIndex, "max_frametime", runMetrics),
-                getMetricDoubleValue(context, type, runIndex, "frametime", runMetrics),
-                getMetricLongValue(context, type, runIndex, "90th_percentile", runMetrics),
-                getMetricLongValue(context, type, runIndex, "95th_percentile", runMetrics),
-                getMetricLongValue(context, type, runIndex, "99th_percentile", runMetrics),
-                getMetricDoubleValue(context, type, runIndex, "target_percentile", runMetrics));
+                getMetricLongValue(type, prefix, "frame_count", runMetrics),
+                getMetricLongValue(type, prefix, "duration", runMetrics),
+                getMetricDoubleValue(type, prefix, "jank_rate", runMetrics),
+                getMetricLongValue(type, prefix, "min_frametime", runMetrics),
+                getMetricLongValue(type, prefix, "max_frametime", runMetrics),
+                getMetricDoubleValue(type, prefix, "frametime", runMetrics),
+                getMetricLongValue(type, prefix, "90th_percentile", runMetrics),
+                getMetricLongValue(type, prefix, "95th_percentile", runMetrics),
+                getMetricLongValue(type, prefix, "99th_percentile", runMetrics),
+                getMetricDoubleValue(type, prefix, "target_percentile", runMetrics));
     }
 
     void addToMetricData(DeviceMetricData runData, int index, MetricSummary.TimeType type) {
-        runData.addMetric(
-                getMetricKey(type, index, "frame_count"),
+        addToMetricData(runData, null, index, type);
+    }
+
+    /**
+     * Add the loop metrics to runData.
+     *
+     * @param device the device the metrics were collected from.  If not null, the metrics are
+     *               added for that device instead of the first device of the invocation.
+     */
+    void addToMetricData(
+            DeviceMetricData runData,
+            @Nullable ITestDevice device,
+            int index,
+            MetricSummary.TimeType type) {
+        addToMetricData(runData, device, getLoopPrefix(index), type);
+    }
+
+    /**
+     * Add the metrics to runData with keys starting with the given prefix instead of the prefix of
+     * a loop.
+     */
+    void addToMetricData(
+            DeviceMetricData runData,
+            @Nullable ITestDevice device,
+            String prefix,
+            MetricSummary.TimeType type) {
+        MetricSummary.addMetric(
+                runData,
+                device,
+                getMetricKey(type, prefix, "frame_count"),
                 Metric.newBuilder()
                         .setType(MetricMeasurement.DataType.PROCESSED)
                         .setMeasurements(
                                 MetricMeasurement.Measurements.newBuilder()
                                         .setSingleInt(getCount())));
-        runData.addMetric(
-                getMetricKey(type, index, "duration"),
+        MetricSummary.addMetric(
+                runData,
+                device,
+                getMetricKey(type, prefix, "duration"),
                 getNsMetric(getDuration()));
-        runData.addMetric(
-                getMetricKey(type, index, "jank_rate"),
+        MetricSummary.addMetric(
+                runData,
+                device,
+                getMetricKey(type, prefix, "jank_rate"),
                 Metric.newBuilder()
                         .setType(DataType.PROCESSED)
                         .setMeasurements(Measurements.newBuilder().setSingleDouble(getJankRate())));
-        runData.addMetric(
-                getMetricKey(type, index, "min_frametime"),
+        MetricSummary.addMetric(
+                runData,
+                device,
+                getMetricKey(type, prefix, "min_frametime"),
                 getNsMetric(getMinFrameTime()));
-        runData.addMetric(
-                getMetricKey(type, index, "max_frametime"),
+        MetricSummary.addMetric(
+                runData,
+                device,
+                getMetricKey(type, prefix, "max_frametime"),
                 getNsMetric(getMaxFrameTime()));
-        runData.addMetric(
-                getMetricKey(type, index, "frametime"),
+        MetricSummary.addMetric(
+                runData,
+                device,
+                getMetricKey(type, prefix, "frametime"),
                 getNsMetric(getAvgFrameTime()));
-        runData.addMetric(
-                getMetricKey(type, index, "90th_percentile"),
+        MetricSummary.addMetric(
+                runData,
+                device,
+                getMetricKey(type, prefix, "90th_percentile"),
                 getNsMetric(get90thPercentile()));
-        runData.addMetric(
-                getMetricKey(type, index, "95th_percentile"),
+        MetricSummary.addMetric(
+                runData,
+                device,
+                getMetricKey(type, prefix, "95th_percentile"),
                 getNsMetric(get95thPercentile()));
-        runData.addMetric(
-                getMetricKey(type, index, "99th_percentile"),
+        MetricSummary.addMetric(
+                runData,
+                device,
+                getMetricKey(type, prefix, "99th_percentile"),
                 getNsMetric(get99thPercentile()));
-        runData.addMetric(
-                getMetricKey(type, index, "target_percentile"),
+        MetricSummary.addMetric(
+                runData,
+                device,
+                getMetricKey(type, prefix, "target_percentile"),
                 Metric.newBuilder()
                         .setType(DataType.PROCESSED)
                         .setMeasurements(
@@ -268,8 +325,7 @@ public class LoopSummary {
         public void addFrameTime(long frameTimeNs) {
             if (mRequirements != null) {
                 long targetFrameTime = msToNs(mRequirements.getFrameTime());
-                long roundedFrameTimeNs =
-                        Math.round(frameTimeNs / (double)mVSyncPeriodNs) * mVSyncPeriodNs;
+                long roundedFrameTimeNs = roundToVSync(frameTimeNs, mVSyncPeriodNs);
                 if (roundedFrameTimeNs > targetFrameTime) {
                     double score = (roundedFrameTimeNs - targetFrameTime) / targetFrameTime;
                     jankScore += score;
@@ -279,19 +335,40 @@ public class LoopSummary {
             frameTimes.add(frameTimeNs);
         }
 
-        private static long msToNs(float value) {
-            return (long) (value * 1e6f);
+    }
+
+    /**
+     * Returns true if a frame misses the target frame time once rounded to a VSYNC period.
+     *
+     * The target is the frame time of the certification requirements, or one VSYNC period if there
+     * are no requirements.
+     */
+    static boolean isJanky(
+            long frameTimeNs,
+            long vSyncPeriodNs,
+            @Nullable CertificationRequirements requirements) {
+        long targetFrameTime =
+                requirements == null ? vSyncPeriodNs : msToNs(requirements.getFrameTime());
+        return roundToVSync(frameTimeNs, vSyncPeriodNs) > targetFrameTime;
+    }
+
+    private static long roundToVSync(long frameTimeNs, long vSyncPeriodNs) {
+        if (vSyncPeriodNs <= 0) {
+            return frameTimeNs;
         }
+        return Math.round(frameTimeNs / (double)vSyncPeriodNs) * vSyncPeriodNs;
+    }
+
+    private static long msToNs(float value) {
+        return (long) (value * 1e6f);
     }
 
     private static double getMetricDoubleValue(
-            IInvocationContext context,
             MetricSummary.TimeType type,
-            int runIndex,
+            String prefix,
             String metric,
-            HashMap<String, Metric> runMetrics) {
-        Metric m = runMetrics.get(
-                getActualMetricKey(context, type, runIndex, metric));
+            Map<String, Metric> runMetrics) {
+        Metric m = runMetrics.get(getMetricKey(type, prefix, metric));
         if (!m.hasMeasurements()) {
             throw new RuntimeException();
         }
@@ -299,13 +376,11 @@ public class LoopSummary {
     }
 
     private static long getMetricLongValue(
-            IInvocationContext context,
             MetricSummary.TimeType type,
-            int runIndex,
+            String prefix,
             String metric,
-            HashMap<String, Metric> runMetrics) {
-        Metric m = runMetrics.get(
-                getActualMetricKey(context, type, runIndex, metric));
+            Map<String, Metric> runMetrics) {
+        Metric m = runMetrics.get(getMetricKey(type, prefix, metric));
         if (!m.hasMeasurements()) {
             throw new RuntimeException();
         }
@@ -328,20 +403,12 @@ public class LoopSummary {
                 .setMeasurements(Measurements.newBuilder().setSingleDouble(value));
     }
 
-    private static String getActualMetricKey(
-            IInvocationContext context, MetricSummary.TimeType type, int loopIndex, String label) {
-        // DeviceMetricData automatically add the deviceName to the metric key if there are more
-        // than one devices.  We don't really want or care about the device in the metric data, but
-        // we need to get the actual key that was added in order to parse it correctly.
-        if (context.getDevices().size() > 1) {
-            String deviceName = context.getDeviceName(context.getDevices().get(0));
-            return String.format("{%s}:%s", deviceName, getMetricKey(type, loopIndex, label));
-        }
-        return getMetricKey(type, loopIndex, label);
+    private static String getLoopPrefix(int loopIndex) {
+        return "run_" + loopIndex;
     }
 
-    private static String getMetricKey(MetricSummary.TimeType type, int loopIndex, String label) {
-        return "run_" + loopIndex + "." + type.name().toLowerCase(Locale.US) + "_" + label;
+    private static String getMetricKey(MetricSummary.TimeType type, String prefix, String label) {
+        return prefix + "." + type.name().toLowerCase(Locale.US) + "_" + label;
     }
 
     private static double nsToMs(long value) {
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import com.android.annotations.Nullable;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A sample of the memory footprint of a process.
+ *
+ * PSS and RSS are read from /proc/[pid]/smaps_rollup, which is cheap.  Graphics memory is only
+ * available from `dumpsys meminfo`, which is also used for PSS and RSS when smaps_rollup is not
+ * readable.
+ */
+class MemorySample {
+    static final long UNKNOWN = -1;
+
+    private static final Pattern PID_PATTERN =
+            Pattern.compile("^(?:pid: |\\*\\* MEMINFO in pid )(\\d+)", Pattern.MULTILINE);
+    private static final Pattern SMAPS_PSS_PATTERN =
+            Pattern.compile("^Pss:\\s+(\\d+) kB", Pattern.MULTILINE);
+    private static final Pattern SMAPS_RSS_PATTERN =
+            Pattern.compile("^Rss:\\s+(\\d+) kB", Pattern.MULTILINE);
+    private static final Pattern MEMINFO_PSS_PATTERN =
+            Pattern.compile("TOTAL(?: PSS)?:\\s+(\\d+)");
+    private static final Pattern MEMINFO_RSS_PATTERN = Pattern.compile("TOTAL RSS:\\s+(\\d+)");
+    private static final Pattern MEMINFO_GRAPHICS_PATTERN =
+            Pattern.compile("^\\s*Graphics:\\s+(\\d+)", Pattern.MULTILINE);
+
+    private final long mUptimeNs;
+    private final int mPid;
+    private final long mPssKb;
+    private final long mRssKb;
+    private final long mGraphicsKb;
+
+    MemorySample(long uptimeNs, int pid, long pssKb, long rssKb, long graphicsKb) {
+        mUptimeNs = uptimeNs;
+        mPid = pid;
+        mPssKb = pssKb;
+        mRssKb = rssKb;
+        mGraphicsKb = graphicsKb;
+    }
+
+    /** Time of the sample in CLOCK_BOOTTIME nanoseconds. */
+    long getUptimeNs() {
+        return mUptimeNs;
+    }
+
+    int getPid() {
+        return mPid;
+    }
+
+    /** Proportional set size in kB, or {@link #UNKNOWN}. */
+    long getPssKb() {
+        return mPssKb;
+    }
+
+    /** Resident set size in kB, or {@link #UNKNOWN}. */
+    long getRssKb() {
+        return mRssKb;
+    }
+
+    /** Graphics memory (GL and EGL mtrack) in kB, or {@link #UNKNOWN}. */
+    long getGraphicsKb() {
+        return mGraphicsKb;
+    }
+
+    /**
+     * Shell command printing /proc/uptime followed by the memory usage of a package.
+     *
+     * @param useSmaps whether to print /proc/[pid]/smaps_rollup.
+     * @param useMeminfo whether to print `dumpsys meminfo`.
+     */
+    static String getProbeCommand(String packageName, boolean useSmaps, boolean useMeminfo) {
+        StringBuilder cmd = new StringBuilder("cat /proc/uptime");
+        if (useSmaps) {
+            cmd.append("; pid=$(pidof -s ").append(packageName).append(")")
+                    .append("; [ -n \"$pid\" ] && echo \"pid: $pid\"")
+                    .append(" && cat /proc/$pid/smaps_rollup 2>/dev/null");
+        }
+        if (useMeminfo) {
+            cmd.append("; dumpsys meminfo ").append(packageName);
+        }
+        return cmd.toString();
+    }
+
+    /**
+     * Parse the output of {@link #getProbeCommand(String, boolean, boolean)}.
+     *
+     * Values read from smaps_rollup take precedence over the ones from `dumpsys meminfo`.
+     *
+     * @return null if the process is not running.
+     * @throws IllegalArgumentException if the output does not start with /proc/uptime.
+     */
+    @Nullable
+    static MemorySample parse(String text) {
+        int firstLineEnd = text.indexOf('\n');
+        String uptime = (firstLineEnd < 0 ? text : text.substring(0, firstLineEnd)).trim();
+        long uptimeNs;
+        try {
+            uptimeNs = Math.round(Double.parseDouble(uptime.split(" ")[0]) * 1e9);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unable to parse /proc/uptime: " + text, e);
+        }
+
+        Matcher m = PID_PATTERN.matcher(text);
+        if (!m.find()) {
+            return null;
+        }
+        int pid = Integer.parseInt(m.group(1));
+
+        long pss = find(SMAPS_PSS_PATTERN, text);
+        if (pss == UNKNOWN) {
+            pss = find(MEMINFO_PSS_PATTERN, text);
+        }
+        long rss = find(SMAPS_RSS_PATTERN, text);
+        if (rss == UNKNOWN) {
+            rss = find(MEMINFO_RSS_PATTERN, text);
+        }
+        long graphics = find(MEMINFO_GRAPHICS_PATTERN, text);
+        return new MemorySample(uptimeNs, pid, pss, rss, graphics);
+    }
+
+    private static long find(Pattern pattern, String text) {
+        Matcher m = pattern.matcher(text);
+        return m.find() ? Long.parseLong(m.group(1)) : UNKNOWN;
+    }
+}
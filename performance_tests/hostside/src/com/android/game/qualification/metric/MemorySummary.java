@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import com.android.annotations.Nullable;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.metrics.proto.MetricMeasurement.DataType;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Directionality;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.ToLongFunction;
+
+/**
+ * Summary of the memory footprint of the app under test for each loop.
+ *
+ * Loops are delimited the same way as in {@link MetricSummary}.  The growth rate is the slope of a
+ * least squares fit over the samples of the loop, so a steady leak shows up as a positive rate
+ * even if the peak stays under the limit during the test.
+ */
+public class MemorySummary {
+    private static final String LOOP_COUNT_KEY = "memory_loop_count";
+
+    /** Memory statistics of a single loop.  Values are {@link MemorySample#UNKNOWN} if unknown. */
+    public static class LoopMemory {
+        private long mPeakPssKb;
+        private long mPeakRssKb;
+        private long mPeakGraphicsKb;
+        private double mPssGrowthKbPerSecond;
+        private double mGraphicsGrowthKbPerSecond;
+
+        LoopMemory(
+                long peakPssKb,
+                long peakRssKb,
+                long peakGraphicsKb,
+                double pssGrowthKbPerSecond,
+                double graphicsGrowthKbPerSecond) {
+            mPeakPssKb = peakPssKb;
+            mPeakRssKb = peakRssKb;
+            mPeakGraphicsKb = peakGraphicsKb;
+            mPssGrowthKbPerSecond = pssGrowthKbPerSecond;
+            mGraphicsGrowthKbPerSecond = graphicsGrowthKbPerSecond;
+        }
+
+        public long getPeakPssKb() {
+            return mPeakPssKb;
+        }
+
+        public long getPeakRssKb() {
+            return mPeakRssKb;
+        }
+
+        public long getPeakGraphicsKb() {
+            return mPeakGraphicsKb;
+        }
+
+        public double getPssGrowthKbPerSecond() {
+            return mPssGrowthKbPerSecond;
+        }
+
+        public double getGraphicsGrowthKbPerSecond() {
+            return mGraphicsGrowthKbPerSecond;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            LoopMemory that = (LoopMemory) o;
+            return mPeakPssKb == that.mPeakPssKb &&
+                    mPeakRssKb == that.mPeakRssKb &&
+                    mPeakGraphicsKb == that.mPeakGraphicsKb &&
+                    Double.compare(that.mPssGrowthKbPerSecond, mPssGrowthKbPerSecond) == 0 &&
+                    Double.compare(that.mGraphicsGrowthKbPerSecond, mGraphicsGrowthKbPerSecond)
+                            == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mPeakPssKb, mPeakRssKb, mPeakGraphicsKb, mPssGrowthKbPerSecond,
+                    mGraphicsGrowthKbPerSecond);
+        }
+
+        public String toString() {
+            return String.format(
+                    "peak PSS: %s\tpeak RSS: %s\tpeak graphics: %s\t"
+                            + "PSS growth: %.1f kB/s\tgraphics growth: %.1f kB/s",
+                    formatKb(mPeakPssKb),
+                    formatKb(mPeakRssKb),
+                    formatKb(mPeakGraphicsKb),
+                    mPssGrowthKbPerSecond,
+                    mGraphicsGrowthKbPerSecond);
+        }
+
+        private static String formatKb(long value) {
+            return value == MemorySample.UNKNOWN ? "-" : value + " kB";
+        }
+    }
+
+    private List<LoopMemory> mLoops;
+
+    private MemorySummary(List<LoopMemory> loops) {
+        mLoops = loops;
+    }
+
+    public int getLoopCount() {
+        return mLoops.size();
+    }
+
+    public LoopMemory getLoop(int index) {
+        return mLoops.get(index);
+    }
+
+    public void addToMetricData(DeviceMetricData runData, @Nullable ITestDevice device) {
+        MetricSummary.addMetric(
+                runData,
+                device,
+                LOOP_COUNT_KEY,
+                Metric.newBuilder()
+                        .setType(DataType.PROCESSED)
+                        .setMeasurements(Measurements.newBuilder().setSingleInt(mLoops.size())));
+        for (int i = 0; i < mLoops.size(); i++) {
+            LoopMemory loop = mLoops.get(i);
+            String prefix = "run_" + i + ".memory_";
+            addKbMetric(runData, device, prefix + "peak_pss", loop.getPeakPssKb());
+            addKbMetric(runData, device, prefix + "peak_rss", loop.getPeakRssKb());
+            addKbMetric(runData, device, prefix + "peak_graphics", loop.getPeakGraphicsKb());
+            MetricSummary.addMetric(
+                    runData,
+                    device,
+                    prefix + "pss_growth_rate",
+                    getGrowthMetric(loop.getPssGrowthKbPerSecond()));
+            MetricSummary.addMetric(
+                    runData,
+                    device,
+                    prefix + "graphics_growth_rate",
+                    getGrowthMetric(loop.getGraphicsGrowthKbPerSecond()));
+        }
+    }
+
+    /**
+     * Parse the metrics produced by {@link #addToMetricData(DeviceMetricData, ITestDevice)}.
+     *
+     * @param metrics metrics with the device prefix removed.
+     * @return null if there are no memory metrics.
+     */
+    @Nullable
+    public static MemorySummary parseRunMetrics(Map<String, Metric> metrics) {
+        Metric loopCount = metrics.get(LOOP_COUNT_KEY);
+        if (loopCount == null) {
+            return null;
+        }
+        List<LoopMemory> loops = new ArrayList<>();
+        for (int i = 0; i < loopCount.getMeasurements().getSingleInt(); i++) {
+            String prefix = "run_" + i + ".memory_";
+            loops.add(new LoopMemory(
+                    getKbValue(metrics, prefix + "peak_pss"),
+                    getKbValue(metrics, prefix + "peak_rss"),
+                    getKbValue(metrics, prefix + "peak_graphics"),
+                    metrics.get(prefix + "pss_growth_rate").getMeasurements().getSingleDouble(),
+                    metrics.get(prefix + "graphics_growth_rate")
+                            .getMeasurements().getSingleDouble()));
+        }
+        return new MemorySummary(loops);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        MemorySummary that = (MemorySummary) o;
+        return Objects.equals(mLoops, that.mLoops);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mLoops);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mLoops.size(); i++) {
+            sb.append(String.format("Loop %d: %s\n", i, mLoops.get(i)));
+        }
+        return sb.toString();
+    }
+
+    private static void addKbMetric(
+            DeviceMetricData runData, @Nullable ITestDevice device, String key, long value) {
+        if (value == MemorySample.UNKNOWN) {
+            return;
+        }
+        MetricSummary.addMetric(
+                runData,
+                device,
+                key,
+                Metric.newBuilder()
+                        .setUnit("kB")
+                        .setDirection(Directionality.DOWN_BETTER)
+                        .setType(DataType.PROCESSED)
+                        .setMeasurements(Measurements.newBuilder().setSingleInt(value)));
+    }
+
+    private static long getKbValue(Map<String, Metric> metrics, String key) {
+        Metric metric = metrics.get(key);
+        return metric == null ? MemorySample.UNKNOWN : metric.getMeasurements().getSingleInt();
+    }
+
+    private static Metric.Builder getGrowthMetric(double value) {
+        return Metric.newBuilder()
+                .setUnit("kB/s")
+                .setDirection(Directionality.DOWN_BETTER)
+                .setType(DataType.PROCESSED)
+                .setMeasurements(Measurements.newBuilder().setSingleDouble(value));
+    }
+
+    /** Builds a {@link MemorySummary} from {@link MemorySample}s. */
+    static class Builder {
+        private final List<Long> mLoopStartNs;
+        private final long mBoottimeOffsetNs;
+        private final List<List<MemorySample>> mLoops = new ArrayList<>();
+
+        /**
+         * @param loopStartNs CLOCK_MONOTONIC time at which each loop starts.  If empty, all samples
+         *                    belong to a single loop.
+         * @param boottimeOffsetNs difference between CLOCK_BOOTTIME and CLOCK_MONOTONIC.
+         */
+        Builder(List<Long> loopStartNs, long boottimeOffsetNs) {
+            mLoopStartNs = loopStartNs.isEmpty() ? Collections.singletonList(0L) : loopStartNs;
+            mBoottimeOffsetNs = boottimeOffsetNs;
+            for (int i = 0; i < mLoopStartNs.size(); i++) {
+                mLoops.add(new ArrayList<>());
+            }
+        }
+
+        void addSample(MemorySample sample) {
+            long timestampNs = sample.getUptimeNs() - mBoottimeOffsetNs;
+            int loop = -1;
+            while (loop + 1 < mLoopStartNs.size() && mLoopStartNs.get(loop + 1) <= timestampNs) {
+                loop++;
+            }
+            if (loop >= 0) {
+                mLoops.get(loop).add(sample);
+            }
+        }
+
+        MemorySummary build() {
+            List<LoopMemory> loops = new ArrayList<>();
+            for (List<MemorySample> samples : mLoops) {
+                loops.add(new LoopMemory(
+                        getPeak(samples, MemorySample::getPssKb),
+                        getPeak(samples, MemorySample::getRssKb),
+                        getPeak(samples, MemorySample::getGraphicsKb),
+                        getGrowthRate(samples, MemorySample::getPssKb),
+                        getGrowthRate(samples, MemorySample::getGraphicsKb)));
+            }
+            return new MemorySummary(loops);
+        }
+
+        private static long getPeak(
+                List<MemorySample> samples, ToLongFunction<MemorySample> value) {
+            long peak = MemorySample.UNKNOWN;
+            for (MemorySample sample : samples) {
+                peak = Math.max(peak, value.applyAsLong(sample));
+            }
+            return peak;
+        }
+
+        // Slope of the least squares fit of the known values, in kB per second.
+        private static double getGrowthRate(
+                List<MemorySample> samples, ToLongFunction<MemorySample> value) {
+            int n = 0;
+            double sumT = 0;
+            double sumV = 0;
+            double sumTT = 0;
+            double sumTV = 0;
+            for (MemorySample sample : samples) {
+                long v = value.applyAsLong(sample);
+                if (v == MemorySample.UNKNOWN) {
+                    continue;
+                }
+                double t = (sample.getUptimeNs() - samples.get(0).getUptimeNs()) / 1e9;
+                n++;
+                sumT += t;
+                sumV += v;
+                sumTT += t * t;
+                sumTV += t * v;
+            }
+            double denominator = n * sumTT - sumT * sumT;
+            if (n < 2 || denominator == 0) {
+                return 0.0;
+            }
+            return (n * sumTV - sumT * sumV) / denominator;
+        }
+    }
+}
@@ -17,6 +17,7 @@ package com.android.game.qualification.metric;
 
 import com.android.annotations.Nullable;
 import com.android.game.qualification.CertificationRequirements;
+import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.metric.DeviceMetricData;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.metrics.proto.MetricMeasurement.DataType;
@@ -45,40 +46,106 @@ public class MetricSummary {
     private int loopCount;
     private long loadTimeMs;
     private Map<TimeType, List<LoopSummary>> summaries;
+    private List<String> sceneNames;
+    private Map<TimeType, List<LoopSummary>> sceneSummaries;
 
     private MetricSummary(
             int loopCount,
             long loadTimeMs,
-            Map<TimeType, List<LoopSummary>> summaries) {
+            Map<TimeType, List<LoopSummary>> summaries,
+            List<String> sceneNames,
+            Map<TimeType, List<LoopSummary>> sceneSummaries) {
         this.loopCount = loopCount;
         this.loadTimeMs = loadTimeMs;
         this.summaries = summaries;
+        this.sceneNames = sceneNames;
+        this.sceneSummaries = sceneSummaries;
     }
 
+    /**
+     * Parse the metrics produced by {@link #addToMetricData(DeviceMetricData)}.
+     *
+     * If the invocation has more than one device, only the metrics of the first device are parsed.
+     */
     @Nullable
     public static MetricSummary parseRunMetrics(
             IInvocationContext context, HashMap<String, Metric> metrics) {
+        String deviceName = null;
+        if (context.getDevices().size() > 1) {
+            deviceName = context.getDeviceName(context.getDevices().get(0));
+        }
+        Map<String, Metric> deviceMetrics = splitByDevice(metrics).get(deviceName);
+        return deviceMetrics == null ? null : parseRunMetrics(deviceMetrics);
+    }
+
+    /**
+     * Parse the metrics of a single device.
+     *
+     * @param metrics metrics with the device prefix removed.  See {@link #splitByDevice(Map)}.
+     */
+    @Nullable
+    public static MetricSummary parseRunMetrics(Map<String, Metric> metrics) {
         int loopCount = 0;
         if (metrics.containsKey("loop_count")) {
             loopCount = (int) metrics.get("loop_count").getMeasurements().getSingleInt();
         }
 
-        if (loopCount == 0) {
+        int sceneCount = 0;
+        if (metrics.containsKey("scene_count")) {
+            sceneCount = (int) metrics.get("scene_count").getMeasurements().getSingleInt();
+        }
+
+        if (loopCount == 0 && sceneCount == 0) {
             return null;
         }
 
         Map<TimeType, List<LoopSummary>> summaries = new LinkedHashMap<>();
+        Map<TimeType, List<LoopSummary>> sceneSummaries = new LinkedHashMap<>();
         for (TimeType type : TimeType.values()) {
             summaries.put(type, new ArrayList<>());
             for (int i = 0; i < loopCount; i++) {
-                LoopSummary loopSummary = LoopSummary.parseRunMetrics(context, type, i, metrics);
+                LoopSummary loopSummary = LoopSummary.parseRunMetrics(type, i, metrics);
                 summaries.get(type).add(loopSummary);
             }
+            sceneSummaries.put(type, new ArrayList<>());
+            for (int i = 0; i < sceneCount; i++) {
+                sceneSummaries.get(type).add(
+                        LoopSummary.parseRunMetrics(type, getScenePrefix(i), metrics));
+            }
+        }
+        List<String> sceneNames = new ArrayList<>();
+        for (int i = 0; i < sceneCount; i++) {
+            sceneNames.add(
+                    metrics.get(getScenePrefix(i) + ".name").getMeasurements().getSingleString());
         }
         return new MetricSummary(
                 loopCount,
                 metrics.get("load_time").getMeasurements().getSingleInt(),
-                summaries);
+                summaries,
+                sceneNames,
+                sceneSummaries);
+    }
+
+    /**
+     * Group metrics by the device they were collected from.
+     *
+     * DeviceMetricData prefixes the metric key with "{deviceName}:" when the invocation has more
+     * than one device.  The prefix is removed from the keys of the returned metrics.  Metrics
+     * without a device prefix are grouped under the null key.
+     */
+    public static Map<String, Map<String, Metric>> splitByDevice(Map<String, Metric> metrics) {
+        Map<String, Map<String, Metric>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            String key = entry.getKey();
+            String deviceName = null;
+            int end = key.indexOf("}:");
+            if (key.startsWith("{") && end > 0) {
+                deviceName = key.substring(1, end);
+                key = key.substring(end + 2);
+            }
+            result.computeIfAbsent(deviceName, k -> new HashMap<>()).put(key, entry.getValue());
+        }
+        return result;
     }
 
     public long getLoadTimeMs() {
@@ -89,13 +156,37 @@ public class MetricSummary {
         return summaries.get(TimeType.PRESENT);
     }
 
+    /** Names of the scenes reported by the app, in the order they began. */
+    public List<String> getSceneNames() {
+        return sceneNames;
+    }
+
+    /** Summaries of the frames of each scene, in the order of {@link #getSceneNames()}. */
+    public List<LoopSummary> getSceneSummaries() {
+        return sceneSummaries.get(TimeType.PRESENT);
+    }
+
     public void addToMetricData(DeviceMetricData runData) {
-        runData.addMetric(
+        addToMetricData(runData, null);
+    }
+
+    /**
+     * Add the metrics to runData.
+     *
+     * @param device the device the metrics were collected from.  If not null, the metrics are
+     *               added for that device instead of the first device of the invocation.
+     */
+    public void addToMetricData(DeviceMetricData runData, @Nullable ITestDevice device) {
+        addMetric(
+                runData,
+                device,
                 "loop_count",
                 Metric.newBuilder()
                         .setType(DataType.PROCESSED)
                         .setMeasurements(Measurements.newBuilder().setSingleInt(loopCount)));
-        runData.addMetric(
+        addMetric(
+                runData,
+                device,
                 "load_time",
                 Metric.newBuilder()
                         .setType(DataType.RAW)
@@ -104,11 +195,53 @@ public class MetricSummary {
         for (int i = 0; i < loopCount; i++) {
             for (TimeType type : TimeType.values()) {
                 LoopSummary summary = summaries.get(type).get(i);
-                summary.addToMetricData(runData, i, type);
+                summary.addToMetricData(runData, device, i, type);
+            }
+        }
+
+        if (sceneNames.isEmpty()) {
+            return;
+        }
+        addMetric(
+                runData,
+                device,
+                "scene_count",
+                Metric.newBuilder()
+                        .setType(DataType.PROCESSED)
+                        .setMeasurements(
+                                Measurements.newBuilder().setSingleInt(sceneNames.size())));
+        for (int i = 0; i < sceneNames.size(); i++) {
+            addMetric(
+                    runData,
+                    device,
+                    getScenePrefix(i) + ".name",
+                    Metric.newBuilder()
+                            .setType(DataType.RAW)
+                            .setMeasurements(
+                                    Measurements.newBuilder().setSingleString(sceneNames.get(i))));
+            for (TimeType type : TimeType.values()) {
+                sceneSummaries.get(type).get(i)
+                        .addToMetricData(runData, device, getScenePrefix(i), type);
             }
         }
     }
 
+    private static String getScenePrefix(int sceneIndex) {
+        return "scene_" + sceneIndex;
+    }
+
+    static void addMetric(
+            DeviceMetricData runData,
+            @Nullable ITestDevice device,
+            String key,
+            Metric.Builder metric) {
+        if (device == null) {
+            runData.addMetric(key, metric);
+        } else {
+            runData.addMetricForDevice(device, key, metric);
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -116,12 +249,14 @@ public class MetricSummary {
         MetricSummary summary = (MetricSummary) o;
         return loopCount == summary.loopCount &&
                 loadTimeMs == summary.loadTimeMs &&
-                Objects.equals(summaries, summary.summaries);
+                Objects.equals(summaries, summary.summaries) &&
+                Objects.equals(sceneNames, summary.sceneNames) &&
+                Objects.equals(sceneSummaries, summary.sceneSummaries);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(loopCount, loadTimeMs, summaries);
+        return Objects.hash(loopCount, loadTimeMs, summaries, sceneNames, sceneSummaries);
     }
 
     public String toString() {
@@ -157,6 +292,20 @@ public class MetricSummary {
                 sb.append("\n");
             }
         }
+        for (int i = 0; i < sceneNames.size(); i++) {
+            if (sceneSummaries.get(TimeType.PRESENT).get(i).getCount() == 0) {
+                continue;
+            }
+            sb.append("Scene ");
+            sb.append(sceneNames.get(i));
+            sb.append('\n');
+            for (TimeType type : TimeType.values()) {
+                sb.append(type);
+                sb.append(" Time Statistics\n");
+                sb.append(sceneSummaries.get(type).get(i));
+                sb.append("\n");
+            }
+        }
         return sb.toString();
     }
 
@@ -171,12 +320,15 @@ public class MetricSummary {
         private int loopCount = 0;
         private long loadTimeMs = -1;
         private Map<TimeType, List<LoopSummary.Builder>> summaries = new LinkedHashMap<>();
+        private List<String> sceneNames = new ArrayList<>();
+        private Map<TimeType, List<LoopSummary.Builder>> sceneSummaries = new LinkedHashMap<>();
 
         public Builder(@Nullable CertificationRequirements requirements, long vSyncPeriodNs) {
             mRequirements = requirements;
             mVSyncPeriodNs = vSyncPeriodNs;
             for (TimeType type : TimeType.values()) {
                 summaries.put(type, new ArrayList<>());
+                sceneSummaries.put(type, new ArrayList<>());
             }
         }
 
@@ -206,16 +358,48 @@ public class MetricSummary {
             // Do nothing.
         }
 
+        /**
+         * Begin the summary of a scene.  Frame times are added to the scene with
+         * {@link #addSceneFrameTime(TimeType, long)}, independently of the loops.
+         */
+        public void beginScene(String name) {
+            sceneNames.add(name);
+            for (TimeType type : TimeType.values()) {
+                sceneSummaries.get(type).add(
+                        new LoopSummary.Builder(mRequirements, mVSyncPeriodNs));
+            }
+        }
+
+        public void addSceneFrameTime(TimeType type, long frameTimeNs) {
+            Preconditions.checkState(!sceneNames.isEmpty(), "First scene has not been started.");
+            List<LoopSummary.Builder> list = sceneSummaries.get(type);
+            list.get(list.size() - 1).addFrameTime(frameTimeNs);
+        }
+
+        public void endScene() {
+            // Do nothing.
+        }
+
         public MetricSummary build() {
+            return new MetricSummary(
+                    loopCount,
+                    loadTimeMs,
+                    buildSummaries(summaries),
+                    sceneNames,
+                    buildSummaries(sceneSummaries));
+        }
+
+        private static Map<TimeType, List<LoopSummary>> buildSummaries(
+                Map<TimeType, List<LoopSummary.Builder>> builders) {
             Map<TimeType, List<LoopSummary>> summaryMap = new HashMap<>();
-            for (Map.Entry<TimeType, List<LoopSummary.Builder>> entry : summaries.entrySet()) {
+            for (Map.Entry<TimeType, List<LoopSummary.Builder>> entry : builders.entrySet()) {
                 summaryMap.put(
                         entry.getKey(),
                         entry.getValue().stream()
                                 .map(LoopSummary.Builder::build)
                                 .collect(Collectors.toList()));
             }
-            return new MetricSummary(loopCount, loadTimeMs, summaryMap);
+            return summaryMap;
         }
     }
 }
@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming parser of the frame timeline and sched_switch events of a Perfetto trace.
+ *
+ * The trace is read one TracePacket at a time into a reused buffer and decoded in place, so memory
+ * usage depends on the largest packet rather than on the length of the trace.  Frames waiting for
+ * their display frame are kept in bounded maps.
+ */
+class PerfettoTraceParser {
+    /** Receives the events of a trace.  All timestamps are CLOCK_MONOTONIC nanoseconds. */
+    interface Listener {
+        /**
+         * Called for each frame presented by a layer.
+         *
+         * @param presentTimeNs time the display frame containing the frame was presented.
+         * @param readyTimeNs time the frame finished rendering.
+         */
+        void onFrame(String layerName, long presentTimeNs, long readyTimeNs);
+
+        /** Called for each sched_switch event. */
+        void onSchedSwitch(int cpu, long timestampNs, int prevPid, int nextPid);
+    }
+
+    // Field numbers from perfetto/protos/perfetto/trace/trace_packet.proto.
+    private static final int TRACE_PACKET = 1;
+    private static final int PACKET_FTRACE_EVENTS = 1;
+    private static final int PACKET_TIMESTAMP = 8;
+    private static final int PACKET_SEQUENCE_ID = 10;
+    private static final int PACKET_TIMESTAMP_CLOCK_ID = 58;
+    private static final int PACKET_DEFAULTS = 59;
+    private static final int PACKET_FRAME_TIMELINE_EVENT = 76;
+    private static final int DEFAULTS_TIMESTAMP_CLOCK_ID = 58;
+
+    // perfetto/protos/perfetto/trace/ftrace/ftrace_event_bundle.proto and ftrace_event.proto.
+    private static final int BUNDLE_CPU = 1;
+    private static final int BUNDLE_EVENT = 2;
+    private static final int EVENT_TIMESTAMP = 1;
+    private static final int EVENT_SCHED_SWITCH = 4;
+    private static final int SCHED_SWITCH_PREV_PID = 2;
+    private static final int SCHED_SWITCH_NEXT_PID = 6;
+
+    // perfetto/protos/perfetto/trace/android/frame_timeline_event.proto.
+    private static final int ACTUAL_DISPLAY_FRAME_START = 2;
+    private static final int ACTUAL_SURFACE_FRAME_START = 4;
+    private static final int FRAME_END = 5;
+    private static final int FRAME_COOKIE = 1;
+    private static final int FRAME_TOKEN = 2;
+    private static final int SURFACE_DISPLAY_FRAME_TOKEN = 3;
+    private static final int SURFACE_LAYER_NAME = 5;
+    private static final int SURFACE_PRESENT_TYPE = 6;
+    private static final int PRESENT_DROPPED = 4;
+
+    private static final int CLOCK_MONOTONIC = 3;
+    private static final int CLOCK_BOOTTIME = 6;
+
+    private static final int MAX_PENDING_FRAMES = 4096;
+    private static final int MAX_PACKET_SIZE = 64 * 1024 * 1024;
+
+    private static class SurfaceFrame {
+        final String mLayerName;
+        final long mDisplayFrameToken;
+
+        SurfaceFrame(String layerName, long displayFrameToken) {
+            mLayerName = layerName;
+            mDisplayFrameToken = displayFrameToken;
+        }
+    }
+
+    private static class ReadyFrame {
+        final String mLayerName;
+        final long mReadyTimeNs;
+
+        ReadyFrame(String layerName, long readyTimeNs) {
+            mLayerName = layerName;
+            mReadyTimeNs = readyTimeNs;
+        }
+    }
+
+    private final long mBoottimeOffsetNs;
+    private byte[] mBuffer = new byte[64 * 1024];
+    private final Map<Integer, Integer> mDefaultClocks = new HashMap<>();
+    // Cookie of started actual display frames to their token.
+    private final Map<Long, Long> mDisplayFrames = boundedMap();
+    // Token of ended display frames to their present time.
+    private final Map<Long, Long> mPresentTimes = boundedMap();
+    // Cookie of started actual surface frames.
+    private final Map<Long, SurfaceFrame> mSurfaceFrames = boundedMap();
+    // Display frame token to the ended surface frames waiting for the display frame to end.
+    private final Map<Long, List<ReadyFrame>> mWaitingFrames = boundedMap();
+
+    /**
+     * @param boottimeOffsetNs difference between CLOCK_BOOTTIME and CLOCK_MONOTONIC, used to
+     *                         convert timestamps of packets using CLOCK_BOOTTIME.
+     */
+    PerfettoTraceParser(long boottimeOffsetNs) {
+        mBoottimeOffsetNs = boottimeOffsetNs;
+    }
+
+    /**
+     * Parse a trace.
+     *
+     * A trace truncated in the middle of a packet, as happens when the device is disconnected, is
+     * parsed up to the last complete packet.
+     */
+    void parse(InputStream input, Listener listener) throws IOException {
+        InputStream in = new BufferedInputStream(input);
+        while (true) {
+            long tag;
+            try {
+                tag = readVarint(in);
+            } catch (EOFException e) {
+                break;
+            }
+            if (tag < 0) {
+                break;
+            }
+            int wireType = (int) (tag & 0x7);
+            if (wireType != ProtoDecoder.WIRE_TYPE_LENGTH_DELIMITED) {
+                throw new IOException("Unexpected wire type in trace: " + wireType);
+            }
+            long length;
+            try {
+                length = readVarint(in);
+            } catch (EOFException e) {
+                CLog.w("Trace is truncated.");
+                break;
+            }
+            if ((tag >>> 3) != TRACE_PACKET || length > MAX_PACKET_SIZE) {
+                ByteStreams.skipFully(in, length);
+                continue;
+            }
+            if (length > mBuffer.length) {
+                mBuffer = new byte[(int) Math.max(length, mBuffer.length * 2L)];
+            }
+            try {
+                ByteStreams.readFully(in, mBuffer, 0, (int) length);
+            } catch (EOFException e) {
+                CLog.w("Trace is truncated.");
+                break;
+            }
+            try {
+                parsePacket(new ProtoDecoder(mBuffer, 0, (int) length), listener);
+            } catch (IllegalArgumentException e) {
+                CLog.w("Skipping malformed trace packet: %s", e.getMessage());
+            }
+        }
+        flushWaitingFrames(listener);
+    }
+
+    private void parsePacket(ProtoDecoder packet, Listener listener) {
+        long timestamp = -1;
+        int clockId = -1;
+        int sequenceId = 0;
+        ProtoDecoder frameTimelineEvent = null;
+        ProtoDecoder ftraceEvents = null;
+        ProtoDecoder defaults = null;
+        while (packet.next()) {
+            switch (packet.getFieldNumber()) {
+                case PACKET_TIMESTAMP:
+                    timestamp = packet.readVarint();
+                    break;
+                case PACKET_TIMESTAMP_CLOCK_ID:
+                    clockId = (int) packet.readVarint();
+                    break;
+                case PACKET_SEQUENCE_ID:
+                    sequenceId = (int) packet.readVarint();
+                    break;
+                case PACKET_FRAME_TIMELINE_EVENT:
+                    frameTimelineEvent = packet.readMessage();
+                    break;
+                case PACKET_FTRACE_EVENTS:
+                    ftraceEvents = packet.readMessage();
+                    break;
+                case PACKET_DEFAULTS:
+                    defaults = packet.readMessage();
+                    break;
+                default:
+                    packet.skip();
+            }
+        }
+        if (defaults != null) {
+            while (defaults.next()) {
+                if (defaults.getFieldNumber() == DEFAULTS_TIMESTAMP_CLOCK_ID) {
+                    mDefaultClocks.put(sequenceId, (int) defaults.readVarint());
+                } else {
+                    defaults.skip();
+                }
+            }
+        }
+        if (clockId < 0) {
+            clockId = mDefaultClocks.getOrDefault(sequenceId, CLOCK_BOOTTIME);
+        }
+        if (frameTimelineEvent != null && timestamp >= 0) {
+            parseFrameTimelineEvent(frameTimelineEvent, toMonotonic(timestamp, clockId), listener);
+        }
+        if (ftraceEvents != null) {
+            parseFtraceEvents(ftraceEvents, listener);
+        }
+    }
+
+    private void parseFrameTimelineEvent(
+            ProtoDecoder event, long timestampNs, Listener listener) {
+        while (event.next()) {
+            switch (event.getFieldNumber()) {
+                case ACTUAL_DISPLAY_FRAME_START:
+                    parseActualDisplayFrameStart(event.readMessage());
+                    break;
+                case ACTUAL_SURFACE_FRAME_START:
+                    parseActualSurfaceFrameStart(event.readMessage());
+                    break;
+                case FRAME_END:
+                    parseFrameEnd(event.readMessage(), timestampNs, listener);
+                    break;
+                default:
+                    event.skip();
+            }
+        }
+    }
+
+    private void parseActualDisplayFrameStart(ProtoDecoder frame) {
+        long cookie = -1;
+        long token = -1;
+        while (frame.next()) {
+            if (frame.getFieldNumber() == FRAME_COOKIE) {
+                cookie = frame.readVarint();
+            } else if (frame.getFieldNumber() == FRAME_TOKEN) {
+                token = frame.readVarint();
+            } else {
+                frame.skip();
+            }
+        }
+        mDisplayFrames.put(cookie, token);
+    }
+
+    private void parseActualSurfaceFrameStart(ProtoDecoder frame) {
+        long cookie = -1;
+        long displayFrameToken = -1;
+        String layerName = "";
+        int presentType = 0;
+        while (frame.next()) {
+            switch (frame.getFieldNumber()) {
+                case FRAME_COOKIE:
+                    cookie = frame.readVarint();
+                    break;
+                case SURFACE_DISPLAY_FRAME_TOKEN:
+                    displayFrameToken = frame.readVarint();
+                    break;
+                case SURFACE_LAYER_NAME:
+                    layerName = frame.readString();
+                    break;
+                case SURFACE_PRESENT_TYPE:
+                    presentType = (int) frame.readVarint();
+                    break;
+                default:
+                    frame.skip();
+            }
+        }
+        if (presentType != PRESENT_DROPPED) {
+            mSurfaceFrames.put(cookie, new SurfaceFrame(layerName, displayFrameToken));
+        }
+    }
+
+    private void parseFrameEnd(ProtoDecoder frame, long timestampNs, Listener listener) {
+        long cookie = -1;
+        while (frame.next()) {
+            if (frame.getFieldNumber() == FRAME_COOKIE) {
+                cookie = frame.readVarint();
+            } else {
+                frame.skip();
+            }
+        }
+
+        Long displayFrameToken = mDisplayFrames.remove(cookie);
+        if (displayFrameToken != null) {
+            mPresentTimes.put(displayFrameToken, timestampNs);
+            List<ReadyFrame> waiting = mWaitingFrames.remove(displayFrameToken);
+            if (waiting != null) {
+                for (ReadyFrame readyFrame : waiting) {
+                    listener.onFrame(readyFrame.mLayerName, timestampNs, readyFrame.mReadyTimeNs);
+                }
+            }
+            return;
+        }
+
+        SurfaceFrame surfaceFrame = mSurfaceFrames.remove(cookie);
+        if (surfaceFrame != null) {
+            Long presentTime = mPresentTimes.get(surfaceFrame.mDisplayFrameToken);
+            if (presentTime != null) {
+                listener.onFrame(surfaceFrame.mLayerName, presentTime, timestampNs);
+            } else {
+                mWaitingFrames
+                        .computeIfAbsent(surfaceFrame.mDisplayFrameToken, k -> new ArrayList<>())
+                        .add(new ReadyFrame(surfaceFrame.mLayerName, timestampNs));
+            }
+        }
+    }
+
+    // Surface frames whose display frame was never seen are reported as presented when they
+    // finished rendering.
+    private void flushWaitingFrames(Listener listener) {
+        for (List<ReadyFrame> waiting : mWaitingFrames.values()) {
+            for (ReadyFrame readyFrame : waiting) {
+                listener.onFrame(
+                        readyFrame.mLayerName, readyFrame.mReadyTimeNs, readyFrame.mReadyTimeNs);
+            }
+        }
+        mWaitingFrames.clear();
+    }
+
+    private void parseFtraceEvents(ProtoDecoder bundle, Listener listener) {
+        int cpu = 0;
+        List<ProtoDecoder> events = new ArrayList<>();
+        while (bundle.next()) {
+            if (bundle.getFieldNumber() == BUNDLE_CPU) {
+                cpu = (int) bundle.readVarint();
+            } else if (bundle.getFieldNumber() == BUNDLE_EVENT) {
+                events.add(bundle.readMessage());
+            } else {
+                bundle.skip();
+            }
+        }
+        for (ProtoDecoder event : events) {
+            long timestamp = -1;
+            ProtoDecoder schedSwitch = null;
+            while (event.next()) {
+                if (event.getFieldNumber() == EVENT_TIMESTAMP) {
+                    timestamp = event.readVarint();
+                } else if (event.getFieldNumber() == EVENT_SCHED_SWITCH) {
+                    schedSwitch = event.readMessage();
+                } else {
+                    event.skip();
+                }
+            }
+            if (schedSwitch == null || timestamp < 0) {
+                continue;
+            }
+            int prevPid = 0;
+            int nextPid = 0;
+            while (schedSwitch.next()) {
+                if (schedSwitch.getFieldNumber() == SCHED_SWITCH_PREV_PID) {
+                    prevPid = (int) schedSwitch.readVarint();
+                } else if (schedSwitch.getFieldNumber() == SCHED_SWITCH_NEXT_PID) {
+                    nextPid = (int) schedSwitch.readVarint();
+                } else {
+                    schedSwitch.skip();
+                }
+            }
+            // Ftrace uses the boot clock on Android.
+            listener.onSchedSwitch(
+                    cpu, toMonotonic(timestamp, CLOCK_BOOTTIME), prevPid, nextPid);
+        }
+    }
+
+    private long toMonotonic(long timestamp, int clockId) {
+        return clockId == CLOCK_MONOTONIC ? timestamp : timestamp - mBoottimeOffsetNs;
+    }
+
+    // Returns -1 at the end of the stream, throws EOFException in the middle of a varint.
+    private static long readVarint(InputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException();
+            }
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint in trace");
+    }
+
+    private static <K, V> Map<K, V> boundedMap() {
+        return new LinkedHashMap<K, V>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > MAX_PENDING_FRAMES;
+            }
+        };
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+/**
+ * A sample of the power drawn by the device.
+ *
+ * Power is either the product of the battery current_now and voltage_now, or read directly from a
+ * power rail reporting microwatts.
+ */
+class PowerSample {
+    private final long mUptimeNs;
+    private final double mPowerW;
+
+    PowerSample(long uptimeNs, double powerW) {
+        mUptimeNs = uptimeNs;
+        mPowerW = powerW;
+    }
+
+    /** Time of the sample in CLOCK_BOOTTIME nanoseconds. */
+    long getUptimeNs() {
+        return mUptimeNs;
+    }
+
+    /** Power drawn in watts. */
+    double getPowerW() {
+        return mPowerW;
+    }
+
+    /**
+     * Shell command printing /proc/uptime followed by the battery current in microamperes and
+     * voltage in microvolts.
+     */
+    static String getBatteryProbeCommand(String powerSupplyPath) {
+        return "cat /proc/uptime " + powerSupplyPath + "/current_now "
+                + powerSupplyPath + "/voltage_now";
+    }
+
+    /** Shell command printing /proc/uptime followed by the power of a rail in microwatts. */
+    static String getRailProbeCommand(String railPath) {
+        return "cat /proc/uptime " + railPath;
+    }
+
+    /**
+     * Parse the output of {@link #getBatteryProbeCommand(String)}.
+     *
+     * The sign of current_now depends on the device, so only its magnitude is used.
+     *
+     * @throws IllegalArgumentException if the output is malformed.
+     */
+    static PowerSample parseBattery(String text) {
+        String[] lines = splitLines(text, 3);
+        long currentUa = parseLong(lines[1], text);
+        long voltageUv = parseLong(lines[2], text);
+        return new PowerSample(
+                parseUptime(lines[0], text), Math.abs(currentUa) * voltageUv * 1e-12);
+    }
+
+    /**
+     * Parse the output of {@link #getRailProbeCommand(String)}.
+     *
+     * @throws IllegalArgumentException if the output is malformed.
+     */
+    static PowerSample parseRail(String text) {
+        String[] lines = splitLines(text, 2);
+        return new PowerSample(parseUptime(lines[0], text), parseLong(lines[1], text) * 1e-6);
+    }
+
+    private static String[] splitLines(String text, int count) {
+        String[] lines = text.trim().split("\n");
+        if (lines.length < count) {
+            throw new IllegalArgumentException("Unable to parse power sample: " + text);
+        }
+        return lines;
+    }
+
+    private static long parseUptime(String line, String text) {
+        try {
+            return Math.round(Double.parseDouble(line.trim().split(" ")[0]) * 1e9);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unable to parse /proc/uptime: " + text, e);
+        }
+    }
+
+    private static long parseLong(String line, String text) {
+        try {
+            return Long.parseLong(line.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unable to parse power sample: " + text, e);
+        }
+    }
+}
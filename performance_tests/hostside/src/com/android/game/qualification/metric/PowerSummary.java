@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import static com.android.game.qualification.metric.BaseGameQualificationMetricCollector.findLoop;
+
+import com.android.annotations.Nullable;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.metrics.proto.MetricMeasurement.DataType;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Directionality;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Summary of the energy used by the device for each loop.
+ *
+ * Loops are delimited the same way as in {@link MetricSummary}.  Energy is integrated with the
+ * trapezoidal rule between consecutive samples, so two devices with the same frame rate can be
+ * ranked by the energy they use per frame.
+ */
+public class PowerSummary {
+    private static final String LOOP_COUNT_KEY = "power_loop_count";
+
+    /** Power statistics of a single loop. */
+    public static class LoopPower {
+        private double mEnergyJ;
+        private double mDurationS;
+        private long mFrameCount;
+
+        LoopPower(double energyJ, double durationS, long frameCount) {
+            mEnergyJ = energyJ;
+            mDurationS = durationS;
+            mFrameCount = frameCount;
+        }
+
+        /** Energy used during the sampled part of the loop in joules. */
+        public double getEnergyJ() {
+            return mEnergyJ;
+        }
+
+        /** Duration of the sampled part of the loop in seconds. */
+        public double getDurationS() {
+            return mDurationS;
+        }
+
+        /** Average power in watts, or NaN if the loop was not sampled. */
+        public double getAveragePowerW() {
+            return mDurationS > 0 ? mEnergyJ / mDurationS : Double.NaN;
+        }
+
+        /** Number of frames presented during the loop, or -1 if unknown. */
+        public long getFrameCount() {
+            return mFrameCount;
+        }
+
+        /** Energy per frame in joules, or NaN if no frame was presented or it is unknown. */
+        public double getEnergyPerFrameJ() {
+            return mFrameCount > 0 ? mEnergyJ / mFrameCount : Double.NaN;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            LoopPower that = (LoopPower) o;
+            return Double.compare(that.mEnergyJ, mEnergyJ) == 0 &&
+                    Double.compare(that.mDurationS, mDurationS) == 0 &&
+                    mFrameCount == that.mFrameCount;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mEnergyJ, mDurationS, mFrameCount);
+        }
+
+        public String toString() {
+            return String.format(
+                    "average power: %.3f W\tenergy: %.3f J\tenergy per frame: %s",
+                    getAveragePowerW(),
+                    mEnergyJ,
+                    mFrameCount > 0 ? String.format("%.2f mJ", getEnergyPerFrameJ() * 1000) : "-");
+        }
+    }
+
+    private List<LoopPower> mLoops;
+
+    private PowerSummary(List<LoopPower> loops) {
+        mLoops = loops;
+    }
+
+    public int getLoopCount() {
+        return mLoops.size();
+    }
+
+    public LoopPower getLoop(int index) {
+        return mLoops.get(index);
+    }
+
+    public void addToMetricData(DeviceMetricData runData, @Nullable ITestDevice device) {
+        MetricSummary.addMetric(
+                runData,
+                device,
+                LOOP_COUNT_KEY,
+                Metric.newBuilder()
+                        .setType(DataType.PROCESSED)
+                        .setMeasurements(Measurements.newBuilder().setSingleInt(mLoops.size())));
+        for (int i = 0; i < mLoops.size(); i++) {
+            LoopPower loop = mLoops.get(i);
+            String prefix = "run_" + i + ".power_";
+            MetricSummary.addMetric(
+                    runData, device, prefix + "energy", getMetric(loop.getEnergyJ(), "J"));
+            MetricSummary.addMetric(
+                    runData, device, prefix + "duration", getMetric(loop.getDurationS(), "s"));
+            if (loop.getDurationS() > 0) {
+                MetricSummary.addMetric(
+                        runData,
+                        device,
+                        prefix + "average",
+                        getMetric(loop.getAveragePowerW(), "W"));
+            }
+            if (loop.getFrameCount() >= 0) {
+                MetricSummary.addMetric(
+                        runData,
+                        device,
+                        prefix + "frame_count",
+                        Metric.newBuilder()
+                                .setType(DataType.PROCESSED)
+                                .setMeasurements(Measurements.newBuilder()
+                                        .setSingleInt(loop.getFrameCount())));
+            }
+            if (loop.getFrameCount() > 0) {
+                MetricSummary.addMetric(
+                        runData,
+                        device,
+                        prefix + "energy_per_frame",
+                        getMetric(loop.getEnergyPerFrameJ(), "J"));
+            }
+        }
+    }
+
+    /**
+     * Parse the metrics produced by {@link #addToMetricData(DeviceMetricData, ITestDevice)}.
+     *
+     * @param metrics metrics with the device prefix removed.
+     * @return null if there are no power metrics.
+     */
+    @Nullable
+    public static PowerSummary parseRunMetrics(Map<String, Metric> metrics) {
+        Metric loopCount = metrics.get(LOOP_COUNT_KEY);
+        if (loopCount == null) {
+            return null;
+        }
+        List<LoopPower> loops = new ArrayList<>();
+        for (int i = 0; i < loopCount.getMeasurements().getSingleInt(); i++) {
+            String prefix = "run_" + i + ".power_";
+            Metric frameCount = metrics.get(prefix + "frame_count");
+            loops.add(new LoopPower(
+                    metrics.get(prefix + "energy").getMeasurements().getSingleDouble(),
+                    metrics.get(prefix + "duration").getMeasurements().getSingleDouble(),
+                    frameCount == null ? -1 : frameCount.getMeasurements().getSingleInt()));
+        }
+        return new PowerSummary(loops);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PowerSummary that = (PowerSummary) o;
+        return Objects.equals(mLoops, that.mLoops);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mLoops);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mLoops.size(); i++) {
+            sb.append(String.format("Loop %d: %s\n", i, mLoops.get(i)));
+        }
+        return sb.toString();
+    }
+
+    private static Metric.Builder getMetric(double value, String unit) {
+        return Metric.newBuilder()
+                .setUnit(unit)
+                .setDirection(Directionality.DOWN_BETTER)
+                .setType(DataType.PROCESSED)
+                .setMeasurements(Measurements.newBuilder().setSingleDouble(value));
+    }
+
+    /** Builds a {@link PowerSummary} from {@link PowerSample}s and presented frames. */
+    static class Builder {
+        private final List<Long> mLoopStartNs;
+        private final long mBoottimeOffsetNs;
+        private final double[] mEnergyJ;
+        private final long[] mDurationNs;
+        private final long[] mFrameCount;
+        private PowerSample mLastSample;
+
+        /**
+         * @param loopStartNs CLOCK_MONOTONIC time at which each loop starts.  If empty, all samples
+         *                    belong to a single loop.
+         * @param boottimeOffsetNs difference between CLOCK_BOOTTIME and CLOCK_MONOTONIC.
+         * @param countFrames whether frames are added with {@link #addFrame(long)}.  Otherwise the
+         *                    frame count of each loop is unknown.
+         */
+        Builder(List<Long> loopStartNs, long boottimeOffsetNs, boolean countFrames) {
+            mLoopStartNs = loopStartNs.isEmpty() ? Collections.singletonList(0L) : loopStartNs;
+            mBoottimeOffsetNs = boottimeOffsetNs;
+            mEnergyJ = new double[mLoopStartNs.size()];
+            mDurationNs = new long[mLoopStartNs.size()];
+            mFrameCount = new long[mLoopStartNs.size()];
+            if (!countFrames) {
+                Arrays.fill(mFrameCount, -1);
+            }
+        }
+
+        /** Add a sample.  Samples must be added in chronological order. */
+        void addSample(PowerSample sample) {
+            PowerSample prev = mLastSample;
+            mLastSample = sample;
+            if (prev == null) {
+                return;
+            }
+            int loop = findLoop(mLoopStartNs, sample.getUptimeNs() - mBoottimeOffsetNs);
+            long durationNs = sample.getUptimeNs() - prev.getUptimeNs();
+            if (loop < 0 || durationNs <= 0) {
+                return;
+            }
+            mEnergyJ[loop] += (prev.getPowerW() + sample.getPowerW()) / 2 * durationNs / 1e9;
+            mDurationNs[loop] += durationNs;
+        }
+
+        /** Add a frame presented at the given CLOCK_MONOTONIC time. */
+        void addFrame(long presentTimeNs) {
+            int loop = findLoop(mLoopStartNs, presentTimeNs);
+            if (loop >= 0 && mFrameCount[loop] >= 0) {
+                mFrameCount[loop]++;
+            }
+        }
+
+        PowerSummary build() {
+            List<LoopPower> loops = new ArrayList<>();
+            for (int i = 0; i < mLoopStartNs.size(); i++) {
+                loops.add(new LoopPower(mEnergyJ[i], mDurationNs[i] / 1e9, mFrameCount[i]));
+            }
+            return new PowerSummary(loops);
+        }
+    }
+}
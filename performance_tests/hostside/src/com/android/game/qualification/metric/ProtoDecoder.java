@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decoder of the protobuf wire format over a region of a byte array.
+ *
+ * Fields are visited in order without building message objects, so nested messages can be
+ * decoded without copying them.
+ */
+class ProtoDecoder {
+    static final int WIRE_TYPE_VARINT = 0;
+    static final int WIRE_TYPE_FIXED64 = 1;
+    static final int WIRE_TYPE_LENGTH_DELIMITED = 2;
+    static final int WIRE_TYPE_FIXED32 = 5;
+
+    private final byte[] mBuffer;
+    private int mPos;
+    private final int mEnd;
+    private int mFieldNumber;
+    private int mWireType;
+
+    ProtoDecoder(byte[] buffer, int offset, int length) {
+        mBuffer = buffer;
+        mPos = offset;
+        mEnd = offset + length;
+    }
+
+    /**
+     * Advance to the next field.  The value of the previous field must have been read or skipped.
+     *
+     * @return false if there are no more fields.
+     */
+    boolean next() {
+        if (mPos >= mEnd) {
+            return false;
+        }
+        long tag = readVarint();
+        mFieldNumber = (int) (tag >>> 3);
+        mWireType = (int) (tag & 0x7);
+        return true;
+    }
+
+    int getFieldNumber() {
+        return mFieldNumber;
+    }
+
+    int getWireType() {
+        return mWireType;
+    }
+
+    long readVarint() {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            checkAvailable(1);
+            byte b = mBuffer[mPos++];
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    long readFixed64() {
+        checkAvailable(8);
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result |= (long) (mBuffer[mPos++] & 0xff) << (8 * i);
+        }
+        return result;
+    }
+
+    int readFixed32() {
+        checkAvailable(4);
+        int result = 0;
+        for (int i = 0; i < 4; i++) {
+            result |= (mBuffer[mPos++] & 0xff) << (8 * i);
+        }
+        return result;
+    }
+
+    /** Return a decoder over the length-delimited value of the current field. */
+    ProtoDecoder readMessage() {
+        int length = (int) readVarint();
+        checkAvailable(length);
+        ProtoDecoder decoder = new ProtoDecoder(mBuffer, mPos, length);
+        mPos += length;
+        return decoder;
+    }
+
+    String readString() {
+        int length = (int) readVarint();
+        checkAvailable(length);
+        String result = new String(mBuffer, mPos, length, StandardCharsets.UTF_8);
+        mPos += length;
+        return result;
+    }
+
+    /** Skip the value of the current field. */
+    void skip() {
+        switch (mWireType) {
+            case WIRE_TYPE_VARINT:
+                readVarint();
+                break;
+            case WIRE_TYPE_FIXED64:
+                checkAvailable(8);
+                mPos += 8;
+                break;
+            case WIRE_TYPE_LENGTH_DELIMITED:
+                int length = (int) readVarint();
+                checkAvailable(length);
+                mPos += length;
+                break;
+            case WIRE_TYPE_FIXED32:
+                checkAvailable(4);
+                mPos += 4;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported wire type " + mWireType);
+        }
+    }
+
+    private void checkAvailable(int length) {
+        if (length < 0 || mPos + length > mEnd) {
+            throw new IllegalArgumentException("Truncated message");
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import com.android.tradefed.result.FileInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Temporary file the raw data of each poll is appended to, so it does not need to be kept in
+ * memory until the end of the test.
+ */
+class RawDataFile {
+    private final File mFile;
+
+    RawDataFile(String prefix) throws IOException {
+        mFile = File.createTempFile(prefix, ".txt");
+    }
+
+    /** Open the file for appending the data of a poll. */
+    BufferedWriter append() throws IOException {
+        return new BufferedWriter(new FileWriter(mFile, true));
+    }
+
+    InputStreamSource createInputStreamSource() {
+        return new FileInputStreamSource(mFile, true);
+    }
+
+    void delete() {
+        mFile.delete();
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import com.android.annotations.Nullable;
+import com.android.tradefed.metrics.proto.MetricMeasurement.DataType;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Directionality;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Statistics of a metric across repeated runs of the same APK.
+ *
+ * Each repeat contributes a single value, computed from the loops of its {@link MetricSummary}
+ * that are checked for certification.  The confidence interval is the 95% Student's t interval of
+ * the mean.
+ */
+public class RepeatSummary {
+    private static final String COUNT_KEY = "repeat_count";
+    private static final String METRIC_KEY = "repeat_metric";
+
+    // Two-sided 95% quantiles of Student's t distribution, indexed by degrees of freedom - 1.
+    private static final double[] T_95 = {
+            12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042 };
+    private static final double Z_95 = 1.960;
+
+    /** Metric used to decide whether the repeats converged. */
+    public enum ConvergenceMetric {
+        AVG_FRAME_TIME("ms"),
+        P99_FRAME_TIME("ms"),
+        JANK_RATE("");
+
+        private final String mUnit;
+
+        ConvergenceMetric(String unit) {
+            mUnit = unit;
+        }
+
+        public String getUnit() {
+            return mUnit;
+        }
+
+        /**
+         * Value of the metric for one run, averaged over the checked loops weighted by their frame
+         * count.
+         *
+         * @return NaN if no frame was presented in the checked loops.
+         */
+        double getValue(MetricSummary summary) {
+            List<LoopSummary> loops = getCheckedLoops(summary.getLoopSummaries());
+            double total = 0;
+            long count = 0;
+            for (LoopSummary loop : loops) {
+                if (loop.getCount() == 0) {
+                    continue;
+                }
+                double value;
+                switch (this) {
+                    case AVG_FRAME_TIME:
+                        value = loop.getAvgFrameTime() / 1e6;
+                        break;
+                    case P99_FRAME_TIME:
+                        value = loop.get99thPercentile() / 1e6;
+                        break;
+                    default:
+                        value = loop.getJankRate();
+                        break;
+                }
+                total += value * loop.getCount();
+                count += loop.getCount();
+            }
+            return count > 0 ? total / count : Double.NaN;
+        }
+    }
+
+    private ConvergenceMetric mMetric;
+    private List<Double> mValues;
+
+    private RepeatSummary(ConvergenceMetric metric, List<Double> values) {
+        mMetric = metric;
+        mValues = values;
+    }
+
+    /**
+     * Loops checked against the certification requirements.  If there are 3 or more loops, the
+     * first and last loop are ignored.  Otherwise, only the first loop is checked.
+     */
+    static List<LoopSummary> getCheckedLoops(List<LoopSummary> loops) {
+        if (loops.isEmpty()) {
+            return loops;
+        }
+        return loops.size() > 2 ? loops.subList(1, loops.size() - 1) : loops.subList(0, 1);
+    }
+
+    public ConvergenceMetric getMetric() {
+        return mMetric;
+    }
+
+    public int getCount() {
+        return mValues.size();
+    }
+
+    public double getValue(int index) {
+        return mValues.get(index);
+    }
+
+    public double getMean() {
+        double sum = 0;
+        for (double value : mValues) {
+            sum += value;
+        }
+        return sum / mValues.size();
+    }
+
+    /** Sample standard deviation of the values, or NaN with less than 2 values. */
+    public double getStandardDeviation() {
+        if (mValues.size() < 2) {
+            return Double.NaN;
+        }
+        double mean = getMean();
+        double sum = 0;
+        for (double value : mValues) {
+            sum += (value - mean) * (value - mean);
+        }
+        return Math.sqrt(sum / (mValues.size() - 1));
+    }
+
+    /** Half-width of the 95% confidence interval of the mean, or NaN with less than 2 values. */
+    public double getConfidenceInterval() {
+        int n = mValues.size();
+        if (n < 2) {
+            return Double.NaN;
+        }
+        double t = n - 1 <= T_95.length ? T_95[n - 2] : Z_95;
+        return t * getStandardDeviation() / Math.sqrt(n);
+    }
+
+    /**
+     * Whether the half-width of the confidence interval is at most the given fraction of the mean.
+     */
+    public boolean isConverged(double relativeThreshold) {
+        double ci = getConfidenceInterval();
+        if (Double.isNaN(ci)) {
+            return false;
+        }
+        double mean = Math.abs(getMean());
+        // A metric that is 0 in every repeat, such as the jank rate of a smooth game, converged.
+        return mean == 0 ? ci == 0 : ci / mean <= relativeThreshold;
+    }
+
+    /** Add the metrics to the metrics of a test. */
+    public void addToMetrics(Map<String, Metric> metrics) {
+        metrics.put(
+                COUNT_KEY,
+                Metric.newBuilder()
+                        .setType(DataType.PROCESSED)
+                        .setMeasurements(Measurements.newBuilder().setSingleInt(mValues.size()))
+                        .build());
+        metrics.put(
+                METRIC_KEY,
+                Metric.newBuilder()
+                        .setType(DataType.RAW)
+                        .setMeasurements(Measurements.newBuilder().setSingleString(mMetric.name()))
+                        .build());
+        for (int i = 0; i < mValues.size(); i++) {
+            metrics.put("repeat_" + i + ".value", getMetric(mValues.get(i)));
+        }
+        metrics.put("repeat_mean", getMetric(getMean()));
+        if (mValues.size() > 1) {
+            metrics.put("repeat_confidence_interval", getMetric(getConfidenceInterval()));
+        }
+    }
+
+    /**
+     * Parse the metrics produced by {@link #addToMetrics(Map)}.
+     *
+     * @param metrics metrics with the device prefix removed.
+     * @return null if there are no repeat metrics.
+     */
+    @Nullable
+    public static RepeatSummary parseRunMetrics(Map<String, Metric> metrics) {
+        Metric count = metrics.get(COUNT_KEY);
+        Metric metric = metrics.get(METRIC_KEY);
+        if (count == null || metric == null) {
+            return null;
+        }
+        List<Double> values = new ArrayList<>();
+        for (int i = 0; i < count.getMeasurements().getSingleInt(); i++) {
+            values.add(metrics.get("repeat_" + i + ".value").getMeasurements().getSingleDouble());
+        }
+        return new RepeatSummary(
+                ConvergenceMetric.valueOf(metric.getMeasurements().getSingleString()), values);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RepeatSummary that = (RepeatSummary) o;
+        return mMetric == that.mMetric &&
+                Objects.equals(mValues, that.mValues);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mMetric, mValues);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        String unit = mMetric.getUnit().isEmpty() ? "" : " " + mMetric.getUnit();
+        sb.append(String.format("%s over %d repeats: %.4f", mMetric, mValues.size(), getMean()));
+        if (mValues.size() > 1) {
+            sb.append(String.format(" ± %.4f", getConfidenceInterval()));
+        }
+        sb.append(unit);
+        sb.append(" (95% confidence)\n");
+        for (int i = 0; i < mValues.size(); i++) {
+            sb.append(String.format("Repeat %d: %.4f%s\n", i, mValues.get(i), unit));
+        }
+        return sb.toString();
+    }
+
+    private Metric getMetric(double value) {
+        return Metric.newBuilder()
+                .setUnit(mMetric.getUnit())
+                .setDirection(Directionality.DOWN_BETTER)
+                .setType(DataType.PROCESSED)
+                .setMeasurements(Measurements.newBuilder().setSingleDouble(value))
+                .build();
+    }
+
+    /** Builds a {@link RepeatSummary} from the {@link MetricSummary} of each repeat. */
+    public static class Builder {
+        private final ConvergenceMetric mMetric;
+        private final List<Double> mValues = new ArrayList<>();
+
+        public Builder(ConvergenceMetric metric) {
+            mMetric = metric;
+        }
+
+        /**
+         * Add the result of a repeat.
+         *
+         * @return false if the metric could not be computed because no frame was presented.
+         */
+        public boolean addRepeat(MetricSummary summary) {
+            double value = mMetric.getValue(summary);
+            if (Double.isNaN(value)) {
+                return false;
+            }
+            mValues.add(value);
+            return true;
+        }
+
+        public RepeatSummary build() {
+            return new RepeatSummary(
+                    mMetric, Collections.unmodifiableList(new ArrayList<>(mValues)));
+        }
+    }
+}
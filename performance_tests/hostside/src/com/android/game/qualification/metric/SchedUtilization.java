@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import static com.android.game.qualification.metric.BaseGameQualificationMetricCollector.findLoop;
+
+import com.android.annotations.Nullable;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.metrics.proto.MetricMeasurement.DataType;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Per-loop CPU utilization computed from sched_switch events.
+ *
+ * The time between two consecutive switches on a CPU is busy unless the idle task was running.
+ * Like the other collectors, an interval is attributed to the loop containing its end.
+ */
+class SchedUtilization {
+    private final List<Long> mLoopStartNs;
+    private final Map<Integer, Long> mLastSwitchNs = new HashMap<>();
+    // For each loop, the busy and total time of each CPU.
+    private final List<SortedMap<Integer, long[]>> mLoops = new ArrayList<>();
+
+    /**
+     * @param loopStartNs CLOCK_MONOTONIC time at which each loop started.  If empty, the whole
+     *                    trace is considered a single loop.
+     */
+    SchedUtilization(List<Long> loopStartNs) {
+        mLoopStartNs = loopStartNs.isEmpty() ? Collections.singletonList(0L) : loopStartNs;
+        for (int i = 0; i < mLoopStartNs.size(); i++) {
+            mLoops.add(new TreeMap<>());
+        }
+    }
+
+    void onSchedSwitch(int cpu, long timestampNs, int prevPid) {
+        Long lastNs = mLastSwitchNs.put(cpu, timestampNs);
+        if (lastNs == null || timestampNs < lastNs) {
+            return;
+        }
+        int loop = findLoop(mLoopStartNs, timestampNs);
+        if (loop < 0) {
+            return;
+        }
+        long[] times = mLoops.get(loop).computeIfAbsent(cpu, k -> new long[2]);
+        if (prevPid != 0) {
+            times[0] += timestampNs - lastNs;
+        }
+        times[1] += timestampNs - lastNs;
+    }
+
+    /** Fraction of the time the CPU was busy during the loop, or NaN if it was not traced. */
+    double getUtilization(int loop, int cpu) {
+        long[] times = mLoops.get(loop).get(cpu);
+        return times == null || times[1] == 0 ? Double.NaN : (double) times[0] / times[1];
+    }
+
+    void addToMetricData(DeviceMetricData runData, @Nullable ITestDevice device) {
+        for (int i = 0; i < mLoops.size(); i++) {
+            for (int cpu : mLoops.get(i).keySet()) {
+                double utilization = getUtilization(i, cpu);
+                if (Double.isNaN(utilization)) {
+                    continue;
+                }
+                MetricSummary.addMetric(
+                        runData,
+                        device,
+                        "run_" + i + ".cpu" + cpu + "_sched_utilization",
+                        Metric.newBuilder()
+                                .setType(DataType.PROCESSED)
+                                .setMeasurements(
+                                        Measurements.newBuilder().setSingleDouble(utilization)));
+            }
+        }
+    }
+}
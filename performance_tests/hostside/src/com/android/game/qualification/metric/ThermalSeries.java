@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Time series of thermal zone temperatures and thermal throttling status.
+ *
+ * Samples are stored in primitive arrays so a long session only costs a few bytes per zone per
+ * sample.
+ */
+class ThermalSeries {
+    /**
+     * Shell command printing /proc/uptime, the temperature of each thermal zone and the
+     * throttling status of the thermal service in a single adb round trip.
+     */
+    static final String PROBE_COMMAND =
+            "cat /proc/uptime; "
+                    + "grep -sH . /sys/class/thermal/thermal_zone*/temp; "
+                    + "dumpsys thermalservice | grep -m 1 'Thermal Status'";
+
+    /** Shell command printing the type of each thermal zone. */
+    static final String ZONE_TYPE_COMMAND = "grep -sH . /sys/class/thermal/thermal_zone*/type";
+
+    /** Status used when the thermal service does not report a throttling status. */
+    static final int STATUS_UNKNOWN = -1;
+
+    /** Temperature used when a thermal zone could not be read. */
+    static final int TEMPERATURE_UNKNOWN = Integer.MIN_VALUE;
+
+    private static final String ZONE_PREFIX = "/sys/class/thermal/thermal_zone";
+    private static final String STATUS_PREFIX = "Thermal Status:";
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int mSize = 0;
+    private int mZoneCount = -1;
+    private long[] mUptimeNs = new long[INITIAL_CAPACITY];
+    private byte[] mStatus = new byte[INITIAL_CAPACITY];
+    private int[] mTemperatures = new int[0];
+
+    void clear() {
+        mSize = 0;
+        mZoneCount = -1;
+        mTemperatures = new int[0];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /** Number of thermal zones, determined by the first sample. */
+    int getZoneCount() {
+        return Math.max(0, mZoneCount);
+    }
+
+    /** Time of the sample in CLOCK_BOOTTIME nanoseconds. */
+    long getUptimeNs(int index) {
+        return mUptimeNs[index];
+    }
+
+    /** Thermal status as defined by android.os.PowerManager, or {@link #STATUS_UNKNOWN}. */
+    int getStatus(int index) {
+        return mStatus[index];
+    }
+
+    /** Temperature in millidegree Celsius, or {@link #TEMPERATURE_UNKNOWN}. */
+    int getTemperature(int index, int zone) {
+        return mTemperatures[index * mZoneCount + zone];
+    }
+
+    /**
+     * Find the last sample taken at or before a timestamp.
+     *
+     * @return the index of the sample, or -1 if all samples were taken after the timestamp.
+     */
+    int findSample(long uptimeNs) {
+        int index = Arrays.binarySearch(mUptimeNs, 0, mSize, uptimeNs);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * Parse and add the output of {@link #PROBE_COMMAND}.
+     *
+     * @throws IllegalArgumentException if the output does not start with /proc/uptime.
+     */
+    void add(String raw) {
+        String[] lines = raw.split("\n");
+        long uptimeNs;
+        try {
+            uptimeNs = Math.round(Double.parseDouble(lines[0].trim().split(" ")[0]) * 1e9);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unable to parse /proc/uptime: " + raw, e);
+        }
+
+        TreeMap<Integer, Integer> temperatures = new TreeMap<>();
+        int status = STATUS_UNKNOWN;
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.startsWith(ZONE_PREFIX)) {
+                int separator = line.indexOf(':');
+                int zone = parseZone(line, separator);
+                if (zone >= 0) {
+                    try {
+                        temperatures.put(
+                                zone, Integer.parseInt(line.substring(separator + 1).trim()));
+                    } catch (NumberFormatException e) {
+                        // Zone is not readable, leave it unknown.
+                    }
+                }
+            } else if (line.startsWith(STATUS_PREFIX)) {
+                try {
+                    status = Integer.parseInt(line.substring(STATUS_PREFIX.length()).trim());
+                } catch (NumberFormatException e) {
+                    // Leave status unknown.
+                }
+            }
+        }
+
+        if (mZoneCount < 0) {
+            mZoneCount = temperatures.isEmpty() ? 0 : temperatures.lastKey() + 1;
+        }
+        ensureCapacity(mSize + 1);
+        mUptimeNs[mSize] = uptimeNs;
+        mStatus[mSize] = (byte) status;
+        for (int zone = 0; zone < mZoneCount; zone++) {
+            Integer temperature = temperatures.get(zone);
+            mTemperatures[mSize * mZoneCount + zone] =
+                    temperature == null ? TEMPERATURE_UNKNOWN : temperature;
+        }
+        mSize++;
+    }
+
+    /**
+     * Write the series as tab-separated values, one sample per line.
+     *
+     * @param zoneTypes type of each thermal zone, used for the header.
+     */
+    void write(Writer writer, Map<Integer, String> zoneTypes) throws IOException {
+        writer.write("Uptime (ms)\tStatus");
+        for (int zone = 0; zone < getZoneCount(); zone++) {
+            writer.write("\t" + zoneTypes.getOrDefault(zone, "thermal_zone" + zone));
+        }
+        writer.write("\n");
+        for (int i = 0; i < mSize; i++) {
+            writer.write(Long.toString(mUptimeNs[i] / 1000000));
+            writer.write("\t");
+            writer.write(Integer.toString(mStatus[i]));
+            for (int zone = 0; zone < mZoneCount; zone++) {
+                int temperature = getTemperature(i, zone);
+                writer.write("\t");
+                writer.write(temperature == TEMPERATURE_UNKNOWN
+                        ? "-"
+                        : String.format("%.1f", temperature / 1000.0));
+            }
+            writer.write("\n");
+        }
+    }
+
+    /** Parse the output of {@link #ZONE_TYPE_COMMAND}. */
+    static Map<Integer, String> parseZoneTypes(String raw) {
+        Map<Integer, String> types = new TreeMap<>();
+        for (String line : raw.split("\n")) {
+            line = line.trim();
+            if (!line.startsWith(ZONE_PREFIX)) {
+                continue;
+            }
+            int separator = line.indexOf(':');
+            int zone = parseZone(line, separator);
+            if (zone >= 0) {
+                types.put(zone, line.substring(separator + 1).trim());
+            }
+        }
+        return types;
+    }
+
+    // Lines have the form "/sys/class/thermal/thermal_zoneN/temp:value".
+    private static int parseZone(String line, int separator) {
+        if (separator < 0) {
+            return -1;
+        }
+        int end = line.indexOf('/', ZONE_PREFIX.length());
+        if (end < 0 || end > separator) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(line.substring(ZONE_PREFIX.length(), end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mUptimeNs.length) {
+            int newCapacity = Math.max(capacity, mUptimeNs.length * 2);
+            mUptimeNs = Arrays.copyOf(mUptimeNs, newCapacity);
+            mStatus = Arrays.copyOf(mStatus, newCapacity);
+        }
+        if (capacity * mZoneCount > mTemperatures.length) {
+            mTemperatures = Arrays.copyOf(mTemperatures, mUptimeNs.length * mZoneCount);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import static com.android.game.qualification.metric.BaseGameQualificationMetricCollector.findLoop;
+
+import com.android.annotations.Nullable;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.metrics.proto.MetricMeasurement.DataType;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Summary of thermal throttling for each loop.
+ *
+ * Loops are delimited the same way as in {@link MetricSummary}.  When frame times are available,
+ * the summary also contains the ratio of janky frames presented while the device was throttled.
+ */
+public class ThermalSummary {
+    private static final String LOOP_COUNT_KEY = "thermal_loop_count";
+
+    /** Thermal statistics of a single loop. */
+    public static class LoopThermal {
+        private double mThrottledTimeRatio;
+        private int mMaxStatus;
+        private double mMaxTemperature;
+        private long mJankyFrameCount;
+        private double mThrottledJankRatio;
+
+        LoopThermal(
+                double throttledTimeRatio,
+                int maxStatus,
+                double maxTemperature,
+                long jankyFrameCount,
+                double throttledJankRatio) {
+            mThrottledTimeRatio = throttledTimeRatio;
+            mMaxStatus = maxStatus;
+            mMaxTemperature = maxTemperature;
+            mJankyFrameCount = jankyFrameCount;
+            mThrottledJankRatio = throttledJankRatio;
+        }
+
+        /** Ratio of time the thermal status was at or above the throttling threshold. */
+        public double getThrottledTimeRatio() {
+            return mThrottledTimeRatio;
+        }
+
+        /** Highest thermal status seen during the loop. */
+        public int getMaxStatus() {
+            return mMaxStatus;
+        }
+
+        /** Highest temperature of all thermal zones in degree Celsius. */
+        public double getMaxTemperature() {
+            return mMaxTemperature;
+        }
+
+        /** Number of janky frames, or -1 if frame times were not collected. */
+        public long getJankyFrameCount() {
+            return mJankyFrameCount;
+        }
+
+        /** Ratio of janky frames presented while the device was throttled. */
+        public double getThrottledJankRatio() {
+            return mThrottledJankRatio;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            LoopThermal that = (LoopThermal) o;
+            return Double.compare(that.mThrottledTimeRatio, mThrottledTimeRatio) == 0 &&
+                    mMaxStatus == that.mMaxStatus &&
+                    Double.compare(that.mMaxTemperature, mMaxTemperature) == 0 &&
+                    mJankyFrameCount == that.mJankyFrameCount &&
+                    Double.compare(that.mThrottledJankRatio, mThrottledJankRatio) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mThrottledTimeRatio, mMaxStatus, mMaxTemperature,
+                    mJankyFrameCount, mThrottledJankRatio);
+        }
+
+        public String toString() {
+            String result = String.format(
+                    "throttled: %5.1f%%\tmax status: %d\tmax temperature: %5.1f C",
+                    mThrottledTimeRatio * 100, mMaxStatus, mMaxTemperature);
+            if (mJankyFrameCount >= 0) {
+                result += String.format("\tjanky frames: %d (%.1f%% while throttled)",
+                        mJankyFrameCount, mThrottledJankRatio * 100);
+            }
+            return result;
+        }
+    }
+
+    private List<LoopThermal> mLoops;
+
+    private ThermalSummary(List<LoopThermal> loops) {
+        mLoops = loops;
+    }
+
+    public int getLoopCount() {
+        return mLoops.size();
+    }
+
+    public LoopThermal getLoop(int index) {
+        return mLoops.get(index);
+    }
+
+    public void addToMetricData(DeviceMetricData runData, @Nullable ITestDevice device) {
+        MetricSummary.addMetric(
+                runData,
+                device,
+                LOOP_COUNT_KEY,
+                Metric.newBuilder()
+                        .setType(DataType.PROCESSED)
+                        .setMeasurements(Measurements.newBuilder().setSingleInt(mLoops.size())));
+        for (int i = 0; i < mLoops.size(); i++) {
+            LoopThermal loop = mLoops.get(i);
+            String prefix = "run_" + i + ".thermal_";
+            MetricSummary.addMetric(
+                    runData,
+                    device,
+                    prefix + "throttled_time_ratio",
+                    getMetric(loop.getThrottledTimeRatio()));
+            MetricSummary.addMetric(
+                    runData, device, prefix + "max_status", getMetric(loop.getMaxStatus()));
+            MetricSummary.addMetric(
+                    runData,
+                    device,
+                    prefix + "max_temperature",
+                    getMetric(loop.getMaxTemperature()).setUnit("C"));
+            if (loop.getJankyFrameCount() >= 0) {
+                MetricSummary.addMetric(
+                        runData,
+                        device,
+                        prefix + "janky_frame_count",
+                        getMetric(loop.getJankyFrameCount()));
+                MetricSummary.addMetric(
+                        runData,
+                        device,
+                        prefix + "throttled_jank_ratio",
+                        getMetric(loop.getThrottledJankRatio()));
+            }
+        }
+    }
+
+    /**
+     * Parse the metrics produced by {@link #addToMetricData(DeviceMetricData, ITestDevice)}.
+     *
+     * @param metrics metrics with the device prefix removed.
+     * @return null if there are no thermal metrics.
+     */
+    @Nullable
+    public static ThermalSummary parseRunMetrics(Map<String, Metric> metrics) {
+        Metric loopCount = metrics.get(LOOP_COUNT_KEY);
+        if (loopCount == null) {
+            return null;
+        }
+        List<LoopThermal> loops = new ArrayList<>();
+        for (int i = 0; i < loopCount.getMeasurements().getSingleInt(); i++) {
+            String prefix = "run_" + i + ".thermal_";
+            Metric jankyFrameCount = metrics.get(prefix + "janky_frame_count");
+            loops.add(new LoopThermal(
+                    metrics.get(prefix + "throttled_time_ratio")
+                            .getMeasurements().getSingleDouble(),
+                    (int) metrics.get(prefix + "max_status").getMeasurements().getSingleInt(),
+                    metrics.get(prefix + "max_temperature").getMeasurements().getSingleDouble(),
+                    jankyFrameCount == null
+                            ? -1 : jankyFrameCount.getMeasurements().getSingleInt(),
+                    jankyFrameCount == null
+                            ? 0.0
+                            : metrics.get(prefix + "throttled_jank_ratio")
+                                    .getMeasurements().getSingleDouble()));
+        }
+        return new ThermalSummary(loops);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ThermalSummary that = (ThermalSummary) o;
+        return Objects.equals(mLoops, that.mLoops);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mLoops);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mLoops.size(); i++) {
+            sb.append(String.format("Loop %d: %s\n", i, mLoops.get(i)));
+        }
+        return sb.toString();
+    }
+
+    private static Metric.Builder getMetric(double value) {
+        return Metric.newBuilder()
+                .setType(DataType.PROCESSED)
+                .setMeasurements(Measurements.newBuilder().setSingleDouble(value));
+    }
+
+    private static Metric.Builder getMetric(long value) {
+        return Metric.newBuilder()
+                .setType(DataType.PROCESSED)
+                .setMeasurements(Measurements.newBuilder().setSingleInt(value));
+    }
+
+    /**
+     * Builds a {@link ThermalSummary} from a {@link ThermalSeries} and the frames presented during
+     * the test.
+     *
+     * The interval between two consecutive samples is attributed to the loop containing the end of
+     * the interval, and the device is considered throttled for the whole interval if it was
+     * throttled at the end of it.  A frame is considered to be presented while throttled if the
+     * last sample taken before the frame was throttled.
+     */
+    static class Builder {
+        private final ThermalSeries mSeries;
+        private final List<Long> mLoopStartNs;
+        private final long mBoottimeOffsetNs;
+        private final int mThrottledStatus;
+        private boolean mHasFrames = false;
+        private final long[] mJankyFrames;
+        private final long[] mThrottledJankyFrames;
+
+        /**
+         * @param loopStartNs CLOCK_MONOTONIC time at which each loop starts.  If empty, all samples
+         *                    belong to a single loop.
+         * @param boottimeOffsetNs difference between CLOCK_BOOTTIME and CLOCK_MONOTONIC.
+         * @param throttledStatus lowest thermal status considered as throttled.
+         */
+        Builder(
+                ThermalSeries series,
+                List<Long> loopStartNs,
+                long boottimeOffsetNs,
+                int throttledStatus) {
+            mSeries = series;
+            mLoopStartNs = loopStartNs.isEmpty() ? Collections.singletonList(0L) : loopStartNs;
+            mBoottimeOffsetNs = boottimeOffsetNs;
+            mThrottledStatus = throttledStatus;
+            mJankyFrames = new long[mLoopStartNs.size()];
+            mThrottledJankyFrames = new long[mLoopStartNs.size()];
+        }
+
+        /**
+         * Add a frame.
+         *
+         * @param presentTimeNs CLOCK_MONOTONIC time at which the frame was presented.
+         * @param janky whether the frame missed its target frame time.
+         */
+        void addFrame(long presentTimeNs, boolean janky) {
+            mHasFrames = true;
+            int loop = findLoop(mLoopStartNs, presentTimeNs);
+            if (loop < 0 || !janky) {
+                return;
+            }
+            mJankyFrames[loop]++;
+            int sample = mSeries.findSample(presentTimeNs + mBoottimeOffsetNs);
+            if (sample < 0 && mSeries.size() > 0) {
+                sample = 0;
+            }
+            if (sample >= 0 && isThrottled(sample)) {
+                mThrottledJankyFrames[loop]++;
+            }
+        }
+
+        ThermalSummary build() {
+            int loopCount = mLoopStartNs.size();
+            long[] durationNs = new long[loopCount];
+            long[] throttledNs = new long[loopCount];
+            int[] maxStatus = new int[loopCount];
+            int[] maxTemperature = new int[loopCount];
+            for (int i = 0; i < loopCount; i++) {
+                maxStatus[i] = ThermalSeries.STATUS_UNKNOWN;
+                maxTemperature[i] = ThermalSeries.TEMPERATURE_UNKNOWN;
+            }
+
+            for (int i = 0; i < mSeries.size(); i++) {
+                int loop = findLoop(mLoopStartNs, mSeries.getUptimeNs(i) - mBoottimeOffsetNs);
+                if (loop < 0) {
+                    continue;
+                }
+                maxStatus[loop] = Math.max(maxStatus[loop], mSeries.getStatus(i));
+                for (int zone = 0; zone < mSeries.getZoneCount(); zone++) {
+                    maxTemperature[loop] =
+                            Math.max(maxTemperature[loop], mSeries.getTemperature(i, zone));
+                }
+                if (i > 0) {
+                    long interval = mSeries.getUptimeNs(i) - mSeries.getUptimeNs(i - 1);
+                    durationNs[loop] += interval;
+                    if (isThrottled(i)) {
+                        throttledNs[loop] += interval;
+                    }
+                }
+            }
+
+            List<LoopThermal> loops = new ArrayList<>();
+            for (int i = 0; i < loopCount; i++) {
+                loops.add(new LoopThermal(
+                        durationNs[i] > 0 ? (double) throttledNs[i] / durationNs[i] : 0.0,
+                        maxStatus[i],
+                        maxTemperature[i] == ThermalSeries.TEMPERATURE_UNKNOWN
+                                ? 0.0 : maxTemperature[i] / 1000.0,
+                        mHasFrames ? mJankyFrames[i] : -1,
+                        mJankyFrames[i] > 0
+                                ? (double) mThrottledJankyFrames[i] / mJankyFrames[i] : 0.0));
+            }
+            return new ThermalSummary(loops);
+        }
+
+        private boolean isThrottled(int sample) {
+            int status = mSeries.getStatus(sample);
+            return status != ThermalSeries.STATUS_UNKNOWN && status >= mThrottledStatus;
+        }
+    }
+}
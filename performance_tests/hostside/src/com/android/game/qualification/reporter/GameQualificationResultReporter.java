@@ -15,14 +15,29 @@
  */
 package com.android.game.qualification.reporter;
 
+import com.android.annotations.Nullable;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.testrunner.TestResult.TestStatus;
 import com.android.game.qualification.CertificationRequirements;
+import com.android.game.qualification.metric.CpuSummary;
+import com.android.game.qualification.metric.FrameStageSummary;
+import com.android.game.qualification.metric.FrozenFrameSummary;
+import com.android.game.qualification.metric.GameQualificationCpuCollector;
 import com.android.game.qualification.metric.GameQualificationFpsCollector;
+import com.android.game.qualification.metric.GameQualificationFrozenFrameCollector;
+import com.android.game.qualification.metric.GameQualificationGfxinfoCollector;
+import com.android.game.qualification.metric.GameQualificationMemoryCollector;
+import com.android.game.qualification.metric.GameQualificationPowerCollector;
+import com.android.game.qualification.metric.GameQualificationThermalCollector;
 import com.android.game.qualification.metric.LoopSummary;
+import com.android.game.qualification.metric.MemorySummary;
 import com.android.game.qualification.metric.MetricSummary;
+import com.android.game.qualification.metric.PowerSummary;
+import com.android.game.qualification.metric.RepeatSummary;
+import com.android.game.qualification.metric.ThermalSummary;
 import com.android.tradefed.config.Option;
+import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 import com.android.tradefed.result.CollectingTestListener;
 import com.android.tradefed.result.ILogSaver;
@@ -35,12 +50,16 @@ import com.android.tradefed.result.TestResult;
 import com.android.tradefed.result.TestRunResult;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Result reporter for game core certification.
@@ -48,40 +67,203 @@ import java.util.concurrent.ConcurrentHashMap;
 public class GameQualificationResultReporter extends CollectingTestListener implements ILogSaverListener {
     private static final String TAG = GameQualificationResultReporter.class.getSimpleName();
 
+    /** Metric of the setUp test with the size of the APK if it did not have to be installed. */
+    public static final String INSTALL_BYTES_SAVED_KEY = "install_bytes_saved";
+
     @Option(name = "suppress-passed-tests", description = "For functional tests, omit summary for "
             + "passing tests, only print failed and ignored ones")
     private boolean mSuppressPassedTest = false;
 
+    @Option(name = "checkpoint-file", description = "File recording the result of each test as "
+            + "soon as it ends, so that the invocation can be resumed with --resume if it dies.")
+    private String mCheckpointFileName;
+
+    @Option(name = "resume", description = "Skip the APKs completed in --checkpoint-file by a "
+            + "previous invocation and merge their results with the results of this invocation.")
+    private boolean mResume = false;
+
     private Map<TestDescription, MetricSummary> summaries = new ConcurrentHashMap<>();
+    private Map<TestDescription, CpuSummary> mCpuSummaries = new ConcurrentHashMap<>();
+    private Map<TestDescription, ThermalSummary> mThermalSummaries = new ConcurrentHashMap<>();
+    private Map<TestDescription, FrozenFrameSummary> mFrozenFrameSummaries =
+            new ConcurrentHashMap<>();
+    private Map<TestDescription, MemorySummary> mMemorySummaries = new ConcurrentHashMap<>();
+    private Map<TestDescription, FrameStageSummary> mFrameStageSummaries =
+            new ConcurrentHashMap<>();
+    private Map<TestDescription, PowerSummary> mPowerSummaries = new ConcurrentHashMap<>();
+    private Map<TestDescription, RepeatSummary> mRepeatSummaries = new ConcurrentHashMap<>();
     private Map<TestDescription, CertificationRequirements> mRequirements = new ConcurrentHashMap<>();
     private List<Throwable> invocationFailures = new ArrayList<>();
     private List<LogFile> mLogFiles = new ArrayList<>();
     private ILogSaver mLogSaver;
     private int mTotalAllocated = 0;
+    private AtomicLong mInstallBytesSaved = new AtomicLong();
+    @Nullable
+    private ResultCheckpoint mCheckpoint;
+    private Set<String> mCompletedApks = Collections.emptySet();
+    private List<String> mResumedLogPaths = new ArrayList<>();
+    // Status and stack trace of the tests that did not end yet.
+    private Map<TestDescription, TestStatus> mPendingStatus = new ConcurrentHashMap<>();
+    private Map<TestDescription, String> mPendingTraces = new ConcurrentHashMap<>();
 
     public void putRequirements(TestDescription testId, CertificationRequirements requirements) {
         mRequirements.put(testId, requirements);
     }
 
+    /**
+     * Whether an APK was completed by a previous invocation and does not need to be run again.
+     *
+     * @param deviceName name of the device, null if the invocation only has one device.
+     */
+    public boolean isCompleted(String apkName, @Nullable String deviceName) {
+        return mCompletedApks.contains(ResultCheckpoint.getApkKey(apkName, deviceName));
+    }
+
+    @Override
+    public void invocationStarted(IInvocationContext context) {
+        super.invocationStarted(context);
+        if (mCheckpointFileName == null) {
+            return;
+        }
+        ResultCheckpoint checkpoint = new ResultCheckpoint(new File(mCheckpointFileName));
+        if (mResume) {
+            resume(checkpoint);
+        } else {
+            checkpoint.clear();
+        }
+        mCheckpoint = checkpoint;
+    }
+
+    /**
+     * Replay the results of the APKs completed in the checkpoint, as if they were run by this
+     * invocation.
+     */
+    private void resume(ResultCheckpoint checkpoint) {
+        List<ResultCheckpoint.Record> records = checkpoint.readCompleted();
+        mCompletedApks = ResultCheckpoint.getCompletedApks(records);
+        Log.logAndDisplay(LogLevel.INFO, TAG, String.format(
+                "Resuming from %s, %d APK runs were completed.",
+                checkpoint.getFile(), mCompletedApks.size()));
+        long time = System.currentTimeMillis();
+        testRunStarted("gamequalification-resumed", 0);
+        for (ResultCheckpoint.Record record : records) {
+            if (record.logPath != null) {
+                mResumedLogPaths.add(record.logPath);
+                continue;
+            }
+            TestDescription testId = record.getTestDescription();
+            testStarted(testId, time);
+            if (TestStatus.FAILURE.name().equals(record.status)) {
+                testFailed(testId, record.trace);
+            } else if (TestStatus.ASSUMPTION_FAILURE.name().equals(record.status)) {
+                testAssumptionFailure(testId, record.trace);
+            }
+            testEnded(testId, time, ResultCheckpoint.getMetrics(record));
+        }
+        testRunEnded(0, new HashMap<String, Metric>());
+    }
+
     @Override
     public void invocationFailed(Throwable cause) {
         super.invocationFailed(cause);
         invocationFailures.add(cause);
     }
+
+    @Override
+    public void testStarted(TestDescription testId, long startTime) {
+        super.testStarted(testId, startTime);
+        mPendingStatus.put(testId, TestStatus.PASSED);
+        mPendingTraces.remove(testId);
+    }
+
+    @Override
+    public void testFailed(TestDescription testId, String trace) {
+        super.testFailed(testId, trace);
+        recordFailure(testId, TestStatus.FAILURE, trace);
+    }
+
+    @Override
+    public void testAssumptionFailure(TestDescription testId, String trace) {
+        super.testAssumptionFailure(testId, trace);
+        recordFailure(testId, TestStatus.ASSUMPTION_FAILURE, trace);
+    }
+
+    private void recordFailure(TestDescription testId, TestStatus status, String trace) {
+        if (mPendingStatus.containsKey(testId)) {
+            mPendingStatus.put(testId, status);
+            if (trace != null) {
+                mPendingTraces.put(testId, trace);
+            }
+        } else if (mCheckpoint != null) {
+            // The controller reports collector errors after the test ended.
+            mCheckpoint.appendTest(testId, status, trace, Collections.emptyMap());
+        }
+    }
     /**
      * Collect metrics produces by
-     * {@link GameQualificationFpsCollector}.
+     * {@link GameQualificationFpsCollector}, {@link GameQualificationCpuCollector},
+     * {@link GameQualificationThermalCollector}, {@link GameQualificationFrozenFrameCollector},
+     * {@link GameQualificationMemoryCollector}, {@link GameQualificationGfxinfoCollector} and
+     * {@link GameQualificationPowerCollector}, and the statistics of repeated runs reported by the
+     * controller.
+     *
+     * When the invocation has more than one device, the metrics of each device are parsed
+     * separately.  A test is only expected to contain metrics from one device.
      */
     @Override
     public void testEnded(TestDescription testId, long elapsedTime, HashMap<String, Metric> metrics) {
         super.testEnded(testId, elapsedTime, metrics);
         if (!metrics.isEmpty()) {
-                MetricSummary summary = MetricSummary.parseRunMetrics(getInvocationContext(), metrics);
+            for (Map<String, Metric> deviceMetrics
+                    : MetricSummary.splitByDevice(metrics).values()) {
+                CpuSummary cpuSummary = CpuSummary.parseRunMetrics(deviceMetrics);
+                if (cpuSummary != null) {
+                    mCpuSummaries.put(testId, cpuSummary);
+                }
+                ThermalSummary thermalSummary = ThermalSummary.parseRunMetrics(deviceMetrics);
+                if (thermalSummary != null) {
+                    mThermalSummaries.put(testId, thermalSummary);
+                }
+                FrozenFrameSummary frozenFrameSummary =
+                        FrozenFrameSummary.parseRunMetrics(deviceMetrics);
+                if (frozenFrameSummary != null) {
+                    mFrozenFrameSummaries.put(testId, frozenFrameSummary);
+                }
+                MemorySummary memorySummary = MemorySummary.parseRunMetrics(deviceMetrics);
+                if (memorySummary != null) {
+                    mMemorySummaries.put(testId, memorySummary);
+                }
+                FrameStageSummary frameStageSummary =
+                        FrameStageSummary.parseRunMetrics(deviceMetrics);
+                if (frameStageSummary != null) {
+                    mFrameStageSummaries.put(testId, frameStageSummary);
+                }
+                PowerSummary powerSummary = PowerSummary.parseRunMetrics(deviceMetrics);
+                if (powerSummary != null) {
+                    mPowerSummaries.put(testId, powerSummary);
+                }
+                RepeatSummary repeatSummary = RepeatSummary.parseRunMetrics(deviceMetrics);
+                if (repeatSummary != null) {
+                    mRepeatSummaries.put(testId, repeatSummary);
+                }
+                MetricSummary summary = MetricSummary.parseRunMetrics(deviceMetrics);
                 if (summary != null) {
                     summaries.put(testId, summary);
-                } else if (metrics.containsKey("memory_allocated")) {
-                    mTotalAllocated = (int) metrics.get("memory_allocated").getMeasurements().getSingleInt();
+                } else if (deviceMetrics.containsKey(INSTALL_BYTES_SAVED_KEY)) {
+                    mInstallBytesSaved.addAndGet(deviceMetrics.get(INSTALL_BYTES_SAVED_KEY)
+                            .getMeasurements().getSingleInt());
+                } else if (deviceMetrics.containsKey("memory_allocated")) {
+                    mTotalAllocated =
+                            (int) deviceMetrics.get("memory_allocated")
+                                    .getMeasurements().getSingleInt();
                 }
+            }
+        }
+        TestStatus status = mPendingStatus.remove(testId);
+        String trace = mPendingTraces.remove(testId);
+        if (mCheckpoint != null) {
+            mCheckpoint.appendTest(
+                    testId, status != null ? status : TestStatus.PASSED, trace, metrics);
         }
     }
 
@@ -93,6 +275,9 @@ public class GameQualificationResultReporter extends CollectingTestListener impl
             LogFile logFile) {
         super.testLogSaved(dataName, dataType, dataStream, logFile);
         mLogFiles.add(logFile);
+        if (mCheckpoint != null) {
+            mCheckpoint.appendLog(logFile.getUrl() != null ? logFile.getUrl() : logFile.getPath());
+        }
     }
 
     /**
@@ -124,14 +309,19 @@ public class GameQualificationResultReporter extends CollectingTestListener impl
      * Get the invocation summary as a string.
      */
     private String getInvocationSummary() {
-        if (getMergedTestRunResults().isEmpty() && mLogFiles.isEmpty()) {
+        if (getMergedTestRunResults().isEmpty()
+                && mLogFiles.isEmpty()
+                && mResumedLogPaths.isEmpty()) {
             return "No test results\n";
         }
         StringBuilder sb = new StringBuilder();
 
         // Print location of log files.
-        if (!mLogFiles.isEmpty()) {
+        if (!mLogFiles.isEmpty() || !mResumedLogPaths.isEmpty()) {
             sb.append("Log Files:\n");
+            for (String path : mResumedLogPaths) {
+                sb.append(String.format("  %s\n", path));
+            }
             for (LogFile logFile : mLogFiles) {
                 final String url = logFile.getUrl();
                 sb.append(String.format("  %s\n", url != null ? url : logFile.getPath()));
@@ -160,12 +350,41 @@ public class GameQualificationResultReporter extends CollectingTestListener impl
         for (Map.Entry<TestDescription, MetricSummary> entry : summaries.entrySet()) {
             sb.append(String.format("\n%s Metrics:\n%s\n", entry.getKey(), entry.getValue()));
         }
+        for (Map.Entry<TestDescription, CpuSummary> entry : mCpuSummaries.entrySet()) {
+            sb.append(String.format("\n%s CPU:\n%s\n", entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<TestDescription, ThermalSummary> entry : mThermalSummaries.entrySet()) {
+            sb.append(String.format("\n%s Thermal:\n%s\n", entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<TestDescription, FrozenFrameSummary> entry
+                : mFrozenFrameSummaries.entrySet()) {
+            sb.append(String.format(
+                    "\n%s Frozen Frames:\n%s\n", entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<TestDescription, MemorySummary> entry : mMemorySummaries.entrySet()) {
+            sb.append(String.format("\n%s Memory:\n%s\n", entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<TestDescription, FrameStageSummary> entry
+                : mFrameStageSummaries.entrySet()) {
+            sb.append(String.format(
+                    "\n%s Frame Stages:\n%s\n", entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<TestDescription, PowerSummary> entry : mPowerSummaries.entrySet()) {
+            sb.append(String.format("\n%s Power:\n%s\n", entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<TestDescription, RepeatSummary> entry : mRepeatSummaries.entrySet()) {
+            sb.append(String.format("\n%s Repeats:\n%s\n", entry.getKey(), entry.getValue()));
+        }
 
         // Print memory allocation metrics
         sb.append("Total Memory Allocated During Allocation Stress Test: ");
         sb.append(mTotalAllocated);
         sb.append("\n\n");
 
+        // Print bytes that did not have to be pushed because the APK was already installed.
+        sb.append(String.format(
+                "APK Install Bytes Saved: %.1f MB\n\n", mInstallBytesSaved.get() / 1e6));
+
         // Determine certification level.
         sb.append("Certification:\n");
 
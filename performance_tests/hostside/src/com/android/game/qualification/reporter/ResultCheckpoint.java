@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.reporter;
+
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.ddmlib.testrunner.TestResult.TestStatus;
+import com.android.game.qualification.test.PerformanceTest;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.metrics.proto.MetricMeasurement.DataType;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Directionality;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.TestDescription;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only record of the test results of an invocation, so that an invocation that died can be
+ * resumed without running the completed APKs again.
+ *
+ * Each line of the file is a JSON object recording either the result of a test with its metrics,
+ * or a log file saved by the invocation.  Every record is synced to disk when it is written.  A
+ * line truncated by a crash is ignored when the file is read.
+ *
+ * An APK is completed on a device once its tearDown test is recorded.  Only the records of
+ * completed APKs are used when resuming, the other APKs are run again.
+ */
+public class ResultCheckpoint {
+    /** A metric of a test. */
+    static class MetricRecord {
+        String unit;
+        String type;
+        String direction;
+        Long intValue;
+        Double doubleValue;
+        String stringValue;
+    }
+
+    /** A line of the checkpoint. */
+    static class Record {
+        // Set for test results.
+        String className;
+        String testName;
+        String status;
+        String trace;
+        Map<String, MetricRecord> metrics;
+        // Set for log files.
+        String logPath;
+
+        TestDescription getTestDescription() {
+            return new TestDescription(className, testName);
+        }
+    }
+
+    private final File mFile;
+    private final Gson mGson = new Gson();
+
+    public ResultCheckpoint(File file) {
+        mFile = file;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /** Delete the records of a previous invocation. */
+    synchronized void clear() {
+        if (mFile.exists() && !mFile.delete()) {
+            CLog.w("Unable to delete checkpoint %s.", mFile);
+        }
+    }
+
+    /** Record the result of a test. */
+    void appendTest(
+            TestDescription testId,
+            TestStatus status,
+            @Nullable String trace,
+            Map<String, Metric> metrics) {
+        Record record = new Record();
+        record.className = testId.getClassName();
+        record.testName = testId.getTestName();
+        record.status = status.name();
+        record.trace = trace;
+        if (!metrics.isEmpty()) {
+            record.metrics = new LinkedHashMap<>();
+            for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+                MetricRecord metric = toRecord(entry.getValue());
+                if (metric != null) {
+                    record.metrics.put(entry.getKey(), metric);
+                }
+            }
+        }
+        append(record);
+    }
+
+    /** Record a log file saved by the invocation. */
+    void appendLog(String path) {
+        Record record = new Record();
+        record.logPath = path;
+        append(record);
+    }
+
+    private synchronized void append(Record record) {
+        byte[] line = (mGson.toJson(record) + "\n").getBytes(StandardCharsets.UTF_8);
+        try (FileOutputStream output = new FileOutputStream(mFile, true)) {
+            output.write(line);
+            output.getFD().sync();
+        } catch (IOException e) {
+            CLog.w("Unable to write checkpoint %s: %s", mFile, e.getMessage());
+        }
+    }
+
+    /** Records of the checkpoint, skipping the lines that cannot be parsed. */
+    synchronized List<Record> read() {
+        List<Record> records = new ArrayList<>();
+        if (!mFile.exists()) {
+            return records;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(mFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    Record record = mGson.fromJson(line, Record.class);
+                    if (record != null) {
+                        records.add(record);
+                    }
+                } catch (JsonParseException e) {
+                    CLog.w("Ignoring malformed checkpoint record: %s", line);
+                }
+            }
+        } catch (IOException e) {
+            CLog.w("Unable to read checkpoint %s: %s", mFile, e.getMessage());
+        }
+        return records;
+    }
+
+    /**
+     * Records of the APKs that were completed, in the order they were written.
+     *
+     * A test may have more than one record, e.g. when a collector reports an error after the test
+     * ended.  These records are merged, keeping the last status and all the metrics.
+     */
+    List<Record> readCompleted() {
+        List<Record> records = read();
+        Set<String> completed = getCompletedApks(records);
+        Map<TestDescription, Record> tests = new LinkedHashMap<>();
+        List<Record> result = new ArrayList<>();
+        for (Record record : records) {
+            if (record.logPath != null) {
+                result.add(record);
+                continue;
+            }
+            if (record.testName == null || !completed.contains(getApkKey(record.testName))) {
+                continue;
+            }
+            Record previous = tests.get(record.getTestDescription());
+            if (previous == null) {
+                tests.put(record.getTestDescription(), record);
+                result.add(record);
+                continue;
+            }
+            previous.status = record.status;
+            if (record.trace != null) {
+                previous.trace = record.trace;
+            }
+            if (record.metrics != null) {
+                if (previous.metrics == null) {
+                    previous.metrics = new LinkedHashMap<>();
+                }
+                previous.metrics.putAll(record.metrics);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Names of the APKs that passed all their tests on every device they were run on.
+     *
+     * An APK did not pass if any of its tests did not pass, or if it was not completed on one of
+     * the devices.  APKs that were never started are not returned either.
+     */
+    public Set<String> getPassedApkNames() {
+        List<Record> records = read();
+        Set<String> completed = getCompletedApks(records);
+        Set<String> passed = new HashSet<>();
+        Set<String> failed = new HashSet<>();
+        for (Record record : records) {
+            String key = record.testName == null ? null : getApkKey(record.testName);
+            if (key == null) {
+                continue;
+            }
+            String name = key.substring(1, key.indexOf(']'));
+            if (completed.contains(key) && TestStatus.PASSED.name().equals(record.status)) {
+                passed.add(name);
+            } else {
+                failed.add(name);
+            }
+        }
+        passed.removeAll(failed);
+        return passed;
+    }
+
+    /** Keys of the APKs that were completed, see {@link #getApkKey(String, String)}. */
+    static Set<String> getCompletedApks(List<Record> records) {
+        Set<String> completed = new HashSet<>();
+        String tearDown = PerformanceTest.Test.TEARDOWN.getName() + "[";
+        for (Record record : records) {
+            if (record.testName != null && record.testName.startsWith(tearDown)) {
+                completed.add(getApkKey(record.testName));
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * Key identifying the run of an APK on a device.
+     *
+     * @param deviceName name of the device, null if the invocation only has one device.
+     */
+    static String getApkKey(String apkName, @Nullable String deviceName) {
+        return "[" + apkName + "]" + (deviceName == null ? "" : "{" + deviceName + "}");
+    }
+
+    /**
+     * Key of the APK a test belongs to, from test names such as run[apk]#1{device}.
+     *
+     * @return null if the test does not belong to an APK.
+     */
+    @VisibleForTesting
+    @Nullable
+    static String getApkKey(String testName) {
+        int open = testName.indexOf('[');
+        int close = testName.indexOf(']', open);
+        if (open < 0 || close < 0) {
+            return null;
+        }
+        String key = testName.substring(open, close + 1);
+        int device = testName.indexOf('{', close);
+        return device < 0 ? key : key + testName.substring(device);
+    }
+
+    /** Metrics of a test record. */
+    static HashMap<String, Metric> getMetrics(Record record) {
+        HashMap<String, Metric> metrics = new HashMap<>();
+        if (record.metrics != null) {
+            for (Map.Entry<String, MetricRecord> entry : record.metrics.entrySet()) {
+                metrics.put(entry.getKey(), fromRecord(entry.getValue()));
+            }
+        }
+        return metrics;
+    }
+
+    @Nullable
+    private static MetricRecord toRecord(Metric metric) {
+        MetricRecord record = new MetricRecord();
+        Measurements measurements = metric.getMeasurements();
+        switch (measurements.getValueCase()) {
+            case SINGLE_INT:
+                record.intValue = measurements.getSingleInt();
+                break;
+            case SINGLE_DOUBLE:
+                record.doubleValue = measurements.getSingleDouble();
+                break;
+            case SINGLE_STRING:
+                record.stringValue = measurements.getSingleString();
+                break;
+            default:
+                // None of the collectors report lists of values.
+                return null;
+        }
+        record.unit = metric.getUnit().isEmpty() ? null : metric.getUnit();
+        record.type = metric.getType().name();
+        record.direction = metric.getDirection().name();
+        return record;
+    }
+
+    private static Metric fromRecord(MetricRecord record) {
+        Measurements.Builder measurements = Measurements.newBuilder();
+        if (record.intValue != null) {
+            measurements.setSingleInt(record.intValue);
+        } else if (record.doubleValue != null) {
+            measurements.setSingleDouble(record.doubleValue);
+        } else if (record.stringValue != null) {
+            measurements.setSingleString(record.stringValue);
+        }
+        Metric.Builder metric = Metric.newBuilder().setMeasurements(measurements);
+        if (record.unit != null) {
+            metric.setUnit(record.unit);
+        }
+        if (record.type != null) {
+            metric.setType(DataType.valueOf(record.type));
+        }
+        if (record.direction != null) {
+            metric.setDirection(Directionality.valueOf(record.direction));
+        }
+        return metric.build();
+    }
+}
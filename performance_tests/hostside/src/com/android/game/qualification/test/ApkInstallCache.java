@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.test;
+
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tracks which APK is installed on each device so it is not pushed again when it did not change.
+ *
+ * When an APK is installed, its fingerprint, made of the SHA-256 of the APK file and the
+ * versionCode of the installed package, is written to the device.  The APK is only considered
+ * installed if the fingerprint matches both the APK on the host and the package on the device, so
+ * an APK rebuilt on the host or a package updated on the device is reinstalled.
+ */
+public class ApkInstallCache {
+    @VisibleForTesting
+    static final String FINGERPRINT_DIR = "/data/local/tmp/gamequalification";
+
+    private static final Pattern VERSION_CODE_PATTERN = Pattern.compile("versionCode=(\\d+)");
+
+    private static class HostHash {
+        final long mLength;
+        final long mLastModified;
+        final String mHash;
+
+        HostHash(long length, long lastModified, String hash) {
+            mLength = length;
+            mLastModified = lastModified;
+            mHash = hash;
+        }
+    }
+
+    // Hashing a multi-GB APK takes a while, so the hash is only computed again if the file
+    // changed.
+    private final Map<String, HostHash> mHostHashes = new ConcurrentHashMap<>();
+
+    /** SHA-256 of an APK on the host. */
+    @VisibleForTesting
+    String getHash(File apkFile) throws IOException {
+        String path = apkFile.getAbsolutePath();
+        HostHash cached = mHostHashes.get(path);
+        if (cached != null
+                && cached.mLength == apkFile.length()
+                && cached.mLastModified == apkFile.lastModified()) {
+            return cached.mHash;
+        }
+        HostHash hash = new HostHash(
+                apkFile.length(),
+                apkFile.lastModified(),
+                Files.asByteSource(apkFile).hash(Hashing.sha256()).toString());
+        mHostHashes.put(path, hash);
+        return hash.mHash;
+    }
+
+    /** Whether the package installed on the device was installed from the APK. */
+    boolean isInstalled(ITestDevice device, String packageName, File apkFile)
+            throws DeviceNotAvailableException, IOException {
+        String versionCode = getInstalledVersionCode(device, packageName);
+        if (versionCode == null) {
+            return false;
+        }
+        String fingerprint = device.executeShellCommand(
+                "cat " + getFingerprintPath(packageName) + " 2>/dev/null");
+        return getFingerprint(getHash(apkFile), versionCode).equals(fingerprint.trim());
+    }
+
+    /** Record that the package installed on the device was installed from the APK. */
+    void markInstalled(ITestDevice device, String packageName, File apkFile)
+            throws DeviceNotAvailableException, IOException {
+        String versionCode = getInstalledVersionCode(device, packageName);
+        if (versionCode == null) {
+            return;
+        }
+        device.executeShellCommand("mkdir -p " + FINGERPRINT_DIR);
+        device.pushString(
+                getFingerprint(getHash(apkFile), versionCode), getFingerprintPath(packageName));
+    }
+
+    /** Forget the APK installed for a package, e.g. because it was uninstalled. */
+    void clear(ITestDevice device, String packageName) throws DeviceNotAvailableException {
+        device.deleteFile(getFingerprintPath(packageName));
+    }
+
+    @Nullable
+    private static String getInstalledVersionCode(ITestDevice device, String packageName)
+            throws DeviceNotAvailableException {
+        return parseVersionCode(device.executeShellCommand(
+                "dumpsys package " + packageName + " | grep -m 1 versionCode="));
+    }
+
+    /**
+     * Parse the versionCode from `dumpsys package`.
+     *
+     * @return null if the package is not installed.
+     */
+    @Nullable
+    @VisibleForTesting
+    static String parseVersionCode(String dumpsys) {
+        Matcher m = VERSION_CODE_PATTERN.matcher(dumpsys);
+        return m.find() ? m.group(1) : null;
+    }
+
+    @VisibleForTesting
+    static String getFingerprint(String hash, String versionCode) {
+        return hash + " " + versionCode;
+    }
+
+    private static String getFingerprintPath(String packageName) {
+        return FINGERPRINT_DIR + "/" + packageName + ".fingerprint";
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.test;
+
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
+
+/**
+ * Checks whether the middle half of a screenshot is black.
+ *
+ * A pixel is visible if it is neither black nor fully transparent, as reported by
+ * {@link BufferedImage#getRGB(int, int)}.  The rows are read in memory order straight from the
+ * backing array of the common raster layouts and of {@link RawScreenshot}, and through
+ * {@link BufferedImage#getRGB} one row at a time for the others.
+ *
+ * Screenshots that are not black usually have visible pixels all over the screen, so a sparse pass
+ * over the image is done first.  The full pass is only needed to confirm that an image is black,
+ * and is split across cores for large images.
+ */
+class BlackFrameDetector {
+    // Rows and columns between two pixels of the sparse pass.
+    private static final int SAMPLE_STRIDE = 8;
+    // Rows checked by a single task of the full pass.
+    private static final int ROWS_PER_TASK = 64;
+    // Images with fewer pixels to check are not worth splitting across cores.
+    private static final long PARALLEL_MIN_PIXELS = 1L << 20;
+
+    /** Finds visible pixels in a row of the image. */
+    private interface RowScanner {
+        /** Whether any pixel of the row at a multiple of step columns is visible. */
+        boolean hasVisiblePixel(int row, int step);
+    }
+
+    private BlackFrameDetector() {}
+
+    static boolean isBlack(BufferedImage img) {
+        return isBlack(img, isLarge(img.getWidth(), img.getHeight()));
+    }
+
+    @VisibleForTesting
+    static boolean isBlack(BufferedImage img, boolean parallel) {
+        return isBlack(img.getHeight(), createScanner(img), parallel);
+    }
+
+    /** Check a raw screenshot in place, see {@link RawScreenshot}. */
+    static boolean isBlack(RawScreenshot screenshot) {
+        return isBlack(screenshot, isLarge(screenshot.getWidth(), screenshot.getHeight()));
+    }
+
+    @VisibleForTesting
+    static boolean isBlack(RawScreenshot screenshot, boolean parallel) {
+        return isBlack(screenshot.getHeight(), createRawScanner(screenshot), parallel);
+    }
+
+    private static boolean isLarge(int width, int height) {
+        return (long) width * (height * 3 / 4 - height / 4) >= PARALLEL_MIN_PIXELS;
+    }
+
+    private static boolean isBlack(int height, RowScanner scanner, boolean parallel) {
+        // Only check the middle portion of the image to avoid status bar.
+        int top = height / 4;
+        int bottom = height * 3 / 4;
+        for (int row = top; row < bottom; row += SAMPLE_STRIDE) {
+            if (scanner.hasVisiblePixel(row, SAMPLE_STRIDE)) {
+                return false;
+            }
+        }
+        int tasks = (bottom - top + ROWS_PER_TASK - 1) / ROWS_PER_TASK;
+        IntStream stream = IntStream.range(0, tasks);
+        if (parallel) {
+            stream = stream.parallel();
+        }
+        return stream.noneMatch(task -> {
+            int end = Math.min(bottom, top + (task + 1) * ROWS_PER_TASK);
+            for (int row = top + task * ROWS_PER_TASK; row < end; row++) {
+                if (scanner.hasVisiblePixel(row, 1)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    private static RowScanner createScanner(BufferedImage img) {
+        RowScanner scanner = createIntScanner(img);
+        if (scanner == null) {
+            scanner = createByteScanner(img);
+        }
+        if (scanner == null) {
+            scanner = createGenericScanner(img);
+        }
+        return scanner;
+    }
+
+    /** Reads images with one 8 bits per channel pixel per int, e.g. TYPE_INT_ARGB. */
+    @Nullable
+    private static RowScanner createIntScanner(BufferedImage img) {
+        WritableRaster raster = img.getRaster();
+        ColorModel colorModel = img.getColorModel();
+        if (!(raster.getDataBuffer() instanceof DataBufferInt)
+                || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+                || !(colorModel instanceof DirectColorModel)
+                || !isPlainSrgb(colorModel)) {
+            return null;
+        }
+        DirectColorModel directColorModel = (DirectColorModel) colorModel;
+        int[] colorMasks = {
+            directColorModel.getRedMask(),
+            directColorModel.getGreenMask(),
+            directColorModel.getBlueMask()
+        };
+        int colorMask = 0;
+        for (int mask : colorMasks) {
+            // Wider channels could have non-zero values that getRGB rounds down to black.
+            if (Integer.bitCount(mask) != 8) {
+                return null;
+            }
+            colorMask |= mask;
+        }
+        int alphaMask = colorModel.hasAlpha() ? directColorModel.getAlphaMask() : 0;
+        if (colorModel.hasAlpha() && Integer.bitCount(alphaMask) != 8) {
+            return null;
+        }
+        SinglePixelPackedSampleModel sampleModel =
+                (SinglePixelPackedSampleModel) raster.getSampleModel();
+        DataBufferInt dataBuffer = (DataBufferInt) raster.getDataBuffer();
+        int[] data = dataBuffer.getData();
+        int scanlineStride = sampleModel.getScanlineStride();
+        int origin = dataBuffer.getOffset()
+                - raster.getSampleModelTranslateY() * scanlineStride
+                - raster.getSampleModelTranslateX();
+        int width = img.getWidth();
+        int visibleColorMask = colorMask;
+        return (row, step) -> {
+            int start = origin + row * scanlineStride;
+            int end = start + width;
+            for (int i = start; i < end; i += step) {
+                int pixel = data[i];
+                if ((pixel & visibleColorMask) != 0
+                        && (alphaMask == 0 || (pixel & alphaMask) != 0)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    /** Reads images with interleaved 8 bits channels, e.g. TYPE_4BYTE_ABGR decoded from PNG. */
+    @Nullable
+    private static RowScanner createByteScanner(BufferedImage img) {
+        WritableRaster raster = img.getRaster();
+        ColorModel colorModel = img.getColorModel();
+        SampleModel sampleModel = raster.getSampleModel();
+        if (!(raster.getDataBuffer() instanceof DataBufferByte)
+                || raster.getDataBuffer().getNumBanks() != 1
+                || !(sampleModel instanceof PixelInterleavedSampleModel)
+                || !(colorModel instanceof ComponentColorModel)
+                || !isPlainSrgb(colorModel)
+                || colorModel.getNumComponents() != sampleModel.getNumBands()) {
+            return null;
+        }
+        for (int size : colorModel.getComponentSize()) {
+            if (size != 8) {
+                return null;
+            }
+        }
+        PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) sampleModel;
+        int[] bandOffsets = interleaved.getBandOffsets();
+        // The alpha band, if any, follows the color bands of a ComponentColorModel.
+        int colorBands = colorModel.getNumColorComponents();
+        int alphaOffset = colorModel.hasAlpha() ? bandOffsets[colorBands] : -1;
+        int[] colorOffsets = new int[colorBands];
+        System.arraycopy(bandOffsets, 0, colorOffsets, 0, colorBands);
+        DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+        byte[] data = dataBuffer.getData();
+        int pixelStride = interleaved.getPixelStride();
+        int scanlineStride = interleaved.getScanlineStride();
+        int origin = dataBuffer.getOffset()
+                - raster.getSampleModelTranslateY() * scanlineStride
+                - raster.getSampleModelTranslateX() * pixelStride;
+        int width = img.getWidth();
+        return (row, step) -> {
+            int start = origin + row * scanlineStride;
+            int end = start + width * pixelStride;
+            int increment = step * pixelStride;
+            for (int i = start; i < end; i += increment) {
+                if (alphaOffset >= 0 && data[i + alphaOffset] == 0) {
+                    continue;
+                }
+                for (int offset : colorOffsets) {
+                    if (data[i + offset] != 0) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        };
+    }
+
+    /** Reads the pixels of a raw screenshot from its buffer. */
+    private static RowScanner createRawScanner(RawScreenshot screenshot) {
+        ByteBuffer pixels = screenshot.getPixels();
+        int width = screenshot.getWidth();
+        int bytesPerPixel = screenshot.getBytesPerPixel();
+        int[] colorOffsets = screenshot.getColorOffsets();
+        int alphaOffset = screenshot.getAlphaOffset();
+        return (row, step) -> {
+            int start = row * width * bytesPerPixel;
+            int end = start + width * bytesPerPixel;
+            int increment = step * bytesPerPixel;
+            for (int i = start; i < end; i += increment) {
+                if (alphaOffset >= 0 && pixels.get(i + alphaOffset) == 0) {
+                    continue;
+                }
+                for (int offset : colorOffsets) {
+                    if (pixels.get(i + offset) != 0) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        };
+    }
+
+    /** Reads any image through {@link BufferedImage#getRGB}, one row at a time. */
+    private static RowScanner createGenericScanner(BufferedImage img) {
+        int width = img.getWidth();
+        return (row, step) -> {
+            int[] pixels = img.getRGB(0, row, width, 1, null, 0, width);
+            for (int i = 0; i < width; i += step) {
+                if (isVisible(pixels[i])) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    /** Whether an ARGB pixel is non-black and not fully transparent. */
+    @VisibleForTesting
+    static boolean isVisible(int color) {
+        return (color & 0x00ffffff) != 0 && (color >> 24) != 0;
+    }
+
+    /**
+     * Whether getRGB returns the stored channel values unchanged, so that a channel is zero in the
+     * raster exactly when it is zero in the ARGB pixel.
+     */
+    private static boolean isPlainSrgb(ColorModel colorModel) {
+        return colorModel.getColorSpace().isCS_sRGB()
+                && !colorModel.isAlphaPremultiplied();
+    }
+}
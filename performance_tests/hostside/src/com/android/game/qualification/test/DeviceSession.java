@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.test;
+
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
+import com.android.game.qualification.SessionProtocol;
+import com.android.game.qualification.testtype.GameQualificationHostsideController;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.CollectingTestListener;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Instrumentation session that runs on a device for the whole invocation and launches the APKs,
+ * see {@link SessionProtocol}.
+ *
+ * Starting an instrumentation and parsing apk-info.xml on the device takes seconds, which the
+ * session only spends once.  If the session cannot be started, e.g. because the device-side APK
+ * is older than the host, {@link #launch(String)} returns false and the APK must be run by its
+ * own instrumentation.
+ */
+public class DeviceSession {
+    @VisibleForTesting
+    static final String CLASS =
+            GameQualificationHostsideController.PACKAGE + ".GameQualificationSession";
+    private static final String METHOD = "serve";
+    private static final long SESSION_TIMEOUT_MS = 24 * 60 * 60 * 1000L; //24h
+    // Time given to the instrumentation to accept the first command.
+    private static final long START_TIMEOUT_MS = 30 * 1000L;
+    private static final long RETRY_INTERVAL_MS = 500;
+    private static final long STOP_TIMEOUT_MS = 5000;
+    private static final Pattern REPLY_PATTERN =
+            Pattern.compile("Broadcast completed: result=(-?\\d+)(?:, data=\"(.*)\")?");
+
+    /** Result of a command, parsed from the output of am broadcast. */
+    @VisibleForTesting
+    static class Reply {
+        final int mCode;
+        @Nullable
+        final String mData;
+
+        Reply(int code, @Nullable String data) {
+            mCode = code;
+            mData = data;
+        }
+    }
+
+    private final ITestDevice mDevice;
+    private final Thread mThread;
+    private volatile boolean mUnavailable = false;
+
+    public DeviceSession(ITestDevice device) {
+        mDevice = device;
+        mThread = new Thread(this::runInstrumentation, "session-" + device.getSerialNumber());
+        mThread.setDaemon(true);
+    }
+
+    /** Start the instrumentation.  It accepts commands once it has started on the device. */
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Launch an APK.  The run has ended once {@link #isRunning()} returns false.
+     *
+     * @return false if the session is not running.
+     * @throws IllegalStateException if the session is running but could not launch the APK.
+     */
+    public boolean launch(String apkName)
+            throws DeviceNotAvailableException, InterruptedException {
+        if (mUnavailable) {
+            return false;
+        }
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MS;
+        String command = formatCommand(SessionProtocol.COMMAND_LAUNCH, apkName);
+        while (true) {
+            if (!mThread.isAlive()) {
+                setUnavailable("the instrumentation ended");
+                return false;
+            }
+            Reply reply = parseReply(mDevice.executeShellCommand(command));
+            if (reply.mCode == SessionProtocol.RESULT_ACCEPTED) {
+                return true;
+            }
+            if (reply.mCode == SessionProtocol.RESULT_REJECTED) {
+                throw new IllegalStateException(reply.mData);
+            }
+            // The instrumentation has not registered its receiver yet.
+            if (System.currentTimeMillis() > deadline) {
+                setUnavailable("no reply to " + command);
+                return false;
+            }
+            Thread.sleep(RETRY_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Whether the APK launched last is still running.  Its result file is complete once it is not.
+     *
+     * @throws IllegalStateException if the session did not reply.
+     */
+    public boolean isRunning() throws DeviceNotAvailableException {
+        String command = formatCommand(SessionProtocol.COMMAND_STATUS, null);
+        Reply reply = parseReply(mDevice.executeShellCommand(command));
+        if (reply.mCode != SessionProtocol.RESULT_ACCEPTED) {
+            throw new IllegalStateException("No reply to " + command);
+        }
+        return SessionProtocol.STATUS_RUNNING.equals(reply.mData);
+    }
+
+    /**
+     * End the current run, so that the session accepts the next APK.  If the session does not
+     * accept the command, it is stopped and the next APKs run in their own instrumentation.
+     */
+    public void cancel() throws DeviceNotAvailableException, InterruptedException {
+        if (!mThread.isAlive()) {
+            return;
+        }
+        String command = formatCommand(SessionProtocol.COMMAND_CANCEL, null);
+        Reply reply = parseReply(mDevice.executeShellCommand(command));
+        if (reply.mCode != SessionProtocol.RESULT_ACCEPTED) {
+            setUnavailable("no reply to " + command);
+            stop();
+        }
+    }
+
+    /** Whether the instrumentation is still running, e.g. it did not crash. */
+    public boolean isAlive() {
+        return mThread.isAlive();
+    }
+
+    public void stop() throws DeviceNotAvailableException, InterruptedException {
+        if (!mThread.isAlive()) {
+            return;
+        }
+        mDevice.executeShellCommand(formatCommand(SessionProtocol.COMMAND_STOP, null));
+        mThread.join(STOP_TIMEOUT_MS);
+        if (mThread.isAlive()) {
+            mDevice.executeShellCommand(
+                    "am force-stop " + GameQualificationHostsideController.PACKAGE);
+            mThread.join(STOP_TIMEOUT_MS);
+        }
+    }
+
+    private void setUnavailable(String reason) {
+        CLog.w("Instrumentation session of %s is unavailable, %s.  Each APK runs in its own "
+                + "instrumentation instead.", mDevice.getSerialNumber(), reason);
+        mUnavailable = true;
+    }
+
+    private void runInstrumentation() {
+        RemoteAndroidTestRunner testRunner = new RemoteAndroidTestRunner(
+                GameQualificationHostsideController.PACKAGE,
+                PerformanceTest.AJUR_RUNNER,
+                mDevice.getIDevice());
+        testRunner.setMethodName(CLASS, METHOD);
+        testRunner.addInstrumentationArg("timeout_msec", Long.toString(SESSION_TIMEOUT_MS));
+        testRunner.setMaxTimeout(SESSION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        CollectingTestListener listener = new CollectingTestListener();
+        try {
+            mDevice.runInstrumentationTests(testRunner, listener);
+            if (listener.hasFailedTests()) {
+                CLog.w("Instrumentation session of %s failed.", mDevice.getSerialNumber());
+            }
+        } catch (DeviceNotAvailableException | RuntimeException e) {
+            CLog.w("Instrumentation session of %s ended: %s",
+                    mDevice.getSerialNumber(), e.getMessage());
+        }
+    }
+
+    @VisibleForTesting
+    static String formatCommand(String command, @Nullable String apkName) {
+        String cmd = String.format("am broadcast -a %s -p %s --es %s %s",
+                SessionProtocol.ACTION,
+                GameQualificationHostsideController.PACKAGE,
+                SessionProtocol.COMMAND_EXTRA,
+                command);
+        if (apkName != null) {
+            cmd += String.format(" --es %s '%s'",
+                    SessionProtocol.APK_EXTRA, apkName.replace("'", "'\\''"));
+        }
+        return cmd;
+    }
+
+    /** Parse the output of am broadcast.  A broadcast that was not received has no result. */
+    @VisibleForTesting
+    static Reply parseReply(String output) {
+        Matcher matcher = output != null ? REPLY_PATTERN.matcher(output) : null;
+        if (matcher == null || !matcher.find()) {
+            return new Reply(SessionProtocol.RESULT_NONE, null);
+        }
+        return new Reply(Integer.parseInt(matcher.group(1)), matcher.group(2));
+    }
+}
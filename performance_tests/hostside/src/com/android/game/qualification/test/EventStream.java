@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.test;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.game.qualification.ResultData;
+import com.android.game.qualification.metric.EventTimeline;
+import com.android.game.qualification.proto.ResultDataProto;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows the events logged by the device while the app runs and adds them to an
+ * {@link EventTimeline}.
+ *
+ * {@link #start()} returns once the host logs a marker on the device and reads it back, so that
+ * events logged after it are not missed.  Only the last event logged before the stream starts is
+ * read from the log, so events from a previous run are dropped until the device logs the beginning
+ * of the current run.  Events that are missed are recovered from the result file by
+ * {@link EventTimeline#reconcile}.
+ */
+public class EventStream {
+    @VisibleForTesting
+    static final String COMMAND = "logcat -v raw -T 1 -s " + ResultData.EVENT_LOG_TAG + ":I";
+    private static final long STOP_TIMEOUT_MS = 5000;
+    private static final String ATTACH_MARKER = "ATTACH";
+    private static final long ATTACH_TIMEOUT_MS = 5000;
+    private static final long ATTACH_RETRY_INTERVAL_MS = 500;
+
+    @VisibleForTesting
+    static class Receiver extends MultiLineReceiver {
+        private final EventTimeline mTimeline;
+        private final String mAttachMarker;
+        private final CountDownLatch mAttached = new CountDownLatch(1);
+        private final CountDownLatch mEnded = new CountDownLatch(1);
+        private volatile boolean mCancelled = false;
+        private boolean mStarted = false;
+
+        Receiver(EventTimeline timeline, String attachMarker) {
+            mTimeline = timeline;
+            mAttachMarker = attachMarker;
+        }
+
+        @Override
+        public void processNewLines(String[] lines) {
+            for (String line : lines) {
+                processLine(line.trim());
+            }
+        }
+
+        private void processLine(String line) {
+            if (line.equals(mAttachMarker)) {
+                mAttached.countDown();
+                return;
+            }
+            ResultDataProto.Result begin = ResultData.parseBegin(line);
+            if (begin != null) {
+                mTimeline.clear();
+                mTimeline.begin(begin);
+                mStarted = true;
+                return;
+            }
+            if (!mStarted) {
+                return;
+            }
+            if (ResultData.isEnd(line)) {
+                mEnded.countDown();
+                return;
+            }
+            ResultDataProto.Event event = ResultData.parseEvent(line);
+            if (event != null) {
+                mTimeline.add(event);
+            } else if (!line.isEmpty() && !line.startsWith("---------")) {
+                CLog.w("Invalid event: %s", line);
+            }
+        }
+
+        boolean awaitAttached(long timeoutMs) throws InterruptedException {
+            return mAttached.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        boolean awaitEnd(long timeoutMs) throws InterruptedException {
+            return mEnded.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        void cancel() {
+            mCancelled = true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    private final ITestDevice mDevice;
+    private final Receiver mReceiver;
+    private final String mAttachMarker;
+    private final Thread mThread;
+
+    /**
+     * @param maxTimeMs time after which the stream stops if the device logs nothing.
+     */
+    public EventStream(ITestDevice device, EventTimeline timeline, long maxTimeMs) {
+        mDevice = device;
+        // Unique, so that the marker of a previous stream is not mistaken for it.
+        mAttachMarker = ATTACH_MARKER + " " + System.nanoTime();
+        mReceiver = new Receiver(timeline, mAttachMarker);
+        mThread = new Thread(() -> follow(maxTimeMs), "event-stream-" + device.getSerialNumber());
+        mThread.setDaemon(true);
+    }
+
+    /**
+     * Start following the log, and wait until events logged by the device are read.  If the marker
+     * is not read in time, events are still read from the result file.
+     */
+    public void start() throws DeviceNotAvailableException, InterruptedException {
+        mThread.start();
+        long deadline = System.currentTimeMillis() + ATTACH_TIMEOUT_MS;
+        // Logged again until it is read, in case it was logged before logcat started.
+        do {
+            mDevice.executeShellCommand(String.format("log -p i -t %s '%s'",
+                    ResultData.EVENT_LOG_TAG, mAttachMarker));
+            if (mReceiver.awaitAttached(ATTACH_RETRY_INTERVAL_MS)) {
+                return;
+            }
+        } while (System.currentTimeMillis() < deadline && mThread.isAlive());
+        CLog.w("Unable to follow events of %s.", mDevice.getSerialNumber());
+    }
+
+    /**
+     * Wait for the device to log the end of the run, after which the result file is complete.
+     *
+     * @return false if the run did not end within the timeout.
+     */
+    public boolean awaitEnd(long timeoutMs) throws InterruptedException {
+        return mReceiver.awaitEnd(timeoutMs);
+    }
+
+    /** Stop following the log.  Events logged after this call may not be added. */
+    public void stop() throws InterruptedException {
+        mReceiver.cancel();
+        mThread.join(STOP_TIMEOUT_MS);
+    }
+
+    private void follow(long maxTimeMs) {
+        try {
+            mDevice.executeShellCommand(COMMAND, mReceiver, maxTimeMs, TimeUnit.MILLISECONDS, 0);
+        } catch (DeviceNotAvailableException | RuntimeException e) {
+            // The events are still read from the result file.
+            if (!mReceiver.isCancelled()) {
+                CLog.w("Stopped following events of %s: %s",
+                        mDevice.getSerialNumber(), e.getMessage());
+            }
+        }
+    }
+}
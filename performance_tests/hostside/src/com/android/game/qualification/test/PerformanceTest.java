@@ -19,34 +19,37 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.fail;
 
+import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
 import com.android.game.qualification.ApkInfo;
 import com.android.game.qualification.ResultData;
 import com.android.game.qualification.metric.BaseGameQualificationMetricCollector;
+import com.android.game.qualification.metric.EventTimeline;
 import com.android.game.qualification.proto.ResultDataProto;
 import com.android.game.qualification.testtype.GameQualificationHostsideController;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.CollectingTestListener;
+import com.android.tradefed.result.FileInputStreamSource;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
 
-import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 
 import org.junit.Assume;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
@@ -58,9 +61,13 @@ import javax.imageio.ImageIO;
  * sequentially.
  */
 public class PerformanceTest {
-    private static final String AJUR_RUNNER = "androidx.test.runner.AndroidJUnitRunner";
+    static final String AJUR_RUNNER = "androidx.test.runner.AndroidJUnitRunner";
     private static final long DEFAULT_TEST_TIMEOUT_MS = 30 * 60 * 1000L; //30min
     private static final long DEFAULT_MAX_TIMEOUT_TO_OUTPUT_MS = 30 * 60 * 1000L; //30min
+    // How often to check that the instrumentation session did not die while waiting for a run.
+    private static final long SESSION_POLL_INTERVAL_MS = 1000;
+    private static final String BLACK_SCREENSHOT_MESSAGE =
+            "A screenshot was taken just after metric collection and it was black.";
 
     private ApkInfo mApk;
     private String mApkDir;
@@ -68,6 +75,23 @@ public class PerformanceTest {
     private Collection<BaseGameQualificationMetricCollector> mCollectors;
     private ITestInvocationListener mListener;
     private File mWorkingDirectory;
+    private ApkInstallCache mInstallCache;
+    private boolean mKeepInstalled;
+    private long mInstallBytesSaved = 0;
+    @Nullable
+    private Future<SetupScript.Result> mPreparedSetup;
+    @Nullable
+    private SetupScript.Result mSetupScriptResult;
+    @Nullable
+    private QuiescenceGate mQuiescenceGate;
+    @Nullable
+    private QuiescenceGate.Result mQuiescence;
+    private boolean mRawScreenshot = false;
+    private boolean mKeepScreenshots = true;
+    @Nullable
+    private EventTimeline mEventTimeline;
+    @Nullable
+    private DeviceSession mSession;
     private boolean allTestsPassed = true;
 
     public interface TestMethod {
@@ -109,43 +133,119 @@ public class PerformanceTest {
             Collection<BaseGameQualificationMetricCollector> collectors,
             ApkInfo apk,
             String apkDir,
-            File workingDirectory) {
+            File workingDirectory,
+            ApkInstallCache installCache,
+            boolean keepInstalled) {
         mApk = apk;
         mApkDir = apkDir;
         mDevice = device;
         mCollectors = collectors;
         mListener = listener;
         mWorkingDirectory = workingDirectory;
+        mInstallCache = installCache;
+        mKeepInstalled = keepInstalled;
     }
 
     public void failed() {
         this.allTestsPassed = false;
     }
 
+    /**
+     * Use the result of {@link SetupScript#run(ApkInfo, File, String)} started in the background
+     * instead of running the script in setUp.
+     */
+    public void setPreparedSetup(@Nullable Future<SetupScript.Result> preparedSetup) {
+        mPreparedSetup = preparedSetup;
+    }
+
+    /** Result of the setup script, or null if the APK has no script or setUp did not run it. */
+    @Nullable
+    public SetupScript.Result getSetupScriptResult() {
+        return mSetupScriptResult;
+    }
+
+    /** Gate of {@link #awaitQuiescence()}, which returns immediately without one. */
+    public void setQuiescenceGate(@Nullable QuiescenceGate gate) {
+        mQuiescenceGate = gate;
+    }
+
+    /** Conditions the last run started in, or null if there is no quiescence gate. */
+    @Nullable
+    public QuiescenceGate.Result getQuiescence() {
+        return mQuiescence;
+    }
+
+    /**
+     * Wait for the device to be quiescent before the next run.  Called before the collectors of
+     * the run are enabled, so that their polling neither loads the device nor counts the wait.
+     */
+    public void awaitQuiescence() throws DeviceNotAvailableException, InterruptedException {
+        mQuiescence = null;
+        if (mQuiescenceGate == null || !allTestsPassed) {
+            return;
+        }
+        mQuiescence = mQuiescenceGate.await(
+                () -> mDevice.executeShellCommand(QuiescenceGate.PROBE_COMMAND));
+        CLog.i("Starting %s on %s: %s", mApk.getName(), mDevice.getSerialNumber(), mQuiescence);
+    }
+
+    /**
+     * Capture the screenshot as raw pixels instead of PNG.  The device falls back to PNG if the
+     * raw screenshot cannot be read.
+     */
+    public void setRawScreenshot(boolean rawScreenshot) {
+        mRawScreenshot = rawScreenshot;
+    }
+
+    /** Save every screenshot as a log instead of only the black ones. */
+    public void setKeepScreenshots(boolean keepScreenshots) {
+        mKeepScreenshots = keepScreenshots;
+    }
+
+    /**
+     * Follow the events of the device while the app runs and add them to the timeline, which is
+     * then reconciled with the result file.
+     */
+    public void setEventTimeline(@Nullable EventTimeline timeline) {
+        mEventTimeline = timeline;
+    }
+
+    /**
+     * Launch the APK through an instrumentation session instead of its own instrumentation.  Only
+     * used with an event timeline, which tells when the run ends.
+     */
+    public void setSession(@Nullable DeviceSession session) {
+        mSession = session;
+    }
+
+    /** Size of the APK if it was already installed and did not have to be pushed again. */
+    public long getInstallBytesSaved() {
+        return mInstallBytesSaved;
+    }
+
+    /** Stop the app, e.g. so that the next run launches it again. */
+    public void stopApp() throws DeviceNotAvailableException {
+        mDevice.executeShellCommand("am force-stop " + mApk.getPackageName());
+    }
+
     // BEGIN TESTS
 
-    private void setUp() throws DeviceNotAvailableException, IOException, InterruptedException {
-        if (mApk.getScript() != null) {
-            String cmd = mApk.getScript();
-            CLog.i(
-                    "Executing command: " + cmd + "\n"
-                            + "Working directory: " + mWorkingDirectory.getPath());
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
-            pb.environment().put("ANDROID_SERIAL", mDevice.getSerialNumber());
-            pb.directory(mWorkingDirectory);
-            pb.redirectErrorStream(true);
-
-            Process p = pb.start();
-            boolean finished = p.waitFor(30, TimeUnit.MINUTES);
-            if (!finished || p.exitValue() != 0) {
-                ByteArrayOutputStream os = new ByteArrayOutputStream();
-                ByteStreams.copy(p.getInputStream(), os);
-                String output = os.toString(StandardCharsets.UTF_8.name());
-                if (!finished) {
-                    output += "\n***TIMEOUT waiting for script to complete.***";
-                    p.destroy();
-                }
-                fail("Execution of setup script returned non-zero value:\n" + output);
+    private void setUp()
+            throws DeviceNotAvailableException, IOException, InterruptedException,
+            ExecutionException {
+        mSetupScriptResult = mPreparedSetup != null
+                ? mPreparedSetup.get()
+                : SetupScript.run(mApk, mWorkingDirectory, mDevice.getSerialNumber());
+        if (mSetupScriptResult != null) {
+            try (InputStreamSource output =
+                    new FileInputStreamSource(mSetupScriptResult.getOutputFile(), true)) {
+                mListener.testLog(
+                        String.format("setup-script-%s", mApk.getName()),
+                        LogDataType.TEXT,
+                        output);
+            }
+            if (!mSetupScriptResult.isSuccess()) {
+                fail(mSetupScriptResult.getFailureMessage());
             }
         }
 
@@ -156,11 +256,21 @@ public class PerformanceTest {
                         mApk.getFileName(),
                         mApkDir),
                 apkFile);
+        if (mInstallCache.isInstalled(mDevice, mApk.getPackageName(), apkFile)) {
+            CLog.i("%s is already installed on %s, clearing its data.",
+                    apkFile.getName(), mDevice.getSerialNumber());
+            mDevice.executeShellCommand("pm clear " + mApk.getPackageName());
+            mInstallBytesSaved = apkFile.length();
+            return;
+        }
         CLog.i("Installing %s on %s.", apkFile.getName(), mDevice.getSerialNumber());
-        mDevice.installPackage(apkFile, true);
+        String error = mDevice.installPackage(apkFile, true);
+        if (error == null) {
+            mInstallCache.markInstalled(mDevice, mApk.getPackageName(), apkFile);
+        }
     }
 
-    private void run() throws DeviceNotAvailableException {
+    private void run() throws DeviceNotAvailableException, InterruptedException {
         Assume.assumeTrue(allTestsPassed);
         // APK Test.
         assertFalse(
@@ -175,40 +285,129 @@ public class PerformanceTest {
                         mApkDir),
                 apkFile);
 
-
+        EventStream eventStream = null;
+        if (mEventTimeline != null) {
+            mEventTimeline.clear();
+            // Collectors read the timeline until the result data of this run is set.
+            for (BaseGameQualificationMetricCollector collector : mCollectors) {
+                collector.setDeviceResultData(null);
+            }
+            eventStream =
+                    new EventStream(mDevice, mEventTimeline, DEFAULT_MAX_TIMEOUT_TO_OUTPUT_MS);
+            eventStream.start();
+        }
         CollectingTestListener listener = new CollectingTestListener();
-        runDeviceTests(
-                GameQualificationHostsideController.PACKAGE,
-                GameQualificationHostsideController.CLASS,
-                "run[" + mApk.getName() + "]",
-                listener);
+        try {
+            if (eventStream != null && mSession != null && mSession.launch(mApk.getName())) {
+                awaitSessionRun(eventStream);
+            } else {
+                runDeviceTests(
+                        GameQualificationHostsideController.PACKAGE,
+                        GameQualificationHostsideController.CLASS,
+                        "run[" + mApk.getName() + "]",
+                        listener);
+            }
+        } finally {
+            if (eventStream != null) {
+                eventStream.stop();
+            }
+        }
         ResultDataProto.Result resultData = retrieveResultData();
+        if (mEventTimeline != null) {
+            // Keeps the events received if the test crashed before writing the result file.
+            resultData = mEventTimeline.reconcile(resultData);
+        }
         for (BaseGameQualificationMetricCollector collector : mCollectors) {
             collector.setDeviceResultData(resultData);
         }
         assertFalse(listener.hasFailedTests());
     }
 
+    // The run has ended once the session says so.  The end logged by the device is only a shortcut,
+    // as the log may be missed.
+    private void awaitSessionRun(EventStream eventStream)
+            throws DeviceNotAvailableException, InterruptedException {
+        long deadline = System.currentTimeMillis() + DEFAULT_TEST_TIMEOUT_MS;
+        boolean ended = false;
+        try {
+            while (!eventStream.awaitEnd(SESSION_POLL_INTERVAL_MS)) {
+                if (!mSession.isAlive()) {
+                    fail("Instrumentation session ended while running " + mApk.getName());
+                }
+                if (!mSession.isRunning()) {
+                    break;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    fail(String.format("Timed out after %d ms waiting for %s to end.",
+                            DEFAULT_TEST_TIMEOUT_MS, mApk.getName()));
+                }
+            }
+            ended = true;
+        } finally {
+            if (!ended) {
+                // Otherwise the session rejects the next APK.
+                mSession.cancel();
+            }
+        }
+    }
+
     private void testScreenshot() throws IOException, DeviceNotAvailableException {
         Assume.assumeTrue(allTestsPassed);
+        if (mRawScreenshot) {
+            RawScreenshot screenshot = captureRawScreenshot();
+            if (screenshot != null) {
+                boolean black = screenshot.isBlack();
+                // Encoding to PNG is only worth it if the screenshot is saved.
+                if (black || mKeepScreenshots) {
+                    try (InputStreamSource screenSource = screenshot.encodePng()) {
+                        logScreenshot(screenSource);
+                    }
+                }
+                assertFalse(BLACK_SCREENSHOT_MESSAGE, black);
+                return;
+            }
+            CLog.w("Unable to read raw screenshot of %s, taking a PNG screenshot instead.",
+                    mDevice.getSerialNumber());
+        }
         try (InputStreamSource screenSource = mDevice.getScreenshot()) {
-            mListener.testLog(
-                    String.format("screenshot-%s", mApk.getName()),
-                    LogDataType.PNG,
-                    screenSource);
+            boolean black;
             try (InputStream stream = screenSource.createInputStream()) {
-                stream.reset();
-                assertFalse(
-                        "A screenshot was taken just after metric collection and it was black.",
-                        isImageBlack(stream));
+                black = isImageBlack(stream);
             }
+            if (black || mKeepScreenshots) {
+                logScreenshot(screenSource);
+            }
+            assertFalse(BLACK_SCREENSHOT_MESSAGE, black);
         } catch (IOException e) {
             throw new IOException("Failed reading screenshot data:\n" + e.getMessage());
         }
     }
 
+    @Nullable
+    private RawScreenshot captureRawScreenshot() throws DeviceNotAvailableException {
+        RawScreenshot.Buffer buffer = new RawScreenshot.Buffer();
+        CommandResult result = mDevice.executeShellV2Command(RawScreenshot.COMMAND, buffer);
+        if (result.getStatus() != CommandStatus.SUCCESS) {
+            return null;
+        }
+        return RawScreenshot.parse(buffer);
+    }
+
+    private void logScreenshot(InputStreamSource screenSource) {
+        mListener.testLog(
+                String.format("screenshot-%s", mApk.getName()),
+                LogDataType.PNG,
+                screenSource);
+    }
+
     private void tearDown() throws DeviceNotAvailableException {
+        if (mKeepInstalled) {
+            // The data is cleared by the next setUp instead.
+            stopApp();
+            return;
+        }
         mDevice.uninstallPackage(mApk.getPackageName());
+        mInstallCache.clear(mDevice, mApk.getPackageName());
     }
 
     // END TESTS
@@ -231,18 +430,7 @@ public class PerformanceTest {
     /** Check if an image is black. */
     @VisibleForTesting
     static boolean isImageBlack(InputStream stream) throws IOException {
-        BufferedImage img = ImageIO.read(stream);
-        for (int i = 0; i < img.getWidth(); i++) {
-            // Only check the middle portion of the image to avoid status bar.
-            for (int j = img.getHeight() / 4; j < img.getHeight() * 3 / 4; j++) {
-                int color = img.getRGB(i, j);
-                // Check if pixel is non-black and not fully transparent.
-                if ((color & 0x00ffffff) != 0 && (color >> 24) != 0) {
-                    return false;
-                }
-            }
-        }
-        return true;
+        return BlackFrameDetector.isBlack(ImageIO.read(stream));
     }
 
     private ResultDataProto.Result retrieveResultData() throws DeviceNotAvailableException {
@@ -250,7 +438,7 @@ public class PerformanceTest {
 
         if (resultFile != null) {
             try (InputStream inputStream = new FileInputStream(resultFile)) {
-                return ResultDataProto.Result.parseFrom(inputStream);
+                return ResultData.readResult(inputStream);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.test;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.metrics.proto.MetricMeasurement.DataType;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import java.util.Map;
+
+/**
+ * Waits for the device to be idle and cool before a measured run.
+ *
+ * The device is probed periodically until the CPU load, the temperature of the hottest thermal
+ * zone and the number of running dexopt processes are all within their thresholds, or until the
+ * timeout expires.  The run starts in either case, and the conditions it started in are reported
+ * as metrics so that noisy runs can be told apart.
+ */
+public class QuiescenceGate {
+    /**
+     * Shell command printing the aggregated CPU line of /proc/stat, the temperature of each thermal
+     * zone in millidegree Celsius and the number of dexopt processes in a single adb round trip.
+     */
+    @VisibleForTesting
+    static final String PROBE_COMMAND =
+            "grep '^cpu ' /proc/stat; "
+                    + "grep -sH . /sys/class/thermal/thermal_zone*/temp; "
+                    + "echo dexopt:$(pidof dex2oat dex2oat32 dex2oat64 | wc -w)";
+
+    private static final String ZONE_PREFIX = "/sys/class/thermal/thermal_zone";
+    private static final String DEXOPT_PREFIX = "dexopt:";
+    // Thermal zones reporting values outside of this range in degree Celsius are not sensors.
+    private static final double MIN_TEMPERATURE_C = -40;
+    private static final double MAX_TEMPERATURE_C = 200;
+
+    /** Runs {@link #PROBE_COMMAND} on the device. */
+    public interface Probe {
+        String run() throws DeviceNotAvailableException;
+    }
+
+    /** State of the device at one probe. */
+    @VisibleForTesting
+    static class Sample {
+        final long mBusyJiffies;
+        final long mTotalJiffies;
+        final double mMaxTemperatureC;
+        final int mDexoptProcesses;
+
+        Sample(long busyJiffies, long totalJiffies, double maxTemperatureC, int dexoptProcesses) {
+            mBusyJiffies = busyJiffies;
+            mTotalJiffies = totalJiffies;
+            mMaxTemperatureC = maxTemperatureC;
+            mDexoptProcesses = dexoptProcesses;
+        }
+
+        /**
+         * Parse the output of {@link #PROBE_COMMAND}.  Values that are missing, e.g. because the
+         * device has no thermal zone, are reported as unknown instead of failing.
+         */
+        static Sample parse(String text) {
+            long busy = -1;
+            long total = -1;
+            double maxTemperatureC = Double.NaN;
+            int dexopt = 0;
+            for (String line : text.split("\n")) {
+                line = line.trim();
+                if (line.startsWith("cpu ")) {
+                    // "cpu user nice system idle iowait irq softirq steal ..."
+                    String[] fields = line.split("\\s+");
+                    total = 0;
+                    for (int i = 1; i < fields.length; i++) {
+                        total += parseLong(fields[i]);
+                    }
+                    // idle and iowait.
+                    long idle = fields.length > 5
+                            ? parseLong(fields[4]) + parseLong(fields[5])
+                            : 0;
+                    busy = total - idle;
+                } else if (line.startsWith(ZONE_PREFIX)) {
+                    int separator = line.indexOf(':');
+                    if (separator < 0) {
+                        continue;
+                    }
+                    double temperatureC = parseLong(line.substring(separator + 1)) / 1000.0;
+                    if (temperatureC > MIN_TEMPERATURE_C
+                            && temperatureC < MAX_TEMPERATURE_C
+                            && (Double.isNaN(maxTemperatureC) || temperatureC > maxTemperatureC)) {
+                        maxTemperatureC = temperatureC;
+                    }
+                } else if (line.startsWith(DEXOPT_PREFIX)) {
+                    dexopt = (int) parseLong(line.substring(DEXOPT_PREFIX.length()));
+                }
+            }
+            return new Sample(busy, total, maxTemperatureC, dexopt);
+        }
+
+        private static long parseLong(String value) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    /** Conditions of the device when the run started. */
+    public static class Result {
+        private final long mWaitMs;
+        private final boolean mQuiescent;
+        private final double mCpuLoad;
+        private final double mMaxTemperatureC;
+        private final int mDexoptProcesses;
+
+        Result(long waitMs, boolean quiescent, double cpuLoad, Sample sample) {
+            mWaitMs = waitMs;
+            mQuiescent = quiescent;
+            mCpuLoad = cpuLoad;
+            mMaxTemperatureC = sample.mMaxTemperatureC;
+            mDexoptProcesses = sample.mDexoptProcesses;
+        }
+
+        public long getWaitMs() {
+            return mWaitMs;
+        }
+
+        /** Whether all the thresholds were met before the timeout. */
+        public boolean isQuiescent() {
+            return mQuiescent;
+        }
+
+        /** Fraction of the CPU time that was not idle, or NaN if unknown. */
+        public double getCpuLoad() {
+            return mCpuLoad;
+        }
+
+        /** Temperature of the hottest thermal zone in degree Celsius, or NaN if unknown. */
+        public double getMaxTemperatureC() {
+            return mMaxTemperatureC;
+        }
+
+        public int getDexoptProcesses() {
+            return mDexoptProcesses;
+        }
+
+        /** Add the starting conditions to the metrics of the run test. */
+        public void addToMetrics(Map<String, Metric> metrics) {
+            metrics.put("quiescence_wait_time", getMetric("ms",
+                    Measurements.newBuilder().setSingleInt(mWaitMs)));
+            metrics.put("quiescence_reached", getMetric("",
+                    Measurements.newBuilder().setSingleInt(mQuiescent ? 1 : 0)));
+            metrics.put("quiescence_dexopt_processes", getMetric("",
+                    Measurements.newBuilder().setSingleInt(mDexoptProcesses)));
+            if (!Double.isNaN(mCpuLoad)) {
+                metrics.put("quiescence_cpu_load", getMetric("",
+                        Measurements.newBuilder().setSingleDouble(mCpuLoad)));
+            }
+            if (!Double.isNaN(mMaxTemperatureC)) {
+                metrics.put("quiescence_max_temperature", getMetric("C",
+                        Measurements.newBuilder().setSingleDouble(mMaxTemperatureC)));
+            }
+        }
+
+        private static Metric getMetric(String unit, Measurements.Builder measurements) {
+            return Metric.newBuilder()
+                    .setUnit(unit)
+                    .setType(DataType.RAW)
+                    .setMeasurements(measurements)
+                    .build();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "waited %d ms, %s, CPU load: %.2f, max temperature: %.1f C, dexopt: %d",
+                    mWaitMs,
+                    mQuiescent ? "quiescent" : "timed out",
+                    mCpuLoad,
+                    mMaxTemperatureC,
+                    mDexoptProcesses);
+        }
+    }
+
+    private final double mMaxCpuLoad;
+    private final double mMaxTemperatureC;
+    private final boolean mWaitForDexopt;
+    private final long mTimeoutMs;
+    private final long mPollIntervalMs;
+
+    /**
+     * @param maxCpuLoad highest fraction of non-idle CPU time over a poll interval.
+     * @param maxTemperatureC highest temperature of the hottest thermal zone.
+     * @param waitForDexopt whether to wait for all dexopt processes to finish.
+     * @param timeoutMs time after which the run starts even if the device is not quiescent.
+     * @param pollIntervalMs time between two probes.  The CPU load is measured over it.
+     */
+    public QuiescenceGate(
+            double maxCpuLoad,
+            double maxTemperatureC,
+            boolean waitForDexopt,
+            long timeoutMs,
+            long pollIntervalMs) {
+        mMaxCpuLoad = maxCpuLoad;
+        mMaxTemperatureC = maxTemperatureC;
+        mWaitForDexopt = waitForDexopt;
+        mTimeoutMs = timeoutMs;
+        mPollIntervalMs = pollIntervalMs;
+    }
+
+    /**
+     * Probe the device until it is quiescent or the timeout expires.
+     *
+     * The device is probed at least twice, as the CPU load is measured between two probes.
+     */
+    public Result await(Probe probe) throws DeviceNotAvailableException, InterruptedException {
+        long start = System.currentTimeMillis();
+        Sample previous = Sample.parse(probe.run());
+        while (true) {
+            Thread.sleep(mPollIntervalMs);
+            Sample current = Sample.parse(probe.run());
+            double cpuLoad = getCpuLoad(previous, current);
+            long waitMs = System.currentTimeMillis() - start;
+            boolean quiescent = isQuiescent(cpuLoad, current);
+            if (quiescent || waitMs >= mTimeoutMs) {
+                Result result = new Result(waitMs, quiescent, cpuLoad, current);
+                if (!quiescent) {
+                    CLog.w("Device is not quiescent, starting the run anyway: %s", result);
+                }
+                return result;
+            }
+            previous = current;
+        }
+    }
+
+    @VisibleForTesting
+    boolean isQuiescent(double cpuLoad, Sample sample) {
+        // Unknown values are not waited for, as they would never meet the threshold.
+        if (cpuLoad > mMaxCpuLoad) {
+            return false;
+        }
+        if (sample.mMaxTemperatureC > mMaxTemperatureC) {
+            return false;
+        }
+        return !mWaitForDexopt || sample.mDexoptProcesses == 0;
+    }
+
+    /** Fraction of the CPU time that was not idle between two samples, or NaN if unknown. */
+    @VisibleForTesting
+    static double getCpuLoad(Sample previous, Sample current) {
+        long total = current.mTotalJiffies - previous.mTotalJiffies;
+        if (previous.mTotalJiffies < 0 || current.mTotalJiffies < 0 || total <= 0) {
+            return Double.NaN;
+        }
+        return (double) (current.mBusyJiffies - previous.mBusyJiffies) / total;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.test;
+
+import com.android.annotations.Nullable;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Screenshot in the raw format written by "screencap" without -p.
+ *
+ * The output starts with the width, height and pixel format as little endian 32 bits integers,
+ * followed on newer releases by the dataspace, then the rows of pixels without padding.  The pixels
+ * are read in place from the captured bytes, and only encoded to PNG when the screenshot is saved.
+ */
+public class RawScreenshot {
+    /** Shell command printing a raw screenshot to stdout. */
+    public static final String COMMAND = "screencap";
+
+    // Pixel formats of android.graphics.PixelFormat.
+    public static final int FORMAT_RGBA_8888 = 1;
+    public static final int FORMAT_RGBX_8888 = 2;
+    public static final int FORMAT_RGB_888 = 3;
+    public static final int FORMAT_RGB_565 = 4;
+    public static final int FORMAT_BGRA_8888 = 5;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int HEADER_SIZE_WITH_DATASPACE = 16;
+
+    /** Receives the output of {@link #COMMAND} without copying it again. */
+    public static class Buffer extends ByteArrayOutputStream {
+        public Buffer() {
+            // Large enough for a 1080p screenshot.
+            super(1080 * 1920 * 4 + HEADER_SIZE_WITH_DATASPACE);
+        }
+
+        public ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFormat;
+    private final int mHeaderSize;
+    private final ByteBuffer mPixels;
+
+    private RawScreenshot(int width, int height, int format, int headerSize, ByteBuffer pixels) {
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mHeaderSize = headerSize;
+        mPixels = pixels;
+    }
+
+    /**
+     * Wrap rows of pixels without a header, e.g. rows read from a screenshot saved on the device.
+     * The pixels are not copied.
+     *
+     * @return null if the format is not supported or the buffer does not hold exactly the rows.
+     */
+    @Nullable
+    public static RawScreenshot fromPixels(int width, int height, int format, ByteBuffer pixels) {
+        int bytesPerPixel = getBytesPerPixel(format);
+        if (width <= 0 || height <= 0 || bytesPerPixel == 0
+                || pixels.remaining() != (long) width * height * bytesPerPixel) {
+            return null;
+        }
+        return new RawScreenshot(width, height, format, 0, pixels.slice());
+    }
+
+    /**
+     * Parse the output of {@link #COMMAND}.
+     *
+     * @return null if the output is not a raw screenshot in one of the supported pixel formats.
+     */
+    @Nullable
+    public static RawScreenshot parse(Buffer buffer) {
+        return parse(buffer.asByteBuffer());
+    }
+
+    /**
+     * Parse the output of {@link #COMMAND} from the position of the buffer to its limit.  The
+     * pixels are not copied.
+     */
+    @Nullable
+    public static RawScreenshot parse(ByteBuffer data) {
+        data = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int width = data.getInt(0);
+        int height = data.getInt(4);
+        int format = data.getInt(8);
+        int bytesPerPixel = getBytesPerPixel(format);
+        if (width <= 0 || height <= 0 || bytesPerPixel == 0) {
+            return null;
+        }
+        long size = (long) width * height * bytesPerPixel;
+        // Only the size of the output tells whether the header has a dataspace.
+        int headerSize;
+        if (data.remaining() == HEADER_SIZE + size) {
+            headerSize = HEADER_SIZE;
+        } else if (data.remaining() == HEADER_SIZE_WITH_DATASPACE + size) {
+            headerSize = HEADER_SIZE_WITH_DATASPACE;
+        } else {
+            return null;
+        }
+        data.position(headerSize);
+        return new RawScreenshot(width, height, format, headerSize, data.slice());
+    }
+
+    private static int getBytesPerPixel(int format) {
+        switch (format) {
+            case FORMAT_RGBA_8888:
+            case FORMAT_RGBX_8888:
+            case FORMAT_BGRA_8888:
+                return 4;
+            case FORMAT_RGB_888:
+                return 3;
+            case FORMAT_RGB_565:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /** Pixel format, one of the FORMAT_ constants. */
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /** Size of the header preceding the pixels in the output of {@link #COMMAND}. */
+    public int getHeaderSize() {
+        return mHeaderSize;
+    }
+
+    public int getBytesPerPixel() {
+        return getBytesPerPixel(mFormat);
+    }
+
+    /** Pixels of the screenshot, row by row. */
+    ByteBuffer getPixels() {
+        return mPixels.duplicate();
+    }
+
+    /** Offsets of the color channels within a pixel. */
+    int[] getColorOffsets() {
+        return getBytesPerPixel() == 2 ? new int[] {0, 1} : new int[] {0, 1, 2};
+    }
+
+    /** Offset of the alpha channel within a pixel, or -1 if the pixels are opaque. */
+    int getAlphaOffset() {
+        return mFormat == FORMAT_RGBA_8888 || mFormat == FORMAT_BGRA_8888 ? 3 : -1;
+    }
+
+    /** Whether the middle half of the screenshot is black, see {@link BlackFrameDetector}. */
+    public boolean isBlack() {
+        return BlackFrameDetector.isBlack(this);
+    }
+
+    /** Color of a pixel in the ARGB format of {@link BufferedImage#getRGB(int, int)}. */
+    public int getArgb(int x, int y) {
+        int bytesPerPixel = getBytesPerPixel();
+        int i = (y * mWidth + x) * bytesPerPixel;
+        if (mFormat == FORMAT_RGB_565) {
+            int pixel = (mPixels.get(i) & 0xff) | (mPixels.get(i + 1) & 0xff) << 8;
+            int r = pixel >> 11 & 0x1f;
+            int g = pixel >> 5 & 0x3f;
+            int b = pixel & 0x1f;
+            return 0xff000000
+                    | (r << 3 | r >> 2) << 16
+                    | (g << 2 | g >> 4) << 8
+                    | (b << 3 | b >> 2);
+        }
+        int first = mPixels.get(i) & 0xff;
+        int second = mPixels.get(i + 1) & 0xff;
+        int third = mPixels.get(i + 2) & 0xff;
+        int alpha = getAlphaOffset() < 0 ? 0xff : mPixels.get(i + 3) & 0xff;
+        int r = mFormat == FORMAT_BGRA_8888 ? third : first;
+        int b = mFormat == FORMAT_BGRA_8888 ? first : third;
+        return alpha << 24 | r << 16 | second << 8 | b;
+    }
+
+    /** Encode the screenshot to PNG, e.g. to save it as a log. */
+    public InputStreamSource encodePng() throws IOException {
+        BufferedImage img = new BufferedImage(mWidth, mHeight, BufferedImage.TYPE_INT_ARGB);
+        int[] row = new int[mWidth];
+        for (int y = 0; y < mHeight; y++) {
+            for (int x = 0; x < mWidth; x++) {
+                row[x] = getArgb(x, y);
+            }
+            img.setRGB(0, y, mWidth, 1, row, 0, mWidth);
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", output);
+        return new ByteArrayInputStreamSource(output.toByteArray());
+    }
+}
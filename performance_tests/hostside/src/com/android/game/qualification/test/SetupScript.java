@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.test;
+
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.game.qualification.ApkInfo;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.metrics.proto.MetricMeasurement.DataType;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the host-side setup script of an APK.
+ *
+ * The output of the script is read while it runs, so that a script printing more than the pipe
+ * buffer does not block.  It is written to a log file, and the end of it is kept in memory for the
+ * failure message.
+ */
+public class SetupScript {
+    @VisibleForTesting
+    static final int TAIL_SIZE = 8 * 1024;
+    // Output past this size is not written to the log file, only kept in the tail.
+    @VisibleForTesting
+    static final long MAX_LOG_SIZE = 16 * 1024 * 1024;
+    // Time given to the script to exit after it is destroyed, and to its output to be read.
+    private static final long EXIT_TIMEOUT_MS = 5000;
+
+    /** Outcome of a setup script. */
+    public static class Result {
+        private final int mExitCode;
+        private final boolean mTimedOut;
+        private final long mWallTimeMs;
+        private final File mOutputFile;
+        private final String mOutputTail;
+
+        Result(
+                int exitCode,
+                boolean timedOut,
+                long wallTimeMs,
+                File outputFile,
+                String outputTail) {
+            mExitCode = exitCode;
+            mTimedOut = timedOut;
+            mWallTimeMs = wallTimeMs;
+            mOutputFile = outputFile;
+            mOutputTail = outputTail;
+        }
+
+        public boolean isSuccess() {
+            return !mTimedOut && mExitCode == 0;
+        }
+
+        public boolean isTimedOut() {
+            return mTimedOut;
+        }
+
+        public long getWallTimeMs() {
+            return mWallTimeMs;
+        }
+
+        /** File containing the output of the script. */
+        public File getOutputFile() {
+            return mOutputFile;
+        }
+
+        /** Last {@link #TAIL_SIZE} bytes of the output of the script. */
+        public String getOutputTail() {
+            return mOutputTail;
+        }
+
+        /** Reason of the failure, or null if the script succeeded. */
+        @Nullable
+        public String getFailureMessage() {
+            if (isSuccess()) {
+                return null;
+            }
+            String message = "Execution of setup script returned non-zero value:\n" + mOutputTail;
+            if (mTimedOut) {
+                message += String.format(
+                        "\n***TIMEOUT waiting %d ms for script to complete.***", mWallTimeMs);
+            }
+            return message;
+        }
+
+        /** Add the wall time of the script to the metrics of the setup test. */
+        public void addToMetrics(Map<String, Metric> metrics) {
+            metrics.put("setup_script_time", Metric.newBuilder()
+                    .setUnit("ms")
+                    .setType(DataType.RAW)
+                    .setMeasurements(Measurements.newBuilder().setSingleInt(mWallTimeMs))
+                    .build());
+        }
+    }
+
+    /** Keeps the last bytes written to it. */
+    @VisibleForTesting
+    static class TailBuffer {
+        private final byte[] mBuffer;
+        private long mCount = 0;
+
+        TailBuffer(int size) {
+            mBuffer = new byte[size];
+        }
+
+        synchronized void write(byte[] data, int offset, int length) {
+            for (int i = 0; i < length; i++) {
+                mBuffer[(int) (mCount++ % mBuffer.length)] = data[offset + i];
+            }
+        }
+
+        /** Total number of bytes written. */
+        synchronized long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (mCount <= mBuffer.length) {
+                return new String(mBuffer, 0, (int) mCount, StandardCharsets.UTF_8);
+            }
+            int start = (int) (mCount % mBuffer.length);
+            byte[] ordered = new byte[mBuffer.length];
+            System.arraycopy(mBuffer, start, ordered, 0, mBuffer.length - start);
+            System.arraycopy(mBuffer, 0, ordered, mBuffer.length - start, start);
+            return "..." + new String(ordered, StandardCharsets.UTF_8);
+        }
+    }
+
+    private SetupScript() {}
+
+    /**
+     * Run the setup script of an APK.
+     *
+     * ANDROID_SERIAL is set to the serial of the device, so the script may access the device.  A
+     * caller running it while another APK is being measured must only do so for scripts that do
+     * not touch the device.
+     *
+     * @return null if the APK has no setup script.
+     */
+    @Nullable
+    public static Result run(ApkInfo apk, File workingDirectory, String serial)
+            throws IOException, InterruptedException {
+        if (apk.getScript() == null) {
+            return null;
+        }
+        String cmd = apk.getScript();
+        CLog.i(
+                "Executing command: " + cmd + "\n"
+                        + "Working directory: " + workingDirectory.getPath());
+        ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
+        pb.environment().put("ANDROID_SERIAL", serial);
+        pb.directory(workingDirectory);
+        pb.redirectErrorStream(true);
+        File outputFile = File.createTempFile("setup-script-" + apk.getName(), ".txt");
+        return run(pb, apk.getScriptTimeout(), outputFile);
+    }
+
+    @VisibleForTesting
+    static Result run(ProcessBuilder pb, long timeoutMs, File outputFile)
+            throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        TailBuffer tail = new TailBuffer(TAIL_SIZE);
+        try (OutputStream log = new FileOutputStream(outputFile)) {
+            Process p = pb.start();
+            Thread drain = new Thread(
+                    () -> drain(p.getInputStream(), log, tail), "setup-script-output");
+            drain.setDaemon(true);
+            drain.start();
+
+            boolean finished;
+            try {
+                finished = p.waitFor(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                p.destroyForcibly();
+                throw e;
+            }
+            long wallTimeMs = System.currentTimeMillis() - start;
+            if (!finished) {
+                p.destroy();
+                if (!p.waitFor(EXIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    p.destroyForcibly();
+                }
+            }
+            // Processes started by the script may keep the output open after it exits.
+            drain.join(EXIT_TIMEOUT_MS);
+            int exitCode = finished ? p.exitValue() : -1;
+            return new Result(exitCode, !finished, wallTimeMs, outputFile, tail.toString());
+        }
+    }
+
+    private static void drain(InputStream input, OutputStream log, TailBuffer tail) {
+        byte[] buffer = new byte[4096];
+        try {
+            int length;
+            while ((length = input.read(buffer)) >= 0) {
+                long logged = tail.getCount();
+                tail.write(buffer, 0, length);
+                if (logged < MAX_LOG_SIZE) {
+                    log.write(buffer, 0, (int) Math.min(length, MAX_LOG_SIZE - logged));
+                    if (logged + length >= MAX_LOG_SIZE) {
+                        log.write("\n***Output truncated.***\n".getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // The script was destroyed or the log file is no longer writable.
+            CLog.w("Stopped reading setup script output: %s", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.testtype;
+
+import com.android.game.qualification.ApkInfo;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Time spent on each APK outside of its load and run time in previous invocations, such as
+ * installing the APK and taking the screenshot.
+ *
+ * The history is stored in a properties file so it carries over between invocations on the same
+ * host.  Each new observation is averaged with the previous estimate, so a single slow install
+ * does not dominate.
+ */
+class ApkCostHistory {
+    private final File mFile;
+    private final Properties mSetupTimesMs = new Properties();
+
+    /** Load the history from a file.  A missing or unreadable file gives an empty history. */
+    ApkCostHistory(File file) {
+        mFile = file;
+        if (!file.exists()) {
+            return;
+        }
+        try (InputStream input = new FileInputStream(file)) {
+            mSetupTimesMs.load(input);
+        } catch (IOException | IllegalArgumentException e) {
+            CLog.w("Unable to read APK cost history %s: %s", file, e.getMessage());
+            mSetupTimesMs.clear();
+        }
+    }
+
+    /** Observed time spent outside of the load and run time, or 0 if the APK was never run. */
+    synchronized long getSetupTimeMs(String apkName) {
+        String value = mSetupTimesMs.getProperty(apkName);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Expected wall-clock time to run all the tests of an APK. */
+    long getExpectedCostMs(ApkInfo apk) {
+        return (long) apk.getLoadTime() + apk.getRunTime() + getSetupTimeMs(apk.getName());
+    }
+
+    /**
+     * Record the wall-clock time taken by the tests of an APK other than the RUN test, and save the
+     * history.
+     *
+     * @param setupMs time spent outside of the RUN test.  Its repeats and the waits for the device
+     *                to be quiescent are not part of it.
+     */
+    synchronized void record(ApkInfo apk, long setupMs) {
+        setupMs = Math.max(0, setupMs);
+        long previousMs = getSetupTimeMs(apk.getName());
+        if (mSetupTimesMs.containsKey(apk.getName())) {
+            setupMs = (setupMs + previousMs) / 2;
+        }
+        mSetupTimesMs.setProperty(apk.getName(), Long.toString(setupMs));
+        try (OutputStream output = new FileOutputStream(mFile)) {
+            mSetupTimesMs.store(output, "Game qualification APK setup times in ms");
+        } catch (IOException e) {
+            CLog.w("Unable to save APK cost history %s: %s", mFile, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.testtype;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.game.qualification.ApkInfo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Include and exclude filters applied to the names of the APKs.
+ *
+ * A filter matches an APK if the whole name matches it.  A filter is a glob, where '*' matches any
+ * sequence of characters, '?' any single character and every other character only itself, unless
+ * it starts with {@link #REGEX_PREFIX}, in which case the rest of it is a regular expression.  An
+ * APK is run if it matches any include filter, or if there is none, and no exclude filter.
+ */
+class ApkFilter {
+    static final String REGEX_PREFIX = "regex:";
+
+    private final List<Pattern> mIncludes;
+    private final List<Pattern> mExcludes;
+
+    ApkFilter(Collection<String> includeFilters, Collection<String> excludeFilters) {
+        mIncludes = compile(includeFilters);
+        mExcludes = compile(excludeFilters);
+    }
+
+    boolean shouldRun(String apkName) {
+        if (!mIncludes.isEmpty() && !matchesAny(mIncludes, apkName)) {
+            return false;
+        }
+        return !matchesAny(mExcludes, apkName);
+    }
+
+    /** The APKs to run, in the same order. */
+    List<ApkInfo> apply(List<ApkInfo> apks) {
+        List<ApkInfo> result = new ArrayList<>();
+        for (ApkInfo apk : apks) {
+            if (shouldRun(apk.getName())) {
+                result.add(apk);
+            }
+        }
+        return result;
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String apkName) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(apkName).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Pattern> compile(Collection<String> filters) {
+        List<Pattern> patterns = new ArrayList<>();
+        for (String filter : filters) {
+            if (filter.startsWith(REGEX_PREFIX)) {
+                // Throws PatternSyntaxException rather than silently running every APK.
+                patterns.add(Pattern.compile(filter.substring(REGEX_PREFIX.length())));
+            } else {
+                patterns.add(Pattern.compile(globToRegex(filter)));
+            }
+        }
+        return patterns;
+    }
+
+    @VisibleForTesting
+    static String globToRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) {
+                    sb.append(Pattern.quote(glob.substring(start, i)));
+                }
+                sb.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < glob.length()) {
+            sb.append(Pattern.quote(glob.substring(start)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.testtype;
+
+import com.android.annotations.Nullable;
+import com.android.game.qualification.ApkInfo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Queue of APKs that are left to run, shared by the shards of an invocation.
+ *
+ * Each shard takes the next APK when it is done with the previous one, so a shard that got short
+ * APKs keeps working while another one runs a long APK.  Sorting the APKs from the most to the
+ * least expensive keeps the long APKs from being left for the end.
+ */
+class ApkWorkQueue {
+    private final Queue<ApkInfo> mApks;
+
+    /** Create a queue returning the APKs in the given order. */
+    ApkWorkQueue(List<ApkInfo> apks) {
+        mApks = new ArrayDeque<>(apks);
+    }
+
+    /** Create a queue returning the APKs with the highest expected cost first. */
+    static ApkWorkQueue byExpectedCost(List<ApkInfo> apks, ApkCostHistory history) {
+        List<ApkInfo> sorted = new ArrayList<>(apks);
+        // List.sort is stable, so APKs of equal cost keep the order of the apk-info file.
+        sorted.sort((a, b) ->
+                Long.compare(history.getExpectedCostMs(b), history.getExpectedCostMs(a)));
+        return new ApkWorkQueue(sorted);
+    }
+
+    /** Take the next APK to run, or null if there is none left. */
+    @Nullable
+    synchronized ApkInfo poll() {
+        return mApks.poll();
+    }
+
+    synchronized int size() {
+        return mApks.size();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.testtype;
+
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.FileInputStreamSource;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.TestDescription;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Forwards the results of one device to a listener shared by all the devices of the invocation.
+ *
+ * Events are buffered until a test ends, then forwarded to the shared listener all at once, so the
+ * results of tests running concurrently on different devices do not interleave.  The test run is
+ * reported once for all devices by {@link GameQualificationHostsideController}.  When the run of
+ * the device ends, the events still buffered, e.g. logs of the collectors, are forwarded, and its
+ * run metrics are added to those of all devices under the name of the device.  A failed run is
+ * forwarded with the name of the device.
+ */
+class DeviceResultForwarder implements ITestInvocationListener {
+    private final ITestInvocationListener mListener;
+    private final Object mLock;
+    private final String mDeviceName;
+    private final HashMap<String, Metric> mRunMetrics;
+    private final List<Consumer<ITestInvocationListener>> mEvents = new ArrayList<>();
+
+    /**
+     * @param listener the listener shared by all devices.
+     * @param lock the lock held while forwarding events to listener.
+     * @param deviceName name of the device in the run failures and run metrics.
+     * @param runMetrics run metrics of all devices, only modified while holding lock.
+     */
+    DeviceResultForwarder(
+            ITestInvocationListener listener,
+            Object lock,
+            String deviceName,
+            HashMap<String, Metric> runMetrics) {
+        mListener = listener;
+        mLock = lock;
+        mDeviceName = deviceName;
+        mRunMetrics = runMetrics;
+    }
+
+    @Override
+    public void testRunStarted(String runName, int testCount) {
+        // Do nothing.
+    }
+
+    @Override
+    public void testRunFailed(String errorMessage) {
+        mEvents.add(l -> l.testRunFailed(mDeviceName + ": " + errorMessage));
+        flush();
+    }
+
+    @Override
+    public void testRunEnded(long elapsedTimeMillis, HashMap<String, Metric> runMetrics) {
+        synchronized (mLock) {
+            for (Map.Entry<String, Metric> metric : runMetrics.entrySet()) {
+                mRunMetrics.put(mDeviceName + "." + metric.getKey(), metric.getValue());
+            }
+        }
+        flush();
+    }
+
+    @Override
+    public void testStarted(TestDescription test) {
+        mEvents.add(l -> l.testStarted(test));
+    }
+
+    @Override
+    public void testStarted(TestDescription test, long startTime) {
+        mEvents.add(l -> l.testStarted(test, startTime));
+    }
+
+    @Override
+    public void testFailed(TestDescription test, String trace) {
+        mEvents.add(l -> l.testFailed(test, trace));
+    }
+
+    @Override
+    public void testAssumptionFailure(TestDescription test, String trace) {
+        mEvents.add(l -> l.testAssumptionFailure(test, trace));
+    }
+
+    @Override
+    public void testIgnored(TestDescription test) {
+        mEvents.add(l -> l.testIgnored(test));
+    }
+
+    @Override
+    public void testEnded(TestDescription test, HashMap<String, Metric> testMetrics) {
+        mEvents.add(l -> l.testEnded(test, testMetrics));
+        flush();
+    }
+
+    @Override
+    public void testEnded(TestDescription test, long endTime, HashMap<String, Metric> testMetrics) {
+        mEvents.add(l -> l.testEnded(test, endTime, testMetrics));
+        flush();
+    }
+
+    @Override
+    public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
+        // The source is usually closed as soon as testLog returns, so keep a copy until the events
+        // are forwarded.
+        File copy;
+        try {
+            copy = File.createTempFile("GameQualification-" + dataName, ".tmp");
+            try (InputStream input = dataStream.createInputStream();
+                 OutputStream output = new FileOutputStream(copy)) {
+                ByteStreams.copy(input, output);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        mEvents.add(l -> {
+            try (InputStreamSource source = new FileInputStreamSource(copy, true)) {
+                l.testLog(dataName, dataType, source);
+            }
+        });
+    }
+
+    private void flush() {
+        synchronized (mLock) {
+            for (Consumer<ITestInvocationListener> event : mEvents) {
+                event.accept(mListener);
+            }
+        }
+        mEvents.clear();
+    }
+}
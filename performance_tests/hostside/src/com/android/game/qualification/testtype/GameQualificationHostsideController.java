@@ -16,13 +16,23 @@
 
 package com.android.game.qualification.testtype;
 
+import com.android.annotations.Nullable;
 import com.android.game.qualification.ApkInfo;
 import com.android.game.qualification.CertificationRequirements;
 import com.android.game.qualification.GameCoreConfiguration;
 import com.android.game.qualification.GameCoreConfigurationXmlParser;
 import com.android.game.qualification.metric.BaseGameQualificationMetricCollector;
+import com.android.game.qualification.metric.EventTimeline;
+import com.android.game.qualification.metric.GameQualificationFpsCollector;
+import com.android.game.qualification.metric.MetricSummary;
+import com.android.game.qualification.metric.RepeatSummary;
 import com.android.game.qualification.reporter.GameQualificationResultReporter;
+import com.android.game.qualification.reporter.ResultCheckpoint;
+import com.android.game.qualification.test.ApkInstallCache;
+import com.android.game.qualification.test.DeviceSession;
 import com.android.game.qualification.test.PerformanceTest;
+import com.android.game.qualification.test.QuiescenceGate;
+import com.android.game.qualification.test.SetupScript;
 import com.android.tradefed.config.IConfiguration;
 import com.android.tradefed.config.IConfigurationReceiver;
 import com.android.tradefed.config.Option;
@@ -33,6 +43,8 @@ import com.android.tradefed.device.metric.IMetricCollectorReceiver;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.metrics.proto.MetricMeasurement;
+import com.android.tradefed.metrics.proto.MetricMeasurement.DataType;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.TestDescription;
 import com.android.tradefed.testtype.IDeviceTest;
@@ -54,10 +66,15 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -71,6 +88,8 @@ public class GameQualificationHostsideController implements
     // Package and class of the device side test.
     public static final String PACKAGE = "com.android.game.qualification.device";
     public static final String CLASS = PACKAGE + ".GameQualificationTest";
+    // Test reporting the statistics of the repeated runs of an APK.
+    private static final String REPEATS_TEST = "repeats";
 
     private ITestDevice mDevice;
     private IConfiguration mConfiguration = null;
@@ -83,6 +102,12 @@ public class GameQualificationHostsideController implements
     private ArrayList<BaseGameQualificationMetricCollector> mAGQMetricCollectors;
     private Set<String> mIncludeFilters = new HashSet<>();
     private Set<String> mExcludeFilters = new HashSet<>();
+    // Shared by all the shards created by split(), null if the test is not sharded.
+    @Nullable
+    private ApkWorkQueue mWorkQueue;
+    @Nullable
+    private ApkCostHistory mCostHistory;
+    private ApkInstallCache mInstallCache = new ApkInstallCache();
 
     @Override
     public void setDevice(ITestDevice device) {
@@ -107,6 +132,96 @@ public class GameQualificationHostsideController implements
             importance = Option.Importance.ALWAYS)
     private String mApkDir;
 
+    @Option(name = "parallel-devices",
+            description = "When the invocation has more than one device, run the APKs on all the "
+                    + "devices concurrently instead of only on the first device.")
+    private boolean mParallelDevices = true;
+
+    @Option(name = "apk-cost-history",
+            description = "File recording the time spent installing and setting up each APK, "
+                    + "used to schedule the most expensive APKs first when the test is sharded.  "
+                    + "Defaults to a file in the temporary directory of the host.")
+    private String mApkCostHistoryFileName;
+
+    @Option(name = "keep-installed",
+            description = "Keep the APKs installed after the tests and clear their data instead.  "
+                    + "An APK that is still installed is not pushed again if it did not change.")
+    private boolean mKeepInstalled = false;
+
+    @Option(name = "pipeline-setup-scripts",
+            description = "Run the setup script of the next APK while the current APK is "
+                    + "measured.  Only use with scripts that do not access the device.")
+    private boolean mPipelineSetupScripts = false;
+
+    @Option(name = "quiescence-timeout",
+            description = "Before each run, wait up to this many milliseconds for the CPU load, "
+                    + "the temperature and the dexopt processes of the device to be within the "
+                    + "--quiescence-* thresholds.  0 disables the wait.")
+    private long mQuiescenceTimeoutMs = 0;
+
+    @Option(name = "quiescence-max-cpu-load",
+            description = "Highest fraction of non-idle CPU time for the device to be quiescent.")
+    private double mQuiescenceMaxCpuLoad = 0.1;
+
+    @Option(name = "quiescence-max-temperature",
+            description = "Highest temperature of the hottest thermal zone in degree Celsius for "
+                    + "the device to be quiescent.")
+    private double mQuiescenceMaxTemperatureC = 40.0;
+
+    @Option(name = "quiescence-wait-for-dexopt",
+            description = "Wait for all dexopt processes to finish for the device to be "
+                    + "quiescent.")
+    private boolean mQuiescenceWaitForDexopt = true;
+
+    @Option(name = "quiescence-poll-interval",
+            description = "Time between two probes of the device in milliseconds.  The CPU load "
+                    + "is measured over this interval.")
+    private long mQuiescencePollIntervalMs = 1000;
+
+    @Option(name = "raw-screenshot",
+            description = "Capture the screenshot of each APK as raw pixels and only encode it to "
+                    + "PNG if it is saved, instead of taking a PNG screenshot.")
+    private boolean mRawScreenshot = false;
+
+    @Option(name = "keep-screenshots",
+            description = "Save the screenshot of every APK as a log.  Otherwise only the black "
+                    + "screenshots are saved.")
+    private boolean mKeepScreenshots = true;
+
+    @Option(name = "instrumentation-session",
+            description = "Start a single instrumentation on each device that launches all the "
+                    + "APKs, instead of starting an instrumentation for each APK.  Each APK runs "
+                    + "in its own instrumentation if the session cannot be started.")
+    private boolean mInstrumentationSession = true;
+
+    @Option(name = "rerun-failures-from",
+            description = "Checkpoint file written with --checkpoint-file by a previous "
+                    + "invocation.  Only the APKs that failed or did not complete in that "
+                    + "invocation are run.  Must not be the --checkpoint-file of this invocation.")
+    private String mRerunFailuresFrom;
+
+    @Option(name = "max-repeats",
+            description = "Maximum number of times the run test of each APK is repeated until "
+                    + "--convergence-metric converges.  The APK is not reinstalled between "
+                    + "repeats.  1 runs each APK once.")
+    private int mMaxRepeats = 1;
+
+    @Option(name = "min-repeats",
+            description = "Minimum number of runs of each APK before --convergence-metric is "
+                    + "considered converged when --max-repeats is more than 1.  At least 2.")
+    private int mMinRepeats = 3;
+
+    @Option(name = "convergence-metric",
+            description = "Metric whose confidence interval decides when to stop repeating the "
+                    + "run test.  Computed from the loops checked for certification.")
+    private RepeatSummary.ConvergenceMetric mConvergenceMetric =
+            RepeatSummary.ConvergenceMetric.AVG_FRAME_TIME;
+
+    @Option(name = "convergence-threshold",
+            description = "Stop repeating when the half-width of the 95% confidence interval of "
+                    + "--convergence-metric is at most this fraction of its mean.")
+    private double mConvergenceThreshold = 0.02;
+
     private String getApkDir() {
         if (mApkDir == null) {
             String out = System.getenv("ANDROID_PRODUCT_OUT");
@@ -186,29 +301,66 @@ public class GameQualificationHostsideController implements
         mConfiguration = configuration;
     }
 
+    /**
+     * Create shards pulling APKs from a shared queue.
+     *
+     * APKs are not assigned to shards up front.  Instead, each shard takes the next APK from the
+     * queue when it is done with the previous one, starting with the APKs expected to take the
+     * longest, so the shards finish at about the same time.
+     */
     @Override
     public Collection<IRemoteTest> split(int shardCountHint) {
         initApkList();
+        ApkCostHistory history = new ApkCostHistory(getApkCostHistoryFile());
+        ApkWorkQueue queue = ApkWorkQueue.byExpectedCost(mApks, history);
         List<IRemoteTest> shards = new ArrayList<>();
-        for(int i = 0; i < shardCountHint; i++) {
-            if (i >= mApks.size()) {
-                break;
-            }
-            List<ApkInfo> apkInfo = new ArrayList<>();
-            for(int j = i; j < mApks.size(); j += shardCountHint) {
-                apkInfo.add(mApks.get(j));
-            }
+        for(int i = 0; i < Math.min(shardCountHint, mApks.size()); i++) {
             GameQualificationHostsideController shard = new GameQualificationHostsideController();
-            shard.mApks = apkInfo;
+            shard.mApks = mApks;
+            shard.mWorkQueue = queue;
+            shard.mCostHistory = history;
+            shard.mGameCoreConfiguration = mGameCoreConfiguration;
             shard.mApkDir = getApkDir();
             shard.mApkInfoFileName = mApkInfoFileName;
             shard.mApkInfoFile = mApkInfoFile;
+            shard.mParallelDevices = mParallelDevices;
+            shard.mKeepInstalled = mKeepInstalled;
+            shard.mInstallCache = mInstallCache;
+            shard.mPipelineSetupScripts = mPipelineSetupScripts;
+            shard.mMaxRepeats = mMaxRepeats;
+            shard.mMinRepeats = mMinRepeats;
+            shard.mConvergenceMetric = mConvergenceMetric;
+            shard.mConvergenceThreshold = mConvergenceThreshold;
+            shard.mQuiescenceTimeoutMs = mQuiescenceTimeoutMs;
+            shard.mQuiescenceMaxCpuLoad = mQuiescenceMaxCpuLoad;
+            shard.mQuiescenceMaxTemperatureC = mQuiescenceMaxTemperatureC;
+            shard.mQuiescenceWaitForDexopt = mQuiescenceWaitForDexopt;
+            shard.mQuiescencePollIntervalMs = mQuiescencePollIntervalMs;
+            shard.mRawScreenshot = mRawScreenshot;
+            shard.mKeepScreenshots = mKeepScreenshots;
+            shard.mInstrumentationSession = mInstrumentationSession;
 
             shards.add(shard);
         }
         return shards;
     }
 
+    private File getApkCostHistoryFile() {
+        if (mApkCostHistoryFileName != null) {
+            return new File(mApkCostHistoryFileName);
+        }
+        return new File(
+                System.getProperty("java.io.tmpdir"), "gamequalification-apk-cost.properties");
+    }
+
+    /**
+     * Number of APKs this test will run on each device.  A shard does not know how many APKs it
+     * will take from the shared queue, so it reports 0.
+     */
+    private int getApkCount() {
+        return mWorkQueue == null ? mApks.size() : 0;
+    }
+
     @Override
     public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
         // Find result reporter
@@ -222,72 +374,442 @@ public class GameQualificationHostsideController implements
         }
 
         assert !(mAGQMetricCollectors.isEmpty());
-        for (IMetricCollector collector : mCollectors) {
-            listener = collector.init(mContext, listener);
+        initApkList();
+
+        List<ITestDevice> devices = getTestDevices();
+        if (devices.size() == 1) {
+            for (IMetricCollector collector : mCollectors) {
+                listener = collector.init(mContext, listener);
+            }
+            for (BaseGameQualificationMetricCollector collector : mAGQMetricCollectors) {
+                collector.setDevice(getDevice());
+            }
+
+            HashMap<String, MetricMeasurement.Metric> runMetrics = new HashMap<>();
+            long startTime = System.currentTimeMillis();
+            listener.testRunStarted("gamequalification", getApkCount());
+            runApks(getDevice(), null, mAGQMetricCollectors, listener);
+            listener.testRunEnded(System.currentTimeMillis() - startTime, runMetrics);
+            return;
         }
 
-        for (BaseGameQualificationMetricCollector collector : mAGQMetricCollectors) {
-            collector.setDevice(getDevice());
+        // Collectors that are not aware of devices see the merged results of all devices.
+        for (IMetricCollector collector : mCollectors) {
+            if (!(collector instanceof BaseGameQualificationMetricCollector)) {
+                listener = collector.init(mContext, listener);
+            }
         }
 
         HashMap<String, MetricMeasurement.Metric> runMetrics = new HashMap<>();
-
-        initApkList();
-        getDevice().pushFile(mApkInfoFile, ApkInfo.APK_LIST_LOCATION);
-
         long startTime = System.currentTimeMillis();
-        listener.testRunStarted("gamequalification", mApks.size());
-
-        for (ApkInfo apk : mApks) {
-            PerformanceTest test =
-                    new PerformanceTest(
-                            getDevice(),
-                            listener,
-                            mAGQMetricCollectors,
-                            apk,
-                            getApkDir(),
-                            mApkInfoFile.getParentFile());
-            for (BaseGameQualificationMetricCollector collector : mAGQMetricCollectors) {
-                collector.setApkInfo(apk);
-                collector.setCertificationRequirements(
-                        mGameCoreConfiguration.findCertificationRequirements(apk.getName()));
+        listener.testRunStarted("gamequalification", getApkCount() * devices.size());
+
+        final ITestInvocationListener sharedListener = listener;
+        final Object lock = new Object();
+        ExecutorService executor = Executors.newFixedThreadPool(devices.size());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (ITestDevice device : devices) {
+                futures.add(executor.submit(() -> {
+                    runOnDevice(device, sharedListener, lock, runMetrics);
+                    return null;
+                }));
             }
-            for (PerformanceTest.Test t : PerformanceTest.Test.values()) {
-                TestDescription identifier = new TestDescription(CLASS, t.getName() + "[" + apk.getName() + "]");
-                if (t.isEnableCollectors()) {
-                    for (BaseGameQualificationMetricCollector collector : mAGQMetricCollectors) {
-                        collector.enable();
-                    }
-                    if (mResultReporter != null) {
-                        CertificationRequirements req =
-                                mGameCoreConfiguration.findCertificationRequirements(apk.getName());
-                        if (req != null) {
-                            mResultReporter.putRequirements(identifier, req);
+            DeviceNotAvailableException deviceNotAvailable = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof DeviceNotAvailableException) {
+                        if (deviceNotAvailable == null) {
+                            deviceNotAvailable = (DeviceNotAvailableException) e.getCause();
                         }
+                    } else {
+                        throw new RuntimeException(e.getCause());
                     }
                 }
-                listener.testStarted(identifier);
-                try {
-                    t.getMethod().run(test);
-                } catch(AssumptionViolatedException e) {
-                    listener.testAssumptionFailure(identifier, e.getMessage());
-                } catch (Error | Exception e) {
-                    test.failed();
-                    listener.testFailed(identifier, e.getMessage());
+            }
+            if (deviceNotAvailable != null) {
+                throw deviceNotAvailable;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+        listener.testRunEnded(System.currentTimeMillis() - startTime, runMetrics);
+    }
+
+    /**
+     * Get the devices to run the APKs on.
+     *
+     * All devices of the invocation are used if --parallel-devices is set.  Otherwise, only the
+     * device set by {@link #setDevice(ITestDevice)} is used.
+     */
+    private List<ITestDevice> getTestDevices() {
+        if (!mParallelDevices || mContext == null || mContext.getDevices().size() <= 1) {
+            return Collections.singletonList(getDevice());
+        }
+        return mContext.getDevices();
+    }
+
+    /**
+     * Run all the APKs on one device of a multi-device invocation.
+     *
+     * Each device gets its own collectors, created from the collectors of the configuration, so
+     * that no collector state is shared between devices.
+     *
+     * @param runMetrics run metrics of all devices, only modified while holding lock.
+     */
+    private void runOnDevice(
+            ITestDevice device,
+            ITestInvocationListener listener,
+            Object lock,
+            HashMap<String, MetricMeasurement.Metric> runMetrics)
+            throws DeviceNotAvailableException {
+        String deviceName = mContext.getDeviceName(device);
+        ITestInvocationListener deviceListener =
+                new DeviceResultForwarder(listener, lock, deviceName, runMetrics);
+        List<BaseGameQualificationMetricCollector> sessions = new ArrayList<>();
+        for (BaseGameQualificationMetricCollector collector : mAGQMetricCollectors) {
+            BaseGameQualificationMetricCollector session = collector.createSession(device);
+            deviceListener = session.init(mContext, deviceListener);
+            sessions.add(session);
+        }
+        deviceListener.testRunStarted("gamequalification", getApkCount());
+        long startTime = System.currentTimeMillis();
+        try {
+            runApks(device, deviceName, sessions, deviceListener);
+        } catch (DeviceNotAvailableException | RuntimeException e) {
+            deviceListener.testRunFailed(e.toString());
+            throw e;
+        } finally {
+            // Forwards what the collectors report at the end of the run.
+            deviceListener.testRunEnded(
+                    System.currentTimeMillis() - startTime,
+                    new HashMap<String, MetricMeasurement.Metric>());
+        }
+    }
+
+    /**
+     * Run all the APKs on a device.
+     *
+     * @param deviceName name of the device to be added to the test names.  null if the invocation
+     *                   only has one device.
+     */
+    private void runApks(
+            ITestDevice device,
+            @Nullable String deviceName,
+            List<BaseGameQualificationMetricCollector> collectors,
+            ITestInvocationListener listener) throws DeviceNotAvailableException {
+        device.pushFile(mApkInfoFile, ApkInfo.APK_LIST_LOCATION);
+        EventTimeline timeline = new EventTimeline();
+        for (BaseGameQualificationMetricCollector collector : collectors) {
+            collector.setPeers(collectors);
+            collector.setEventTimeline(timeline);
+        }
+
+        // Without sharding, every device runs all the APKs in order.
+        ApkWorkQueue queue = mWorkQueue != null ? mWorkQueue : new ApkWorkQueue(mApks);
+        ExecutorService setupExecutor =
+                mPipelineSetupScripts ? Executors.newSingleThreadExecutor() : null;
+        DeviceSession session = mInstrumentationSession ? new DeviceSession(device) : null;
+        if (session != null) {
+            // Starts while the first APK is installed.
+            session.start();
+        }
+        try {
+            ApkInfo apk = pollApk(queue, deviceName);
+            Future<SetupScript.Result> preparedSetup = null;
+            while (apk != null) {
+                // When pipelining, the next APK is taken now so that its setup script runs while
+                // this APK is measured.
+                ApkInfo next = setupExecutor != null ? pollApk(queue, deviceName) : null;
+                Future<SetupScript.Result> nextPreparedSetup = null;
+                long apkStartTime = System.currentTimeMillis();
+                long runTestsMs = 0;
+                PerformanceTest test =
+                        new PerformanceTest(
+                                device,
+                                listener,
+                                collectors,
+                                apk,
+                                getApkDir(),
+                                mApkInfoFile.getParentFile(),
+                                mInstallCache,
+                                mKeepInstalled);
+                test.setPreparedSetup(preparedSetup);
+                test.setRawScreenshot(mRawScreenshot);
+                test.setKeepScreenshots(mKeepScreenshots);
+                test.setEventTimeline(timeline);
+                test.setSession(session);
+                if (mQuiescenceTimeoutMs > 0) {
+                    test.setQuiescenceGate(new QuiescenceGate(
+                            mQuiescenceMaxCpuLoad,
+                            mQuiescenceMaxTemperatureC,
+                            mQuiescenceWaitForDexopt,
+                            mQuiescenceTimeoutMs,
+                            mQuiescencePollIntervalMs));
                 }
-                listener.testEnded(identifier, new HashMap<String, MetricMeasurement.Metric>());
+                for (BaseGameQualificationMetricCollector collector : collectors) {
+                    collector.setApkInfo(apk);
+                    collector.setCertificationRequirements(
+                            mGameCoreConfiguration.findCertificationRequirements(apk.getName()));
+                }
+                for (PerformanceTest.Test t : PerformanceTest.Test.values()) {
+                    if (t == PerformanceTest.Test.RUN) {
+                        long runStartTime = System.currentTimeMillis();
+                        runRepeats(test, apk, deviceName, collectors, listener);
+                        runTestsMs += System.currentTimeMillis() - runStartTime;
+                    } else {
+                        runTest(t, test, apk, getTestDescription(t.getName(), apk, 0, deviceName),
+                                collectors, listener);
+                    }
 
-                if (t.isEnableCollectors()) {
-                    for (BaseGameQualificationMetricCollector collector : mAGQMetricCollectors) {
-                        if (collector.hasError()) {
-                            listener.testFailed(identifier, collector.getErrorMessage());
-                        }
-                        collector.disable();
+                    if (t == PerformanceTest.Test.SETUP && next != null) {
+                        // Nothing else runs on the host for this APK until it is torn down.
+                        nextPreparedSetup = setupExecutor.submit(() ->
+                                SetupScript.run(
+                                        next,
+                                        mApkInfoFile.getParentFile(),
+                                        device.getSerialNumber()));
                     }
                 }
+                if (mCostHistory != null) {
+                    // The load and run time are known, and repeats vary between invocations.
+                    mCostHistory.record(
+                            apk, System.currentTimeMillis() - apkStartTime - runTestsMs);
+                }
+
+                apk = setupExecutor != null ? next : pollApk(queue, deviceName);
+                preparedSetup = nextPreparedSetup;
+            }
+        } finally {
+            if (setupExecutor != null) {
+                setupExecutor.shutdownNow();
+            }
+            if (session != null) {
+                stopSession(session);
             }
         }
-        listener.testRunEnded(System.currentTimeMillis() - startTime, runMetrics);
+    }
+
+    private void stopSession(DeviceSession session) throws DeviceNotAvailableException {
+        try {
+            session.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Take the next APK from the queue that was not completed on the device by the invocation
+     * being resumed.
+     *
+     * @return null if there is no APK left.
+     */
+    @Nullable
+    private ApkInfo pollApk(ApkWorkQueue queue, @Nullable String deviceName) {
+        ApkInfo apk;
+        while ((apk = queue.poll()) != null) {
+            if (mResultReporter == null
+                    || !mResultReporter.isCompleted(apk.getName(), deviceName)) {
+                return apk;
+            }
+            CLog.i("Skipping %s, it was completed by the resumed invocation.", apk.getName());
+        }
+        return null;
+    }
+
+    /**
+     * Run one of the tests of an APK.
+     *
+     * @return whether the test passed.
+     */
+    private boolean runTest(
+            PerformanceTest.Test t,
+            PerformanceTest test,
+            ApkInfo apk,
+            TestDescription identifier,
+            List<BaseGameQualificationMetricCollector> collectors,
+            ITestInvocationListener listener) {
+        boolean passed = true;
+        if (t.isEnableCollectors()) {
+            for (BaseGameQualificationMetricCollector collector : collectors) {
+                collector.enable();
+            }
+            if (mResultReporter != null) {
+                CertificationRequirements req = mGameCoreConfiguration
+                        .findCertificationRequirements(apk.getName());
+                if (req != null) {
+                    mResultReporter.putRequirements(identifier, req);
+                }
+            }
+        }
+        listener.testStarted(identifier);
+        try {
+            t.getMethod().run(test);
+        } catch(AssumptionViolatedException e) {
+            passed = false;
+            listener.testAssumptionFailure(identifier, e.getMessage());
+        } catch (Error | Exception e) {
+            passed = false;
+            test.failed();
+            listener.testFailed(identifier, e.getMessage());
+        }
+        HashMap<String, MetricMeasurement.Metric> metrics = new HashMap<>();
+        if (t == PerformanceTest.Test.SETUP) {
+            metrics.put(
+                    GameQualificationResultReporter.INSTALL_BYTES_SAVED_KEY,
+                    MetricMeasurement.Metric.newBuilder()
+                            .setUnit("bytes")
+                            .setType(DataType.RAW)
+                            .setMeasurements(Measurements.newBuilder()
+                                    .setSingleInt(test.getInstallBytesSaved()))
+                            .build());
+        }
+        if (t == PerformanceTest.Test.SETUP && test.getSetupScriptResult() != null) {
+            test.getSetupScriptResult().addToMetrics(metrics);
+        }
+        if (t == PerformanceTest.Test.RUN && test.getQuiescence() != null) {
+            test.getQuiescence().addToMetrics(metrics);
+        }
+        listener.testEnded(identifier, metrics);
+
+        if (t.isEnableCollectors()) {
+            for (BaseGameQualificationMetricCollector collector : collectors) {
+                if (collector.hasError()) {
+                    passed = false;
+                    listener.testFailed(identifier, collector.getErrorMessage());
+                }
+                collector.disable();
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Run the RUN test of an APK until the confidence interval of --convergence-metric is within
+     * --convergence-threshold of its mean, or --max-repeats runs were done.
+     *
+     * The APK stays installed between repeats, only the app is stopped.  When the APK is run more
+     * than once, the statistics of the repeats are reported in an extra test.
+     */
+    private void runRepeats(
+            PerformanceTest test,
+            ApkInfo apk,
+            @Nullable String deviceName,
+            List<BaseGameQualificationMetricCollector> collectors,
+            ITestInvocationListener listener) throws DeviceNotAvailableException {
+        GameQualificationFpsCollector fpsCollector = null;
+        for (BaseGameQualificationMetricCollector collector : collectors) {
+            if (collector instanceof GameQualificationFpsCollector) {
+                fpsCollector = (GameQualificationFpsCollector) collector;
+            }
+        }
+        int maxRepeats = Math.max(1, mMaxRepeats);
+        int minRepeats = Math.max(2, mMinRepeats);
+        RepeatSummary.Builder repeats = new RepeatSummary.Builder(mConvergenceMetric);
+        for (int i = 0; i < maxRepeats; i++) {
+            if (i > 0) {
+                test.stopApp();
+            }
+            awaitQuiescence(test);
+            boolean passed = runTest(
+                    PerformanceTest.Test.RUN,
+                    test,
+                    apk,
+                    getTestDescription(
+                            PerformanceTest.Test.RUN.getName(), apk, i, deviceName),
+                    collectors,
+                    listener);
+            if (maxRepeats == 1) {
+                return;
+            }
+            MetricSummary summary = null;
+            if (fpsCollector != null) {
+                synchronized (fpsCollector) {
+                    summary = fpsCollector.getSummary();
+                }
+            }
+            if (!passed || summary == null || !repeats.addRepeat(summary)) {
+                CLog.w("Stopping repeats of %s, run %d did not produce frame metrics.",
+                        apk.getName(), i);
+                break;
+            }
+            RepeatSummary current = repeats.build();
+            if (current.getCount() >= minRepeats && current.isConverged(mConvergenceThreshold)) {
+                CLog.i("%s converged after %d repeats: %s",
+                        apk.getName(), current.getCount(), current);
+                break;
+            }
+        }
+
+        RepeatSummary summary = repeats.build();
+        if (summary.getCount() == 0) {
+            return;
+        }
+        if (!summary.isConverged(mConvergenceThreshold)) {
+            CLog.w("%s did not converge after %d repeats: %s",
+                    apk.getName(), summary.getCount(), summary);
+        }
+        TestDescription identifier = getTestDescription(REPEATS_TEST, apk, 0, deviceName);
+        listener.testStarted(identifier);
+        HashMap<String, MetricMeasurement.Metric> metrics = new HashMap<>();
+        summary.addToMetrics(metrics);
+        listener.testEnded(identifier, metrics);
+    }
+
+    // The collectors are not enabled and the run test is not started yet while waiting.
+    private static void awaitQuiescence(PerformanceTest test) throws DeviceNotAvailableException {
+        try {
+            test.awaitQuiescence();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Name of a test of an APK.
+     *
+     * @param repeat index of the run when a test is repeated.  Only repeats after the first one
+     *               have it appended to the name.
+     */
+    private static TestDescription getTestDescription(
+            String testName, ApkInfo apk, int repeat, @Nullable String deviceName) {
+        String name = testName + "[" + apk.getName() + "]";
+        if (repeat > 0) {
+            name += "#" + repeat;
+        }
+        if (deviceName != null) {
+            name += "{" + deviceName + "}";
+        }
+        return new TestDescription(CLASS, name);
+    }
+
+    /**
+     * Apply the include and exclude filters to the names of the APKs, and skip the APKs that
+     * passed in --rerun-failures-from.
+     */
+    private List<ApkInfo> filterApks(List<ApkInfo> apks) throws FileNotFoundException {
+        List<ApkInfo> result = new ApkFilter(mIncludeFilters, mExcludeFilters).apply(apks);
+        if (mRerunFailuresFrom != null) {
+            File file = new File(mRerunFailuresFrom);
+            if (!file.exists()) {
+                throw new FileNotFoundException("Unable to find results to rerun: " + file);
+            }
+            Set<String> passed = new ResultCheckpoint(file).getPassedApkNames();
+            result.removeIf(apk -> passed.contains(apk.getName()));
+            CLog.i("Rerunning %d APKs that failed or did not complete in %s.",
+                    result.size(), file);
+        }
+        if (result.isEmpty()) {
+            CLog.w("No APK left to run after applying the filters.");
+        }
+        return result;
     }
 
     private void initApkList() {
@@ -323,7 +845,7 @@ public class GameQualificationHostsideController implements
         GameCoreConfigurationXmlParser parser = new GameCoreConfigurationXmlParser();
         try {
             mGameCoreConfiguration = parser.parse(mApkInfoFile);
-            mApks = mGameCoreConfiguration.getApkInfo();
+            mApks = filterApks(mGameCoreConfiguration.getApkInfo());
         } catch (IOException | ParserConfigurationException | SAXException e) {
             throw new RuntimeException(e);
         }
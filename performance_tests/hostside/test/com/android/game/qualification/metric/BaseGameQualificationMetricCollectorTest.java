@@ -16,12 +16,18 @@
 package com.android.game.qualification.metric;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import com.android.game.qualification.proto.ResultDataProto;
 import com.android.tradefed.device.metric.DeviceMetricData;
 
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 public class BaseGameQualificationMetricCollectorTest {
 
     @Test
@@ -57,4 +63,66 @@ public class BaseGameQualificationMetricCollectorTest {
             assertEquals("foo", collector.getErrorMessage());
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void checkEventClock() {
+        BaseGameQualificationMetricCollector collector =
+                new BaseGameQualificationMetricCollector() {};
+        EventTimeline timeline = new EventTimeline();
+        timeline.add(event(ResultDataProto.Event.Type.APP_LAUNCH, 1_000_000_000L));
+        timeline.add(event(ResultDataProto.Event.Type.START_LOOP, 5_000_000_000L));
+        collector.setDeviceResultData(timeline.reconcile(null));
+        assertTrue(collector.checkEventClock(2_000_000_000L, 90_000_000_000L)
+                .contains("did not declare"));
+
+        timeline.begin(ResultDataProto.Result.newBuilder()
+                .setClock(ResultDataProto.Result.Clock.BOOTTIME)
+                .build());
+        collector.setDeviceResultData(timeline.reconcile(null));
+        assertTrue(collector.checkEventClock(2_000_000_000L, 90_000_000_000L)
+                .contains("CLOCK_BOOTTIME"));
+
+        timeline.begin(ResultDataProto.Result.newBuilder()
+                .setClock(ResultDataProto.Result.Clock.MONOTONIC)
+                .build());
+        collector.setDeviceResultData(timeline.reconcile(null));
+        assertNull(collector.checkEventClock(2_000_000_000L, 90_000_000_000L));
+
+        // A loop start in milliseconds in the result file, which the timeline orders before the
+        // launch of the app.
+        ResultDataProto.Result result = timeline.reconcile(ResultDataProto.Result.newBuilder()
+                .setClock(ResultDataProto.Result.Clock.MONOTONIC)
+                .addEvents(event(ResultDataProto.Event.Type.APP_LAUNCH, 1_000_000_000L))
+                .addEvents(event(ResultDataProto.Event.Type.START_LOOP, 5_000_000_000L))
+                .addEvents(event(ResultDataProto.Event.Type.START_LOOP, 6_000L))
+                .build());
+        assertEquals(6_000L, result.getEvents(0).getTimestampNs());
+        collector.setDeviceResultData(result);
+        assertTrue(collector.checkEventClock(2_000_000_000L, 90_000_000_000L)
+                .contains("before the app was launched"));
+
+        // Samples taken on another clock.
+        timeline.clear();
+        timeline.begin(ResultDataProto.Result.newBuilder()
+                .setClock(ResultDataProto.Result.Clock.MONOTONIC)
+                .build());
+        timeline.add(event(ResultDataProto.Event.Type.START_LOOP, 5_000_000_000L));
+        collector.setDeviceResultData(timeline.reconcile(null));
+        assertTrue(collector.checkEventClock(3600_000_000_000L, 3700_000_000_000L)
+                .contains("outside of the samples"));
+    }
+
+    @Test
+    public void testFindLoop() {
+        List<Long> loopStartNs = Arrays.asList(100L, 200L, 300L);
+        assertEquals(-1, BaseGameQualificationMetricCollector.findLoop(loopStartNs, 99));
+        assertEquals(0, BaseGameQualificationMetricCollector.findLoop(loopStartNs, 100));
+        assertEquals(1, BaseGameQualificationMetricCollector.findLoop(loopStartNs, 299));
+        assertEquals(2, BaseGameQualificationMetricCollector.findLoop(loopStartNs, 1000));
+        assertEquals(-1, BaseGameQualificationMetricCollector.findLoop(Collections.emptyList(), 0));
+    }
+
+    private static ResultDataProto.Event event(ResultDataProto.Event.Type type, long timestampNs) {
+        return ResultDataProto.Event.newBuilder().setType(type).setTimestampNs(timestampNs).build();
+    }
+}
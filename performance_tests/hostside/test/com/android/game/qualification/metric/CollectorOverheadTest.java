@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/** Test for {@link CollectorOverhead}. */
+@RunWith(JUnit4.class)
+public class CollectorOverheadTest {
+
+    @Test
+    public void testRecordAdbCommand() {
+        CollectorOverhead overhead = new CollectorOverhead();
+        assertTrue(overhead.isEmpty());
+        overhead.recordAdbCommand(10, 100);
+        overhead.recordAdbCommand(20, 200);
+        assertFalse(overhead.isEmpty());
+        assertEquals(
+                Arrays.asList(10L, 20L),
+                overhead.getSamples(CollectorOverhead.Type.ADB_LATENCY));
+        assertEquals(
+                Arrays.asList(100L, 200L),
+                overhead.getSamples(CollectorOverhead.Type.BYTES_TRANSFERRED));
+
+        overhead.clear();
+        assertTrue(overhead.isEmpty());
+    }
+
+    @Test
+    public void testTickExcludesAdbLatency() {
+        CollectorOverhead overhead = new CollectorOverhead();
+        overhead.beginTick();
+        overhead.recordAdbCommand(Long.MAX_VALUE / 2, 0);
+        overhead.endTick();
+        List<Long> parseTime = overhead.getSamples(CollectorOverhead.Type.PARSE_TIME);
+        assertEquals(1, parseTime.size());
+        assertEquals(0L, (long) parseTime.get(0));
+    }
+
+    @Test
+    public void testAddToMetricData() {
+        CollectorOverhead overhead = new CollectorOverhead();
+        for (long i = 1; i <= 10; i++) {
+            overhead.record(CollectorOverhead.Type.QUEUE_DEPTH, i);
+        }
+        IInvocationContext context = new InvocationContext();
+        DeviceMetricData runData = new DeviceMetricData(context);
+        overhead.addToMetricData(runData, null, "foo");
+        HashMap<String, Metric> metrics = new HashMap<>();
+        runData.addToMetrics(metrics);
+
+        assertEquals(4, metrics.size());
+        String prefix = "collector_overhead.foo.queue_depth";
+        assertEquals(
+                5.5,
+                metrics.get(prefix + "_avg").getMeasurements().getSingleDouble(),
+                Math.ulp(5.5));
+        assertEquals(10, metrics.get(prefix + "_max").getMeasurements().getSingleInt());
+        assertEquals(9, metrics.get(prefix + "_90th_percentile").getMeasurements().getSingleInt());
+        assertEquals(55, metrics.get(prefix + "_total").getMeasurements().getSingleInt());
+    }
+}
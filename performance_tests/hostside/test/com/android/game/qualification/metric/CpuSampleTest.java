@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Test for {@link CpuSample}. */
+@RunWith(JUnit4.class)
+public class CpuSampleTest {
+
+    @Test
+    public void testParse() {
+        String raw = "1234.56 4321.00\n"
+                + "cpu0 100 10 50 800 40 5 5 0 0 0\n"
+                + "cpu1 200 0 100 600 0 0 0 0 0 0\n"
+                + "cpu3 1 2 3 4 5 6 7 8 9 10\n"
+                + "/sys/devices/system/cpu/cpu0/cpufreq/scaling_cur_freq:1804800\n"
+                + "/sys/devices/system/cpu/cpu1/cpufreq/scaling_cur_freq:300000\n"
+                + "/sys/devices/system/cpu/cpu3/cpufreq/scaling_cur_freq:2419200\n";
+        CpuSample sample = CpuSample.parse(raw);
+
+        assertEquals(1234_560_000_000L, sample.getUptimeNs());
+        assertEquals(4, sample.getCpuCount());
+
+        assertEquals(1804800, sample.getFrequencyKhz(0));
+        assertEquals(170, sample.getBusyTicks(0));
+        assertEquals(1010, sample.getTotalTicks(0));
+
+        assertEquals(300000, sample.getFrequencyKhz(1));
+        assertEquals(300, sample.getBusyTicks(1));
+        assertEquals(900, sample.getTotalTicks(1));
+
+        // cpu2 is offline.
+        assertEquals(-1, sample.getFrequencyKhz(2));
+        assertEquals(-1, sample.getBusyTicks(2));
+
+        // Only the first 8 fields are counted, guest time is already included in user time.
+        assertEquals(2419200, sample.getFrequencyKhz(3));
+        assertEquals(27, sample.getBusyTicks(3));
+        assertEquals(36, sample.getTotalTicks(3));
+    }
+
+    @Test
+    public void testParseWithoutFrequency() {
+        CpuSample sample = CpuSample.parse("10.00 20.00\ncpu0 1 1 1 1 0 0 0 0 0 0\n");
+        assertEquals(1, sample.getCpuCount());
+        assertEquals(-1, sample.getFrequencyKhz(0));
+        assertEquals(3, sample.getBusyTicks(0));
+    }
+
+    @Test
+    public void testParseManyCpus() {
+        StringBuilder raw = new StringBuilder("1.0 1.0\n");
+        for (int i = 0; i < 40; i++) {
+            raw.append("/sys/devices/system/cpu/cpu").append(i)
+                    .append("/cpufreq/scaling_cur_freq:").append(i * 1000).append('\n');
+        }
+        CpuSample sample = CpuSample.parse(raw.toString());
+        assertEquals(40, sample.getCpuCount());
+        assertEquals(39000, sample.getFrequencyKhz(39));
+    }
+
+    @Test
+    public void testParseInvalidUptime() {
+        try {
+            CpuSample.parse("cat: /proc/uptime: Permission denied\n");
+            fail("Expected IllegalArgumentException.");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
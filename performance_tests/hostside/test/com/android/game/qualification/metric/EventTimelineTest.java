@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.game.qualification.proto.ResultDataProto;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Test for {@link EventTimeline}. */
+@RunWith(JUnit4.class)
+public class EventTimelineTest {
+    private static ResultDataProto.Event event(ResultDataProto.Event.Type type, long timestampNs) {
+        return ResultDataProto.Event.newBuilder().setType(type).setTimestampNs(timestampNs).build();
+    }
+
+    private static ResultDataProto.Result begin(long boottimeOffsetNs) {
+        return ResultDataProto.Result.newBuilder()
+                .setClock(ResultDataProto.Result.Clock.MONOTONIC)
+                .setBoottimeOffsetNs(boottimeOffsetNs)
+                .build();
+    }
+
+    @Test
+    public void testSubscribe() {
+        EventTimeline timeline = new EventTimeline();
+        List<Long> received = new ArrayList<>();
+        EventTimeline.Listener listener = e -> received.add(e.getTimestampNs());
+        timeline.subscribe(listener);
+        assertTrue(timeline.add(event(ResultDataProto.Event.Type.APP_LAUNCH, 100)));
+        assertFalse(timeline.add(event(ResultDataProto.Event.Type.APP_LAUNCH, 100)));
+        timeline.clear();
+        assertTrue(timeline.add(event(ResultDataProto.Event.Type.START_LOOP, 200)));
+        timeline.unsubscribe(listener);
+        timeline.add(event(ResultDataProto.Event.Type.START_LOOP, 300));
+        assertEquals(Arrays.asList(100L, 200L), received);
+        assertEquals(2, timeline.getEvents().size());
+    }
+
+    @Test
+    public void testReconcile() {
+        EventTimeline timeline = new EventTimeline();
+        timeline.begin(begin(5));
+        timeline.add(event(ResultDataProto.Event.Type.APP_LAUNCH, 100));
+        timeline.add(event(ResultDataProto.Event.Type.START_LOOP, 300));
+
+        // The second loop was not received while the app ran.
+        ResultDataProto.Result result = timeline.reconcile(ResultDataProto.Result.newBuilder()
+                .setBoottimeOffsetNs(7)
+                .addEvents(event(ResultDataProto.Event.Type.APP_LAUNCH, 100))
+                .addEvents(event(ResultDataProto.Event.Type.START_LOOP, 200))
+                .addEvents(event(ResultDataProto.Event.Type.START_LOOP, 300))
+                .build());
+        assertEquals(7, result.getBoottimeOffsetNs());
+        assertEquals(ResultDataProto.Result.Clock.MONOTONIC, result.getClock());
+        assertEquals(3, result.getEventsCount());
+        assertEquals(200, result.getEventsList().get(1).getTimestampNs());
+        assertEquals(300, result.getEventsList().get(2).getTimestampNs());
+    }
+
+    @Test
+    public void testReconcileWithoutResultFile() {
+        EventTimeline timeline = new EventTimeline();
+        timeline.begin(begin(5));
+        timeline.add(event(ResultDataProto.Event.Type.START_LOOP, 300));
+        ResultDataProto.Result result = timeline.reconcile(null);
+        assertEquals(5, result.getBoottimeOffsetNs());
+        assertEquals(1, result.getEventsCount());
+    }
+
+    @Test
+    public void testCollectorReadsTimelineDuringRun() {
+        GameQualificationFpsCollector collector = new GameQualificationFpsCollector();
+        EventTimeline timeline = new EventTimeline();
+        collector.setEventTimeline(timeline);
+        timeline.begin(begin(5));
+        timeline.add(event(ResultDataProto.Event.Type.START_LOOP, 300));
+        assertEquals(Arrays.asList(300L), collector.getLoopStartTimesNs());
+        assertEquals(5L, collector.getBoottimeOffsetNs());
+
+        collector.setDeviceResultData(ResultDataProto.Result.getDefaultInstance());
+        assertTrue(collector.getLoopStartTimesNs().isEmpty());
+    }
+}
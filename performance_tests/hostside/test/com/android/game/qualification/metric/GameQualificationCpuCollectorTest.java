@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import static com.android.game.qualification.metric.TestEvents.startLoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.android.game.qualification.proto.ResultDataProto;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashMap;
+
+/** Test for {@link GameQualificationCpuCollector}. */
+@RunWith(JUnit4.class)
+public class GameQualificationCpuCollectorTest {
+    private static final double EPSILON = 1e-9;
+
+    private GameQualificationCpuCollector mCollector;
+
+    @Before
+    public void setUp() {
+        mCollector = new GameQualificationCpuCollector();
+        mCollector.enable();
+        mCollector.doStart(new DeviceMetricData(null));
+
+        // Loops start at 2s and 4s in CLOCK_MONOTONIC, which is 3s and 5s in CLOCK_BOOTTIME.
+        mCollector.setDeviceResultData(
+                ResultDataProto.Result.newBuilder()
+                        .setBoottimeOffsetNs(1_000_000_000L)
+                        .addEvents(startLoop(2000))
+                        .addEvents(startLoop(4000))
+                        .build());
+
+        // Before the first loop.
+        mCollector.processRawData(sample("2.00", 0, 0, 500));
+        mCollector.processRawData(sample("2.50", 0, 100, 500));
+        // Loop 0.
+        mCollector.processRawData(sample("3.50", 50, 150, 1000));
+        mCollector.processRawData(sample("4.50", 100, 200, 2000));
+        // Loop 1.
+        mCollector.processRawData(sample("5.50", 100, 300, 3000));
+        mCollector.processRawData(sample("6.50", 300, 300, 3000));
+    }
+
+    @Test
+    public void testCreateSummary() {
+        CpuSummary summary = mCollector.createSummary();
+        assertEquals(2, summary.getLoopCount());
+
+        CpuSummary.CoreSummary loop0 = summary.getLoop(0).get(0);
+        assertEquals(1500000.0, loop0.getAvgFrequencyKhz(), EPSILON);
+        assertEquals(0.5, loop0.getUtilization(), EPSILON);
+        assertEquals(2, loop0.getResidency().size());
+        assertEquals(0.5, loop0.getResidency().get(1000000L), EPSILON);
+        assertEquals(0.5, loop0.getResidency().get(2000000L), EPSILON);
+
+        CpuSummary.CoreSummary loop1 = summary.getLoop(1).get(0);
+        assertEquals(3000000.0, loop1.getAvgFrequencyKhz(), EPSILON);
+        assertEquals(2.0 / 3.0, loop1.getUtilization(), EPSILON);
+        assertEquals(1.0, loop1.getResidency().get(3000000L), EPSILON);
+    }
+
+    @Test
+    public void testNoLoopEvents() {
+        mCollector.setDeviceResultData(ResultDataProto.Result.newBuilder().build());
+        CpuSummary summary = mCollector.createSummary();
+        assertEquals(1, summary.getLoopCount());
+        assertEquals(
+                (500000.0 * 0.5 + 1000000.0 + 2000000.0 + 3000000.0 * 2) / 4.5,
+                summary.getLoop(0).get(0).getAvgFrequencyKhz(),
+                EPSILON);
+    }
+
+    @Test
+    public void testMetricsRoundTrip() {
+        CpuSummary summary = mCollector.createSummary();
+        DeviceMetricData runData = new DeviceMetricData(new InvocationContext());
+        summary.addToMetricData(runData, null);
+        HashMap<String, Metric> metrics = new HashMap<>();
+        runData.addToMetrics(metrics);
+
+        assertEquals(
+                1500000.0,
+                metrics.get("run_0.cpu0_frequency").getMeasurements().getSingleDouble(),
+                EPSILON);
+        assertEquals(summary, CpuSummary.parseRunMetrics(metrics));
+        assertNull(CpuSummary.parseRunMetrics(new HashMap<>()));
+    }
+
+    private static String sample(String uptime, long busy, long idle, long frequencyMhz) {
+        return uptime + " 0.00\n"
+                + "cpu0 " + busy + " 0 0 " + idle + " 0 0 0 0 0 0\n"
+                + "/sys/devices/system/cpu/cpu0/cpufreq/scaling_cur_freq:"
+                + frequencyMhz * 1000 + "\n";
+    }
+}
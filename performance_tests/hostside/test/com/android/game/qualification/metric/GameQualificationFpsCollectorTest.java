@@ -21,12 +21,20 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.android.game.qualification.ApkInfo;
+import com.android.game.qualification.proto.ResultDataProto;
 import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 
 /** Test for {@link GameQualificationFpsCollector}. */
@@ -109,4 +117,150 @@ public class GameQualificationFpsCollectorTest {
             // Do nothing.
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void perfettoTrace() throws IOException {
+        ApkInfo apk = new ApkInfo(
+                "foo",
+                "foo.apk",
+                "com.foo",
+                null,
+                "SurfaceView\\[com.foo/.*",
+                null,
+                Collections.emptyList(),
+                10000,
+                10000,
+                true);
+        mCollector.setApkInfo(apk);
+        mCollector.setDeviceResultData(
+                ResultDataProto.Result.newBuilder()
+                        .setBoottimeOffsetNs(500_000_000L)
+                        .addEvents(ResultDataProto.Event.newBuilder()
+                                .setType(ResultDataProto.Event.Type.START_LOOP)
+                                .setTimestampNs(1_000_000_000L))
+                        .addEvents(ResultDataProto.Event.newBuilder()
+                                .setType(ResultDataProto.Event.Type.START_LOOP)
+                                .setTimestampNs(2_000_000_000L))
+                        .build());
+        mCollector.doStart(new DeviceMetricData(null));
+        assertTrue(mCollector.getPerfettoConfig().contains("duration_ms: 80000"));
+
+        DeviceMetricData runData = new DeviceMetricData(new InvocationContext());
+        try (InputStream trace = PerfettoTraceParserTest.openSampleTrace()) {
+            mCollector.processTrace(trace, runData);
+        }
+        assertFalse(mCollector.hasError());
+        List<GameQualificationMetric> metrics = mCollector.getElapsedTimes();
+        assertEquals(7, metrics.size());
+        for (int i = 1; i < metrics.size(); i++) {
+            assertTrue(metrics.get(i - 1).getActualPresentTime()
+                    <= metrics.get(i).getActualPresentTime());
+        }
+
+        HashMap<String, Metric> results = new HashMap<>();
+        runData.addToMetrics(results);
+        assertEquals(
+                0.5,
+                results.get("run_0.cpu0_sched_utilization").getMeasurements().getSingleDouble(),
+                1e-9);
+    }
+
+    @Test
+    public void endLoopExcludesFramesUntilNextLoop() {
+        mCollector.doStart(new DeviceMetricData(null));
+        presentFrames(1000, 9000);
+        mCollector.setDeviceResultData(newResult()
+                .addEvents(event(ResultDataProto.Event.Type.START_LOOP, 1000))
+                .addEvents(event(ResultDataProto.Event.Type.END_LOOP, 3000))
+                // Frames between 3 s and 5 s are in a menu.
+                .addEvents(event(ResultDataProto.Event.Type.START_LOOP, 5000))
+                .build());
+        mCollector.doEnd(new DeviceMetricData(new InvocationContext()));
+
+        assertFalse(mCollector.hasError());
+        List<LoopSummary> loops = mCollector.getSummary().getLoopSummaries();
+        assertEquals(2, loops.size());
+        assertEquals(20, loops.get(0).getCount());
+        // The last loop lasts until the last frame.
+        assertEquals(40, loops.get(1).getCount());
+    }
+
+    @Test
+    public void loopsWithoutEndLoop() {
+        mCollector.doStart(new DeviceMetricData(null));
+        presentFrames(1000, 9000);
+        mCollector.setDeviceResultData(newResult()
+                .addEvents(event(ResultDataProto.Event.Type.START_LOOP, 1000))
+                .addEvents(event(ResultDataProto.Event.Type.START_LOOP, 5000))
+                .build());
+        mCollector.doEnd(new DeviceMetricData(new InvocationContext()));
+
+        List<LoopSummary> loops = mCollector.getSummary().getLoopSummaries();
+        assertEquals(2, loops.size());
+        assertEquals(40, loops.get(0).getCount());
+        assertEquals(40, loops.get(1).getCount());
+    }
+
+    @Test
+    public void scenes() {
+        mCollector.doStart(new DeviceMetricData(null));
+        presentFrames(1000, 9000);
+        mCollector.setDeviceResultData(newResult()
+                .addEvents(event(ResultDataProto.Event.Type.START_LOOP, 1000))
+                .addEvents(scene(ResultDataProto.Event.Type.SCENE_BEGIN, "a", 1000))
+                .addEvents(scene(ResultDataProto.Event.Type.SCENE_BEGIN, "b", 2000))
+                .addEvents(scene(ResultDataProto.Event.Type.SCENE_END, "a", 2000))
+                .addEvents(scene(ResultDataProto.Event.Type.SCENE_END, "b", 2500))
+                // The same scene again, without SCENE_END.
+                .addEvents(scene(ResultDataProto.Event.Type.SCENE_BEGIN, "a", 6000))
+                .build());
+        DeviceMetricData runData = new DeviceMetricData(new InvocationContext());
+        mCollector.doEnd(runData);
+
+        MetricSummary summary = mCollector.getSummary();
+        assertEquals(1, summary.getLoopSummaries().size());
+        assertEquals(80, summary.getLoopSummaries().get(0).getCount());
+        assertEquals(Arrays.asList("a", "b", "a"), summary.getSceneNames());
+        List<LoopSummary> scenes = summary.getSceneSummaries();
+        assertEquals(10, scenes.get(0).getCount());
+        assertEquals(5, scenes.get(1).getCount());
+        // Lasts until the last frame.
+        assertEquals(30, scenes.get(2).getCount());
+
+        HashMap<String, Metric> results = new HashMap<>();
+        runData.addToMetrics(results);
+        assertEquals(3, results.get("scene_count").getMeasurements().getSingleInt());
+    }
+
+    // One frame every 100 ms, in a single poll.
+    private void presentFrames(long firstMs, long lastMs) {
+        List<String> raw = new ArrayList<>();
+        raw.add(VSYNC);
+        for (long t = firstMs * 1000000; t <= lastMs * 1000000; t += 100_000_000L) {
+            raw.add("0\t" + t + "\t" + t);
+        }
+        mCollector.processRawData(raw.toArray(new String[0]));
+    }
+
+    private static ResultDataProto.Result.Builder newResult() {
+        return ResultDataProto.Result.newBuilder()
+                .setClock(ResultDataProto.Result.Clock.MONOTONIC)
+                .addEvents(event(ResultDataProto.Event.Type.APP_LAUNCH, 500));
+    }
+
+    private static ResultDataProto.Event event(ResultDataProto.Event.Type type, long timestampMs) {
+        return ResultDataProto.Event.newBuilder()
+                .setType(type)
+                .setTimestampNs(timestampMs * 1000000)
+                .build();
+    }
+
+    private static ResultDataProto.Event scene(
+            ResultDataProto.Event.Type type, String name, long timestampMs) {
+        return ResultDataProto.Event.newBuilder()
+                .setType(type)
+                .setName(name)
+                .setTimestampNs(timestampMs * 1000000)
+                .build();
+    }
+}
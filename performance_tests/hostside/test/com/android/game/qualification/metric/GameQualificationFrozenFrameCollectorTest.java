@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.game.qualification.ApkInfo;
+import com.android.game.qualification.proto.ResultDataProto;
+import com.android.game.qualification.test.RawScreenshot;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+/** Test for {@link GameQualificationFrozenFrameCollector}. */
+@RunWith(JUnit4.class)
+public class GameQualificationFrozenFrameCollectorTest {
+    private static final String VSYNC = "16666666";
+    private static final int WIDTH = 90;
+    private static final int HEIGHT = 160;
+
+    private static final ApkInfo APK = new ApkInfo(
+            "foo",
+            "foo.apk",
+            "com.foo",
+            null,
+            "Surface View - com.foo#0",
+            null,
+            Collections.emptyList(),
+            10000,
+            10000,
+            true);
+
+    private GameQualificationFrozenFrameCollector mCollector;
+
+    @Before
+    public void setUp() {
+        mCollector = new GameQualificationFrozenFrameCollector();
+        mCollector.setApkInfo(APK);
+        mCollector.enable();
+        mCollector.setDeviceResultData(
+                ResultDataProto.Result.newBuilder().setBoottimeOffsetNs(1_000_000_000L).build());
+
+        // Pattern 2 is shown from 5s to 18s in CLOCK_BOOTTIME.
+        mCollector.processRawData(sample("2.00", 0));
+        mCollector.processRawData(sample("3.00", 1));
+        mCollector.processRawData(sample("4.00", 1));
+        for (int i = 5; i <= 18; i++) {
+            mCollector.processRawData(sample(i + ".00", 2));
+        }
+        mCollector.processRawData(sample("19.00", 3));
+    }
+
+    @Test
+    public void testHash() {
+        FrameHashSeries series = mCollector.getSeries();
+        assertEquals(18, series.size());
+        assertEquals(2_000_000_000L, series.getUptimeNs(0));
+        assertTrue(series.isSameFrame(1, 2, 0, 0));
+        assertFalse(series.isSameFrame(0, 1, 0, 0));
+        assertNotEquals(series.getHash(2), series.getHash(3));
+        assertFalse(series.isSameFrame(2, 3, 0, 0));
+        assertTrue(series.isSameFrame(2, 3, 64, 0));
+        // Uniform screens have the same hash whatever their color.
+        assertEquals(series.getHash(0), series.getHash(17));
+        assertFalse(series.isSameFrame(0, 17, 64, 0));
+    }
+
+    @Test
+    public void testLumaDifference() {
+        mCollector.processRawData(sample("20.00", 1, (byte) 0xfc));
+        FrameHashSeries series = mCollector.getSeries();
+        assertEquals(series.getHash(1), series.getHash(18));
+        assertNotEquals(series.getMeanLuma(1), series.getMeanLuma(18));
+        assertFalse(series.isSameFrame(1, 18, 0, 0));
+        assertTrue(series.isSameFrame(1, 18, 0, 2));
+    }
+
+    @Test
+    public void testSampledRows() {
+        FrameHashSeries series = mCollector.getSeries();
+        String command = series.getProbeCommand();
+        assertNotEquals(FrameHashSeries.PROBE_COMMAND, command);
+        // Rows of 360 bytes after a header of 16 bytes, in blocks of 8 bytes.  The first sampled
+        // row is row 1.
+        assertTrue(command, command.contains("bs=8 skip=$s count=45"));
+        assertTrue(command, command.contains(" in 47 "));
+
+        mCollector.processRawData(sampledRows("20.00", 2, WIDTH, HEIGHT));
+        assertEquals(19, series.size());
+        assertEquals(20_000_000_000L, series.getUptimeNs(18));
+        assertEquals(series.getHash(16), series.getHash(18));
+        assertEquals(series.getMeanLuma(16), series.getMeanLuma(18));
+        assertEquals(command, series.getProbeCommand());
+
+        // The screen was rotated.
+        mCollector.processRawData(sampledRows("21.00", 2, HEIGHT, WIDTH));
+        assertEquals(19, series.size());
+        assertEquals(FrameHashSeries.PROBE_COMMAND, series.getProbeCommand());
+
+        series.clear();
+        assertEquals(FrameHashSeries.PROBE_COMMAND, series.getProbeCommand());
+    }
+
+    @Test
+    public void testFrozenPeriods() {
+        FrozenFrameSummary summary = mCollector.createSummary();
+        assertEquals(18, summary.getSampleCount());
+        assertEquals(1, summary.getPeriodCount());
+        FrozenFrameSummary.FrozenPeriod period = summary.getPeriod(0);
+        // 5s in CLOCK_BOOTTIME.
+        assertEquals(4_000_000_000L, period.getStartTimeNs());
+        assertEquals(13_000_000_000L, period.getDurationNs());
+        assertEquals(-1, period.getPresentedFrameCount());
+    }
+
+    @Test
+    public void testPresentedFrames() {
+        GameQualificationFpsCollector fpsCollector = new GameQualificationFpsCollector();
+        fpsCollector.setApkInfo(APK);
+        fpsCollector.enable();
+        fpsCollector.doStart(new DeviceMetricData(null));
+        fpsCollector.processRawData(new String[] {
+                VSYNC,
+                frame(3_000_000_000L),
+                frame(5_000_000_000L),
+                frame(16_000_000_000L),
+                frame(17_500_000_000L)});
+        mCollector.setPeers(Arrays.asList(mCollector, fpsCollector));
+
+        FrozenFrameSummary summary = mCollector.createSummary();
+        assertEquals(2, summary.getPeriod(0).getPresentedFrameCount());
+
+        DeviceMetricData runData = new DeviceMetricData(new InvocationContext());
+        summary.addToMetricData(runData, null);
+        HashMap<String, Metric> metrics = new HashMap<>();
+        runData.addToMetrics(metrics);
+        assertEquals(
+                13_000_000_000L,
+                metrics.get("frozen_0.duration").getMeasurements().getSingleInt());
+        assertEquals(summary, FrozenFrameSummary.parseRunMetrics(metrics));
+    }
+
+    @Test
+    public void testNotAScreenshot() {
+        try {
+            mCollector.processRawData(ByteBuffer.wrap(
+                    "1.00 0.00\nscreencap: error\n".getBytes(StandardCharsets.UTF_8)));
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+            // Do nothing.
+        }
+    }
+
+    /**
+     * Output of the probe command.  Pattern 0 is a black screen, 1 and 2 have a bright half and 3
+     * is a white screen.
+     */
+    private static ByteBuffer sample(String uptime, int pattern) {
+        return sample(uptime, pattern, (byte) 0xff);
+    }
+
+    private static ByteBuffer sample(String uptime, int pattern, byte brightValue) {
+        byte[] line = (uptime + " 0.00\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer data = ByteBuffer.allocate(line.length + 16 + WIDTH * HEIGHT * 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        data.put(line);
+        data.putInt(WIDTH).putInt(HEIGHT).putInt(RawScreenshot.FORMAT_RGBA_8888).putInt(0);
+        for (int y = 0; y < HEIGHT; y++) {
+            putRow(data, pattern, brightValue);
+        }
+        data.flip();
+        return data;
+    }
+
+    /** Output of the probe command once the geometry of the screen is known. */
+    private static ByteBuffer sampledRows(String uptime, int pattern, int width, int height) {
+        byte[] line = (uptime + " 0.00\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer data = ByteBuffer.allocate(line.length + 12 + 64 * WIDTH * 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        data.put(line);
+        data.putInt(width).putInt(height).putInt(RawScreenshot.FORMAT_RGBA_8888);
+        for (int y = 0; y < 64; y++) {
+            putRow(data, pattern, (byte) 0xff);
+        }
+        data.flip();
+        return data;
+    }
+
+    private static void putRow(ByteBuffer data, int pattern, byte brightValue) {
+        for (int x = 0; x < WIDTH; x++) {
+            boolean bright;
+            switch (pattern) {
+                case 1:
+                    bright = x < WIDTH / 2;
+                    break;
+                case 2:
+                    bright = x >= WIDTH / 2;
+                    break;
+                case 3:
+                    bright = true;
+                    break;
+                default:
+                    bright = false;
+            }
+            byte value = bright ? brightValue : 0;
+            data.put(value).put(value).put(value).put((byte) 0xff);
+        }
+    }
+
+    private static String frame(long presentTimeNs) {
+        return presentTimeNs + "\t" + presentTimeNs + "\t" + presentTimeNs;
+    }
+}
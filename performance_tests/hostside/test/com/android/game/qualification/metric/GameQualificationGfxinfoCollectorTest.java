@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import static com.android.game.qualification.metric.TestEvents.startLoop;
+
+import static org.junit.Assert.assertEquals;
+
+import com.android.game.qualification.ApkInfo;
+import com.android.game.qualification.proto.ResultDataProto;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/** Test for {@link GameQualificationGfxinfoCollector}. */
+@RunWith(JUnit4.class)
+public class GameQualificationGfxinfoCollectorTest {
+    private static final long MS = 1000000L;
+
+    private static final ApkInfo APK = new ApkInfo(
+            "foo",
+            "foo.apk",
+            "com.foo",
+            null,
+            "Surface View - com.foo#0",
+            null,
+            Collections.emptyList(),
+            10000,
+            10000,
+            true);
+
+    private static final String HEADER =
+            "Applications Graphics Acceleration Info:\n"
+                    + "Uptime: 1000 Realtime: 1000\n"
+                    + "\n"
+                    + "** Graphics info for pid 4321 [com.foo] **\n"
+                    + "\n"
+                    + "Window: com.foo/com.foo.MainActivity\n"
+                    + "\n"
+                    + "---PROFILEDATA---\n"
+                    + "Flags,FrameTimelineVsyncId,IntendedVsync,Vsync,InputEventId,"
+                    + "HandleInputStart,AnimationStart,PerformTraversalsStart,DrawStart,"
+                    + "FrameDeadline,FrameInterval,FrameStartTime,SyncQueued,SyncStart,"
+                    + "IssueDrawCommandsStart,SwapBuffers,FrameCompleted,DequeueBufferDuration,"
+                    + "QueueBufferDuration,GpuCompleted,SwapBuffersCompleted,DisplayPresentTime,"
+                    + "CommandSubmissionCompleted,\n";
+
+    private static final String FOOTER = "---PROFILEDATA---\n\nView hierarchy:\n";
+
+    private GameQualificationGfxinfoCollector mCollector;
+
+    @Before
+    public void setUp() {
+        mCollector = new GameQualificationGfxinfoCollector();
+        mCollector.setApkInfo(APK);
+        mCollector.enable();
+        mCollector.doStart(new DeviceMetricData(null));
+    }
+
+    @Test
+    public void testParseStages() {
+        List<FrameStats> frames = new ArrayList<>();
+        FrameStats.parse(HEADER + row(0, 100, 1000 * MS, 12 * MS) + FOOTER, frames::add);
+        assertEquals(1, frames.size());
+        FrameStats frame = frames.get(0);
+        assertEquals(100, frame.getVsyncId());
+        assertEquals(1000 * MS, frame.getIntendedVsyncNs());
+        assertEquals(1 * MS, frame.getStageNs(FrameStats.Stage.INPUT));
+        assertEquals(1 * MS, frame.getStageNs(FrameStats.Stage.ANIMATION));
+        assertEquals(1 * MS, frame.getStageNs(FrameStats.Stage.TRAVERSAL));
+        assertEquals(2 * MS, frame.getStageNs(FrameStats.Stage.DRAW));
+        assertEquals(MS / 2, frame.getStageNs(FrameStats.Stage.SYNC));
+        assertEquals(3 * MS, frame.getStageNs(FrameStats.Stage.COMMAND_ISSUE));
+        assertEquals(2 * MS, frame.getStageNs(FrameStats.Stage.GPU));
+        assertEquals(12 * MS, frame.getTotalNs());
+    }
+
+    @Test
+    public void testParseOldFormat() {
+        String raw = "---PROFILEDATA---\n"
+                + "Flags,IntendedVsync,Vsync,OldestInputEvent,NewestInputEvent,"
+                + "HandleInputStart,AnimationStart,PerformTraversalsStart,DrawStart,"
+                + "SyncQueued,SyncStart,IssueDrawCommandsStart,SwapBuffers,FrameCompleted,\n"
+                + "0,1000,1000,0,0,1100,1200,1300,1400,1600,1650,1700,1900,2000,\n"
+                + "---PROFILEDATA---\n";
+        List<FrameStats> frames = new ArrayList<>();
+        FrameStats.parse(raw, frames::add);
+        assertEquals(1, frames.size());
+        assertEquals(1000, frames.get(0).getVsyncId());
+        assertEquals(300, frames.get(0).getStageNs(FrameStats.Stage.COMMAND_ISSUE));
+        assertEquals(0, frames.get(0).getStageNs(FrameStats.Stage.GPU));
+        assertEquals(1000, frames.get(0).getTotalNs());
+    }
+
+    @Test
+    public void testSkipFlaggedAndPartialRows() {
+        List<FrameStats> frames = new ArrayList<>();
+        FrameStats.parse(
+                HEADER + row(1, 100, 1000 * MS, 12 * MS) + "0,101,1016\n" + FOOTER,
+                frames::add);
+        assertEquals(0, frames.size());
+    }
+
+    @Test
+    public void testDeduplicateAcrossPolls() {
+        mCollector.processRawData(HEADER
+                + row(0, 100, 1000 * MS, 12 * MS)
+                + row(0, 101, 1016 * MS, 12 * MS)
+                + FOOTER);
+        mCollector.processRawData(HEADER
+                + row(0, 101, 1016 * MS, 12 * MS)
+                + row(0, 102, 1033 * MS, 12 * MS)
+                + FOOTER);
+        List<FrameStats> frames = mCollector.getFrames();
+        assertEquals(3, frames.size());
+        assertEquals(100, frames.get(0).getVsyncId());
+        assertEquals(101, frames.get(1).getVsyncId());
+        assertEquals(102, frames.get(2).getVsyncId());
+    }
+
+    @Test
+    public void testSummary() {
+        mCollector.setDeviceResultData(
+                ResultDataProto.Result.newBuilder()
+                        .addEvents(startLoop(1000))
+                        .addEvents(startLoop(2000))
+                        .build());
+        mCollector.processRawData(HEADER
+                // Before the first loop.
+                + row(0, 99, 900 * MS, 30 * MS)
+                // Loop 0, CPU-bound.
+                + row(0, 100, 1000 * MS, 10 * MS)
+                + row(0, 101, 1016 * MS, 10 * MS)
+                // Loop 1, GPU-bound.
+                + row(0, 200, 2000 * MS, 30 * MS)
+                + FOOTER);
+
+        FrameStageSummary summary = mCollector.createSummary();
+        assertEquals(2, summary.getLoopCount());
+        assertEquals(2, summary.getFrameCount(0));
+        assertEquals(0.0, summary.getStage(0, "gpu").getAvgNs(), 0.0);
+        assertEquals(1, summary.getFrameCount(1));
+        assertEquals(20 * MS, summary.getStage(1, "gpu").get90thPercentileNs());
+        assertEquals(30 * MS, summary.getStage(1, "total").get90thPercentileNs());
+
+        DeviceMetricData runData = new DeviceMetricData(new InvocationContext());
+        summary.addToMetricData(runData, null);
+        HashMap<String, Metric> metrics = new HashMap<>();
+        runData.addToMetrics(metrics);
+        assertEquals(
+                20 * MS,
+                metrics.get("run_1.gfxinfo_gpu_90th_percentile")
+                        .getMeasurements().getSingleInt());
+        assertEquals(summary, FrameStageSummary.parseRunMetrics(metrics));
+    }
+
+    /**
+     * A framestats row where the CPU stages take 10 ms and the GPU completes gpuCompleted after the
+     * intended vsync.
+     */
+    private static String row(int flags, long vsyncId, long intendedVsync, long gpuCompleted) {
+        long t = intendedVsync;
+        long[] values = {
+                flags, vsyncId, t, t, 0,
+                t + 1 * MS, t + 2 * MS, t + 3 * MS, t + 4 * MS,
+                t + 16 * MS, 16666666, t,
+                t + 6 * MS, t + 6 * MS + MS / 2, t + 7 * MS, t + 9 * MS, t + 10 * MS,
+                0, 0, t + gpuCompleted, t + 10 * MS, 0, t + 9 * MS};
+        StringBuilder sb = new StringBuilder();
+        for (long value : values) {
+            sb.append(value).append(',');
+        }
+        return sb.append('\n').toString();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import static com.android.game.qualification.metric.TestEvents.startLoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.android.game.qualification.proto.ResultDataProto;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashMap;
+
+/** Test for {@link GameQualificationMemoryCollector}. */
+@RunWith(JUnit4.class)
+public class GameQualificationMemoryCollectorTest {
+    private static final double EPSILON = 1e-9;
+
+    private static final String SMAPS_ROLLUP =
+            "12c00000-ffffffffff601000 ---p 00000000 00:00 0                          [rollup]\n"
+                    + "Rss:              %d kB\n"
+                    + "Pss:              %d kB\n"
+                    + "Pss_Anon:          50000 kB\n"
+                    + "Shared_Clean:      10000 kB\n";
+
+    private static final String MEMINFO =
+            "Applications Memory Usage (in Kilobytes):\n"
+                    + "Uptime: 1234 Realtime: 1234\n"
+                    + "\n"
+                    + "** MEMINFO in pid 4321 [com.foo] **\n"
+                    + "                   Pss  Private  Private  SwapPss      Rss     Heap\n"
+                    + "        TOTAL    99999    88888    77777        0   111111    22222\n"
+                    + "\n"
+                    + " App Summary\n"
+                    + "                       Pss(KB)                        Rss(KB)\n"
+                    + "           Java Heap:     2936                          12432\n"
+                    + "            Graphics:    %d                          %d\n"
+                    + "\n"
+                    + "           TOTAL PSS:    %d            TOTAL RSS:      %d"
+                    + "      TOTAL SWAP PSS:       24\n";
+
+    private GameQualificationMemoryCollector mCollector;
+
+    @Before
+    public void setUp() {
+        mCollector = new GameQualificationMemoryCollector();
+        mCollector.enable();
+        mCollector.doStart(new DeviceMetricData(null));
+    }
+
+    @Test
+    public void testParseSmapsRollup() {
+        MemorySample sample = MemorySample.parse(
+                "100.50 200.00\npid: 4321\n" + String.format(SMAPS_ROLLUP, 200000, 150000));
+        assertEquals(100_500_000_000L, sample.getUptimeNs());
+        assertEquals(4321, sample.getPid());
+        assertEquals(150000, sample.getPssKb());
+        assertEquals(200000, sample.getRssKb());
+        assertEquals(MemorySample.UNKNOWN, sample.getGraphicsKb());
+    }
+
+    @Test
+    public void testParseMeminfo() {
+        MemorySample sample = MemorySample.parse(
+                "100.50 200.00\n" + String.format(MEMINFO, 30000, 30000, 130000, 190000));
+        assertEquals(4321, sample.getPid());
+        assertEquals(130000, sample.getPssKb());
+        assertEquals(190000, sample.getRssKb());
+        assertEquals(30000, sample.getGraphicsKb());
+    }
+
+    @Test
+    public void testParseSmapsTakesPrecedence() {
+        MemorySample sample = MemorySample.parse(
+                "100.50 200.00\npid: 4321\n"
+                        + String.format(SMAPS_ROLLUP, 200000, 150000)
+                        + String.format(MEMINFO, 30000, 30000, 130000, 190000));
+        assertEquals(150000, sample.getPssKb());
+        assertEquals(200000, sample.getRssKb());
+        assertEquals(30000, sample.getGraphicsKb());
+    }
+
+    @Test
+    public void testAppNotRunning() {
+        assertNull(MemorySample.parse("100.50 200.00\nNo process found for: com.foo\n"));
+        mCollector.processRawData("100.50 200.00\n", false);
+        assertEquals(0, mCollector.getSamples().size());
+    }
+
+    @Test
+    public void testFallbackToMeminfo() {
+        // smaps_rollup is not readable.
+        mCollector.processRawData("1.00 1.00\npid: 4321\n", false);
+        assertEquals(0, mCollector.getSamples().size());
+        mCollector.processRawData(
+                "2.00 1.00\n" + String.format(MEMINFO, 30000, 30000, 130000, 190000), true);
+        assertEquals(1, mCollector.getSamples().size());
+    }
+
+    @Test
+    public void testSummary() {
+        mCollector.setDeviceResultData(
+                ResultDataProto.Result.newBuilder()
+                        .addEvents(startLoop(10000))
+                        .addEvents(startLoop(20000))
+                        .build());
+        // Before the first loop.
+        mCollector.processRawData(smaps(5, 1000), false);
+        // Loop 0, steady.
+        mCollector.processRawData(smaps(10, 2000), false);
+        mCollector.processRawData(smaps(12, 2000), false);
+        // Loop 1, growing by 100 kB/s.
+        mCollector.processRawData(smaps(20, 3000), false);
+        mCollector.processRawData(smaps(21, 3100), false);
+        mCollector.processRawData(smaps(22, 3200), false);
+
+        MemorySummary summary = mCollector.createSummary();
+        assertEquals(2, summary.getLoopCount());
+        assertEquals(2000, summary.getLoop(0).getPeakPssKb());
+        assertEquals(0.0, summary.getLoop(0).getPssGrowthKbPerSecond(), EPSILON);
+        assertEquals(3200, summary.getLoop(1).getPeakPssKb());
+        assertEquals(100.0, summary.getLoop(1).getPssGrowthKbPerSecond(), EPSILON);
+        assertEquals(MemorySample.UNKNOWN, summary.getLoop(1).getPeakGraphicsKb());
+
+        DeviceMetricData runData = new DeviceMetricData(new InvocationContext());
+        summary.addToMetricData(runData, null);
+        HashMap<String, Metric> metrics = new HashMap<>();
+        runData.addToMetrics(metrics);
+        assertEquals(3200, metrics.get("run_1.memory_peak_pss").getMeasurements().getSingleInt());
+        assertEquals(summary, MemorySummary.parseRunMetrics(metrics));
+    }
+
+    private static String smaps(long uptimeS, long pssKb) {
+        return uptimeS + ".00 0.00\npid: 4321\n"
+                + String.format(SMAPS_ROLLUP, pssKb * 2, pssKb);
+    }
+}
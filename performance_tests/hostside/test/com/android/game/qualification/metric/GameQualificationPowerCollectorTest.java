@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import static com.android.game.qualification.metric.TestEvents.startLoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.game.qualification.ApkInfo;
+import com.android.game.qualification.proto.ResultDataProto;
+import com.android.tradefed.config.OptionSetter;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Test for {@link GameQualificationPowerCollector}. */
+@RunWith(JUnit4.class)
+public class GameQualificationPowerCollectorTest {
+    private static final long MS = 1000000L;
+    private static final String BATTERY = "/sys/class/power_supply/battery";
+
+    private static final ApkInfo APK = new ApkInfo(
+            "foo",
+            "foo.apk",
+            "com.foo",
+            null,
+            "Surface View - com.foo#0",
+            null,
+            Collections.emptyList(),
+            10000,
+            10000,
+            true);
+
+    /** Fake sysfs answering the `cat` probe commands of the collector. */
+    private static class FakeSysfs {
+        private final Map<String, String> mFiles = new HashMap<>();
+
+        void setUptimeMs(long uptimeMs) {
+            mFiles.put(
+                    "/proc/uptime",
+                    String.format("%d.%03d 0.00", uptimeMs / 1000, uptimeMs % 1000));
+        }
+
+        void set(String path, long value) {
+            mFiles.put(path, Long.toString(value));
+        }
+
+        String execute(String command) {
+            String[] args = command.split(" ");
+            assertEquals("cat", args[0]);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 1; i < args.length; i++) {
+                String contents = mFiles.get(args[i]);
+                if (contents == null) {
+                    sb.append("cat: ").append(args[i]).append(": No such file or directory\n");
+                } else {
+                    sb.append(contents).append('\n');
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private GameQualificationPowerCollector mCollector;
+    private FakeSysfs mSysfs;
+
+    @Before
+    public void setUp() {
+        mCollector = new GameQualificationPowerCollector();
+        mCollector.setApkInfo(APK);
+        mCollector.enable();
+        mCollector.setDeviceResultData(
+                ResultDataProto.Result.newBuilder()
+                        .setBoottimeOffsetNs(500_000_000L)
+                        .addEvents(startLoop(1000))
+                        .addEvents(startLoop(2000))
+                        .build());
+        mCollector.doStart(new DeviceMetricData(null));
+        mSysfs = new FakeSysfs();
+    }
+
+    /** Sample the fake sysfs at the given CLOCK_MONOTONIC time. */
+    private void sample(long timeMs) {
+        mSysfs.setUptimeMs(timeMs + 500);
+        mCollector.processRawData(mSysfs.execute(mCollector.getProbeCommand()));
+    }
+
+    @Test
+    public void testBattery() {
+        // 1 A at 4 V, discharging current is negative on this device.
+        mSysfs.set(BATTERY + "/current_now", -1000000);
+        mSysfs.set(BATTERY + "/voltage_now", 4000000);
+        sample(1000);
+        assertEquals(4.0, mCollector.getSamples().get(0).getPowerW(), 1e-9);
+    }
+
+    @Test
+    public void testRail() throws Exception {
+        new OptionSetter(mCollector).setOptionValue("power-rail-path", "/sys/fake/power_uw");
+        mSysfs.set("/sys/fake/power_uw", 2500000);
+        sample(1000);
+        assertEquals(2.5, mCollector.getSamples().get(0).getPowerW(), 1e-9);
+    }
+
+    @Test
+    public void testMissingFile() {
+        mSysfs.setUptimeMs(1000);
+        try {
+            mCollector.processRawData(mSysfs.execute(mCollector.getProbeCommand()));
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+            // Do nothing.
+        }
+    }
+
+    @Test
+    public void testEnergyPerLoop() {
+        mSysfs.set(BATTERY + "/voltage_now", 4000000);
+        // 1 W until 2000 ms, then a ramp to 3 W.
+        mSysfs.set(BATTERY + "/current_now", 250000);
+        sample(500);
+        sample(1000);
+        sample(1500);
+        sample(2000);
+        mSysfs.set(BATTERY + "/current_now", 750000);
+        sample(3000);
+
+        GameQualificationFpsCollector fpsCollector = new GameQualificationFpsCollector();
+        fpsCollector.setApkInfo(APK);
+        fpsCollector.enable();
+        fpsCollector.doStart(new DeviceMetricData(null));
+        String[] raw = new String[1 + 90];
+        raw[0] = "16666666";
+        for (int i = 0; i < 60; i++) {
+            long t = 1000 * MS + i * 16666666L;
+            raw[1 + i] = t + "\t" + t + "\t" + t;
+        }
+        for (int i = 0; i < 30; i++) {
+            long t = 2000 * MS + i * 33333333L;
+            raw[61 + i] = t + "\t" + t + "\t" + t;
+        }
+        fpsCollector.processRawData(raw);
+        mCollector.setPeers(Arrays.asList(mCollector, fpsCollector));
+
+        PowerSummary summary = mCollector.createSummary();
+        assertEquals(2, summary.getLoopCount());
+        // Intervals belong to the loop containing their end.
+        assertEquals(1.0, summary.getLoop(0).getDurationS(), 1e-9);
+        assertEquals(1.0, summary.getLoop(0).getEnergyJ(), 1e-9);
+        assertEquals(60, summary.getLoop(0).getFrameCount());
+        assertEquals(1.5, summary.getLoop(1).getDurationS(), 1e-9);
+        assertEquals(0.5 + 2.0, summary.getLoop(1).getEnergyJ(), 1e-9);
+        assertEquals(2.5 / 1.5, summary.getLoop(1).getAveragePowerW(), 1e-9);
+        assertEquals(2.5 / 30, summary.getLoop(1).getEnergyPerFrameJ(), 1e-9);
+
+        DeviceMetricData runData = new DeviceMetricData(new InvocationContext());
+        summary.addToMetricData(runData, null);
+        HashMap<String, Metric> metrics = new HashMap<>();
+        runData.addToMetrics(metrics);
+        assertEquals(
+                2.5 / 1.5,
+                metrics.get("run_1.power_average").getMeasurements().getSingleDouble(),
+                1e-9);
+        assertEquals(summary, PowerSummary.parseRunMetrics(metrics));
+    }
+
+    @Test
+    public void testWithoutFrames() {
+        mSysfs.set(BATTERY + "/current_now", 250000);
+        mSysfs.set(BATTERY + "/voltage_now", 4000000);
+        sample(1000);
+        sample(1500);
+
+        PowerSummary summary = mCollector.createSummary();
+        assertEquals(-1, summary.getLoop(0).getFrameCount());
+        assertTrue(Double.isNaN(summary.getLoop(0).getEnergyPerFrameJ()));
+        assertTrue(Double.isNaN(summary.getLoop(1).getAveragePowerW()));
+
+        DeviceMetricData runData = new DeviceMetricData(new InvocationContext());
+        summary.addToMetricData(runData, null);
+        HashMap<String, Metric> metrics = new HashMap<>();
+        runData.addToMetrics(metrics);
+        assertEquals(summary, PowerSummary.parseRunMetrics(metrics));
+    }
+}
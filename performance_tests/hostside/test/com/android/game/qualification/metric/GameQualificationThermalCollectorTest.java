@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import static com.android.game.qualification.metric.TestEvents.startLoop;
+
+import static org.junit.Assert.assertEquals;
+
+import com.android.game.qualification.ApkInfo;
+import com.android.game.qualification.proto.ResultDataProto;
+import com.android.tradefed.device.metric.DeviceMetricData;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+/** Test for {@link GameQualificationThermalCollector}. */
+@RunWith(JUnit4.class)
+public class GameQualificationThermalCollectorTest {
+    private static final double EPSILON = 1e-9;
+    private static final String VSYNC = "16666666";
+
+    private static final ApkInfo APK = new ApkInfo(
+            "foo",
+            "foo.apk",
+            "com.foo",
+            null,
+            "Surface View - com.foo#0",
+            null,
+            Collections.emptyList(),
+            10000,
+            10000,
+            true);
+
+    private GameQualificationThermalCollector mCollector;
+
+    @Before
+    public void setUp() {
+        mCollector = new GameQualificationThermalCollector();
+        mCollector.setApkInfo(APK);
+        mCollector.enable();
+
+        // Loops start at 2s and 4s in CLOCK_MONOTONIC, which is 3s and 5s in CLOCK_BOOTTIME.
+        mCollector.setDeviceResultData(
+                ResultDataProto.Result.newBuilder()
+                        .setBoottimeOffsetNs(1_000_000_000L)
+                        .addEvents(startLoop(2000))
+                        .addEvents(startLoop(4000))
+                        .build());
+
+        // Loop 0.
+        mCollector.processRawData(sample("3.00", 0, 40000, 35000));
+        mCollector.processRawData(sample("4.00", 0, 45000, 35000));
+        // Loop 1.
+        mCollector.processRawData(sample("5.00", 2, 52500, 36000));
+        mCollector.processRawData(sample("6.00", 0, 47000, 36000));
+    }
+
+    @Test
+    public void testWithoutFrames() {
+        ThermalSummary summary = mCollector.createSummary();
+        assertEquals(2, summary.getLoopCount());
+
+        ThermalSummary.LoopThermal loop0 = summary.getLoop(0);
+        assertEquals(0.0, loop0.getThrottledTimeRatio(), EPSILON);
+        assertEquals(0, loop0.getMaxStatus());
+        assertEquals(45.0, loop0.getMaxTemperature(), EPSILON);
+        assertEquals(-1, loop0.getJankyFrameCount());
+
+        ThermalSummary.LoopThermal loop1 = summary.getLoop(1);
+        assertEquals(0.5, loop1.getThrottledTimeRatio(), EPSILON);
+        assertEquals(2, loop1.getMaxStatus());
+        assertEquals(52.5, loop1.getMaxTemperature(), EPSILON);
+    }
+
+    @Test
+    public void testJankAttribution() {
+        GameQualificationFpsCollector fpsCollector = new GameQualificationFpsCollector();
+        fpsCollector.setApkInfo(APK);
+        fpsCollector.enable();
+        fpsCollector.doStart(new DeviceMetricData(null));
+        fpsCollector.processRawData(new String[] {
+                VSYNC,
+                frame(2_100_000_000L),
+                frame(2_116_666_666L),
+                // Janky, not throttled.
+                frame(2_150_000_000L),
+                // Janky, throttled.
+                frame(4_500_000_000L),
+                frame(4_516_666_666L),
+                // Janky, not throttled.
+                frame(5_500_000_000L)});
+        mCollector.setPeers(Arrays.asList(mCollector, fpsCollector));
+
+        ThermalSummary summary = mCollector.createSummary();
+        assertEquals(1, summary.getLoop(0).getJankyFrameCount());
+        assertEquals(0.0, summary.getLoop(0).getThrottledJankRatio(), EPSILON);
+        assertEquals(2, summary.getLoop(1).getJankyFrameCount());
+        assertEquals(0.5, summary.getLoop(1).getThrottledJankRatio(), EPSILON);
+
+        DeviceMetricData runData = new DeviceMetricData(new InvocationContext());
+        summary.addToMetricData(runData, null);
+        HashMap<String, Metric> metrics = new HashMap<>();
+        runData.addToMetrics(metrics);
+        assertEquals(
+                0.5,
+                metrics.get("run_1.thermal_throttled_jank_ratio")
+                        .getMeasurements().getSingleDouble(),
+                EPSILON);
+        assertEquals(summary, ThermalSummary.parseRunMetrics(metrics));
+    }
+
+    @Test
+    public void testParseZoneTypes() {
+        assertEquals(
+                "skin-therm",
+                ThermalSeries.parseZoneTypes(
+                        "/sys/class/thermal/thermal_zone0/type:cpu0\n"
+                                + "/sys/class/thermal/thermal_zone12/type:skin-therm\n")
+                        .get(12));
+    }
+
+    @Test
+    public void testMissingZone() {
+        ThermalSeries series = mCollector.getSeries();
+        series.add("7.00 0.00\n/sys/class/thermal/thermal_zone0/temp:30000\n");
+        assertEquals(2, series.getZoneCount());
+        assertEquals(ThermalSeries.STATUS_UNKNOWN, series.getStatus(4));
+        assertEquals(ThermalSeries.TEMPERATURE_UNKNOWN, series.getTemperature(4, 1));
+    }
+
+    private static String sample(String uptime, int status, int zone0, int zone1) {
+        return uptime + " 0.00\n"
+                + "/sys/class/thermal/thermal_zone0/temp:" + zone0 + "\n"
+                + "/sys/class/thermal/thermal_zone1/temp:" + zone1 + "\n"
+                + "Thermal Status: " + status + "\n";
+    }
+
+    private static String frame(long presentTimeNs) {
+        return presentTimeNs + "\t" + presentTimeNs + "\t" + presentTimeNs;
+    }
+}
@@ -138,7 +138,6 @@ public class LoopSummaryTest {
         runData.addToMetrics(metrics);
 
         LoopSummary summary = LoopSummary.parseRunMetrics(
-                context,
                 MetricSummary.TimeType.PRESENT,
                 0,
                 metrics);
@@ -26,12 +26,16 @@ import com.android.tradefed.device.metric.DeviceMetricData;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.invoker.InvocationContext;
 import com.android.tradefed.metrics.proto.MetricMeasurement;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 
 @RunWith(JUnit4.class)
 public class MetricSummaryTest {
@@ -78,4 +82,51 @@ public class MetricSummaryTest {
         assertNotNull(result);
         assertEquals(summary, result);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSceneConversion() {
+        MetricSummary.Builder builder = new MetricSummary.Builder(TEST_REQUIREMENTS, 500_000_000);
+        builder.beginScene("main menu");
+        builder.addSceneFrameTime(PRESENT, 16_000_000);
+        builder.addSceneFrameTime(PRESENT, 17_000_000);
+        builder.addSceneFrameTime(READY, 10);
+        builder.endScene();
+        builder.beginScene("level 1");
+        builder.addSceneFrameTime(PRESENT, 33_000_000);
+        builder.addSceneFrameTime(READY, 20);
+        builder.endScene();
+        builder.setLoadTimeMs(42);
+
+        MetricSummary summary = builder.build();
+        assertEquals(0, summary.getLoopSummaries().size());
+        assertEquals(2, summary.getSceneNames().size());
+        assertEquals("level 1", summary.getSceneNames().get(1));
+
+        IInvocationContext context = new InvocationContext();
+        DeviceMetricData runData = new DeviceMetricData(context);
+        summary.addToMetricData(runData);
+        HashMap<String, MetricMeasurement.Metric> metrics = new HashMap<>();
+        runData.addToMetrics(metrics);
+
+        MetricSummary result = MetricSummary.parseRunMetrics(context, metrics);
+        assertNotNull(result);
+        assertEquals(summary, result);
+    }
+
+    @Test
+    public void testSplitByDevice() {
+        Metric metric = Metric.newBuilder()
+                .setMeasurements(Measurements.newBuilder().setSingleInt(1))
+                .build();
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("{device1}:loop_count", metric);
+        metrics.put("{device2}:loop_count", metric);
+        metrics.put("load_time", metric);
+
+        Map<String, Map<String, Metric>> result = MetricSummary.splitByDevice(metrics);
+        assertEquals(3, result.size());
+        assertEquals(Collections.singletonMap("loop_count", metric), result.get("device1"));
+        assertEquals(Collections.singletonMap("loop_count", metric), result.get("device2"));
+        assertEquals(Collections.singletonMap("load_time", metric), result.get(null));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test for {@link PerfettoTraceParser}.
+ *
+ * frametimeline.perfetto-trace is a synthetic trace containing:
+ * <ul>
+ *     <li>four frames of the test layer 16 ms apart starting at 1000 ms, presented 4 ms after
+ *     they are ready,</li>
+ *     <li>a frame of another layer and a dropped frame,</li>
+ *     <li>three frames 33 ms apart starting at 2000 ms, the second one finishing after its
+ *     display frame,</li>
+ *     <li>sched_switch events on CPU 0 at 1000, 1050 and 1100 ms with a boottime offset of
+ *     500 ms, busy between the first two,</li>
+ *     <li>a packet with unknown fields and a truncated packet at the end.</li>
+ * </ul>
+ */
+@RunWith(JUnit4.class)
+public class PerfettoTraceParserTest {
+    private static final long MS = 1000000L;
+    private static final String LAYER = "SurfaceView[com.foo/com.foo.MainActivity]#0";
+
+    private static class Frame {
+        final String mLayerName;
+        final long mPresentTimeNs;
+        final long mReadyTimeNs;
+
+        Frame(String layerName, long presentTimeNs, long readyTimeNs) {
+            mLayerName = layerName;
+            mPresentTimeNs = presentTimeNs;
+            mReadyTimeNs = readyTimeNs;
+        }
+    }
+
+    private static class RecordingListener implements PerfettoTraceParser.Listener {
+        final List<Frame> mFrames = new ArrayList<>();
+        final List<long[]> mSwitches = new ArrayList<>();
+
+        @Override
+        public void onFrame(String layerName, long presentTimeNs, long readyTimeNs) {
+            mFrames.add(new Frame(layerName, presentTimeNs, readyTimeNs));
+        }
+
+        @Override
+        public void onSchedSwitch(int cpu, long timestampNs, int prevPid, int nextPid) {
+            mSwitches.add(new long[] {cpu, timestampNs, prevPid, nextPid});
+        }
+    }
+
+    static InputStream openSampleTrace() {
+        return PerfettoTraceParserTest.class.getResourceAsStream(
+                "/com/android/game/qualification/metric/frametimeline.perfetto-trace");
+    }
+
+    @Test
+    public void testFrames() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        try (InputStream trace = openSampleTrace()) {
+            new PerfettoTraceParser(500 * MS).parse(trace, listener);
+        }
+
+        List<Frame> frames = new ArrayList<>();
+        boolean hasOtherLayer = false;
+        for (Frame frame : listener.mFrames) {
+            if (frame.mLayerName.equals(LAYER)) {
+                frames.add(frame);
+            } else {
+                hasOtherLayer = true;
+            }
+        }
+        assertTrue(hasOtherLayer);
+        // The dropped frame is not reported.
+        assertEquals(7, frames.size());
+        assertEquals(1004 * MS, frames.get(0).mPresentTimeNs);
+        assertEquals(1000 * MS, frames.get(0).mReadyTimeNs);
+        assertEquals(1052 * MS, frames.get(3).mPresentTimeNs);
+        assertEquals(2037 * MS, frames.get(5).mPresentTimeNs);
+        assertEquals(2033 * MS, frames.get(5).mReadyTimeNs);
+    }
+
+    @Test
+    public void testSchedSwitch() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        try (InputStream trace = openSampleTrace()) {
+            new PerfettoTraceParser(500 * MS).parse(trace, listener);
+        }
+
+        assertEquals(3, listener.mSwitches.size());
+        long[] second = listener.mSwitches.get(1);
+        assertEquals(0, second[0]);
+        // Ftrace timestamps are converted from CLOCK_BOOTTIME.
+        assertEquals(1050 * MS, second[1]);
+        assertEquals(123, second[2]);
+        assertEquals(0, second[3]);
+    }
+
+    @Test
+    public void testSchedUtilization() {
+        List<Long> loops = new ArrayList<>();
+        loops.add(1000 * MS);
+        loops.add(2000 * MS);
+        SchedUtilization utilization = new SchedUtilization(loops);
+        utilization.onSchedSwitch(0, 900 * MS, 0);
+        utilization.onSchedSwitch(0, 1050 * MS, 123);
+        utilization.onSchedSwitch(0, 1200 * MS, 0);
+        utilization.onSchedSwitch(0, 2100 * MS, 123);
+        assertEquals(150.0 / 300.0, utilization.getUtilization(0, 0), 1e-9);
+        assertEquals(1.0, utilization.getUtilization(1, 0), 1e-9);
+        assertTrue(Double.isNaN(utilization.getUtilization(0, 1)));
+    }
+
+    @Test
+    public void testDecoder() {
+        // Field 1 = 150, field 2 = "ab", field 3 = {field 1 = 1}, field 4 fixed32.
+        byte[] data = {
+                0x08, (byte) 0x96, 0x01,
+                0x12, 0x02, 'a', 'b',
+                0x1a, 0x02, 0x08, 0x01,
+                0x25, 1, 0, 0, 0};
+        ProtoDecoder decoder = new ProtoDecoder(data, 0, data.length);
+        assertTrue(decoder.next());
+        assertEquals(1, decoder.getFieldNumber());
+        assertEquals(150, decoder.readVarint());
+        assertTrue(decoder.next());
+        assertEquals("ab", decoder.readString());
+        assertTrue(decoder.next());
+        ProtoDecoder message = decoder.readMessage();
+        assertTrue(decoder.next());
+        assertEquals(ProtoDecoder.WIRE_TYPE_FIXED32, decoder.getWireType());
+        decoder.skip();
+        assertFalse(decoder.next());
+
+        assertTrue(message.next());
+        assertEquals(1, message.readVarint());
+        assertFalse(message.next());
+    }
+
+    @Test
+    public void testDecoderTruncated() {
+        byte[] data = {0x12, 0x05, 'a'};
+        ProtoDecoder decoder = new ProtoDecoder(data, 0, data.length);
+        assertTrue(decoder.next());
+        try {
+            decoder.readString();
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+            // Do nothing.
+        }
+    }
+
+    @Test
+    public void testEmptyTrace() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        new PerfettoTraceParser(0).parse(new ByteArrayInputStream(new byte[0]), listener);
+        assertTrue(listener.mFrames.isEmpty());
+    }
+}
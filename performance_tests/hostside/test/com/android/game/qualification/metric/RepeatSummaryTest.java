@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.metric;
+
+import static com.android.game.qualification.metric.MetricSummary.TimeType.PRESENT;
+import static com.android.game.qualification.metric.MetricSummary.TimeType.READY;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.game.qualification.metric.RepeatSummary.ConvergenceMetric;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Test for {@link RepeatSummary}. */
+@RunWith(JUnit4.class)
+public class RepeatSummaryTest {
+    private static final long VSYNC_PERIOD_NS = 16_666_667;
+
+    /** Summary of a run where each loop presents 10 frames of the given frame time. */
+    private static MetricSummary createSummary(long... loopFrameTimesMs) {
+        MetricSummary.Builder builder = new MetricSummary.Builder(null, VSYNC_PERIOD_NS);
+        for (long frameTimeMs : loopFrameTimesMs) {
+            builder.beginLoop();
+            for (int i = 0; i < 10; i++) {
+                builder.addFrameTime(PRESENT, frameTimeMs * 1000000);
+                builder.addFrameTime(READY, frameTimeMs * 1000000);
+            }
+            builder.endLoop();
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void testConfidenceInterval() {
+        RepeatSummary.Builder builder = new RepeatSummary.Builder(ConvergenceMetric.AVG_FRAME_TIME);
+        assertTrue(builder.addRepeat(createSummary(10)));
+        assertTrue(builder.addRepeat(createSummary(12)));
+        assertTrue(builder.addRepeat(createSummary(14)));
+        RepeatSummary summary = builder.build();
+
+        assertEquals(3, summary.getCount());
+        assertEquals(12.0, summary.getMean(), 1e-9);
+        assertEquals(2.0, summary.getStandardDeviation(), 1e-9);
+        assertEquals(4.303 * 2.0 / Math.sqrt(3), summary.getConfidenceInterval(), 1e-9);
+        assertFalse(summary.isConverged(0.1));
+        assertTrue(summary.isConverged(0.5));
+    }
+
+    @Test
+    public void testSingleRepeat() {
+        RepeatSummary.Builder builder = new RepeatSummary.Builder(ConvergenceMetric.AVG_FRAME_TIME);
+        builder.addRepeat(createSummary(16));
+        RepeatSummary summary = builder.build();
+        assertTrue(Double.isNaN(summary.getConfidenceInterval()));
+        assertFalse(summary.isConverged(1.0));
+    }
+
+    @Test
+    public void testOnlyCheckedLoops() {
+        RepeatSummary.Builder builder = new RepeatSummary.Builder(ConvergenceMetric.P99_FRAME_TIME);
+        // The first and last loop are ignored when there are more than 2 loops.
+        builder.addRepeat(createSummary(100, 16, 33, 100));
+        assertEquals((16 + 33) / 2.0, builder.build().getValue(0), 1e-9);
+    }
+
+    @Test
+    public void testZeroJankConverged() {
+        RepeatSummary.Builder builder = new RepeatSummary.Builder(ConvergenceMetric.JANK_RATE);
+        builder.addRepeat(createSummary(16));
+        builder.addRepeat(createSummary(16));
+        RepeatSummary summary = builder.build();
+        assertEquals(0.0, summary.getMean(), 0.0);
+        assertTrue(summary.isConverged(0.01));
+    }
+
+    @Test
+    public void testNoFrames() {
+        RepeatSummary.Builder builder = new RepeatSummary.Builder(ConvergenceMetric.AVG_FRAME_TIME);
+        MetricSummary.Builder empty = new MetricSummary.Builder(null, VSYNC_PERIOD_NS);
+        empty.beginLoop();
+        empty.endLoop();
+        assertFalse(builder.addRepeat(empty.build()));
+        assertEquals(0, builder.build().getCount());
+    }
+
+    @Test
+    public void testConversion() {
+        RepeatSummary.Builder builder = new RepeatSummary.Builder(ConvergenceMetric.AVG_FRAME_TIME);
+        builder.addRepeat(createSummary(16));
+        builder.addRepeat(createSummary(17));
+        RepeatSummary summary = builder.build();
+
+        Map<String, Metric> metrics = new HashMap<>();
+        assertNull(RepeatSummary.parseRunMetrics(metrics));
+        summary.addToMetrics(metrics);
+        assertEquals(
+                16.5, metrics.get("repeat_mean").getMeasurements().getSingleDouble(), 1e-9);
+        assertEquals(summary, RepeatSummary.parseRunMetrics(metrics));
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.metric;
+
+import com.android.game.qualification.proto.ResultDataProto;
+
+/** Events reported by the device, for the collector tests. */
+final class TestEvents {
+    private TestEvents() {}
+
+    static ResultDataProto.Event startLoop(long timestampMs) {
+        return ResultDataProto.Event.newBuilder()
+                .setType(ResultDataProto.Event.Type.START_LOOP)
+                .setTimestampNs(timestampMs * 1000000)
+                .build();
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.reporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.testrunner.TestResult.TestStatus;
+import com.android.tradefed.metrics.proto.MetricMeasurement.DataType;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.TestDescription;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Test for {@link ResultCheckpoint}. */
+@RunWith(JUnit4.class)
+public class ResultCheckpointTest {
+    private static final String CLASS = "com.android.game.qualification.device.GameQualificationTest";
+
+    private File mFile;
+    private ResultCheckpoint mCheckpoint;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("checkpoint", ".jsonl");
+        mCheckpoint = new ResultCheckpoint(mFile);
+        mCheckpoint.clear();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private void appendTest(String name, TestStatus status, Map<String, Metric> metrics) {
+        mCheckpoint.appendTest(new TestDescription(CLASS, name), status, null, metrics);
+    }
+
+    @Test
+    public void testResumeCompletedApks() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("loop_count", Metric.newBuilder()
+                .setType(DataType.PROCESSED)
+                .setMeasurements(Measurements.newBuilder().setSingleInt(3))
+                .build());
+        metrics.put("run_0.frametime", Metric.newBuilder()
+                .setUnit("ns")
+                .setMeasurements(Measurements.newBuilder().setSingleDouble(16.5))
+                .build());
+        appendTest("setUp[foo]", TestStatus.PASSED, Collections.emptyMap());
+        appendTest("run[foo]", TestStatus.PASSED, metrics);
+        // A collector error is reported after the test ended.
+        mCheckpoint.appendTest(
+                new TestDescription(CLASS, "run[foo]"),
+                TestStatus.FAILURE,
+                "collector error",
+                Collections.emptyMap());
+        mCheckpoint.appendLog("/tmp/screenshot-foo.png");
+        appendTest("tearDown[foo]", TestStatus.PASSED, Collections.emptyMap());
+        // bar did not complete before the invocation died.
+        appendTest("setUp[bar]", TestStatus.PASSED, Collections.emptyMap());
+        appendTest("run[bar]", TestStatus.PASSED, metrics);
+
+        List<ResultCheckpoint.Record> records = new ResultCheckpoint(mFile).readCompleted();
+        assertEquals(Collections.singleton("[foo]"), ResultCheckpoint.getCompletedApks(records));
+        assertEquals(4, records.size());
+        assertEquals("setUp[foo]", records.get(0).testName);
+
+        ResultCheckpoint.Record run = records.get(1);
+        assertEquals("run[foo]", run.testName);
+        assertEquals(TestStatus.FAILURE.name(), run.status);
+        assertEquals("collector error", run.trace);
+        HashMap<String, Metric> parsed = ResultCheckpoint.getMetrics(run);
+        assertEquals(3, parsed.get("loop_count").getMeasurements().getSingleInt());
+        assertEquals(16.5, parsed.get("run_0.frametime").getMeasurements().getSingleDouble(), 0);
+        assertEquals("ns", parsed.get("run_0.frametime").getUnit());
+
+        assertEquals("/tmp/screenshot-foo.png", records.get(2).logPath);
+        assertEquals("tearDown[foo]", records.get(3).testName);
+    }
+
+    @Test
+    public void testTruncatedRecord() throws IOException {
+        appendTest("setUp[foo]", TestStatus.PASSED, Collections.emptyMap());
+        appendTest("tearDown[foo]", TestStatus.PASSED, Collections.emptyMap());
+        try (FileOutputStream output = new FileOutputStream(mFile, true)) {
+            output.write("{\"className\":\"com.an".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(2, mCheckpoint.read().size());
+        assertEquals(2, mCheckpoint.readCompleted().size());
+    }
+
+    @Test
+    public void testMissingFile() {
+        assertTrue(mCheckpoint.readCompleted().isEmpty());
+    }
+
+    @Test
+    public void testPassedApkNames() {
+        appendTest("setUp[foo]{device1}", TestStatus.PASSED, Collections.emptyMap());
+        appendTest("tearDown[foo]{device1}", TestStatus.PASSED, Collections.emptyMap());
+        // foo did not complete on device2.
+        appendTest("setUp[foo]{device2}", TestStatus.PASSED, Collections.emptyMap());
+        appendTest("setUp[bar]{device1}", TestStatus.PASSED, Collections.emptyMap());
+        appendTest("tearDown[bar]{device1}", TestStatus.PASSED, Collections.emptyMap());
+        appendTest("setUp[baz]{device1}", TestStatus.PASSED, Collections.emptyMap());
+        appendTest("run[baz]{device1}", TestStatus.FAILURE, Collections.emptyMap());
+        appendTest("tearDown[baz]{device1}", TestStatus.PASSED, Collections.emptyMap());
+        assertEquals(Collections.singleton("bar"), mCheckpoint.getPassedApkNames());
+    }
+
+    @Test
+    public void testGetApkKey() {
+        assertEquals("[foo]", ResultCheckpoint.getApkKey("run[foo]"));
+        assertEquals("[foo]{device1}", ResultCheckpoint.getApkKey("run[foo]#2{device1}"));
+        assertEquals("[foo]{device1}", ResultCheckpoint.getApkKey("foo", "device1"));
+        assertNull(ResultCheckpoint.getApkKey("allocationStress"));
+    }
+}
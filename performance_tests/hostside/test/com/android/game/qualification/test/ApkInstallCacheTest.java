@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/** Test for {@link ApkInstallCache}. */
+@RunWith(JUnit4.class)
+public class ApkInstallCacheTest {
+    @Test
+    public void testParseVersionCode() {
+        assertEquals(
+                "42",
+                ApkInstallCache.parseVersionCode(
+                        "    versionCode=42 minSdk=24 targetSdk=28\n"));
+        assertNull(ApkInstallCache.parseVersionCode(""));
+        assertNull(ApkInstallCache.parseVersionCode("Unable to find package: com.foo\n"));
+    }
+
+    @Test
+    public void testHash() throws IOException {
+        File apk = File.createTempFile("fake", ".apk");
+        try {
+            write(apk, "abc");
+            ApkInstallCache cache = new ApkInstallCache();
+            String hash = cache.getHash(apk);
+            assertEquals(
+                    "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", hash);
+            assertEquals(hash, cache.getHash(apk));
+
+            // A rebuilt APK is hashed again.
+            write(apk, "abcd");
+            apk.setLastModified(apk.lastModified() + 2000);
+            assertNotEquals(hash, cache.getHash(apk));
+        } finally {
+            apk.delete();
+        }
+    }
+
+    @Test
+    public void testFingerprint() {
+        assertNotEquals(
+                ApkInstallCache.getFingerprint("abc", "1"),
+                ApkInstallCache.getFingerprint("abc", "2"));
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        try (OutputStream output = new FileOutputStream(file)) {
+            output.write(contents.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/** Test for {@link BlackFrameDetector}. */
+@RunWith(JUnit4.class)
+public class BlackFrameDetectorTest {
+    private static final int[] IMAGE_TYPES = {
+        BufferedImage.TYPE_INT_ARGB,
+        BufferedImage.TYPE_INT_ARGB_PRE,
+        BufferedImage.TYPE_INT_RGB,
+        BufferedImage.TYPE_INT_BGR,
+        BufferedImage.TYPE_4BYTE_ABGR,
+        BufferedImage.TYPE_4BYTE_ABGR_PRE,
+        BufferedImage.TYPE_3BYTE_BGR,
+        BufferedImage.TYPE_USHORT_565_RGB,
+        BufferedImage.TYPE_BYTE_GRAY,
+        BufferedImage.TYPE_BYTE_INDEXED,
+    };
+
+    // Screen sizes of the screenshots, 1080p, 1440p and 4K.
+    private static final int[][] SCREEN_SIZES = {{1080, 1920}, {1440, 2560}, {2160, 3840}};
+
+    /** The detector checks every pixel with getRGB, in the order it used to. */
+    private static boolean isBlackReference(BufferedImage img) {
+        for (int i = 0; i < img.getWidth(); i++) {
+            for (int j = img.getHeight() / 4; j < img.getHeight() * 3 / 4; j++) {
+                int color = img.getRGB(i, j);
+                if ((color & 0x00ffffff) != 0 && (color >> 24) != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static BufferedImage createImage(int width, int height, int type, int color) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                img.setRGB(i, j, color);
+            }
+        }
+        return img;
+    }
+
+    private static void assertMatchesReference(BufferedImage img) {
+        boolean expected = isBlackReference(img);
+        assertEquals(expected, BlackFrameDetector.isBlack(img, false));
+        assertEquals(expected, BlackFrameDetector.isBlack(img, true));
+        assertEquals(expected, BlackFrameDetector.isBlack(img));
+    }
+
+    @Test
+    public void testImageTypes() {
+        int[] colors = {0xff000000, 0x00ffffff, 0xff000001, 0x01010101, 0x80800000, 0x00000000};
+        for (int type : IMAGE_TYPES) {
+            for (int color : colors) {
+                assertMatchesReference(createImage(37, 23, type, color));
+            }
+        }
+    }
+
+    @Test
+    public void testSinglePixel() {
+        Random random = new Random(0);
+        for (int type : IMAGE_TYPES) {
+            for (int k = 0; k < 50; k++) {
+                BufferedImage img = createImage(67, 131, type, 0xff000000);
+                // Between the pixels of the sparse pass, also outside the checked rows.
+                img.setRGB(random.nextInt(67), random.nextInt(131), 0xff000000 | random.nextInt());
+                assertMatchesReference(img);
+            }
+        }
+    }
+
+    @Test
+    public void testOnlyMiddleRowsChecked() {
+        BufferedImage img = createImage(16, 16, BufferedImage.TYPE_INT_ARGB, 0xff000000);
+        img.setRGB(5, 3, 0xffffffff);
+        img.setRGB(5, 12, 0xffffffff);
+        assertTrue(BlackFrameDetector.isBlack(img));
+        img.setRGB(5, 11, 0xffffffff);
+        assertFalse(BlackFrameDetector.isBlack(img));
+    }
+
+    @Test
+    public void testSubimage() {
+        BufferedImage img = createImage(64, 64, BufferedImage.TYPE_4BYTE_ABGR, 0xff000000);
+        img.setRGB(40, 33, 0xff0000ff);
+        // The subimage shares the raster of the image with a translated origin.
+        assertMatchesReference(img.getSubimage(32, 16, 16, 32));
+        assertMatchesReference(img.getSubimage(0, 0, 32, 32));
+        assertMatchesReference(img.getSubimage(33, 0, 16, 64));
+    }
+
+    @Test
+    public void testScreenSizes() {
+        int[] types = {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR};
+        for (int[] size : SCREEN_SIZES) {
+            for (int type : types) {
+                BufferedImage img = createImage(size[0], size[1], type, 0xff000000);
+                assertMatchesReference(img);
+                // A single pixel missed by the sparse pass.
+                img.setRGB(size[0] - 3, size[1] * 3 / 4 - 1, 0xff010000);
+                assertMatchesReference(img);
+            }
+        }
+    }
+}
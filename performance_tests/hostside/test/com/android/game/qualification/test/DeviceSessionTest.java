@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.android.game.qualification.SessionProtocol;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Test for {@link DeviceSession}. */
+@RunWith(JUnit4.class)
+public class DeviceSessionTest {
+    @Test
+    public void testFormatCommand() {
+        assertEquals(
+                "am broadcast -a com.android.game.qualification.COMMAND "
+                        + "-p com.android.game.qualification.device --es command launch "
+                        + "--es apk 'it'\\''s a game'",
+                DeviceSession.formatCommand(SessionProtocol.COMMAND_LAUNCH, "it's a game"));
+    }
+
+    @Test
+    public void testParseReply() {
+        DeviceSession.Reply reply = DeviceSession.parseReply(
+                "Broadcasting: Intent { act=com.android.game.qualification.COMMAND }\n"
+                        + "Broadcast completed: result=2, data=\"Unknown APK foo\"\n");
+        assertEquals(SessionProtocol.RESULT_REJECTED, reply.mCode);
+        assertEquals("Unknown APK foo", reply.mData);
+
+        reply = DeviceSession.parseReply("Broadcast completed: result=1\n");
+        assertEquals(SessionProtocol.RESULT_ACCEPTED, reply.mCode);
+        assertNull(reply.mData);
+
+        // No receiver yet.
+        reply = DeviceSession.parseReply("Broadcast completed: result=0\n");
+        assertEquals(SessionProtocol.RESULT_NONE, reply.mCode);
+        assertEquals(SessionProtocol.RESULT_NONE, DeviceSession.parseReply("").mCode);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.game.qualification.metric.EventTimeline;
+import com.android.game.qualification.proto.ResultDataProto;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/** Test for {@link EventStream}. */
+@RunWith(JUnit4.class)
+public class EventStreamTest {
+    @Test
+    public void testReceiver() {
+        EventTimeline timeline = new EventTimeline();
+        EventStream.Receiver receiver = new EventStream.Receiver(timeline, "ATTACH 1");
+        // Only the last event of the previous run is read before the current run begins.
+        byte[] output = ("--------- beginning of main\n"
+                + "START_LOOP 50\n"
+                + "BEGIN MONOTONIC 12\n"
+                + "APP_LAUNCH 100\n"
+                + "START_LOOP 2\r\n"
+                + "not an event\n"
+                + "START_LOOP 3").getBytes(StandardCharsets.UTF_8);
+        // Lines may be split across reads.
+        receiver.addOutput(output, 0, 40);
+        receiver.addOutput(output, 40, output.length - 40);
+        receiver.flush();
+
+        ResultDataProto.Result result = timeline.toResult();
+        assertEquals(12, result.getBoottimeOffsetNs());
+        assertEquals(ResultDataProto.Result.Clock.MONOTONIC, result.getClock());
+        List<ResultDataProto.Event> events = result.getEventsList();
+        assertEquals(3, events.size());
+        assertEquals(ResultDataProto.Event.Type.START_LOOP, events.get(0).getType());
+        assertEquals(2, events.get(0).getTimestampNs());
+        assertEquals(ResultDataProto.Event.Type.APP_LAUNCH, events.get(2).getType());
+    }
+
+    @Test
+    public void testReceiverEnd() throws InterruptedException {
+        EventStream.Receiver receiver = new EventStream.Receiver(new EventTimeline(), "ATTACH 1");
+        // The end of the previous run is ignored.
+        receiver.processNewLines(new String[] { "END", "BEGIN MONOTONIC 12", "START_LOOP 2" });
+        assertFalse(receiver.awaitEnd(0));
+        receiver.processNewLines(new String[] { "END" });
+        assertTrue(receiver.awaitEnd(0));
+    }
+
+    @Test
+    public void testReceiverAttached() throws InterruptedException {
+        EventTimeline timeline = new EventTimeline();
+        EventStream.Receiver receiver = new EventStream.Receiver(timeline, "ATTACH 2");
+        // The marker of a previous stream.
+        receiver.processNewLines(new String[] { "ATTACH 1", "BEGIN MONOTONIC 12" });
+        assertFalse(receiver.awaitAttached(0));
+        receiver.processNewLines(new String[] { "ATTACH 2" });
+        assertTrue(receiver.awaitAttached(0));
+        // The marker is not an event.
+        assertEquals(0, timeline.toResult().getEventsCount());
+    }
+}
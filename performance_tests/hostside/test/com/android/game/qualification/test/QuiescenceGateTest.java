@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/** Test for {@link QuiescenceGate}. */
+@RunWith(JUnit4.class)
+public class QuiescenceGateTest {
+    private static String probeOutput(long busy, long idle, int temperature, int dexopt) {
+        return "cpu  " + busy + " 0 0 " + idle + " 0 0 0 0 0 0\n"
+                + "/sys/class/thermal/thermal_zone0/temp:" + temperature + "\n"
+                + "/sys/class/thermal/thermal_zone1/temp:-273000\n"
+                + "dexopt:" + dexopt + "\n";
+    }
+
+    @Test
+    public void testParse() {
+        QuiescenceGate.Sample sample =
+                QuiescenceGate.Sample.parse(probeOutput(100, 300, 45500, 2));
+        assertEquals(100, sample.mBusyJiffies);
+        assertEquals(400, sample.mTotalJiffies);
+        // The bogus thermal zone is ignored.
+        assertEquals(45.5, sample.mMaxTemperatureC, 1e-9);
+        assertEquals(2, sample.mDexoptProcesses);
+    }
+
+    @Test
+    public void testParseMissingValues() {
+        QuiescenceGate.Sample sample = QuiescenceGate.Sample.parse("dexopt:0\n");
+        assertTrue(Double.isNaN(sample.mMaxTemperatureC));
+        assertTrue(Double.isNaN(QuiescenceGate.getCpuLoad(sample, sample)));
+        QuiescenceGate gate = new QuiescenceGate(0.1, 40.0, true, 1000, 1);
+        // Unknown values do not block the run.
+        assertTrue(gate.isQuiescent(Double.NaN, sample));
+    }
+
+    @Test
+    public void testCpuLoad() {
+        QuiescenceGate.Sample previous = QuiescenceGate.Sample.parse(probeOutput(100, 300, 0, 0));
+        QuiescenceGate.Sample current = QuiescenceGate.Sample.parse(probeOutput(150, 450, 0, 0));
+        assertEquals(0.25, QuiescenceGate.getCpuLoad(previous, current), 1e-9);
+    }
+
+    @Test
+    public void testAwait() throws Exception {
+        Iterator<String> outputs = Arrays.asList(
+                probeOutput(0, 0, 50000, 1),
+                // Busy and hot.
+                probeOutput(50, 50, 50000, 0),
+                // Idle, but still hot.
+                probeOutput(50, 150, 45000, 0),
+                // Quiescent.
+                probeOutput(55, 250, 38000, 0)).iterator();
+        QuiescenceGate gate = new QuiescenceGate(0.1, 40.0, true, 60000, 1);
+        QuiescenceGate.Result result = gate.await(outputs::next);
+        assertTrue(result.isQuiescent());
+        assertFalse(outputs.hasNext());
+        assertEquals(38.0, result.getMaxTemperatureC(), 1e-9);
+        assertEquals(5.0 / 105, result.getCpuLoad(), 1e-9);
+
+        Map<String, Metric> metrics = new HashMap<>();
+        result.addToMetrics(metrics);
+        assertEquals(1, metrics.get("quiescence_reached").getMeasurements().getSingleInt());
+        assertEquals(
+                38.0,
+                metrics.get("quiescence_max_temperature").getMeasurements().getSingleDouble(),
+                1e-9);
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        QuiescenceGate gate = new QuiescenceGate(0.1, 40.0, true, 0, 1);
+        QuiescenceGate.Result result = gate.await(() -> probeOutput(0, 0, 50000, 1));
+        assertFalse(result.isQuiescent());
+        assertEquals(1, result.getDexoptProcesses());
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.result.InputStreamSource;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.imageio.ImageIO;
+
+/** Test for {@link RawScreenshot}. */
+@RunWith(JUnit4.class)
+public class RawScreenshotTest {
+
+    /** Output of screencap with every pixel set to the given bytes. */
+    private static ByteBuffer createRaw(
+            int width, int height, int format, boolean dataspace, byte... pixel) {
+        int headerSize = dataspace ? 16 : 12;
+        ByteBuffer data = ByteBuffer.allocate(headerSize + width * height * pixel.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(width).putInt(height).putInt(format);
+        if (dataspace) {
+            data.putInt(0);
+        }
+        for (int i = 0; i < width * height; i++) {
+            data.put(pixel);
+        }
+        data.flip();
+        return data;
+    }
+
+    private static void setPixel(
+            ByteBuffer raw, boolean dataspace, int width, int x, int y, byte... pixel) {
+        int headerSize = dataspace ? 16 : 12;
+        for (int i = 0; i < pixel.length; i++) {
+            raw.put(headerSize + (y * width + x) * pixel.length + i, pixel[i]);
+        }
+    }
+
+    @Test
+    public void testParseHeader() {
+        RawScreenshot screenshot = RawScreenshot.parse(
+                createRaw(3, 5, RawScreenshot.FORMAT_RGBA_8888, false, (byte) 0, (byte) 0,
+                        (byte) 0, (byte) 0xff));
+        assertNotNull(screenshot);
+        assertEquals(3, screenshot.getWidth());
+        assertEquals(5, screenshot.getHeight());
+
+        screenshot = RawScreenshot.parse(
+                createRaw(3, 5, RawScreenshot.FORMAT_RGB_565, true, (byte) 0, (byte) 0));
+        assertNotNull(screenshot);
+        assertEquals(5, screenshot.getHeight());
+    }
+
+    @Test
+    public void testParseInvalid() {
+        assertNull(RawScreenshot.parse(ByteBuffer.allocate(4)));
+        // Unsupported pixel format, e.g. RGBA_FP16.
+        assertNull(RawScreenshot.parse(createRaw(2, 2, 0x16, false, new byte[8])));
+        // Truncated output.
+        ByteBuffer raw = createRaw(4, 4, RawScreenshot.FORMAT_RGBX_8888, false, new byte[4]);
+        raw.limit(raw.limit() - 1);
+        assertNull(RawScreenshot.parse(raw));
+    }
+
+    @Test
+    public void testBlack() {
+        byte opaque = (byte) 0xff;
+        RawScreenshot black = RawScreenshot.parse(
+                createRaw(16, 16, RawScreenshot.FORMAT_RGBA_8888, true, (byte) 0, (byte) 0,
+                        (byte) 0, opaque));
+        assertTrue(black.isBlack());
+        RawScreenshot transparent = RawScreenshot.parse(
+                createRaw(16, 16, RawScreenshot.FORMAT_RGBA_8888, true, opaque, opaque, opaque,
+                        (byte) 0));
+        assertTrue(transparent.isBlack());
+        // RGBX pixels are opaque whatever their last byte.
+        RawScreenshot rgbx = RawScreenshot.parse(
+                createRaw(16, 16, RawScreenshot.FORMAT_RGBX_8888, true, (byte) 0, (byte) 1,
+                        (byte) 0, (byte) 0));
+        assertFalse(rgbx.isBlack());
+    }
+
+    @Test
+    public void testSinglePixel() {
+        ByteBuffer raw = createRaw(
+                64, 64, RawScreenshot.FORMAT_RGB_565, false, (byte) 0, (byte) 0);
+        // Outside of the middle half.
+        setPixel(raw, false, 64, 5, 3, (byte) 0, (byte) 1);
+        assertTrue(RawScreenshot.parse(raw).isBlack());
+        // Missed by the sparse pass.
+        setPixel(raw, false, 64, 63, 47, (byte) 0, (byte) 1);
+        RawScreenshot screenshot = RawScreenshot.parse(raw);
+        assertFalse(BlackFrameDetector.isBlack(screenshot, false));
+        assertFalse(BlackFrameDetector.isBlack(screenshot, true));
+    }
+
+    @Test
+    public void testArgb() {
+        RawScreenshot bgra = RawScreenshot.parse(
+                createRaw(1, 1, RawScreenshot.FORMAT_BGRA_8888, false, (byte) 0x11, (byte) 0x22,
+                        (byte) 0x33, (byte) 0x44));
+        assertEquals(0x44332211, bgra.getArgb(0, 0));
+        RawScreenshot rgb = RawScreenshot.parse(
+                createRaw(1, 1, RawScreenshot.FORMAT_RGB_888, false, (byte) 0x11, (byte) 0x22,
+                        (byte) 0x33));
+        assertEquals(0xff112233, rgb.getArgb(0, 0));
+        // Red in RGB 565 is the high 5 bits of the little endian pixel.
+        RawScreenshot rgb565 = RawScreenshot.parse(
+                createRaw(1, 1, RawScreenshot.FORMAT_RGB_565, false, (byte) 0x00, (byte) 0xf8));
+        assertEquals(0xffff0000, rgb565.getArgb(0, 0));
+    }
+
+    @Test
+    public void testEncodePng() throws IOException {
+        ByteBuffer raw = createRaw(
+                8, 8, RawScreenshot.FORMAT_RGBA_8888, true, (byte) 0, (byte) 0, (byte) 0,
+                (byte) 0xff);
+        setPixel(raw, true, 8, 2, 4, (byte) 0x10, (byte) 0x20, (byte) 0x30, (byte) 0xff);
+        RawScreenshot screenshot = RawScreenshot.parse(raw);
+        try (InputStreamSource source = screenshot.encodePng();
+                InputStream stream = source.createInputStream()) {
+            BufferedImage img = ImageIO.read(stream);
+            assertEquals(8, img.getWidth());
+            assertEquals(0xff102030, img.getRGB(2, 4));
+            assertEquals(0xff000000, img.getRGB(3, 4));
+        }
+    }
+}
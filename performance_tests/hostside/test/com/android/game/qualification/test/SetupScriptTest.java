@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/** Test for {@link SetupScript}. */
+@RunWith(JUnit4.class)
+public class SetupScriptTest {
+    private File mOutputFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mOutputFile = File.createTempFile("SetupScriptTest", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        mOutputFile.delete();
+    }
+
+    private SetupScript.Result run(String cmd, long timeoutMs)
+            throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
+        pb.redirectErrorStream(true);
+        return SetupScript.run(pb, timeoutMs, mOutputFile);
+    }
+
+    @Test
+    public void testLargeOutput() throws IOException, InterruptedException {
+        // Much more than a pipe buffer, on stdout and stderr.
+        SetupScript.Result result = run(
+                "i=0; while [ $i -lt 20000 ]; do echo line $i; echo error $i >&2; i=$((i+1)); "
+                        + "done; echo done",
+                60000);
+        assertTrue(result.isSuccess());
+        assertNull(result.getFailureMessage());
+        assertTrue(result.getOutputTail().endsWith("done\n"));
+        assertTrue(result.getOutputTail().length() <= SetupScript.TAIL_SIZE + 3);
+        assertTrue(mOutputFile.length() > 400000);
+    }
+
+    @Test
+    public void testFailure() throws IOException, InterruptedException {
+        SetupScript.Result result = run("echo bad input; exit 3", 60000);
+        assertFalse(result.isSuccess());
+        assertFalse(result.isTimedOut());
+        assertEquals(
+                "Execution of setup script returned non-zero value:\nbad input\n",
+                result.getFailureMessage());
+    }
+
+    @Test
+    public void testTimeout() throws IOException, InterruptedException {
+        SetupScript.Result result = run("echo started; sleep 30", 500);
+        assertTrue(result.isTimedOut());
+        assertTrue(result.getWallTimeMs() < 30000);
+        assertTrue(result.getFailureMessage().contains("started\n"));
+        assertTrue(result.getFailureMessage().contains("TIMEOUT"));
+    }
+
+    @Test
+    public void testTailBuffer() {
+        SetupScript.TailBuffer tail = new SetupScript.TailBuffer(4);
+        byte[] data = "abcdef".getBytes(StandardCharsets.UTF_8);
+        tail.write(data, 0, 3);
+        assertEquals("abc", tail.toString());
+        tail.write(data, 3, 3);
+        assertEquals(6, tail.getCount());
+        assertEquals("...cdef", tail.toString());
+    }
+}
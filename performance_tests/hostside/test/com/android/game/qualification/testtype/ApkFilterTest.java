@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.testtype;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.game.qualification.ApkInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+/** Test for {@link ApkFilter}. */
+@RunWith(JUnit4.class)
+public class ApkFilterTest {
+    private static ApkInfo createApk(String name) {
+        return new ApkInfo(
+                name,
+                name + ".apk",
+                "com." + name,
+                null,
+                "layer",
+                null,
+                Collections.emptyList(),
+                1000,
+                1000,
+                true);
+    }
+
+    @Test
+    public void testNoFilter() {
+        ApkFilter filter = new ApkFilter(Collections.emptySet(), Collections.emptySet());
+        assertTrue(filter.shouldRun("foo"));
+    }
+
+    @Test
+    public void testGlob() {
+        ApkFilter filter = new ApkFilter(Arrays.asList("unity*", "?dk"), Collections.emptySet());
+        assertTrue(filter.shouldRun("unity_sample"));
+        assertTrue(filter.shouldRun("ndk"));
+        assertFalse(filter.shouldRun("ndk_sample"));
+        // Not a valid regular expression.
+        assertTrue(new ApkFilter(Arrays.asList("*+"), Collections.emptySet()).shouldRun("c++"));
+    }
+
+    @Test
+    public void testGlobIsLiteral() {
+        ApkFilter filter =
+                new ApkFilter(Arrays.asList("game.v2", "Game?"), Collections.emptySet());
+        assertTrue(filter.shouldRun("game.v2"));
+        assertTrue(filter.shouldRun("Games"));
+        // '.' is not a wildcard, and '?' is not optional.
+        assertFalse(filter.shouldRun("gameXv2"));
+        assertFalse(filter.shouldRun("Gam"));
+        assertFalse(filter.shouldRun("Game"));
+        // Same for an exclude filter.
+        filter = new ApkFilter(Collections.emptySet(), Arrays.asList("a.b"));
+        assertTrue(filter.shouldRun("axb"));
+        assertFalse(filter.shouldRun("a.b"));
+    }
+
+    @Test
+    public void testRegex() {
+        ApkFilter filter =
+                new ApkFilter(
+                        Arrays.asList("regex:(unity|unreal)_.+"),
+                        Arrays.asList("unreal_vulkan"));
+        assertTrue(filter.shouldRun("unity_gl"));
+        assertTrue(filter.shouldRun("unreal_gl"));
+        assertFalse(filter.shouldRun("unreal_vulkan"));
+        assertFalse(filter.shouldRun("native"));
+        // Without the prefix, the filter is a glob.
+        assertFalse(new ApkFilter(Arrays.asList("(unity|unreal)_.+"), Collections.emptySet())
+                .shouldRun("unity_gl"));
+    }
+
+    @Test
+    public void testInvalidRegex() {
+        try {
+            new ApkFilter(Arrays.asList("regex:*+"), Collections.emptySet());
+            fail("expected exception");
+        } catch (PatternSyntaxException e) {
+            // Do nothing.
+        }
+    }
+
+    @Test
+    public void testExclude() {
+        ApkFilter filter = new ApkFilter(Collections.emptySet(), Arrays.asList("*_debug"));
+        List<ApkInfo> apks = filter.apply(Arrays.asList(
+                createApk("b"), createApk("a_debug"), createApk("a")));
+        assertEquals(2, apks.size());
+        assertEquals("b", apks.get(0).getName());
+        assertEquals("a", apks.get(1).getName());
+    }
+
+    @Test
+    public void testGlobToRegex() {
+        assertEquals("\\Qfoo\\E.*\\Q.apk\\E", ApkFilter.globToRegex("foo*.apk"));
+        assertEquals(".", ApkFilter.globToRegex("?"));
+    }
+}
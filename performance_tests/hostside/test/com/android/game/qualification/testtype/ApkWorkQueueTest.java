@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.game.qualification.testtype;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.android.game.qualification.ApkInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** Test for {@link ApkWorkQueue}. */
+@RunWith(JUnit4.class)
+public class ApkWorkQueueTest {
+    private File mHistoryFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mHistoryFile = File.createTempFile("apk-cost", ".properties");
+        mHistoryFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mHistoryFile.delete();
+    }
+
+    private static ApkInfo createApk(String name, int loadTime, int runTime) {
+        return new ApkInfo(
+                name,
+                name + ".apk",
+                "com." + name,
+                null,
+                "layer",
+                null,
+                Collections.emptyList(),
+                loadTime,
+                runTime,
+                true);
+    }
+
+    @Test
+    public void testInOrder() {
+        ApkInfo a = createApk("a", 1000, 1000);
+        ApkInfo b = createApk("b", 1000, 5000);
+        ApkWorkQueue queue = new ApkWorkQueue(Arrays.asList(a, b));
+        assertEquals(a, queue.poll());
+        assertEquals(b, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testByExpectedCost() {
+        ApkInfo a = createApk("a", 1000, 1000);
+        ApkInfo b = createApk("b", 1000, 5000);
+        ApkInfo c = createApk("c", 1000, 1000);
+        List<ApkInfo> apks = Arrays.asList(a, b, c);
+
+        ApkWorkQueue queue =
+                ApkWorkQueue.byExpectedCost(apks, new ApkCostHistory(mHistoryFile));
+        assertEquals(3, queue.size());
+        assertEquals(b, queue.poll());
+        // Equal costs keep their order.
+        assertEquals(a, queue.poll());
+        assertEquals(c, queue.poll());
+    }
+
+    @Test
+    public void testHistory() {
+        ApkInfo a = createApk("a", 1000, 1000);
+        ApkInfo b = createApk("b", 1000, 5000);
+
+        ApkCostHistory history = new ApkCostHistory(mHistoryFile);
+        // a takes 10 s to install, b installs instantly.
+        history.record(a, 10000);
+        history.record(b, 0);
+
+        // The history is read back by the next invocation.
+        history = new ApkCostHistory(mHistoryFile);
+        assertEquals(10000, history.getSetupTimeMs("a"));
+        assertEquals(0, history.getSetupTimeMs("b"));
+        assertEquals(12000, history.getExpectedCostMs(a));
+
+        ApkWorkQueue queue = ApkWorkQueue.byExpectedCost(Arrays.asList(b, a), history);
+        assertEquals(a, queue.poll());
+        assertEquals(b, queue.poll());
+
+        // New observations are averaged with the previous estimate.
+        history.record(a, 2000);
+        assertEquals(6000, history.getSetupTimeMs("a"));
+    }
+
+    @Test
+    public void testConcurrentShards() throws InterruptedException {
+        ApkInfo[] apks = new ApkInfo[100];
+        for (int i = 0; i < apks.length; i++) {
+            apks[i] = createApk("apk" + i, 1000, 1000);
+        }
+        ApkWorkQueue queue = new ApkWorkQueue(Arrays.asList(apks));
+        int[] counts = new int[4];
+        Thread[] shards = new Thread[counts.length];
+        for (int i = 0; i < shards.length; i++) {
+            int shard = i;
+            shards[i] = new Thread(() -> {
+                while (queue.poll() != null) {
+                    counts[shard]++;
+                }
+            });
+            shards[i].start();
+        }
+        int total = 0;
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].join();
+            total += counts[i];
+        }
+        assertEquals(apks.length, total);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.game.qualification.testtype;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.TestDescription;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/** Test for {@link DeviceResultForwarder}. */
+@RunWith(JUnit4.class)
+public class DeviceResultForwarderTest {
+    private final List<String> mEvents = new ArrayList<>();
+    private final HashMap<String, Metric> mRunMetrics = new HashMap<>();
+    private DeviceResultForwarder mForwarder;
+
+    @Before
+    public void setUp() {
+        ITestInvocationListener listener = new ITestInvocationListener() {
+            @Override
+            public void testStarted(TestDescription test) {
+                mEvents.add("started " + test.getTestName());
+            }
+
+            @Override
+            public void testEnded(TestDescription test, HashMap<String, Metric> testMetrics) {
+                mEvents.add("ended " + test.getTestName());
+            }
+
+            @Override
+            public void testRunFailed(String errorMessage) {
+                mEvents.add("run failed " + errorMessage);
+            }
+
+            @Override
+            public void testLog(
+                    String dataName, LogDataType dataType, InputStreamSource dataStream) {
+                mEvents.add("log " + dataName);
+            }
+
+            @Override
+            public void testRunEnded(long elapsedTimeMillis, HashMap<String, Metric> runMetrics) {
+                mEvents.add("run ended");
+            }
+        };
+        mForwarder = new DeviceResultForwarder(listener, new Object(), "device1", mRunMetrics);
+    }
+
+    @Test
+    public void testBufferedUntilTestEnds() {
+        TestDescription test = new TestDescription("class", "test");
+        mForwarder.testRunStarted("run", 1);
+        mForwarder.testStarted(test);
+        assertEquals(0, mEvents.size());
+        mForwarder.testEnded(test, new HashMap<String, Metric>());
+        assertEquals(Arrays.asList("started test", "ended test"), mEvents);
+    }
+
+    @Test
+    public void testRunEndFlushes() {
+        mForwarder.testLog("trace", LogDataType.TEXT, new ByteArrayInputStreamSource(new byte[1]));
+        assertEquals(0, mEvents.size());
+        HashMap<String, Metric> runMetrics = new HashMap<>();
+        Metric metric = Metric.newBuilder().build();
+        runMetrics.put("overhead", metric);
+        mForwarder.testRunEnded(0, runMetrics);
+
+        // The run itself ends once for all devices.
+        assertEquals(Arrays.asList("log trace"), mEvents);
+        assertSame(metric, mRunMetrics.get("device1.overhead"));
+    }
+
+    @Test
+    public void testRunFailed() {
+        mForwarder.testRunFailed("device lost");
+        assertEquals(Arrays.asList("run failed device1: device lost"), mEvents);
+    }
+}